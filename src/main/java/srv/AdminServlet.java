@@ -71,18 +71,17 @@ public class AdminServlet extends HttpServlet {
 
 			if (request.getParameter("addver") != null
 					&& !request.getParameter("addver").equals("")) {
-				// Obtain a lock on the permitted versions array
-				synchronized (Server.getPermittedVersions()) {
-					Server.addVersion(request.getParameter("addver"));
-				}
+				Server.addVersion(request.getParameter("addver"));
 			}
 
 			if (request.getParameter("remver") != null
 					&& !request.getParameter("remver").equals("")) {
-				// Obtain a lock on the permitted versions array
-				synchronized (Server.getPermittedVersions()) {
-					Server.removeVersion(request.getParameter("remver"));
-				}
+				Server.removeVersion(request.getParameter("remver"));
+			}
+
+			if (request.getParameter("clearver") != null
+					&& !request.getParameter("clearver").equals("")) {
+				Server.clearPermittedVersions();
 			}
 
 			if (request.getParameter("maxclients") != null
@@ -115,6 +114,158 @@ public class AdminServlet extends HttpServlet {
 				}
 			}
 
+			if (request.getParameter("prioritycapacity") != null
+					&& !request.getParameter("prioritycapacity").equals("")) {
+				try {
+					Server.priorityQueueCapacity = Integer.parseInt(
+							request.getParameter("prioritycapacity"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("mailboxcapacity") != null
+					&& !request.getParameter("mailboxcapacity").equals("")) {
+				try {
+					Server.mailboxCapacity = Integer.parseInt(
+							request.getParameter("mailboxcapacity"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("longpolltime") != null
+					&& !request.getParameter("longpolltime").equals("")) {
+				try {
+					Server.maxLongPollTime = Integer.parseInt(
+							request.getParameter("longpolltime"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("batchcapacity") != null
+					&& !request.getParameter("batchcapacity").equals("")) {
+				try {
+					Server.batchQueueCapacity = Integer.parseInt(
+							request.getParameter("batchcapacity"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("prioritywindow") != null
+					&& !request.getParameter("prioritywindow").equals("")) {
+				try {
+					Server.priorityWindowSize = Integer.parseInt(
+							request.getParameter("prioritywindow"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("instructionrate") != null
+					&& !request.getParameter("instructionrate").equals("")) {
+				try {
+					Server.instructionRateLimit = Double.parseDouble(
+							request.getParameter("instructionrate"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("instructionburst") != null
+					&& !request.getParameter("instructionburst").equals("")) {
+				try {
+					Server.instructionBurst = Integer.parseInt(
+							request.getParameter("instructionburst"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("datarate") != null
+					&& !request.getParameter("datarate").equals("")) {
+				try {
+					Server.dataRateLimit = Double.parseDouble(
+							request.getParameter("datarate"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("databurst") != null
+					&& !request.getParameter("databurst").equals("")) {
+				try {
+					Server.dataBurst = Integer.parseInt(
+							request.getParameter("databurst"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("maxinflight") != null
+					&& !request.getParameter("maxinflight").equals("")) {
+				try {
+					Server.maxInFlightRequests = Integer.parseInt(
+							request.getParameter("maxinflight"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("targetlatency") != null
+					&& !request.getParameter("targetlatency").equals("")) {
+				try {
+					Server.targetRequestLatency = Integer.parseInt(
+							request.getParameter("targetlatency"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("locksampleinterval") != null
+					&& !request.getParameter("locksampleinterval").equals("")) {
+				try {
+					Server.lockSampleInterval = Math.max(
+							LockProfiler.MIN_INTERVAL, Integer.parseInt(
+									request.getParameter("locksampleinterval")));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("lockprofiler") != null
+					&& !request.getParameter("lockprofiler").equals("")) {
+				if (request.getParameter("lockprofiler").equals("start")) {
+					LockProfiler.start(Server.lockSampleInterval);
+				} else if (request.getParameter("lockprofiler").equals("stop")) {
+					LockProfiler.stop();
+				} else if (request.getParameter("lockprofiler").equals("clear")) {
+					LockProfiler.clear();
+				}
+			}
+
+			if (request.getParameter("keyframeinterval") != null
+					&& !request.getParameter("keyframeinterval").equals("")) {
+				try {
+					Server.deltaKeyframeInterval = Integer.parseInt(
+							request.getParameter("keyframeinterval"));
+				} catch (NumberFormatException e) {
+					Server.print(e);
+				}
+			}
+
+			if (request.getParameter("priorityoverflow") != null
+					&& !request.getParameter("priorityoverflow").equals("")) {
+				try {
+					Server.priorityOverflowPolicy = FrameQueue.OverflowPolicy
+							.valueOf(request.getParameter("priorityoverflow"));
+				} catch (IllegalArgumentException e) {
+					Server.print(e);
+				}
+			}
+
 			if (request.getParameter("clearscores") != null
 					&& !request.getParameter("clearscores").equals("")) {
 				// Obtain a lock on the list of high scores
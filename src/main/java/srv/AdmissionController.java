@@ -0,0 +1,246 @@
+package srv;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether requests should be handled, or shed, based on the
+ * server's load.
+ * <p>
+ * The load is measured by the number of requests being handled, the
+ * (smoothed) time taken to handle each request, and the number of
+ * clients connected. As the server nears capacity, requests are shed in
+ * order of how little they matter to games in progress:
+ * <ul>
+ * <li>New clients are shed first - once the server is full, or once it
+ * is half way to its in-flight limit, or is handling requests more
+ * slowly than half of {@link Server#targetRequestLatency}</li>
+ * <li>Lobby traffic is shed next - once the server is three quarters of
+ * the way to its in-flight limit, or is handling requests more slowly
+ * than {@link Server#targetRequestLatency}</li>
+ * <li>Relay traffic (frames between partners) is only shed once the
+ * in-flight limit has been reached</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Shed requests should be replied to with a 503 (service unavailable)
+ * status code, and a Retry-After header giving
+ * {@link Traffic#getRetryAfter()}.
+ * </p>
+ */
+public abstract class AdmissionController {
+
+	/** The weight given to each new latency sample (as a power of two) */
+	private static final int LATENCY_SMOOTHING = 3;
+
+	/** The time (in ns) after which the smoothed latency is out of date */
+	private static final long LATENCY_EXPIRY = TimeUnit.SECONDS.toNanos(1);
+
+	/** The number of requests being handled */
+	private static final AtomicInteger inFlightRequests = new AtomicInteger();
+
+	/** The smoothed time (in ns) taken to handle each request */
+	private static final AtomicLong latency = new AtomicLong();
+
+	/** The time (from {@link System#nanoTime()}) of the last sample */
+	private static volatile long lastSampleTime = System.nanoTime();
+
+
+	/**
+	 * The kinds of traffic which can be shed.
+	 */
+	public enum Traffic {
+		/** Frames relayed between partners */
+		RELAY(1),
+
+		/** Instructions and messages from existing clients */
+		LOBBY(2),
+
+		/** Requests from clients which have not been issued an ID */
+		NEW_CLIENT(5);
+
+		/** The time (in seconds) shed clients should wait before retrying */
+		private final int retryAfter;
+
+		/**
+		 * Creates a new kind of traffic.
+		 * @param retryAfter - the time (in seconds) shed clients should
+		 * 						wait before retrying
+		 */
+		private Traffic(int retryAfter) {
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * Gets the time shed clients should wait before retrying.
+		 * @return the time to wait, in seconds
+		 */
+		public int getRetryAfter() {
+			return retryAfter;
+		}
+	}
+
+
+	/**
+	 * Starts handling a request, unless it should be shed.
+	 * <p>
+	 * Every request admitted must be followed by a call to
+	 * {@link #exit()} once it has finished, and should be followed by a
+	 * call to {@link #recordLatency(long)} once it has been handled.
+	 * </p>
+	 * @param traffic - the kind of traffic the request carries
+	 * @return <code>true</code> if the request should be handled, or
+	 * 			<code>false</code> if it should be shed
+	 */
+	public static boolean enter(Traffic traffic) {
+		int inFlight = inFlightRequests.incrementAndGet();
+
+		if (shouldShed(traffic, inFlight)) {
+			inFlightRequests.decrementAndGet();
+			Metrics.increment(Metrics.labelled(Metrics.REQUESTS_SHED,
+					"traffic", traffic.name().toLowerCase()));
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks whether a request which has already been admitted should
+	 * still be handled, once it is known to carry a kind of traffic
+	 * which is shed sooner than it was admitted as.
+	 * <p>
+	 * This is used for requests whose kind of traffic is only known once
+	 * their body has been read. Requests which should be shed are counted
+	 * as shed, but are still in flight until {@link #exit()} is called.
+	 * </p>
+	 * @param traffic - the kind of traffic the request carries
+	 * @return <code>true</code> if the request should be handled, or
+	 * 			<code>false</code> if it should be shed
+	 */
+	public static boolean stillAdmits(Traffic traffic) {
+		if (shouldShed(traffic, inFlightRequests.get())) {
+			Metrics.increment(Metrics.labelled(Metrics.REQUESTS_SHED,
+					"traffic", traffic.name().toLowerCase()));
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records the time taken to handle a request.
+	 * <p>
+	 * This does not finish the request, so requests which are completed
+	 * asynchronously can record the time spent handling them, without
+	 * the time spent waiting to complete.
+	 * </p>
+	 * @param startTime - the time (from {@link System#nanoTime()}) the
+	 * 					request was admitted
+	 */
+	public static void recordLatency(long startTime) {
+		long now = System.nanoTime();
+
+		// Move the smoothed latency towards the sample
+		long sample = now - startTime;
+		long smoothed;
+		do {
+			smoothed = latency.get();
+		} while (!latency.compareAndSet(smoothed,
+				smoothed + ((sample - smoothed) >> LATENCY_SMOOTHING)));
+
+		lastSampleTime = now;
+	}
+
+	/**
+	 * Finishes handling a request.
+	 */
+	public static void exit() {
+		inFlightRequests.decrementAndGet();
+	}
+
+
+	/**
+	 * Gets the number of requests being handled.
+	 * @return the number of requests admitted which have not finished
+	 */
+	public static int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	/**
+	 * Gets the smoothed time taken to handle each request.
+	 * <p>
+	 * If no request has finished recently, the latency is taken to be
+	 * <code>0</code>, so that shedding stops once the server is idle.
+	 * </p>
+	 * @return the smoothed latency, in milliseconds
+	 */
+	public static long getLatency() {
+		if (System.nanoTime() - lastSampleTime > LATENCY_EXPIRY) {
+			return 0;
+		}
+
+		return TimeUnit.NANOSECONDS.toMillis(latency.get());
+	}
+
+	/**
+	 * Resets the smoothed latency.
+	 * <p>
+	 * The number of requests in flight is not reset, as the requests
+	 * being handled will still finish.
+	 * </p>
+	 */
+	public static void reset() {
+		latency.set(0);
+		lastSampleTime = System.nanoTime();
+	}
+
+
+	/**
+	 * Checks whether a request should be shed.
+	 * @param traffic - the kind of traffic the request carries
+	 * @param inFlight - the number of requests being handled, including
+	 * 					this one
+	 * @return <code>true</code> if the request should be shed,
+	 * 			otherwise <code>false</code>
+	 */
+	private static boolean shouldShed(Traffic traffic, int inFlight) {
+		int maxInFlight = Server.maxInFlightRequests;
+
+		if (maxInFlight > 0 && inFlight > maxInFlight) {
+			return true;
+		}
+
+		switch (traffic) {
+		case NEW_CLIENT:
+			return Server.getClientCount() >= Server.maxClients
+					|| isOverloaded(inFlight, maxInFlight / 2,
+							Server.targetRequestLatency / 2);
+		case LOBBY:
+			return isOverloaded(inFlight, (maxInFlight * 3) / 4,
+					Server.targetRequestLatency);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether the server's load exceeds the limits given.
+	 * @param inFlight - the number of requests being handled
+	 * @param maxInFlight - the most requests which can be handled (or
+	 * 						<code>0</code> for no limit)
+	 * @param maxLatency - the longest (smoothed) time requests can take
+	 * 						to handle, in ms (or <code>0</code> for no
+	 * 						limit)
+	 * @return <code>true</code> if either limit is exceeded,
+	 * 			otherwise <code>false</code>
+	 */
+	private static boolean isOverloaded(int inFlight, int maxInFlight,
+			long maxLatency) {
+		return (maxInFlight > 0 && inFlight > maxInFlight)
+				|| (maxLatency > 0 && getLatency() > maxLatency);
+	}
+
+}
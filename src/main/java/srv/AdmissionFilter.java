@@ -0,0 +1,172 @@
+package srv;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sheds requests to the servlets when the server is nearing capacity.
+ * <p>
+ * Each request is classified as relay traffic (/data, and /sync from
+ * clients with a partner), lobby traffic (/msg, and /sync from clients
+ * without a partner), or traffic from a new client (any request without
+ * an fh-client-id header, or with an ID of -1), and is passed to the
+ * {@link AdmissionController}. Shed requests are replied to with a 503
+ * (service unavailable) status code and a Retry-After header, so that
+ * clients back off rather than retrying immediately. Requests to /sync
+ * which turn out to carry an instruction are checked again as lobby
+ * traffic once their body has been read.
+ * </p>
+ * <p>
+ * The time taken to handle each request is measured when the servlet
+ * returns. Requests handled asynchronously are counted as in flight
+ * until they complete, apart from long polls, which are only waiting.
+ * </p>
+ * <p>
+ * The number of requests admitted to each endpoint, and the time taken
+ * to handle them, are recorded in {@link Metrics}.
+ * </p>
+ */
+@WebFilter(urlPatterns = { "/msg", "/data", "/sync" }, asyncSupported = true)
+public class AdmissionFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+		//
+	}
+
+	@Override
+	public void doFilter(ServletRequest servletRequest,
+			ServletResponse servletResponse, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) servletRequest;
+		HttpServletResponse response = (HttpServletResponse) servletResponse;
+		AdmissionController.Traffic traffic = classify(request);
+
+		// Shed the request if the server is overloaded
+		if (!AdmissionController.enter(traffic)) {
+			shed(response, traffic);
+			return;
+		}
+
+		String endpoint = request.getServletPath();
+		long startTime = System.nanoTime();
+		Metrics.increment(Metrics.labelled(Metrics.REQUESTS, "endpoint",
+				endpoint));
+
+		try {
+			chain.doFilter(servletRequest, servletResponse);
+		} catch (IOException | ServletException | RuntimeException e) {
+			recordLatency(endpoint, startTime);
+			AdmissionController.exit();
+			throw e;
+		}
+
+		recordLatency(endpoint, startTime);
+
+		if (!request.isAsyncStarted()) {
+			AdmissionController.exit();
+		} else if (request.getHeader("fh-client-longpoll") != null) {
+			// The request is only waiting for messages
+			AdmissionController.exit();
+		} else {
+			// Count the request until it completes
+			request.getAsyncContext().addListener(new AsyncListener() {
+				@Override
+				public void onComplete(AsyncEvent event) {
+					AdmissionController.exit();
+				}
+
+				@Override
+				public void onTimeout(AsyncEvent event) {
+					//
+				}
+
+				@Override
+				public void onError(AsyncEvent event) {
+					//
+				}
+
+				@Override
+				public void onStartAsync(AsyncEvent event) {
+					//
+				}
+			});
+		}
+	}
+
+	@Override
+	public void destroy() {
+		//
+	}
+
+
+	/**
+	 * Replies to a request which has been shed.
+	 * @param response - the response to send
+	 * @param traffic - the kind of traffic the request carries
+	 */
+	static void shed(HttpServletResponse response,
+			AdmissionController.Traffic traffic) {
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After",
+				String.valueOf(traffic.getRetryAfter()));
+	}
+
+	/**
+	 * Records the time taken to handle a request.
+	 * @param endpoint - the path of the servlet which handled the request
+	 * @param startTime - the time (from {@link System#nanoTime()}) the
+	 * 					request was admitted
+	 */
+	private static void recordLatency(String endpoint, long startTime) {
+		AdmissionController.recordLatency(startTime);
+		Metrics.record(Metrics.labelled(Metrics.REQUEST_LATENCY, "endpoint",
+				endpoint), TimeUnit.NANOSECONDS.toMicros(
+						System.nanoTime() - startTime));
+	}
+
+	/**
+	 * Determines the kind of traffic a request carries.
+	 * @param request - the request to classify
+	 * @return the kind of traffic the request carries
+	 */
+	private static AdmissionController.Traffic classify(
+			HttpServletRequest request) {
+		String clientID = ClientHeaders.getClientID(request);
+
+		if (clientID == null || clientID.equals("-1")) {
+			return AdmissionController.Traffic.NEW_CLIENT;
+		}
+
+		String path = request.getServletPath();
+
+		if ("/data".equals(path)) {
+			return AdmissionController.Traffic.RELAY;
+		}
+
+		// Only count syncs as relay traffic once the client has a partner
+		if ("/sync".equals(path)) {
+			Client client = Server.getClientFromID(
+					ClientHeaders.parseLong(clientID, -1));
+
+			if (client != null && client.getPartner() != null) {
+				return AdmissionController.Traffic.RELAY;
+			}
+		}
+
+		return AdmissionController.Traffic.LOBBY;
+	}
+
+}
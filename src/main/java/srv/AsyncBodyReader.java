@@ -0,0 +1,181 @@
+package srv;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads a request body without blocking.
+ * <p>
+ * The body is read into a pooled frame as it arrives, so no thread is
+ * held while a slow client uploads it. Once the whole body has been
+ * read, it is passed to {@link #bodyRead(Frame)}.
+ * </p>
+ * <p>
+ * Bodies longer than {@link BodyReader#maxBodyBytes} are rejected with a
+ * 400 (bad request) status code, and counted under
+ * {@link Metrics#BODIES_REJECTED}.
+ * </p>
+ */
+public abstract class AsyncBodyReader implements ReadListener, AsyncListener {
+
+	/** The initial size of the buffer used when the body length is unknown */
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	/** The request's asynchronous context */
+	protected final AsyncContext asyncContext;
+
+	/** The stream the body is read from */
+	private final ServletInputStream inputStream;
+
+	/** The frame the body is read into */
+	private Frame body;
+
+	/** The number of bytes read so far */
+	private int length;
+
+
+	/**
+	 * Creates a new asynchronous body reader.
+	 * @param asyncContext - the request's asynchronous context
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 */
+	public AsyncBodyReader(AsyncContext asyncContext,
+			ServletInputStream inputStream, int contentLength) {
+		this.asyncContext = asyncContext;
+		this.inputStream = inputStream;
+		this.body = FramePool.acquire((contentLength > 0)
+				? Math.min(contentLength, BodyReader.maxBodyBytes)
+				: INITIAL_BUFFER_SIZE);
+		this.length = 0;
+	}
+
+
+	/**
+	 * Starts reading the body.
+	 */
+	public void start() {
+		asyncContext.addListener(this);
+		inputStream.setReadListener(this);
+	}
+
+	/**
+	 * Handles the body, once it has been read.
+	 * <p>
+	 * The implementation takes ownership of the body, and is responsible
+	 * for completing the request.
+	 * </p>
+	 * @param body - the frame containing the body
+	 * @throws IOException if the body could not be handled
+	 */
+	protected abstract void bodyRead(Frame body) throws IOException;
+
+
+	@Override
+	public synchronized void onDataAvailable() throws IOException {
+		// Read until the stream would block, unless the request timed out
+		while (body != null && inputStream.isReady()) {
+			int capacity = Math.min(body.getCapacity(), BodyReader.maxBodyBytes);
+
+			if (length == capacity) {
+				// Check that there is room to grow the buffer
+				if (length >= BodyReader.maxBodyBytes) {
+					if (inputStream.read() == -1) return;
+
+					throw new InvalidObjectException("Body too long: more than "
+							+ BodyReader.maxBodyBytes + " bytes");
+				}
+
+				body = FramePool.grow(body,
+						Math.min(capacity * 2, BodyReader.maxBodyBytes));
+				capacity = Math.min(body.getCapacity(), BodyReader.maxBodyBytes);
+			}
+
+			int read = inputStream.read(body.getBuffer(), length,
+					capacity - length);
+			if (read == -1) return;
+
+			length += read;
+		}
+	}
+
+	@Override
+	public void onAllDataRead() throws IOException {
+		Frame readBody;
+
+		// Take ownership of the body, unless the request timed out
+		synchronized (this) {
+			readBody = body;
+			body = null;
+		}
+
+		if (readBody == null) {
+			return;
+		}
+
+		readBody.setRegion(0, length);
+		bodyRead(readBody);
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		release();
+
+		try {
+			if (t instanceof ObjectStreamException) {
+				// Reject the request without processing it
+				Metrics.increment(Metrics.BODIES_REJECTED);
+				Server.print("Rejected request body: " + t.getMessage());
+				((HttpServletResponse) asyncContext.getResponse())
+						.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			} else {
+				Server.print(new Exception(t));
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		} finally {
+			asyncContext.complete();
+		}
+	}
+
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		release();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		release();
+		asyncContext.complete();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		release();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+		//
+	}
+
+
+	/**
+	 * Releases the body, if it has not been handled.
+	 */
+	private synchronized void release() {
+		FramePool.release(body);
+		body = null;
+	}
+
+}
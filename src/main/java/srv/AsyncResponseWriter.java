@@ -0,0 +1,74 @@
+package srv;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Writes a response body without blocking.
+ * <p>
+ * The body is written whenever the connection can accept more of it,
+ * and the request is completed once it has all been written.
+ * </p>
+ */
+public class AsyncResponseWriter implements WriteListener {
+
+	/** The request's asynchronous context */
+	private final AsyncContext asyncContext;
+
+	/** The stream the body is written to */
+	private final ServletOutputStream outputStream;
+
+	/** The body to write */
+	private final byte[] body;
+
+	/** The number of bytes written so far */
+	private int position;
+
+
+	/**
+	 * Creates a new asynchronous response writer.
+	 * @param asyncContext - the request's asynchronous context
+	 * @param outputStream - the stream to write the body to
+	 * @param body - the body to write
+	 */
+	public AsyncResponseWriter(AsyncContext asyncContext,
+			ServletOutputStream outputStream, byte[] body) {
+		this.asyncContext = asyncContext;
+		this.outputStream = outputStream;
+		this.body = body;
+		this.position = 0;
+	}
+
+
+	/**
+	 * Starts writing the body.
+	 */
+	public void start() {
+		outputStream.setWriteListener(this);
+	}
+
+
+	@Override
+	public void onWritePossible() throws IOException {
+		// Write until the stream would block
+		while (outputStream.isReady()) {
+			if (position == body.length) {
+				asyncContext.complete();
+				return;
+			}
+
+			outputStream.write(body, position, body.length - position);
+			position = body.length;
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		Server.print(new Exception(t));
+		asyncContext.complete();
+	}
+
+}
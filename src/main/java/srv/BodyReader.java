@@ -0,0 +1,948 @@
+package srv;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Reads serialised objects from request bodies.
+ * <p>
+ * Request bodies are read into a buffer of bounded size, and are then
+ * checked against the subset of the serialisation format used by the
+ * game before any objects are constructed.
+ * </p>
+ * <p>
+ * Bodies are rejected if they:
+ * <ul>
+ * <li>are longer than {@link #maxBodyBytes}</li>
+ * <li>refer to a class which is not permitted</li>
+ * <li>nest objects deeper than {@link #maxDepth}</li>
+ * <li>contain an array longer than {@link #maxArrayLength}</li>
+ * </ul>
+ * Rejected bodies are counted under {@link Metrics#BODIES_REJECTED}.
+ * </p>
+ */
+public abstract class BodyReader {
+
+	/** The maximum number of bytes to accept in a request body */
+	public static int maxBodyBytes = 64 * 1024;
+
+	/** The maximum depth to which objects may be nested */
+	public static int maxDepth = 4;
+
+	/** The maximum length of any array in a request body */
+	public static int maxArrayLength = 32 * 1024;
+
+	/** The classes which may be read from a request body */
+	private static final Set<String> PERMITTED_CLASSES =
+			new HashSet<String>(Arrays.asList(
+					"java.util.AbstractMap$SimpleImmutableEntry",
+					"java.util.AbstractMap$SimpleEntry",
+					"java.lang.Long",
+					"java.lang.Number",
+					"[B"));
+
+	/** The initial size of the buffer used when the body length is unknown */
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+
+	/**
+	 * Reads an object from a request body.
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @return the object read from the body
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static Object readObject(InputStream inputStream,
+			int contentLength) throws IOException {
+		Frame body = null;
+
+		try {
+			// Read the body into memory
+			body = readBody(inputStream, contentLength);
+
+			// Check the body before constructing any objects from it
+			new Validator(body.getBuffer(), 0, body.getLength()).validate();
+
+			return deserialise(body);
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		} finally {
+			FramePool.release(body);
+		}
+	}
+
+	/**
+	 * Reads every object from a request body.
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @return the objects read from the body, in the order they appear
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static Object[] readObjects(InputStream inputStream,
+			int contentLength) throws IOException {
+		Frame body = null;
+
+		try {
+			// Read the body into memory
+			body = readBody(inputStream, contentLength);
+
+			// Check the body before constructing any objects from it
+			Validator validator =
+					new Validator(body.getBuffer(), 0, body.getLength());
+			validator.validate();
+
+			return deserialise(body, validator.topLevelObjects);
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		} finally {
+			FramePool.release(body);
+		}
+	}
+
+	/**
+	 * Reads a data frame from a request body.
+	 * <p>
+	 * Bodies should contain a serialised data entry, made up of a
+	 * <code>Long</code> key and a <code>byte[]</code> value. The frame
+	 * returned refers to the value's bytes in the buffer the body was read
+	 * into, so the value is not copied.
+	 * </p>
+	 * <p>
+	 * The caller is responsible for releasing the frame returned.
+	 * </p>
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @return the frame read from the body, or <code>null</code> if the
+	 * 			body did not contain a data entry
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static Frame readFrame(InputStream inputStream,
+			int contentLength) throws IOException {
+		Frame body = null;
+
+		try {
+			// Read the body into memory
+			body = readBody(inputStream, contentLength);
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		}
+
+		return readFrame(body);
+	}
+
+	/**
+	 * Reads a data frame from a request body which has already been read
+	 * into memory.
+	 * <p>
+	 * The body should occupy the start of the frame given, and is released
+	 * (or reused as the frame returned) by this method. The caller is
+	 * responsible for releasing the frame returned.
+	 * </p>
+	 * @param body - the frame containing the body
+	 * @return the frame read from the body, or <code>null</code> if the
+	 * 			body did not contain a data entry
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static Frame readFrame(Frame body) throws IOException {
+		try {
+			// Check the body before constructing any objects from it
+			Validator validator =
+					new Validator(body.getBuffer(), 0, body.getLength());
+			validator.validate();
+
+			if (validator.hasFrame()) {
+				// Use the body's buffer to hold the frame
+				body.setKey(validator.frameKey);
+				body.setRegion(validator.frameOffset, validator.frameLength);
+
+				Frame frame = body;
+				body = null;
+				return frame;
+			}
+
+			// Otherwise, construct the entry and copy it into a frame
+			return toFrame(deserialise(body));
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		} finally {
+			FramePool.release(body);
+		}
+	}
+
+	/**
+	 * Reads every data frame from a request body.
+	 * <p>
+	 * Bodies should contain one or more serialised data entries. If the
+	 * body contains a single data entry, the frame refers to the value's
+	 * bytes in the buffer the body was read into; otherwise, each entry's
+	 * value is copied into a frame of its own. Objects which are not data
+	 * entries are skipped.
+	 * </p>
+	 * <p>
+	 * The caller is responsible for releasing the frames read.
+	 * </p>
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @param frames - the list to add the frames read to
+	 * @return the number of frames read
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static int readFrames(InputStream inputStream,
+			int contentLength, List<Frame> frames) throws IOException {
+		return readFrames(inputStream, contentLength, frames, null);
+	}
+
+	/**
+	 * Reads every data frame from a request body, keeping the objects
+	 * which are not data entries.
+	 * <p>
+	 * This is used for bodies which carry other objects alongside their
+	 * frames, such as the instruction string sent to the sync servlet.
+	 * The caller is responsible for releasing the frames read.
+	 * </p>
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @param frames - the list to add the frames read to
+	 * @param others - the list to add the other objects read to (or
+	 * 					<code>null</code> to skip them)
+	 * @return the number of frames read
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static int readFrames(InputStream inputStream,
+			int contentLength, List<Frame> frames, List<Object> others)
+			throws IOException {
+		Frame body = null;
+
+		try {
+			// Read the body into memory
+			body = readBody(inputStream, contentLength);
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		}
+
+		return readFrames(body, frames, others);
+	}
+
+	/**
+	 * Reads every data frame from a request body which has already been
+	 * read into memory.
+	 * <p>
+	 * The body should occupy the start of the frame given, and is released
+	 * (or reused as one of the frames read) by this method. The caller is
+	 * responsible for releasing the frames read.
+	 * </p>
+	 * @param body - the frame containing the body
+	 * @param frames - the list to add the frames read to
+	 * @return the number of frames read
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static int readFrames(Frame body, List<Frame> frames)
+			throws IOException {
+		return readFrames(body, frames, null);
+	}
+
+	/**
+	 * Reads every data frame from a request body which has already been
+	 * read into memory, keeping the objects which are not data entries.
+	 * <p>
+	 * The body is released (or reused as one of the frames read) by this
+	 * method. The caller is responsible for releasing the frames read.
+	 * </p>
+	 * @param body - the frame containing the body
+	 * @param frames - the list to add the frames read to
+	 * @param others - the list to add the other objects read to (or
+	 * 					<code>null</code> to skip them)
+	 * @return the number of frames read
+	 * @throws ObjectStreamException if the body was rejected
+	 * @throws IOException if the body could not be read
+	 */
+	public static int readFrames(Frame body, List<Frame> frames,
+			List<Object> others) throws IOException {
+		try {
+			// Check the body before constructing any objects from it
+			Validator validator =
+					new Validator(body.getBuffer(), 0, body.getLength());
+			validator.validate();
+
+			if (validator.hasFrame()) {
+				// Use the body's buffer to hold the frame
+				body.setKey(validator.frameKey);
+				body.setRegion(validator.frameOffset, validator.frameLength);
+
+				frames.add(body);
+				body = null;
+				return 1;
+			}
+
+			// Otherwise, construct the entries and copy them into frames
+			int count = 0;
+			for (Object receivedData
+					: deserialise(body, validator.topLevelObjects)) {
+				Frame frame = toFrame(receivedData);
+
+				if (frame != null) {
+					frames.add(frame);
+					count++;
+				} else if (others != null) {
+					others.add(receivedData);
+				}
+			}
+
+			return count;
+		} catch (ObjectStreamException e) {
+			Metrics.increment(Metrics.BODIES_REJECTED);
+			throw e;
+		} finally {
+			FramePool.release(body);
+		}
+	}
+
+	/**
+	 * Copies a data entry into a frame.
+	 * @param receivedData - the object to copy
+	 * @return the frame, or <code>null</code> if the object was not a
+	 * 			data entry
+	 */
+	private static Frame toFrame(Object receivedData) {
+		if (receivedData instanceof Entry<?, ?>
+				&& ((Entry<?, ?>) receivedData).getKey() instanceof Long
+				&& ((Entry<?, ?>) receivedData).getValue() instanceof byte[]) {
+			Entry<?, ?> entry = (Entry<?, ?>) receivedData;
+			byte[] value = (byte[]) entry.getValue();
+
+			Frame frame = FramePool.acquire(value.length);
+			System.arraycopy(value, 0, frame.getBuffer(), 0, value.length);
+			frame.setKey((Long) entry.getKey());
+			frame.setRegion(0, value.length);
+			return frame;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads a request body into a pooled frame.
+	 * <p>
+	 * The body occupies the start of the frame's buffer, and its length is
+	 * recorded as the frame's length.
+	 * </p>
+	 * @param inputStream - the stream to read the body from
+	 * @param contentLength - the length of the body, or a negative value
+	 * 							if the length is not known
+	 * @return the frame containing the body
+	 * @throws IOException if the body could not be read, or was too long
+	 */
+	private static Frame readBody(InputStream inputStream,
+			int contentLength) throws IOException {
+		if (contentLength > maxBodyBytes) {
+			// Reject the body without reading it
+			throw new InvalidObjectException("Body too long: "
+					+ contentLength + " bytes");
+		}
+
+		Frame body = FramePool.acquire((contentLength > 0)
+				? contentLength : INITIAL_BUFFER_SIZE);
+		int length = 0;
+
+		try {
+			while (true) {
+				int capacity = Math.min(body.getCapacity(), maxBodyBytes);
+
+				if (length == capacity) {
+					// Check that there is room to grow the buffer
+					if (length >= maxBodyBytes) {
+						if (inputStream.read() == -1) break;
+
+						throw new InvalidObjectException("Body too long: more than "
+								+ maxBodyBytes + " bytes");
+					}
+
+					body = FramePool.grow(body,
+							Math.min(capacity * 2, maxBodyBytes));
+					capacity = Math.min(body.getCapacity(), maxBodyBytes);
+				}
+
+				int read = inputStream.read(body.getBuffer(), length,
+						capacity - length);
+				if (read == -1) break;
+
+				length += read;
+			}
+		} catch (IOException e) {
+			FramePool.release(body);
+			throw e;
+		}
+
+		body.setRegion(0, length);
+		return body;
+	}
+
+	/**
+	 * Constructs the object contained in a validated body.
+	 * @param body - the frame containing the body
+	 * @return the object read from the body
+	 * @throws IOException if the object could not be read
+	 */
+	private static Object deserialise(Frame body) throws IOException {
+		return deserialise(body, 1)[0];
+	}
+
+	/**
+	 * Constructs the objects contained in a validated body.
+	 * @param body - the frame containing the body
+	 * @param count - the number of objects in the body
+	 * @return the objects read from the body
+	 * @throws IOException if the objects could not be read
+	 */
+	private static Object[] deserialise(Frame body, int count)
+			throws IOException {
+		ObjectInputStream objectStream = new PermittedObjectInputStream(
+				new ByteArrayInputStream(body.getBuffer(), 0, body.getLength()));
+		Object[] objects = new Object[count];
+
+		try {
+			for (int i = 0; i < count; i++) {
+				objects[i] = objectStream.readObject();
+			}
+
+			return objects;
+		} catch (ClassNotFoundException e) {
+			throw new InvalidClassException(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * An object input stream which will only resolve permitted classes.
+	 */
+	private static class PermittedObjectInputStream extends ObjectInputStream {
+
+		/**
+		 * Constructs a new permitted object input stream.
+		 * @param inputStream - the stream to read from
+		 * @throws IOException if the stream header could not be read
+		 */
+		public PermittedObjectInputStream(InputStream inputStream)
+				throws IOException {
+			super(inputStream);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			if (!PERMITTED_CLASSES.contains(desc.getName())) {
+				throw new InvalidClassException(desc.getName(),
+						"Class not permitted");
+			}
+
+			return super.resolveClass(desc);
+		}
+
+	}
+
+
+	/**
+	 * A description of a class read from a serialised stream.
+	 */
+	private static class ClassDescription {
+
+		/** The name of the class */
+		private final String name;
+
+		/** The type codes of the class's fields */
+		private char[] fieldTypes;
+
+		/** The description of the class's superclass */
+		private ClassDescription superDescription;
+
+		/**
+		 * Constructs a new class description.
+		 * @param name - the name of the class
+		 */
+		public ClassDescription(String name) {
+			this.name = name;
+		}
+
+	}
+
+
+	/**
+	 * Walks a serialised stream without constructing any objects.
+	 * <p>
+	 * Only the parts of the serialisation grammar which are needed to
+	 * represent the permitted classes are accepted - anything else
+	 * causes the stream to be rejected.
+	 * </p>
+	 */
+	private static class Validator implements ObjectStreamConstants {
+
+		/** The stream being validated */
+		private final byte[] buffer;
+
+		/** The position of the next byte to read */
+		private int position;
+
+		/** The position after the last byte of the stream */
+		private final int end;
+
+		/** The handles assigned so far (class descriptions, otherwise null) */
+		private final ArrayList<ClassDescription> handles =
+				new ArrayList<ClassDescription>();
+
+		/** The number of objects at the top level of the stream */
+		private int topLevelObjects = 0;
+
+		/** Whether the top level object is a data entry */
+		private boolean topLevelEntry = false;
+
+		/** The number of field values read from the top level object */
+		private int entryFields = 0;
+
+		/** Whether a key has been read from the top level data entry */
+		private boolean frameKeyRead = false;
+
+		/** The key of the top level data entry */
+		private long frameKey;
+
+		/** The offset of the top level data entry's value, or -1 */
+		private int frameOffset = -1;
+
+		/** The length of the top level data entry's value */
+		private int frameLength;
+
+		/**
+		 * Constructs a new validator.
+		 * @param buffer - the buffer containing the stream
+		 * @param offset - the offset of the stream in the buffer
+		 * @param length - the length of the stream
+		 */
+		public Validator(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		/**
+		 * Validates the stream.
+		 * @throws IOException if the stream is invalid
+		 */
+		public void validate() throws IOException {
+			if (readShort() != STREAM_MAGIC || readShort() != STREAM_VERSION) {
+				throw new StreamCorruptedException("Invalid stream header");
+			}
+
+			// Check each of the objects in the stream
+			while (position < end) {
+				topLevelObjects++;
+				readContent(1);
+			}
+		}
+
+		/**
+		 * Checks whether the stream consisted of a single data entry, whose
+		 * key and value were both read.
+		 * @return <code>true</code> if the stream held a data entry,
+		 * 			otherwise <code>false</code>
+		 */
+		public boolean hasFrame() {
+			return topLevelObjects == 1 && topLevelEntry
+					&& frameKeyRead && frameOffset >= 0;
+		}
+
+		/**
+		 * Reads an object.
+		 * @param depth - the depth of the object
+		 * @throws IOException if the object is invalid
+		 */
+		private void readContent(int depth) throws IOException {
+			if (depth > maxDepth) {
+				throw new InvalidObjectException("Objects nested deeper than "
+						+ maxDepth);
+			}
+
+			if (depth == 2) {
+				entryFields++;
+			}
+
+			byte typeCode = readByte();
+
+			switch (typeCode) {
+			case TC_NULL:
+				break;
+			case TC_REFERENCE:
+				readHandle();
+				break;
+			case TC_STRING:
+				handles.add(null);
+				skip(readUnsignedShort());
+				break;
+			case TC_LONGSTRING:
+				handles.add(null);
+				long length = readLong();
+				if (length < 0 || length > end - position) {
+					throw new StreamCorruptedException("String longer than body");
+				}
+				skip((int) length);
+				break;
+			case TC_OBJECT:
+				ClassDescription objectDescription = readClassDescription();
+				if (objectDescription == null) {
+					throw new InvalidObjectException("Object has no class");
+				}
+				handles.add(null);
+
+				if (depth == 1) {
+					topLevelEntry = objectDescription.name.startsWith(
+							"java.util.AbstractMap$Simple");
+				}
+
+				readClassData(objectDescription, depth);
+
+				if (depth == 2 && topLevelEntry && entryFields == 1
+						&& objectDescription.name.equals("java.lang.Long")) {
+					// The last field read was the long's value
+					position -= 8;
+					frameKey = readLong();
+					frameKeyRead = true;
+				}
+				break;
+			case TC_ARRAY:
+				ClassDescription arrayDescription = readClassDescription();
+				if (arrayDescription == null) {
+					throw new InvalidObjectException("Array has no class");
+				}
+				handles.add(null);
+				int arrayLength = readInt();
+
+				if (depth == 2 && topLevelEntry && entryFields == 2
+						&& arrayDescription.name.equals("[B")) {
+					frameOffset = position;
+					frameLength = arrayLength;
+				}
+
+				readArrayData(arrayDescription, arrayLength, depth);
+				break;
+			default:
+				throw new InvalidObjectException("Unsupported type code: "
+						+ typeCode);
+			}
+		}
+
+		/**
+		 * Reads a class description.
+		 * @return the class description, or <code>null</code> if
+		 * 			the stream contained a null description
+		 * @throws IOException if the class description is invalid
+		 */
+		private ClassDescription readClassDescription() throws IOException {
+			byte typeCode = readByte();
+
+			switch (typeCode) {
+			case TC_NULL:
+				return null;
+			case TC_REFERENCE:
+				ClassDescription reference = handles.get(readHandle());
+				if (reference == null) {
+					throw new InvalidObjectException(
+							"Reference is not a class description");
+				}
+				return reference;
+			case TC_CLASSDESC:
+				String name = readUTF();
+				if (!PERMITTED_CLASSES.contains(name)) {
+					throw new InvalidClassException(name, "Class not permitted");
+				}
+
+				// Skip the serial version UID
+				skip(8);
+
+				ClassDescription description = new ClassDescription(name);
+				handles.add(description);
+
+				// Only plain serialisable classes are permitted
+				if (readByte() != SC_SERIALIZABLE) {
+					throw new InvalidClassException(name,
+							"Unsupported serialisation flags");
+				}
+
+				// Read the field descriptions
+				description.fieldTypes = new char[readUnsignedShort()];
+				for (int i = 0; i < description.fieldTypes.length; i++) {
+					description.fieldTypes[i] = (char) readByte();
+					skip(readUnsignedShort());
+
+					if (description.fieldTypes[i] == 'L'
+							|| description.fieldTypes[i] == '[') {
+						readTypeName();
+					}
+				}
+
+				// Class annotations are not permitted
+				if (readByte() != TC_ENDBLOCKDATA) {
+					throw new InvalidClassException(name,
+							"Class annotations not permitted");
+				}
+
+				description.superDescription = readClassDescription();
+				return description;
+			default:
+				throw new InvalidObjectException(
+						"Unsupported class description: " + typeCode);
+			}
+		}
+
+		/**
+		 * Reads the type name of an object field.
+		 * @throws IOException if the type name is invalid
+		 */
+		private void readTypeName() throws IOException {
+			byte typeCode = readByte();
+
+			if (typeCode == TC_STRING) {
+				handles.add(null);
+				skip(readUnsignedShort());
+			} else if (typeCode == TC_REFERENCE) {
+				readHandle();
+			} else {
+				throw new InvalidObjectException("Invalid field type name");
+			}
+		}
+
+		/**
+		 * Reads the field values of an object.
+		 * @param description - the object's class description
+		 * @param depth - the depth of the object
+		 * @throws IOException if the field values are invalid
+		 */
+		private void readClassData(ClassDescription description, int depth)
+				throws IOException {
+			// Build the class hierarchy, starting from the subclass
+			ArrayList<ClassDescription> hierarchy =
+					new ArrayList<ClassDescription>();
+			for (ClassDescription d = description; d != null;
+					d = d.superDescription) {
+				if (hierarchy.size() >= PERMITTED_CLASSES.size()) {
+					throw new InvalidObjectException("Invalid class hierarchy");
+				}
+
+				hierarchy.add(d);
+			}
+
+			// Field values are written from the superclass downwards
+			for (int i = hierarchy.size() - 1; i >= 0; i--) {
+				for (char fieldType : hierarchy.get(i).fieldTypes) {
+					readValue(fieldType, depth);
+				}
+			}
+		}
+
+		/**
+		 * Reads the values of an array.
+		 * @param description - the array's class description
+		 * @param length - the length of the array
+		 * @param depth - the depth of the array
+		 * @throws IOException if the array is invalid
+		 */
+		private void readArrayData(ClassDescription description, int length,
+				int depth) throws IOException {
+			if (length < 0 || length > maxArrayLength) {
+				throw new InvalidObjectException("Array length " + length
+						+ " exceeds " + maxArrayLength);
+			}
+
+			if (description.name.length() < 2
+					|| description.name.charAt(0) != '[') {
+				throw new InvalidObjectException("Invalid array class: "
+						+ description.name);
+			}
+
+			char elementType = description.name.charAt(1);
+			int elementSize = getPrimitiveSize(elementType);
+
+			if (elementSize > 0) {
+				// Skip all primitive elements at once
+				if ((long) length * elementSize > end - position) {
+					throw new StreamCorruptedException("Array longer than body");
+				}
+				skip(length * elementSize);
+			} else {
+				for (int i = 0; i < length; i++) {
+					readValue(elementType, depth);
+				}
+			}
+		}
+
+		/**
+		 * Reads a single field or array element.
+		 * @param type - the type code of the value
+		 * @param depth - the depth of the object containing the value
+		 * @throws IOException if the value is invalid
+		 */
+		private void readValue(char type, int depth) throws IOException {
+			int size = getPrimitiveSize(type);
+
+			if (size > 0) {
+				skip(size);
+			} else if (type == 'L' || type == '[') {
+				readContent(depth + 1);
+			} else {
+				throw new InvalidObjectException("Invalid type code: " + type);
+			}
+		}
+
+		/**
+		 * Gets the size of a primitive type.
+		 * @param type - the type code of the primitive
+		 * @return the size of the primitive in bytes, or <code>0</code>
+		 * 			if the type is not a primitive
+		 */
+		private static int getPrimitiveSize(char type) {
+			switch (type) {
+			case 'B':
+			case 'Z':
+				return 1;
+			case 'C':
+			case 'S':
+				return 2;
+			case 'I':
+			case 'F':
+				return 4;
+			case 'J':
+			case 'D':
+				return 8;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Reads a reference to a previously assigned handle.
+		 * @return the index of the handle
+		 * @throws IOException if the handle has not been assigned
+		 */
+		private int readHandle() throws IOException {
+			int handle = readInt() - baseWireHandle;
+
+			if (handle < 0 || handle >= handles.size()) {
+				throw new InvalidObjectException("Invalid handle");
+			}
+
+			return handle;
+		}
+
+		/**
+		 * Reads a modified UTF-8 string.
+		 * @return the string read
+		 * @throws IOException if the string is truncated
+		 */
+		private String readUTF() throws IOException {
+			int length = readUnsignedShort();
+			int start = position;
+			skip(length);
+
+			// Class names are plain ASCII
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) (buffer[start + i] & 0xFF);
+			}
+
+			return new String(chars);
+		}
+
+		/**
+		 * Skips a number of bytes.
+		 * @param count - the number of bytes to skip
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private void skip(int count) throws StreamCorruptedException {
+			if (count < 0 || count > end - position) {
+				throw new StreamCorruptedException("Unexpected end of body");
+			}
+
+			position += count;
+		}
+
+		/**
+		 * Reads a byte.
+		 * @return the byte read
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private byte readByte() throws StreamCorruptedException {
+			skip(1);
+
+			return buffer[position - 1];
+		}
+
+		/**
+		 * Reads an unsigned two byte value.
+		 * @return the value read
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private int readUnsignedShort() throws StreamCorruptedException {
+			skip(2);
+
+			return ((buffer[position - 2] & 0xFF) << 8)
+					| (buffer[position - 1] & 0xFF);
+		}
+
+		/**
+		 * Reads a signed two byte value.
+		 * @return the value read
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private short readShort() throws StreamCorruptedException {
+			return (short) readUnsignedShort();
+		}
+
+		/**
+		 * Reads a four byte value.
+		 * @return the value read
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private int readInt() throws StreamCorruptedException {
+			return (readUnsignedShort() << 16) | readUnsignedShort();
+		}
+
+		/**
+		 * Reads an eight byte value.
+		 * @return the value read
+		 * @throws StreamCorruptedException if the stream is too short
+		 */
+		private long readLong() throws StreamCorruptedException {
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+	}
+
+}
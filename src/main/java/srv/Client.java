@@ -1,9 +1,13 @@
 package srv;
 
-import java.util.LinkedList;
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a client connected to the server.
@@ -21,6 +25,9 @@ public class Client {
 	/** The delimiter to use to separate messages in the message buffer */
 	public static final String MESSAGE_DELIM = ";";
 	
+	/** The generator used to issue UDP tokens */
+	private static final SecureRandom tokenGenerator = new SecureRandom();
+	
 	/** The client's ID */
 	private long id;
 	
@@ -39,6 +46,12 @@ public class Client {
 	/** The client's random seed */
 	private int seed;
 	
+	/** The token the client uses to authenticate UDP packets */
+	private final long udpToken;
+	
+	/** The session the client can use in place of its fh-client-* headers */
+	private final String session;
+	
 	/** Whether the client is a host */
 	private boolean host;
 	
@@ -51,14 +64,35 @@ public class Client {
 	/** Whether the client is closing or not */
 	private boolean closing;
 	
-	/** The client's data buffer */
-	private TreeMap<Long, byte[]> dataBuffer;
+	/** The latest (non-priority) frame written to the client */
+	private final AtomicReference<Frame> latestFrame;
+	
+	/** The client's queue of priority frames */
+	private final FrameQueue priorityDataBuffer;
+	
+	/** The channel delivering priority frames, if the client acknowledges them */
+	private volatile PriorityChannel priorityChannel;
+	
+	/** The client's queue of (non-priority) frames, if it reads batches */
+	private volatile FrameQueue frameBacklog;
+	
+	/** The encoder used to send the client deltas, if it accepts them */
+	private volatile DeltaEncoder deltaEncoder;
 	
-	/** The client's data buffer */
-	private LinkedList<byte[]> priorityDataBuffer;
+	/** The listeners to notify when a frame is written */
+	private final CopyOnWriteArrayList<FrameListener> frameListeners;
+	
+	/** The time (in microseconds) frames from the partner waited to be read */
+	private volatile Histogram relayLatency;
+	
+	/** The frames from the current partner superseded before being read */
+	private volatile AtomicLong supersededFrames;
 	
 	/** The client's messages */
-	private String messages;
+	private final Mailbox messages;
+	
+	/** The listeners to notify when a message is written */
+	private final CopyOnWriteArrayList<MessageListener> messageListeners;
 	
 	
 	/**
@@ -69,13 +103,23 @@ public class Client {
 		this.lastConnection = System.currentTimeMillis();
 		this.name = null;
 		this.seed = (new Random()).nextInt();
+		this.udpToken = tokenGenerator.nextLong();
+		this.session = id + "." + (tokenGenerator.nextLong() & Long.MAX_VALUE);
 		this.host = false;
 		this.lives = 0;
 		this.score = 0;
 		this.closing = false;
-		this.dataBuffer = new TreeMap<Long, byte[]>();
-		this.priorityDataBuffer = new LinkedList<byte[]>();
-		this.messages = "";
+		this.latestFrame = new AtomicReference<Frame>();
+		this.priorityDataBuffer = new FrameQueue(Server.priorityQueueCapacity,
+				Server.priorityOverflowPolicy);
+		this.priorityChannel = null;
+		this.frameBacklog = null;
+		this.deltaEncoder = null;
+		this.frameListeners = new CopyOnWriteArrayList<FrameListener>();
+		this.relayLatency = new Histogram();
+		this.supersededFrames = new AtomicLong();
+		this.messages = new Mailbox(Server.mailboxCapacity, MESSAGE_DELIM);
+		this.messageListeners = new CopyOnWriteArrayList<MessageListener>();
 		
 		// Check if the server has a remove client timer in place
 		if (!Server.isRemoveClientsTimerPresent()) {
@@ -117,6 +161,24 @@ public class Client {
 		return partner;
 	}
 	
+	/**
+	 * Gets the time frames from the client's current partner waited
+	 * between being written and being read.
+	 * @return a histogram of the waiting times, in microseconds
+	 */
+	public Histogram getRelayLatency() {
+		return relayLatency;
+	}
+	
+	/**
+	 * Gets the number of frames from the client's current partner which
+	 * were superseded by newer frames before being read.
+	 * @return the number of frames superseded
+	 */
+	public long getSupersededFrames() {
+		return supersededFrames.get();
+	}
+	
 	/**
 	 * Gets the client's position.
 	 * @return the client's position
@@ -133,6 +195,26 @@ public class Client {
 		return seed;
 	}
 	
+	/**
+	 * Gets the token the client uses to authenticate UDP packets.
+	 * @return the client's UDP token
+	 */
+	public long getUdpToken() {
+		return udpToken;
+	}
+	
+	/**
+	 * Gets the client's session.
+	 * <p>
+	 * The session is of the form 'ID'.'TOKEN', and is sent by the client
+	 * in an fh-client-session header in place of its fh-client-id header.
+	 * </p>
+	 * @return the client's session
+	 */
+	public String getSession() {
+		return session;
+	}
+	
 	/**
 	 * Gets whether the client is a host.
 	 * @return <code>true</code> if the client is a host,
@@ -168,6 +250,16 @@ public class Client {
 	}
 	
 	
+	/**
+	 * Gets whether the client reads frames in batches.
+	 * @return <code>true</code> if non-priority frames are queued for the
+	 * 			client, otherwise <code>false</code>
+	 */
+	public boolean isBatching() {
+		return frameBacklog != null;
+	}
+	
+	
 	/**
 	 * Sets the time the client last connected at.
 	 */
@@ -188,6 +280,12 @@ public class Client {
 	 * @param partner - the partner to set
 	 */
 	public void setPartner(Client partner) {
+		if (partner != this.partner) {
+			// Measure the frames from the new partner separately
+			this.relayLatency = new Histogram();
+			this.supersededFrames = new AtomicLong();
+		}
+		
 		this.partner = partner;
 	}
 	
@@ -232,6 +330,77 @@ public class Client {
 		this.score = score;
 	}
 	
+	/**
+	 * Gets the encoder used to send the client deltas, creating it if
+	 * this is the first time the client has accepted deltas.
+	 * @return the client's delta encoder
+	 */
+	public DeltaEncoder getDeltaEncoder() {
+		if (deltaEncoder == null) {
+			// Obtain a lock on the client
+			synchronized (this) {
+				if (deltaEncoder == null) {
+					deltaEncoder = new DeltaEncoder();
+				}
+			}
+		}
+		
+		return deltaEncoder;
+	}
+	
+	/**
+	 * Gets the channel delivering the client's priority frames reliably.
+	 * @return the client's priority channel, or <code>null</code> if the
+	 * 			client does not acknowledge priority frames
+	 */
+	public PriorityChannel getPriorityChannel() {
+		return priorityChannel;
+	}
+	
+	/**
+	 * Starts delivering the client's priority frames reliably.
+	 * <p>
+	 * Priority frames are then read through the client's
+	 * {@link PriorityChannel}, rather than by {@link #readLatestFrame()}
+	 * or {@link #readFrames(List, int)}, and are kept until the client
+	 * acknowledges them. Once enabled, this stays enabled for the client's
+	 * lifetime.
+	 * </p>
+	 */
+	public void enablePriorityAcks() {
+		if (priorityChannel == null) {
+			// Obtain a lock on the client
+			synchronized (this) {
+				if (priorityChannel == null) {
+					priorityChannel = new PriorityChannel(priorityDataBuffer,
+							Server.priorityWindowSize, this);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts queueing non-priority frames for the client.
+	 * <p>
+	 * Rather than only the newest frame being kept, frames are queued (up
+	 * to {@link Server#batchQueueCapacity}, after which the oldest frames
+	 * are dropped) so that they can be read in batches.
+	 * Once enabled, batching stays enabled for the client's lifetime.
+	 * </p>
+	 */
+	public void enableBatching() {
+		if (frameBacklog == null) {
+			// Obtain a lock on the client
+			synchronized (this) {
+				if (frameBacklog == null) {
+					frameBacklog = new FrameQueue(Server.batchQueueCapacity,
+							FrameQueue.OverflowPolicy.DROP_OLDEST,
+							Metrics.BACKLOG_FRAMES_DROPPED);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Sets whether the client is closing.
 	 * @param host - <code>true</code> if the client is closing,
@@ -244,21 +413,118 @@ public class Client {
 	
 	/**
 	 * Writes a data entry to the data buffer.
+	 * <p>
+	 * The entry's data is copied into a pooled frame.
+	 * </p>
 	 * @param dataEntry - the data entry to write to the buffer
+	 * @return <code>false</code> if the entry was a priority entry and the
+	 * 			priority queue was full, otherwise <code>true</code>
+	 */
+	public boolean writeData(Entry<Long, byte[]> dataEntry) {
+		byte[] data = dataEntry.getValue();
+		
+		// Copy the entry into a frame
+		Frame frame = FramePool.acquire(data.length);
+		System.arraycopy(data, 0, frame.getBuffer(), 0, data.length);
+		frame.setKey(dataEntry.getKey());
+		frame.setRegion(0, data.length);
+		
+		return writeFrame(frame);
+	}
+	
+	/**
+	 * Writes a frame to the data buffer.
+	 * <p>
+	 * The client takes ownership of the frame, and will release it once it
+	 * has been read or superseded.
+	 * </p>
+	 * <p>
+	 * Only the non-priority frame with the highest key is kept, so a frame
+	 * arriving after a newer frame is discarded immediately - unless the
+	 * client reads batches, in which case non-priority frames are queued.
+	 * </p>
+	 * <p>
+	 * Priority frames are queued, up to the queue's capacity. Once the
+	 * queue is full, either the new frame is rejected or the oldest frame
+	 * is dropped, depending on the queue's overflow policy.
+	 * </p>
+	 * @param frame - the frame to write to the buffer
+	 * @return <code>false</code> if the frame was a priority frame and the
+	 * 			priority queue was full, otherwise <code>true</code>
+	 */
+	public boolean writeFrame(Frame frame) {
+		frame.setStoredTime(System.nanoTime());
+		boolean accepted = storeFrame(frame);
+		
+		// Notify any listeners waiting for frames
+		for (FrameListener listener : frameListeners) {
+			listener.frameWritten(this);
+		}
+		
+		return accepted;
+	}
+	
+	/**
+	 * Stores a frame in the appropriate data buffer, counting it as relayed
+	 * if it is kept.
+	 * @param frame - the frame to store
+	 * @return <code>false</code> if the frame was a priority frame and the
+	 * 			priority queue was full, otherwise <code>true</code>
 	 */
-	public void writeData(Entry<Long, byte[]> dataEntry) {
+	private boolean storeFrame(Frame frame) {
 		// Check if data has priority
-		if (dataEntry.getKey() == -1) {
-			// Obtain a lock on the priority data buffer
-			synchronized (priorityDataBuffer) {
-				// Write the data element to the data buffer
-				priorityDataBuffer.add(dataEntry.getValue());
+		if (frame.getKey() == -1) {
+			// Add the frame to the priority queue
+			int droppedCount = priorityDataBuffer.add(frame);
+			
+			if (droppedCount < 0) {
+				return false;
+			}
+			
+			Metrics.increment(Metrics.FRAMES_RELAYED);
+			
+			// Frames dropped to make room were superseded by this one
+			for (int i = 0; i < droppedCount; i++) {
+				recordSuperseded();
 			}
-		} else{
-			// Obtain a lock on the data buffer
-			synchronized (dataBuffer) {
-				// Write the data element to the data buffer
-				dataBuffer.put(dataEntry.getKey(), dataEntry.getValue());
+			
+			return droppedCount == 0;
+		}
+		
+		Metrics.increment(Metrics.FRAMES_RELAYED);
+		
+		// If the client reads batches, queue the frame
+		FrameQueue backlog = frameBacklog;
+		if (backlog != null) {
+			backlog.offer(frame);
+			return true;
+		} else {
+			// Swap the frame in, taking ownership of the frame it replaces.
+			// Keys are only read from frames this thread owns, as a frame
+			// left in the register may be taken by a reader and released
+			// (and handed out again, with a new key) at any time.
+			Frame heldFrame = frame;
+			long heldKey = frame.getKey();
+			
+			while (true) {
+				Frame replacedFrame = latestFrame.getAndSet(heldFrame);
+				
+				if (replacedFrame == null) {
+					return true;
+				}
+				
+				// Discard the replaced frame if it is not newer
+				if (replacedFrame.getKey() <= heldKey) {
+					recordSuperseded();
+					FramePool.release(replacedFrame);
+					return true;
+				}
+				
+				// Otherwise, put the newer frame back, taking ownership of
+				// whichever frame is now waiting (keys only increase, so
+				// this finishes)
+				heldFrame = replacedFrame;
+				heldKey = replacedFrame.getKey();
 			}
 		}
 	}
@@ -274,35 +540,209 @@ public class Client {
 	 * @return the last data element in the data buffer
 	 */
 	public Entry<Long, byte[]> readLatestData() {
-		TreeMap<Long, byte[]> transientMap =
-				new TreeMap<Long, byte[]>();
-		Entry<Long, byte[]> dataEntry = null;
+		Frame frame = readLatestFrame();
 		
-		// Obtain a lock on the priority data buffer
-		synchronized (priorityDataBuffer) {
-			// Check for priority data
-			if (priorityDataBuffer.size() > 0) {
-				transientMap.put(-1L, priorityDataBuffer.removeFirst());
-				dataEntry = (transientMap.firstEntry());
-			}
+		if (frame == null) {
+			return null;
 		}
 		
-		// If there was no priority data
-		if (dataEntry == null) {
-			// Obtain a lock on the data buffer
-			synchronized (dataBuffer) {
-				// Get the latest data entry from the data buffer
-				dataEntry = dataBuffer.lastEntry();
-
-				// Clear the data buffer
-				dataBuffer.clear();
-			}
-		}
+		// Copy the frame into a data entry, and return it to the pool
+		Entry<Long, byte[]> dataEntry = frame.toEntry();
+		FramePool.release(frame);
 		
 		// Return the data entry
 		return dataEntry;
 	}
 	
+	/**
+	 * Reads an individual frame from the data buffer.
+	 * <p>
+	 * The buffer is then cleared.
+	 * </p>
+	 * <p>
+	 * If the buffer is empty, this will return null. Otherwise, the caller
+	 * is responsible for releasing the frame returned.
+	 * </p>
+	 * @return the last frame in the data buffer
+	 */
+	public Frame readLatestFrame() {
+		// Check for priority data, unless it is read through the channel
+		Frame frame = (priorityChannel == null)
+				? priorityDataBuffer.poll() : null;
+		
+		if (frame != null) {
+			recordDelivery(frame);
+			return frame;
+		}
+		
+		// If there was no priority data, take the latest frame
+		return readLatestStateFrame();
+	}
+	
+	/**
+	 * Reads the latest non-priority frame from the data buffer.
+	 * <p>
+	 * Priority frames are left in the buffer. If there is no non-priority
+	 * frame, this will return null. Otherwise, the caller is responsible
+	 * for releasing the frame returned.
+	 * </p>
+	 * @return the latest non-priority frame in the data buffer
+	 */
+	public Frame readLatestStateFrame() {
+		// Take the latest frame
+		Frame frame = takeLatestFrame();
+		
+		// If frames are being queued, the newest queued frame supersedes it
+		FrameQueue backlog = frameBacklog;
+		if (backlog != null) {
+			Frame queuedFrame;
+			while ((queuedFrame = backlog.poll()) != null) {
+				if (frame != null) {
+					recordSuperseded();
+				}
+				
+				FramePool.release(frame);
+				frame = queuedFrame;
+			}
+		}
+		
+		if (frame != null) {
+			recordDelivery(frame);
+		}
+		
+		// Return the frame
+		return frame;
+	}
+	
+	/**
+	 * Reads a batch of frames from the data buffers.
+	 * <p>
+	 * Priority frames are read first, followed by non-priority frames in
+	 * the order they were written. The frames read are removed from the
+	 * buffers, and the caller is responsible for releasing them.
+	 * </p>
+	 * @param frames - the list to add the frames read to
+	 * @param limit - the maximum number of frames to read
+	 * @return the number of frames read
+	 */
+	public int readFrames(List<Frame> frames, int limit) {
+		int count = 0;
+		Frame frame;
+		
+		// Read the priority frames, unless they are read through the channel
+		while (priorityChannel == null && count < limit
+				&& (frame = priorityDataBuffer.poll()) != null) {
+			frames.add(frame);
+			count++;
+		}
+		
+		// Read the frame kept from before batching was enabled
+		if (count < limit && (frame = takeLatestFrame()) != null) {
+			frames.add(frame);
+			count++;
+		}
+		
+		// Read the queued frames
+		FrameQueue backlog = frameBacklog;
+		while (backlog != null && count < limit
+				&& (frame = backlog.poll()) != null) {
+			frames.add(frame);
+			count++;
+		}
+		
+		// Record how long the frames read waited
+		for (int i = frames.size() - count; i < frames.size(); i++) {
+			recordDelivery(frames.get(i));
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Takes the latest (non-priority) frame, leaving none in its place.
+	 * @return the latest frame, or <code>null</code> if there is none
+	 */
+	private Frame takeLatestFrame() {
+		return latestFrame.getAndSet(null);
+	}
+	
+	/**
+	 * Records the time a frame waited between being written and being
+	 * read.
+	 * <p>
+	 * This is also called by the client's {@link PriorityChannel} the
+	 * first time it sends each priority frame.
+	 * </p>
+	 * @param frame - the frame being read
+	 */
+	void recordDelivery(Frame frame) {
+		long storedTime = frame.getStoredTime();
+		
+		// Frames which were not written by a partner have no stored time
+		if (storedTime == 0) {
+			return;
+		}
+		
+		long latency = TimeUnit.NANOSECONDS.toMicros(
+				System.nanoTime() - storedTime);
+		relayLatency.record(latency);
+		Metrics.record(Metrics.RELAY_LATENCY, latency);
+	}
+	
+	/**
+	 * Records that a frame was superseded by a newer frame before being
+	 * read.
+	 */
+	private void recordSuperseded() {
+		supersededFrames.incrementAndGet();
+		Metrics.increment(Metrics.FRAMES_SUPERSEDED);
+	}
+	
+	/**
+	 * Adds a listener to be notified when a frame is written.
+	 * @param listener - the listener to add
+	 */
+	public void addFrameListener(FrameListener listener) {
+		frameListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Removes a frame listener.
+	 * @param listener - the listener to remove
+	 */
+	public void removeFrameListener(FrameListener listener) {
+		frameListeners.remove(listener);
+	}
+	
+	/**
+	 * Clears the data buffers, releasing any frames they contain.
+	 */
+	public void clearData() {
+		// Clear the priority queue
+		priorityDataBuffer.clear();
+		
+		// Clear the priority frames waiting to be acknowledged
+		PriorityChannel channel = priorityChannel;
+		if (channel != null) {
+			channel.clear();
+		}
+		
+		// Clear the latest frame
+		FramePool.release(takeLatestFrame());
+		
+		// Clear the queued frames
+		FrameQueue backlog = frameBacklog;
+		if (backlog != null) {
+			backlog.clear();
+		}
+		
+		// Clear the frames held for encoding deltas
+		DeltaEncoder encoder = deltaEncoder;
+		if (encoder != null) {
+			encoder.clear();
+		}
+	}
+	
 	
 	/**
 	 * Checks if there are any messages to read.
@@ -310,44 +750,73 @@ public class Client {
 	 * 			otherwise <code>false</code>
 	 */
 	public boolean checkForMessages() {
-		return (messages.equals("")) ? false : true;
+		return !messages.isEmpty();
+	}
+	
+	/**
+	 * Gets the number of messages waiting to be read.
+	 * @return the number of messages in the client's mailbox
+	 */
+	public int getMessageCount() {
+		return messages.size();
 	}
 	
 	/**
-	 * Writes a message to the string of messages.
-	 * @param message - the message to write to the string
+	 * Writes a message to the client's mailbox.
+	 * <p>
+	 * If the mailbox is full, the oldest message is dropped.
+	 * </p>
+	 * @param message - the message to write to the mailbox
 	 */
 	public void writeMessage(String message) {
-		// Obtain a lock on the string of messages
-		synchronized (messages) {
-			// Add the message to the end of the string
-			if (messages.equals("")) {
-				messages = message;
-			} else {
-				messages += MESSAGE_DELIM + message;
-			}
+		messages.write(message);
+		
+		// Notify any listeners waiting for messages
+		for (MessageListener listener : messageListeners) {
+			listener.messageWritten(this);
 		}
 	}
 	
 	/**
 	 * Reads the string of messages.
 	 * <p>
-	 * The string is then cleared.
+	 * The mailbox is then cleared.
 	 * </p>
-	 * @return the string of messages
+	 * @return the messages in the mailbox, separated by
+	 * 			{@link #MESSAGE_DELIM}
 	 */
 	public String readMessages() {
-		// Obtain a lock on the string of messages
-		synchronized (messages) {
-			// Get the string of messages
-			String messageString = messages;
-
-			// Clear the string of messages
-			messages = "";
-
-			// Return the string of messages
-			return messageString;
-		}
+		return messages.drain();
+	}
+	
+	/**
+	 * Reads the messages into a response writer.
+	 * <p>
+	 * The mailbox is then cleared.
+	 * </p>
+	 * @param writer - the writer to append the messages to, separated by
+	 * 					{@link #MESSAGE_DELIM}
+	 * @return <code>true</code> if any messages were read,
+	 * 			otherwise <code>false</code>
+	 */
+	public boolean readMessages(ResponseWriter writer) {
+		return messages.drainTo(writer);
+	}
+	
+	/**
+	 * Adds a listener to be notified when a message is written.
+	 * @param listener - the listener to add
+	 */
+	public void addMessageListener(MessageListener listener) {
+		messageListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Removes a message listener.
+	 * @param listener - the listener to remove
+	 */
+	public void removeMessageListener(MessageListener listener) {
+		messageListeners.remove(listener);
 	}
 	
 
@@ -373,4 +842,4 @@ public class Client {
 		return true;
 	}
 	
-}
+}
\ No newline at end of file
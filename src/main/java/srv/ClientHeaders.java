@@ -0,0 +1,292 @@
+package srv;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads the fh-client-* headers sent with each request.
+ * <p>
+ * Clients identify themselves, and report their state, using the
+ * following headers:
+ * <ul>
+ * <li>fh-client-id - the client's ID, or -1 if it has not been issued
+ * one yet</li>
+ * <li>fh-client-name - the client's screen name</li>
+ * <li>fh-client-host - whether the client is hosting a game</li>
+ * <li>fh-client-lives - the client's lives</li>
+ * <li>fh-client-score - the client's score</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Once a client has been issued an ID, it is also issued a session (in
+ * an fh-client-session response header). Clients may then send the
+ * session in an fh-client-session header in place of the headers above,
+ * and report only the state which has changed in an fh-client-state
+ * header, of the form:
+ * host='HOST';lives='LIVES';score='SCORE';name='NAME'
+ * Any of the fields may be left out, and the name (which may contain
+ * semicolons) must come last.
+ * </p>
+ * <p>
+ * Headers which are missing or malformed are treated as though they had
+ * not been sent.
+ * </p>
+ */
+public abstract class ClientHeaders {
+
+	/** The separator between a session's ID and token */
+	private static final char SESSION_DELIM = '.';
+
+	/** The separator between the fields of a state header */
+	private static final char STATE_DELIM = ';';
+
+	/** The prefix of the name field in a state header */
+	private static final String NAME_FIELD = "name=";
+
+
+	/**
+	 * Gets the client described by a request's headers.
+	 * <p>
+	 * The client is created if the request does not carry an ID, and
+	 * is otherwise updated with the state in the headers.
+	 * </p>
+	 * @param request - the request to read the headers from
+	 * @return the client described by the headers, or <code>null</code>
+	 * 			if the client could not be found or created
+	 */
+	public static Client handleClient(HttpServletRequest request) {
+		return handleClient(request, request.getHeader("fh-client-id"));
+	}
+
+	/**
+	 * Gets the client described by a request's headers, where the
+	 * request's fh-client-id header has already been read.
+	 * @param request - the request to read the headers from
+	 * @param clientID - the request's fh-client-id header
+	 * @return the client described by the headers, or <code>null</code>
+	 * 			if the client could not be found or created
+	 */
+	public static Client handleClient(HttpServletRequest request,
+			String clientID) {
+		// Use the client's session, if it has one
+		String session = request.getHeader("fh-client-session");
+		if (session != null) {
+			return handleSession(request, session);
+		}
+
+		// Determine the client's ID
+		long id = parseLong(clientID, -1);
+
+		// Determine the client's name
+		String name = request.getHeader("fh-client-name");
+
+		// Determine whether the client is a host
+		boolean isHost = false;
+		if (request.getHeader("fh-client-host") != null) {
+			isHost = request.getHeader("fh-client-host")
+					.contains("true");
+		}
+
+		// Determine the client's lives
+		int lives = parseInt(request.getHeader("fh-client-lives"), -1);
+
+		// Determine the client's score
+		int score = parseInt(request.getHeader("fh-client-score"), 0);
+
+		// Get the client from the header fields supplied
+		return Server.handleClient(id, name, isHost, lives, score);
+	}
+
+	/**
+	 * Gets the ID a request was sent with.
+	 * <p>
+	 * This is the request's fh-client-id header, or the ID in its
+	 * fh-client-session header if it was sent without one.
+	 * </p>
+	 * @param request - the request to read the headers from
+	 * @return the client's ID, as sent, or <code>null</code> if the
+	 * 			request was sent without an ID
+	 */
+	public static String getClientID(HttpServletRequest request) {
+		String clientID = request.getHeader("fh-client-id");
+
+		if (clientID == null) {
+			String session = request.getHeader("fh-client-session");
+
+			if (session != null) {
+				int delim = session.indexOf(SESSION_DELIM);
+				clientID = (delim < 0) ? session : session.substring(0, delim);
+			}
+		}
+
+		return clientID;
+	}
+
+	/**
+	 * Tells a client its session, unless it has already sent it.
+	 * @param request - the HTTP request received
+	 * @param response - the response to send
+	 * @param client - the client the request was sent by
+	 */
+	public static void writeSession(HttpServletRequest request,
+			HttpServletResponse response, Client client) {
+		if (client != null && request.getHeader("fh-client-session") == null) {
+			response.setHeader("fh-client-session", client.getSession());
+		}
+	}
+
+
+	/**
+	 * Gets the client holding a session, and updates it with the state
+	 * in the request's fh-client-state header.
+	 * @param request - the request to read the headers from
+	 * @param session - the request's fh-client-session header
+	 * @return the client holding the session, or <code>null</code> if the
+	 * 			session is not valid
+	 */
+	private static Client handleSession(HttpServletRequest request,
+			String session) {
+		int delim = session.indexOf(SESSION_DELIM);
+		if (delim <= 0) {
+			return null;
+		}
+
+		long id = parseLong(session, 0, delim, -1);
+		if (id < 0) {
+			return null;
+		}
+
+		String name = null;
+		Boolean isHost = null;
+		Integer lives = null;
+		Integer score = null;
+
+		// Read the fields which have changed
+		String state = request.getHeader("fh-client-state");
+		int start = 0;
+
+		while (state != null && start < state.length()) {
+			if (state.startsWith(NAME_FIELD, start)) {
+				// The name takes up the rest of the header
+				name = state.substring(start + NAME_FIELD.length());
+				break;
+			}
+
+			int end = state.indexOf(STATE_DELIM, start);
+			if (end < 0) {
+				end = state.length();
+			}
+
+			int equals = state.indexOf('=', start);
+			if (equals > start && equals < end) {
+				if (matches(state, start, equals, "host")) {
+					isHost = matches(state, equals + 1, end, "true");
+				} else if (matches(state, start, equals, "lives")) {
+					lives = toInteger(parseLong(state, equals + 1, end,
+							Long.MIN_VALUE));
+				} else if (matches(state, start, equals, "score")) {
+					score = toInteger(parseLong(state, equals + 1, end,
+							Long.MIN_VALUE));
+				}
+			}
+
+			start = end + 1;
+		}
+
+		return Server.handleSession(id, session, name, isHost, lives, score);
+	}
+
+	/**
+	 * Checks whether part of a string matches another string exactly.
+	 * @param value - the string to check part of
+	 * @param start - the index of the part's first character
+	 * @param end - the index after the part's last character
+	 * @param expected - the string to compare the part with
+	 * @return <code>true</code> if the part matches,
+	 * 			otherwise <code>false</code>
+	 */
+	private static boolean matches(String value, int start, int end,
+			String expected) {
+		return (end - start == expected.length())
+				&& value.regionMatches(start, expected, 0, expected.length());
+	}
+
+	/**
+	 * Converts a parsed value to an integer.
+	 * @param value - the value parsed
+	 * @return the value, or <code>null</code> if it could not be parsed
+	 * 			or is out of range
+	 */
+	private static Integer toInteger(long value) {
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		return Integer.valueOf((int) value);
+	}
+
+	/**
+	 * Parses a header as a decimal number, without throwing an exception.
+	 * @param value - the header to parse
+	 * @param defaultValue - the value to return if the header is missing
+	 * 						or malformed
+	 * @return the number in the header, or the default value
+	 */
+	static long parseLong(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+
+		return parseLong(value, 0, value.length(), defaultValue);
+	}
+
+	/**
+	 * Parses a header as a decimal integer, without throwing an exception.
+	 * @param value - the header to parse
+	 * @param defaultValue - the value to return if the header is missing,
+	 * 						malformed or out of range
+	 * @return the integer in the header, or the default value
+	 */
+	private static int parseInt(String value, int defaultValue) {
+		Integer parsed = toInteger(parseLong(value, Long.MIN_VALUE));
+
+		return (parsed == null) ? defaultValue : parsed;
+	}
+
+	/**
+	 * Parses part of a string as a decimal number, without throwing an
+	 * exception.
+	 * @param value - the string to parse
+	 * @param start - the index of the number's first character
+	 * @param end - the index after the number's last character
+	 * @param defaultValue - the value to return if the number is
+	 * 						malformed (or does not fit in a long)
+	 * @return the number, or the default value
+	 */
+	private static long parseLong(String value, int start, int end,
+			long defaultValue) {
+		boolean negative = (start < end && value.charAt(start) == '-');
+		if (negative) {
+			start++;
+		}
+
+		if (start >= end) {
+			return defaultValue;
+		}
+
+		long parsed = 0;
+		for (int i = start; i < end; i++) {
+			int digit = value.charAt(i) - '0';
+
+			if (digit < 0 || digit > 9
+					|| parsed > (Long.MAX_VALUE - digit) / 10) {
+				return defaultValue;
+			}
+
+			parsed = (parsed * 10) + digit;
+		}
+
+		return negative ? -parsed : parsed;
+	}
+
+}
@@ -1,12 +1,15 @@
 package srv;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Map.Entry;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.annotation.WebServlet;
@@ -21,15 +24,12 @@ import javax.servlet.http.HttpServletResponse;
  * pass data to another client.
  * </p>
  */
-@WebServlet("/data")
+@WebServlet(urlPatterns = "/data", asyncSupported = true)
 public class DataServlet extends HttpServlet {
 
 	/** The serialisation identifier */
 	private static final long serialVersionUID = 2L;
 	
-	/** The log file */
-	private static final File LOG_FILE = new File("datalog.txt");
-	
 
 	/**
 	 * Respond to HTTP GET requests.
@@ -51,156 +51,507 @@ public class DataServlet extends HttpServlet {
 
 	/**
 	 * Respond to HTTP POST requests.
+	 * <p>
+	 * Requests from versions which are not permitted are turned away by
+	 * the {@link VersionFilter} before they reach this servlet.
+	 * </p>
 	 * @param request - the HTTP POST request received
 	 * @param response - the response to send
 	 */
 	@Override
 	public void doPost(HttpServletRequest request,
 			HttpServletResponse response) {
-		// Obtain a lock on the permitted versions array
-		synchronized (Server.getPermittedVersions()) {
-			if (Server.getPermittedVersions()
-					.contains(request.getHeader("user-agent"))) {
-				playerPost(request, response);
-			} else {
-				standardPost(request, response);
-			}
-		}
-	}
-	
-	/**
-	 * Replies with a 404 (page not found) status code.
-	 * @param request - the HTTP POST request received
-	 * @param response - the response to send
-	 */
-	public void standardPost(HttpServletRequest request,
-			HttpServletResponse response) {
-		try {
-			response.sendError(HttpServletResponse.SC_NOT_FOUND);
-		} catch (IOException e) {
-			Server.print(e);
-		}
+		playerPost(request, response);
 	}
 	
 	/**
 	 * Adds POST data to the data buffer, and replies with remaining data.
+	 * <p>
+	 * Clients which send an fh-client-batch header (giving the most frames
+	 * they will accept) may send several data entries in one request,
+	 * and are replied to with every frame queued for them since their
+	 * last request, up to that limit. The number of frames in the reply
+	 * is given in the fh-client-frames header.
+	 * </p>
+	 * <p>
+	 * Clients which send an fh-client-priority-ack header (giving the
+	 * highest priority sequence number they have received, or 0) are sent
+	 * priority frames reliably: unacknowledged priority frames are sent
+	 * again until they are acknowledged, and the fh-client-priority-seq
+	 * header gives the sequence number of the first priority frame in
+	 * the reply.
+	 * </p>
+	 * <p>
+	 * Where the container supports it, the request body is read, and the
+	 * response written, without blocking.
+	 * </p>
 	 * @param request - the HTTP POST request received
 	 * @param response - the response to send
 	 */
-	@SuppressWarnings("unchecked")
 	public void playerPost(HttpServletRequest request,
 			HttpServletResponse response) {
+		// Refuse the request if the client is sending too many
+		String clientID = ClientHeaders.getClientID(request);
+		if (!RateLimiter.DATA.admit(clientID, request, response,
+				Server.dataRateLimit, Server.dataBurst)) {
+			return;
+		}
+		
+		// Read the body without blocking, if the container supports it
+		if (request.isAsyncSupported()) {
+			playerPostAsync(request, response, clientID);
+			return;
+		}
+		
+		ArrayList<Frame> receivedFrames = new ArrayList<Frame>();
+		
 		try {
 			// Set the connection's input stream
 			ServletInputStream srvInputStream = request.getInputStream();
-			ObjectInputStream inputStream = null;
-			try {
-				inputStream = new ObjectInputStream(srvInputStream);
-			} catch (IOException | NullPointerException e) {
+			if (srvInputStream == null) {
+				Exception e = new Exception("Servlet input stream is null");
 				Server.print(e);
 				return;
 			}
+			
+			// Determine how many frames the client will accept
+			int batchSize = getBatchSize(request);
 
-			// Set the connection's output stream
-			ServletOutputStream srvOutputStream = response.getOutputStream();
-			ObjectOutputStream outputStream = null;
+			// Get the frame(s) from the connection's input stream
 			try {
-				outputStream = new ObjectOutputStream(srvOutputStream);
-			} catch (IOException | NullPointerException e) {
+				if (batchSize > 0) {
+					BodyReader.readFrames(srvInputStream,
+							request.getContentLength(), receivedFrames);
+				} else {
+					Frame receivedFrame = BodyReader.readFrame(srvInputStream,
+							request.getContentLength());
+					
+					if (receivedFrame != null) {
+						receivedFrames.add(receivedFrame);
+					}
+				}
+			} catch (ObjectStreamException e) {
+				// Reject the request without processing it
+				Server.print("Rejected request body: " + e.getMessage());
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			} catch (IOException e) {
 				Server.print(e);
 				return;
 			}
 
-			// Determine the client's ID
-			long id = -1;
-			try {
-				id = Long.parseLong(request.getHeader("fh-client-id"));
-			} catch (NumberFormatException e) {
+			// Set the connection's output stream
+			ServletOutputStream srvOutputStream = response.getOutputStream();
+			if (srvOutputStream == null) {
+				Exception e = new Exception("Servlet output stream is null");
 				Server.print(e);
-			}
-
-			// Determine the client's name
-			String name = request.getHeader("fh-client-name");
-
-			// Determine whether the client is a host
-			boolean isHost = false;
-			if (request.getHeader("fh-client-host") != null) {
-				isHost = request.getHeader("fh-client-host")
-						.contains("true");
+				return;
 			}
 			
-			// Determine the client's lives
-			int lives = -1;
-			try {
-				lives = Integer.parseInt(request.getHeader("fh-client-lives"));
-			} catch (NumberFormatException e) {
-				Server.print(e);
+			respond(request, response, clientID, receivedFrames,
+					srvOutputStream);
+		} catch (Exception e) {
+			Server.print(e);
+		} finally {
+			// Return the received frames to the pool if they were not relayed
+			for (Frame receivedFrame : receivedFrames) {
+				FramePool.release(receivedFrame);
 			}
+		}
+	}
+	
+	/**
+	 * Handles a POST without blocking.
+	 * <p>
+	 * The body is read as it arrives, and the response is built in memory
+	 * and then written as the connection accepts it, so no thread is held
+	 * while a slow client sends or receives data.
+	 * </p>
+	 * @param request - the HTTP POST request received
+	 * @param response - the response to send
+	 * @param clientID - the request's fh-client-id header
+	 */
+	private void playerPostAsync(final HttpServletRequest request,
+			final HttpServletResponse response, final String clientID) {
+		try {
+			final AsyncContext asyncContext = request.startAsync();
+			asyncContext.setTimeout(Server.timeout);
 			
-			// Determine the client's score
-			int score = 0;
-			try {
-				score = Integer.parseInt(request.getHeader("fh-client-score"));
-			} catch (NumberFormatException e) {
+			// Set the connection's input stream
+			ServletInputStream srvInputStream = request.getInputStream();
+			if (srvInputStream == null) {
+				Exception e = new Exception("Servlet input stream is null");
 				Server.print(e);
+				asyncContext.complete();
+				return;
 			}
+			
+			new AsyncBodyReader(asyncContext, srvInputStream,
+					request.getContentLength()) {
+				@Override
+				protected void bodyRead(Frame body) throws IOException {
+					ArrayList<Frame> receivedFrames = new ArrayList<Frame>();
+					
+					try {
+						// Get the frame(s) from the body
+						try {
+							if (getBatchSize(request) > 0) {
+								BodyReader.readFrames(body, receivedFrames);
+							} else {
+								Frame receivedFrame = BodyReader.readFrame(body);
+								
+								if (receivedFrame != null) {
+									receivedFrames.add(receivedFrame);
+								}
+							}
+						} catch (ObjectStreamException e) {
+							// Reject the request without processing it
+							Server.print("Rejected request body: "
+									+ e.getMessage());
+							response.sendError(
+									HttpServletResponse.SC_BAD_REQUEST);
+							asyncContext.complete();
+							return;
+						}
+						
+						// Build the response, then write it without blocking
+						ByteArrayOutputStream responseBody =
+								new ByteArrayOutputStream();
+						respond(request, response, clientID,
+								receivedFrames, responseBody);
+						
+						new AsyncResponseWriter(asyncContext,
+								response.getOutputStream(),
+								responseBody.toByteArray()).start();
+					} finally {
+						// Return the received frames to the pool if they
+						// were not relayed
+						for (Frame receivedFrame : receivedFrames) {
+							FramePool.release(receivedFrame);
+						}
+					}
+				}
+			}.start();
+		} catch (IOException | IllegalStateException e) {
+			Server.print(e);
+		}
+	}
+	
+	/**
+	 * Relays the frames received from a client, and writes the reply.
+	 * <p>
+	 * Frames which are relayed are removed from the list given.
+	 * </p>
+	 * @param request - the HTTP POST request received
+	 * @param response - the response to send
+	 * @param clientID - the request's fh-client-id header
+	 * @param receivedFrames - the frames received from the client
+	 * @param srvOutputStream - the stream to write the reply to
+	 */
+	private static void respond(HttpServletRequest request,
+			HttpServletResponse response, String clientID,
+			List<Frame> receivedFrames, OutputStream srvOutputStream) {
+		// Determine how many frames the client will accept
+		int batchSize = getBatchSize(request);
+		
+		try {
+			FrameCodec.writeStreamHeader(srvOutputStream);
+		} catch (IOException e) {
+			Server.print(e);
+			return;
+		}
 
-			// Get the client from the header fields supplied
-			Client client = Server.handleClient(id, name, isHost, lives, score);
+		// Get the client from the header fields supplied
+		Client client = ClientHeaders.handleClient(request, clientID);
 
-			// Get the data from the connection's input stream
-			Entry<Long, byte[]> receivedDataEntry = null;
-			try {
-				receivedDataEntry = (Entry<Long, byte[]>) inputStream.readObject();
-			} catch (ClassNotFoundException | ClassCastException | IOException e) {
-				Server.print(e);
-			}
+		if (client != null) {
+			// Add client information headers
+			response.setHeader("fh-client-id",
+					String.valueOf(client.getID()));
+			ClientHeaders.writeSession(request, response, client);
+			response.setHeader("fh-client-messages",
+					client.readMessages());
+			
+			// Record the priority frames the client has received
+			acknowledgePriorityFrames(client, request);
+		} else {
+			response.setHeader("fh-client-id",
+					String.valueOf(-1));
+		}
 
-			if (client != null) {
-				// Add client information headers
-				response.setHeader("fh-client-id",
-						String.valueOf(client.getID()));
-				response.setHeader("fh-client-messages",
-						client.readMessages());
-			} else {
-				response.setHeader("fh-client-id",
-						String.valueOf(-1));
+		// Check that the data is not null, that the client exists, and that
+		// the client has a partner
+		if ((client != null) && (client.getPartner() != null)
+				&& !receivedFrames.isEmpty()) {
+			// Add the frames to the client's partner's data buffer
+			boolean accepted = true;
+			for (Frame receivedFrame : receivedFrames) {
+				accepted &= client.getPartner().writeFrame(receivedFrame);
+			}
+			receivedFrames.clear();
+			
+			// Tell the client to back off if its partner's priority
+			// queue is full
+			if (!accepted) {
+				response.setHeader("fh-client-backpressure", "true");
 			}
 
-			// Check that the data is not null, that the client exists, and that
-			// the client has a partner
-			if ((client != null) && (client.getPartner() != null)
-					&& (receivedDataEntry != null)) {
-				// Add the data to the client's partner's data buffer
-				client.getPartner().writeData(receivedDataEntry);
-
-				Server.print("Added data to client "
-						+ client.getPartner().getID() + "'s queue");
-
-				try {
-					// Reply with the next object in the client's data buffer
-					Entry<Long, byte[]> latestData = client.readLatestData();
-					outputStream.writeObject(latestData);
-					Server.print("Sending data to client " + client.getID());
+			Server.print("Added data to client "
+					+ client.getPartner().getID() + "'s queue");
+			
+			if (batchSize == 0) {
+				// Reply with the next frame in the client's data buffer
+				replyWithFrame(client, request, response, srvOutputStream);
+			}
+		}
+		
+		if (client != null && batchSize > 0) {
+			// Reply with the frames queued for the client
+			client.enableBatching();
+			replyWithFrames(client, batchSize, response, srvOutputStream);
+		}
+	}
+	
+	/**
+	 * Replies with the next frame in a client's data buffer.
+	 * <p>
+	 * Clients which send an fh-client-delta header are sent (non-priority)
+	 * frames as deltas from the last frame they acknowledged in the
+	 * fh-client-ack header, where possible. The fh-client-frame-type
+	 * header is set to DELTA or KEY accordingly, and for deltas the
+	 * fh-client-frame-base header gives the key of the frame the delta
+	 * is from.
+	 * </p>
+	 * @param client - the client to reply to
+	 * @param request - the HTTP POST request received
+	 * @param response - the response to send
+	 * @param srvOutputStream - the stream to write the frame to
+	 */
+	private static void replyWithFrame(Client client,
+			HttpServletRequest request, HttpServletResponse response,
+			OutputStream srvOutputStream) {
+		// Get the next frame, sending unacknowledged priority frames first
+		Frame latestFrame = readPriorityFrame(client, response);
+		if (latestFrame == null) {
+			latestFrame = client.readLatestFrame();
+		}
+		Frame delta = null;
+		
+		try {
+			// Encode the frame as a delta, if the client accepts them
+			if (latestFrame != null && acceptsDeltas(request)) {
+				if (latestFrame.getKey() != -1) {
+					DeltaEncoder encoder = client.getDeltaEncoder();
+					delta = encoder.encode(latestFrame,
+							getLongHeader(request, "fh-client-ack"));
 					
-					// Add this data to the log
-					if (latestData != null && latestData.getValue() != null) {
-						FileOutputStream logStream = new FileOutputStream(LOG_FILE, true);
-						try {
-							logStream.write((System.currentTimeMillis()
-									+ "-" + client.getID() + ":").getBytes());
-							logStream.write(latestData.getValue());
-							logStream.write(("\n").getBytes());
-						} finally {
-							logStream.close();
-						}
+					if (delta != null) {
+						response.setHeader("fh-client-frame-base",
+								String.valueOf(encoder.getLastBaseKey()));
 					}
-				} catch (IOException e) {
-					Server.print(e);
 				}
+				
+				response.setHeader("fh-client-frame-type",
+						(delta != null) ? "DELTA" : "KEY");
 			}
-		} catch (Exception e) {
+			
+			// Reply with the frame
+			FrameCodec.writeFrame(srvOutputStream,
+					(delta != null) ? delta : latestFrame);
+			Server.print("Sending data to client " + client.getID());
+			
+			// Add this data to the log
+			if (latestFrame != null) {
+				log(client, latestFrame);
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		} finally {
+			// Return the frames to the pool
+			FramePool.release(latestFrame);
+			FramePool.release(delta);
+		}
+	}
+	
+	/**
+	 * Reads the oldest unacknowledged priority frame for a client which
+	 * acknowledges priority frames.
+	 * <p>
+	 * The frame's sequence number is given in the fh-client-priority-seq
+	 * header. The caller is responsible for releasing the frame returned.
+	 * </p>
+	 * @param client - the client to read the frame for
+	 * @param response - the response to send
+	 * @return the frame, or <code>null</code> if there are no priority
+	 * 			frames waiting to be acknowledged
+	 */
+	static Frame readPriorityFrame(Client client,
+			HttpServletResponse response) {
+		PriorityChannel channel = client.getPriorityChannel();
+		
+		if (channel == null) {
+			return null;
+		}
+		
+		ArrayList<Frame> frames = new ArrayList<Frame>(1);
+		long sequence = channel.read(frames, 1);
+		
+		if (sequence < 0) {
+			return null;
+		}
+		
+		response.setHeader("fh-client-priority-seq", String.valueOf(sequence));
+		return frames.get(0);
+	}
+	
+	/**
+	 * Records the priority frames a client has received, if the request
+	 * has an fh-client-priority-ack header.
+	 * <p>
+	 * Once a client has sent the header, its priority frames are sent
+	 * reliably.
+	 * </p>
+	 * @param client - the client sending the request
+	 * @param request - the HTTP POST request received
+	 */
+	static void acknowledgePriorityFrames(Client client,
+			HttpServletRequest request) {
+		Long priorityAck = getLongHeader(request, "fh-client-priority-ack");
+
+		if (priorityAck != null) {
+			client.enablePriorityAcks();
+			client.getPriorityChannel().acknowledge(priorityAck);
+		}
+	}
+	
+	/**
+	 * Replies with a batch of frames from a client's data buffers.
+	 * @param client - the client to reply to
+	 * @param batchSize - the maximum number of frames to reply with
+	 * @param response - the response to send
+	 * @param srvOutputStream - the stream to write the frames to
+	 */
+	private static void replyWithFrames(Client client, int batchSize,
+			HttpServletResponse response,
+			OutputStream srvOutputStream) {
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		
+		try {
+			// Get the unacknowledged priority frames, if the client
+			// acknowledges them
+			PriorityChannel channel = client.getPriorityChannel();
+			if (channel != null) {
+				long sequence = channel.read(frames, batchSize);
+				
+				if (sequence >= 0) {
+					response.setHeader("fh-client-priority-seq",
+							String.valueOf(sequence));
+				}
+			}
+			
+			// Get the frames queued for the client
+			client.readFrames(frames, batchSize - frames.size());
+			response.setHeader("fh-client-frames",
+					String.valueOf(frames.size()));
+			
+			// Reply with the frames, resetting the stream between each
+			for (int i = 0; i < frames.size(); i++) {
+				if (i > 0) {
+					FrameCodec.writeReset(srvOutputStream);
+				}
+				
+				FrameCodec.writeFrame(srvOutputStream, frames.get(i));
+				log(client, frames.get(i));
+			}
+			
+			if (!frames.isEmpty()) {
+				Server.print("Sending " + frames.size()
+						+ " frames to client " + client.getID());
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		} finally {
+			// Return the frames to the pool
+			for (Frame frame : frames) {
+				FramePool.release(frame);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a frame sent to a client to the log.
+	 * @param client - the client the frame was sent to
+	 * @param frame - the frame sent
+	 * @throws IOException if the log could not be written
+	 */
+	private static void log(Client client, Frame frame) throws IOException {
+		FileOutputStream logStream = new FileOutputStream(
+				new File(Server.dataLogFile), true);
+		try {
+			logStream.write((System.currentTimeMillis()
+					+ "-" + client.getID() + ":").getBytes());
+			logStream.write(frame.getBuffer(), frame.getOffset(),
+					frame.getLength());
+			logStream.write(("\n").getBytes());
+		} finally {
+			logStream.close();
+		}
+	}
+	
+	/**
+	 * Checks whether a client accepts deltas.
+	 * @param request - the request to check
+	 * @return <code>true</code> if the request's fh-client-delta header
+	 * 			is true, otherwise <code>false</code>
+	 */
+	private static boolean acceptsDeltas(HttpServletRequest request) {
+		String deltaHeader = request.getHeader("fh-client-delta");
+		
+		return deltaHeader != null && deltaHeader.contains("true");
+	}
+	
+	/**
+	 * Gets the value of a header holding a number, such as the
+	 * fh-client-ack header.
+	 * @param request - the request to check
+	 * @param name - the name of the header
+	 * @return the number given in the header, or <code>null</code> if
+	 * 			the header was not sent
+	 */
+	private static Long getLongHeader(HttpServletRequest request,
+			String name) {
+		String header = request.getHeader(name);
+		
+		if (header == null) {
+			return null;
+		}
+		
+		try {
+			return Long.valueOf(header);
+		} catch (NumberFormatException e) {
+			Server.print(e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the number of frames a client will accept in a reply.
+	 * @param request - the request to check
+	 * @return the number of frames given in the fh-client-batch header,
+	 * 			or <code>0</code> if frames should not be batched
+	 */
+	private static int getBatchSize(HttpServletRequest request) {
+		String batchHeader = request.getHeader("fh-client-batch");
+		
+		if (batchHeader == null) {
+			return 0;
+		}
+		
+		try {
+			return Math.max(0, Integer.parseInt(batchHeader));
+		} catch (NumberFormatException e) {
 			Server.print(e);
+			return 0;
 		}
 	}
 
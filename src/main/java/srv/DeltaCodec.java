@@ -0,0 +1,187 @@
+package srv;
+
+/**
+ * Encodes frames as differences from an earlier frame.
+ * <p>
+ * A delta is the XOR of a frame's data with the base frame's data (the
+ * base being treated as zero beyond its end), in which runs of zero
+ * bytes - the bytes which are unchanged - are skipped. It is laid out as:
+ * <ul>
+ * <li>the length of the frame's data</li>
+ * <li>any number of (skip, length, bytes) groups, each giving the number
+ * of unchanged bytes to skip, followed by the number of changed bytes
+ * and their XORed values</li>
+ * </ul>
+ * All counts are written as unsigned variable-length integers (seven bits
+ * per byte, least significant first, with the top bit set on every byte
+ * but the last).
+ * </p>
+ */
+public abstract class DeltaCodec {
+
+	/**
+	 * Encodes a frame as a delta from a base frame.
+	 * @param base - the frame the delta is from
+	 * @param target - the frame to encode
+	 * @param output - the buffer to write the delta to
+	 * @return the length of the delta, or <code>-1</code> if the delta
+	 * 			would not be shorter than the target frame's data
+	 */
+	public static int encode(Frame base, Frame target, byte[] output) {
+		byte[] baseBuffer = base.getBuffer();
+		int baseOffset = base.getOffset();
+		int baseLength = base.getLength();
+		byte[] targetBuffer = target.getBuffer();
+		int targetOffset = target.getOffset();
+		int targetLength = target.getLength();
+
+		// Never produce a delta longer than the frame itself
+		int limit = Math.min(targetLength, output.length);
+		int position = writeVarInt(output, 0, limit, targetLength);
+		int i = 0;
+
+		while (i < targetLength && position >= 0) {
+			// Find the run of unchanged bytes
+			int skipStart = i;
+			while (i < targetLength && xor(baseBuffer, baseOffset, baseLength,
+					targetBuffer, targetOffset, i) == 0) {
+				i++;
+			}
+
+			if (i == targetLength) {
+				break;
+			}
+
+			// Find the run of changed bytes
+			int literalStart = i;
+			while (i < targetLength && xor(baseBuffer, baseOffset, baseLength,
+					targetBuffer, targetOffset, i) != 0) {
+				i++;
+			}
+
+			// Write the group
+			position = writeVarInt(output, position, limit,
+					literalStart - skipStart);
+			position = writeVarInt(output, position, limit, i - literalStart);
+
+			if (position < 0 || position + (i - literalStart) > limit) {
+				return -1;
+			}
+
+			for (int j = literalStart; j < i; j++) {
+				output[position++] = xor(baseBuffer, baseOffset, baseLength,
+						targetBuffer, targetOffset, j);
+			}
+		}
+
+		return (position < 0 || position >= targetLength) ? -1 : position;
+	}
+
+	/**
+	 * Decodes a delta.
+	 * @param base - the data the delta is from
+	 * @param delta - the delta to decode
+	 * @return the data the delta was encoded from
+	 * @throws IllegalArgumentException if the delta is malformed
+	 */
+	public static byte[] decode(byte[] base, byte[] delta) {
+		int[] position = new int[] {0};
+		int length = readVarInt(delta, position);
+		byte[] output = new byte[length];
+		System.arraycopy(base, 0, output, 0, Math.min(base.length, length));
+
+		int i = 0;
+		while (position[0] < delta.length) {
+			i += readVarInt(delta, position);
+			int literalLength = readVarInt(delta, position);
+
+			if (i + literalLength > length
+					|| position[0] + literalLength > delta.length) {
+				throw new IllegalArgumentException("Malformed delta");
+			}
+
+			for (int j = 0; j < literalLength; j++) {
+				output[i++] ^= delta[position[0]++];
+			}
+		}
+
+		return output;
+	}
+
+
+	/**
+	 * Gets the XOR of a byte in the target frame with the corresponding
+	 * byte in the base frame.
+	 * @param baseBuffer - the base frame's buffer
+	 * @param baseOffset - the offset of the base frame's data
+	 * @param baseLength - the length of the base frame's data
+	 * @param targetBuffer - the target frame's buffer
+	 * @param targetOffset - the offset of the target frame's data
+	 * @param index - the index of the byte
+	 * @return the XOR of the two bytes
+	 */
+	private static byte xor(byte[] baseBuffer, int baseOffset, int baseLength,
+			byte[] targetBuffer, int targetOffset, int index) {
+		byte baseByte = (index < baseLength)
+				? baseBuffer[baseOffset + index] : 0;
+
+		return (byte) (baseByte ^ targetBuffer[targetOffset + index]);
+	}
+
+	/**
+	 * Writes a variable-length integer.
+	 * @param output - the buffer to write to
+	 * @param position - the position to write at, or a negative value if
+	 * 						an earlier write ran out of space
+	 * @param limit - the position to stop writing at
+	 * @param value - the value to write
+	 * @return the position after the value, or <code>-1</code> if there
+	 * 			was not enough space
+	 */
+	private static int writeVarInt(byte[] output, int position, int limit,
+			int value) {
+		if (position < 0) {
+			return -1;
+		}
+
+		do {
+			if (position >= limit) {
+				return -1;
+			}
+
+			int bits = value & 0x7F;
+			value >>>= 7;
+			output[position++] = (byte) ((value != 0) ? (bits | 0x80) : bits);
+		} while (value != 0);
+
+		return position;
+	}
+
+	/**
+	 * Reads a variable-length integer.
+	 * @param input - the buffer to read from
+	 * @param position - a single element array holding the position to read
+	 * 						from, which is advanced past the value
+	 * @return the value read
+	 * @throws IllegalArgumentException if the value is malformed
+	 */
+	private static int readVarInt(byte[] input, int[] position) {
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (position[0] >= input.length) {
+				throw new IllegalArgumentException("Malformed delta");
+			}
+
+			byte b = input[position[0]++];
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Malformed delta");
+	}
+
+}
@@ -0,0 +1,150 @@
+package srv;
+
+/**
+ * Encodes the frames sent to a single client as deltas.
+ * <p>
+ * Deltas are only ever taken from a frame the client has acknowledged
+ * receiving, so a lost response never leaves the client unable to decode
+ * the next frame. A keyframe (the frame's full data) is sent instead
+ * when:
+ * <ul>
+ * <li>the client has not acknowledged a frame the encoder still holds
+ * (including when it asks for a keyframe by not acknowledging one)</li>
+ * <li>{@link Server#deltaKeyframeInterval} deltas have been sent since
+ * the last keyframe</li>
+ * <li>the delta would not be shorter than the frame</li>
+ * </ul>
+ * </p>
+ */
+public class DeltaEncoder {
+
+	/** The last frame acknowledged by the client */
+	private Frame base;
+
+	/** The last frame sent to the client, if it hasn't been acknowledged */
+	private Frame sent;
+
+	/** The number of deltas sent since the last keyframe */
+	private int deltasSinceKeyframe;
+
+	/** The key of the base frame used by the last delta */
+	private long lastBaseKey;
+
+
+	/**
+	 * Creates a new delta encoder.
+	 */
+	public DeltaEncoder() {
+		this.base = null;
+		this.sent = null;
+		this.deltasSinceKeyframe = 0;
+		this.lastBaseKey = -1;
+	}
+
+
+	/**
+	 * Records the client's acknowledgement, and encodes a frame.
+	 * <p>
+	 * The frame is not released; the caller is responsible for releasing
+	 * both it and the delta returned.
+	 * </p>
+	 * @param frame - the frame to send
+	 * @param acknowledgedKey - the key of the last frame the client
+	 * 							received, or <code>null</code> if the
+	 * 							client wants a keyframe
+	 * @return a frame holding the delta (with the same key as the frame
+	 * 			given), or <code>null</code> if a keyframe should be sent
+	 */
+	public synchronized Frame encode(Frame frame, Long acknowledgedKey) {
+		acknowledge(acknowledgedKey);
+
+		Frame delta = null;
+
+		if (base != null
+				&& deltasSinceKeyframe < Server.deltaKeyframeInterval) {
+			// Try encoding the frame as a delta from the base frame
+			delta = FramePool.acquire(frame.getLength());
+			int length = DeltaCodec.encode(base, frame, delta.getBuffer());
+
+			if (length < 0) {
+				FramePool.release(delta);
+				delta = null;
+			} else {
+				delta.setKey(frame.getKey());
+				delta.setRegion(0, length);
+				lastBaseKey = base.getKey();
+			}
+		}
+
+		if (delta == null) {
+			deltasSinceKeyframe = 0;
+			Metrics.increment(Metrics.DELTA_KEYFRAMES);
+		} else {
+			deltasSinceKeyframe++;
+			Metrics.increment(Metrics.DELTA_FRAMES);
+			Metrics.add(Metrics.DELTA_BYTES_SAVED,
+					frame.getLength() - delta.getLength());
+		}
+
+		// Keep a copy of the frame, in case the client acknowledges it
+		FramePool.release(sent);
+		sent = copy(frame);
+
+		return delta;
+	}
+
+	/**
+	 * Gets the key of the base frame used by the last delta.
+	 * @return the key of the base frame
+	 */
+	public synchronized long getLastBaseKey() {
+		return lastBaseKey;
+	}
+
+	/**
+	 * Releases the frames held by the encoder.
+	 */
+	public synchronized void clear() {
+		FramePool.release(base);
+		FramePool.release(sent);
+		base = null;
+		sent = null;
+	}
+
+
+	/**
+	 * Records the client's acknowledgement of a frame.
+	 * @param acknowledgedKey - the key of the last frame the client
+	 * 							received, or <code>null</code>
+	 */
+	private void acknowledge(Long acknowledgedKey) {
+		if (acknowledgedKey != null && sent != null
+				&& sent.getKey() == acknowledgedKey) {
+			// The last frame sent was received, so use it as the base
+			FramePool.release(base);
+			base = sent;
+			sent = null;
+		} else if (acknowledgedKey == null || base == null
+				|| base.getKey() != acknowledgedKey) {
+			// The client does not hold a frame the encoder knows about
+			FramePool.release(base);
+			base = null;
+		}
+	}
+
+	/**
+	 * Copies a frame into a new pooled frame.
+	 * @param frame - the frame to copy
+	 * @return the copy
+	 */
+	private static Frame copy(Frame frame) {
+		Frame copy = FramePool.acquire(frame.getLength());
+		System.arraycopy(frame.getBuffer(), frame.getOffset(),
+				copy.getBuffer(), 0, frame.getLength());
+		copy.setKey(frame.getKey());
+		copy.setRegion(0, frame.getLength());
+
+		return copy;
+	}
+
+}
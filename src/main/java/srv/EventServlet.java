@@ -0,0 +1,86 @@
+package srv;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The servlet responsible for streaming events.
+ * <p>
+ * This servlet is connected to by clients (typically with an
+ * EventSource) when they wish to be told about lobby changes and
+ * messages, rather than polling for them.
+ * </p>
+ * <p>
+ * Clients connect with the query parameters <code>id</code> (an ID
+ * issued by the server) and <code>agent</code> (the client's version,
+ * as would otherwise be sent in the user-agent header), since
+ * EventSource cannot set request headers.
+ * </p>
+ */
+@WebServlet(urlPatterns = "/events", asyncSupported = true)
+public class EventServlet extends HttpServlet {
+
+	/** The serialisation identifier */
+	private static final long serialVersionUID = 1L;
+
+	/** The time (in ms) clients should wait before reconnecting */
+	private static final long RETRY_TIME = 100;
+
+
+	/**
+	 * Respond to HTTP GET requests.
+	 * <p>
+	 * Requests from versions which are not permitted, or with an ID
+	 * which hasn't been issued, are replied to with a 404 (page not found)
+	 * status code.
+	 * </p>
+	 * @param request - the HTTP GET request received
+	 * @param response - the response to send
+	 */
+	@Override
+	public void doGet(HttpServletRequest request,
+			HttpServletResponse response) {
+		try {
+			// Check the client's version
+			if (!Server.isVersionPermitted(request.getParameter("agent"))) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			// Find the client (a missing or malformed ID finds no client)
+			Client client = Server.getClientFromID(
+					ClientHeaders.parseLong(request.getParameter("id"), -1));
+
+			if (client == null || !request.isAsyncSupported()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			client.updateLastConnectionTime();
+
+			// Set up the event stream
+			response.setContentType("text/event-stream");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+
+			ServletOutputStream srvOutputStream = response.getOutputStream();
+			if (srvOutputStream == null) {
+				Exception e = new Exception("Servlet output stream is null");
+				Server.print(e);
+				return;
+			}
+
+			// Stream until the client would otherwise have timed out
+			new EventStream(request.startAsync(), client, srvOutputStream)
+					.start(Math.max(Server.timeout / 2, 1), RETRY_TIME);
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+package srv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * A stream of server-sent events sent to a client.
+ * <p>
+ * Two kinds of event are sent:
+ * <ul>
+ * <li><code>hosts</code> - the response to GET_OPEN_CONNECTIONS,
+ * sent when the stream opens and whenever the available hosts
+ * change</li>
+ * <li><code>message</code> - the client's messages, as they would
+ * be returned by the message servlet, sent as soon as they are
+ * written</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Listeners only flag what needs to be sent; the events themselves are
+ * written on a container thread, so bursts of changes are coalesced.
+ * </p>
+ */
+public class EventStream implements MessageListener, LobbyListener,
+		AsyncListener {
+
+	/** The character set events are sent in */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The context of the request being streamed to */
+	private final AsyncContext asyncContext;
+
+	/** The client the events are for */
+	private final Client client;
+
+	/** The stream to write events to */
+	private final OutputStream outputStream;
+
+	/** Whether the available hosts need to be sent */
+	private final AtomicBoolean hostsPending;
+
+	/** Whether a flush has been scheduled and not yet started */
+	private final AtomicBoolean flushScheduled;
+
+	/** Whether the stream has been closed */
+	private volatile boolean closed;
+
+
+	/**
+	 * Creates a new event stream.
+	 * @param asyncContext - the context of the request to stream to
+	 * @param client - the client the events are for
+	 * @param outputStream - the stream to write events to
+	 */
+	public EventStream(AsyncContext asyncContext, Client client,
+			OutputStream outputStream) {
+		this.asyncContext = asyncContext;
+		this.client = client;
+		this.outputStream = outputStream;
+		this.hostsPending = new AtomicBoolean(true);
+		this.flushScheduled = new AtomicBoolean(false);
+		this.closed = false;
+	}
+
+
+	/**
+	 * Starts streaming events.
+	 * <p>
+	 * The stream is closed after the timeout, at which point the client
+	 * is expected to reconnect (which also keeps it from timing out).
+	 * </p>
+	 * @param timeout - the time to stream for, in milliseconds
+	 * @param retry - the time the client should wait before reconnecting,
+	 * 					in milliseconds
+	 */
+	public void start(long timeout, long retry) {
+		asyncContext.setTimeout(timeout);
+		asyncContext.addListener(this);
+		client.addMessageListener(this);
+		Server.addLobbyListener(this);
+
+		try {
+			write("retry: " + retry + "\n\n");
+		} catch (IOException e) {
+			Server.print(e);
+			close();
+			return;
+		}
+
+		// Send the current hosts, and any messages already waiting
+		scheduleFlush();
+	}
+
+	@Override
+	public void messageWritten(Client client) {
+		scheduleFlush();
+	}
+
+	@Override
+	public void lobbyChanged() {
+		hostsPending.set(true);
+		scheduleFlush();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		closed = true;
+		removeListeners();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		closed = true;
+		removeListeners();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+		//
+	}
+
+
+	/**
+	 * Schedules the pending events to be sent on a container thread.
+	 */
+	private void scheduleFlush() {
+		if (!closed && flushScheduled.compareAndSet(false, true)) {
+			asyncContext.start(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends any pending events.
+	 */
+	private synchronized void flush() {
+		if (closed) {
+			return;
+		}
+
+		// Stop streaming if the client has been removed
+		if (Server.getClientFromID(client.getID()) != client) {
+			close();
+			return;
+		}
+
+		try {
+			if (hostsPending.getAndSet(false)) {
+				writeEvent("hosts", InstructionHandler
+						.handleInstruction(client, "GET_OPEN_CONNECTIONS"));
+			}
+
+			String messages = client.readMessages();
+			if (!messages.equals("")) {
+				writeEvent("message", messages);
+			}
+
+			// An open stream shows that the client is still connected
+			client.updateLastConnectionTime();
+		} catch (IOException e) {
+			Server.print(e);
+			close();
+		}
+	}
+
+	/**
+	 * Writes an event.
+	 * <p>
+	 * Each line of the data is sent on a data line of its own, so line
+	 * breaks in the data (which may come from another client) cannot end
+	 * the event early.
+	 * </p>
+	 * @param event - the event's name
+	 * @param data - the event's data
+	 * @throws IOException if the event could not be written
+	 */
+	private void writeEvent(String event, String data) throws IOException {
+		StringBuilder eventText = new StringBuilder("event: ").append(event)
+				.append('\n');
+
+		for (String line : data.split("\r\n|\r|\n", -1)) {
+			eventText.append("data: ").append(line).append('\n');
+		}
+
+		write(eventText.append('\n').toString());
+	}
+
+	/**
+	 * Writes a string to the stream, and flushes it.
+	 * @param string - the string to write
+	 * @throws IOException if the string could not be written
+	 */
+	private void write(String string) throws IOException {
+		outputStream.write(string.getBytes(UTF_8));
+		outputStream.flush();
+	}
+
+	/**
+	 * Stops streaming, and completes the request.
+	 */
+	private synchronized void close() {
+		if (!closed) {
+			closed = true;
+			removeListeners();
+			asyncContext.complete();
+		}
+	}
+
+	/**
+	 * Removes this stream's listeners.
+	 */
+	private void removeListeners() {
+		client.removeMessageListener(this);
+		Server.removeLobbyListener(this);
+	}
+
+}
@@ -0,0 +1,162 @@
+package srv;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents a frame of game data relayed between clients.
+ * <p>
+ * Frames are backed by buffers obtained from the {@link FramePool}.
+ * The frame's data occupies a region of its buffer, which may also
+ * contain the rest of the request body the frame was read from.
+ * </p>
+ * <p>
+ * Once a frame is no longer needed it should be returned to the pool
+ * with {@link FramePool#release(Frame)}.
+ * </p>
+ */
+public class Frame {
+
+	/** The buffer backing the frame */
+	private final byte[] buffer;
+
+	/** The index of the pool size class the buffer belongs to */
+	private final int sizeClass;
+
+	/** The frame's key */
+	private long key;
+
+	/** The offset of the frame's data in the buffer */
+	private int offset;
+
+	/** The length of the frame's data */
+	private int length;
+
+	/** The time (from {@link System#nanoTime()}) the frame was stored */
+	private long storedTime;
+
+	/** Whether the frame is currently in use (i.e. not in the pool) */
+	final AtomicBoolean inUse = new AtomicBoolean();
+
+
+	/**
+	 * Creates a new frame.
+	 * @param capacity - the capacity of the frame's buffer
+	 * @param sizeClass - the pool size class of the frame's buffer,
+	 * 						or <code>-1</code> if the frame is not pooled
+	 */
+	Frame(int capacity, int sizeClass) {
+		this.buffer = new byte[capacity];
+		this.sizeClass = sizeClass;
+	}
+
+
+	/**
+	 * Gets the frame's key.
+	 * @return the frame's key
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * Gets the time the frame was stored for a client.
+	 * @return the time (from {@link System#nanoTime()}) the frame was
+	 * 			stored, or <code>0</code> if it has not been stored
+	 */
+	public long getStoredTime() {
+		return storedTime;
+	}
+
+	/**
+	 * Gets the buffer backing the frame.
+	 * <p>
+	 * The frame's data starts at {@link #getOffset()}.
+	 * </p>
+	 * @return the buffer backing the frame
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gets the offset of the frame's data in the buffer.
+	 * @return the offset of the frame's data
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the length of the frame's data.
+	 * @return the length of the frame's data
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the capacity of the frame's buffer.
+	 * @return the capacity of the frame's buffer
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Gets the pool size class of the frame's buffer.
+	 * @return the size class, or <code>-1</code> if the frame is not pooled
+	 */
+	int getSizeClass() {
+		return sizeClass;
+	}
+
+
+	/**
+	 * Sets the frame's key.
+	 * @param key - the key to set
+	 */
+	public void setKey(long key) {
+		this.key = key;
+	}
+
+	/**
+	 * Sets the time the frame was stored for a client.
+	 * @param storedTime - the time (from {@link System#nanoTime()}) the
+	 * 					frame was stored, or <code>0</code> to clear it
+	 */
+	public void setStoredTime(long storedTime) {
+		this.storedTime = storedTime;
+	}
+
+	/**
+	 * Sets the region of the buffer occupied by the frame's data.
+	 * @param offset - the offset of the frame's data
+	 * @param length - the length of the frame's data
+	 */
+	public void setRegion(int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.length) {
+			throw new IndexOutOfBoundsException("Region " + offset + "+"
+					+ length + " outside buffer of " + buffer.length);
+		}
+
+		this.offset = offset;
+		this.length = length;
+	}
+
+
+	/**
+	 * Copies the frame into a new data entry.
+	 * <p>
+	 * The frame itself is not released.
+	 * </p>
+	 * @return a data entry containing a copy of the frame's data
+	 */
+	public Entry<Long, byte[]> toEntry() {
+		return new SimpleImmutableEntry<Long, byte[]>(key,
+				Arrays.copyOfRange(buffer, offset, offset + length));
+	}
+
+}
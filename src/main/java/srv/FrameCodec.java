@@ -0,0 +1,166 @@
+package srv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+
+/**
+ * Writes frames in the serialised form expected by clients.
+ * <p>
+ * Clients read data entries with an <code>ObjectInputStream</code>.
+ * Rather than constructing a new data entry for each frame sent,
+ * the serialised form of a data entry is captured once, and each frame's
+ * key, length and data are written into it as the frame is sent.
+ * </p>
+ */
+public abstract class FrameCodec {
+
+	/** The serialised form of a data entry with an empty value */
+	private static final byte[] ENTRY_TEMPLATE;
+
+	/** The offset of the key in the data entry template */
+	private static final int KEY_OFFSET;
+
+	static {
+		// Serialise two entries which differ only in their key
+		byte[] zeroKey = serialise(new SimpleImmutableEntry<Long, byte[]>(
+				0L, new byte[0]));
+		byte[] onesKey = serialise(new SimpleImmutableEntry<Long, byte[]>(
+				-1L, new byte[0]));
+
+		// The first difference between the two marks the start of the key
+		int keyOffset = 0;
+		while (zeroKey[keyOffset] == onesKey[keyOffset]) {
+			keyOffset++;
+		}
+
+		// Drop the stream header and the array length from the template
+		ENTRY_TEMPLATE = Arrays.copyOfRange(zeroKey, 4, zeroKey.length - 4);
+		KEY_OFFSET = keyOffset - 4;
+	}
+
+
+	/**
+	 * Writes a serialisation stream header.
+	 * <p>
+	 * This is the header written when an <code>ObjectOutputStream</code>
+	 * is constructed, and must precede any frames written.
+	 * </p>
+	 * @param outputStream - the stream to write to
+	 * @throws IOException if the header could not be written
+	 */
+	public static void writeStreamHeader(OutputStream outputStream)
+			throws IOException {
+		writeShort(outputStream, ObjectStreamConstants.STREAM_MAGIC);
+		writeShort(outputStream, ObjectStreamConstants.STREAM_VERSION);
+	}
+
+	/**
+	 * Writes a frame as a serialised data entry.
+	 * <p>
+	 * The result is read by an <code>ObjectInputStream</code> as an
+	 * <code>Entry&lt;Long, byte[]&gt;</code>, or as <code>null</code>
+	 * if the frame is <code>null</code>.
+	 * </p>
+	 * @param outputStream - the stream to write to
+	 * @param frame - the frame to write
+	 * @throws IOException if the frame could not be written
+	 */
+	public static void writeFrame(OutputStream outputStream, Frame frame)
+			throws IOException {
+		if (frame == null) {
+			outputStream.write(ObjectStreamConstants.TC_NULL);
+			return;
+		}
+
+		// Write the entry, substituting the frame's key
+		outputStream.write(ENTRY_TEMPLATE, 0, KEY_OFFSET);
+		writeLong(outputStream, frame.getKey());
+		outputStream.write(ENTRY_TEMPLATE, KEY_OFFSET + 8,
+				ENTRY_TEMPLATE.length - KEY_OFFSET - 8);
+
+		// Write the array length, followed by the frame's data
+		writeInt(outputStream, frame.getLength());
+		outputStream.write(frame.getBuffer(), frame.getOffset(),
+				frame.getLength());
+	}
+
+
+	/**
+	 * Writes a stream reset marker.
+	 * <p>
+	 * This must be written between frames sent in the same stream, since
+	 * each frame is written as though it were the first object in the
+	 * stream.
+	 * </p>
+	 * @param outputStream - the stream to write to
+	 * @throws IOException if the marker could not be written
+	 */
+	public static void writeReset(OutputStream outputStream)
+			throws IOException {
+		outputStream.write(ObjectStreamConstants.TC_RESET);
+	}
+
+
+	/**
+	 * Writes a two byte value.
+	 * @param outputStream - the stream to write to
+	 * @param value - the value to write
+	 * @throws IOException if the value could not be written
+	 */
+	private static void writeShort(OutputStream outputStream, int value)
+			throws IOException {
+		outputStream.write(value >>> 8);
+		outputStream.write(value);
+	}
+
+	/**
+	 * Writes a four byte value.
+	 * @param outputStream - the stream to write to
+	 * @param value - the value to write
+	 * @throws IOException if the value could not be written
+	 */
+	private static void writeInt(OutputStream outputStream, int value)
+			throws IOException {
+		writeShort(outputStream, value >>> 16);
+		writeShort(outputStream, value);
+	}
+
+	/**
+	 * Writes an eight byte value.
+	 * @param outputStream - the stream to write to
+	 * @param value - the value to write
+	 * @throws IOException if the value could not be written
+	 */
+	private static void writeLong(OutputStream outputStream, long value)
+			throws IOException {
+		writeInt(outputStream, (int) (value >>> 32));
+		writeInt(outputStream, (int) value);
+	}
+
+	/**
+	 * Serialises an object.
+	 * @param object - the object to serialise
+	 * @return the serialised object, including the stream header
+	 */
+	private static byte[] serialise(Object object) {
+		try {
+			ByteArrayOutputStream byteArrayOutputStream =
+					new ByteArrayOutputStream();
+			ObjectOutputStream objectOutputStream =
+					new ObjectOutputStream(byteArrayOutputStream);
+			objectOutputStream.writeObject(object);
+			objectOutputStream.close();
+
+			return byteArrayOutputStream.toByteArray();
+		} catch (IOException e) {
+			// Serialising to memory should never fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
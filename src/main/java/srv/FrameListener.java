@@ -0,0 +1,18 @@
+package srv;
+
+/**
+ * Receives notifications when frames are written to a client.
+ * <p>
+ * Listeners are registered with {@link Client#addFrameListener}, and
+ * are called on the thread which wrote the frame.
+ * </p>
+ */
+public interface FrameListener {
+
+	/**
+	 * Called after a frame has been written to a client's data buffer.
+	 * @param client - the client the frame was written to
+	 */
+	public void frameWritten(Client client);
+
+}
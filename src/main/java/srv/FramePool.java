@@ -0,0 +1,223 @@
+package srv;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of frame buffers.
+ * <p>
+ * Buffers are grouped into size classes, each of which holds buffers
+ * of a single power-of-two capacity between {@link #MIN_CAPACITY} and
+ * {@link #MAX_CAPACITY}. Requests for larger buffers are served by
+ * unpooled frames, which are left to the garbage collector on release.
+ * </p>
+ * <p>
+ * When leak detection is enabled (as it is in the tests), the pool
+ * records where each frame currently in use was acquired, so that
+ * frames which are never released can be found.
+ * </p>
+ */
+public abstract class FramePool {
+
+	/** The capacity of the smallest size class */
+	public static final int MIN_CAPACITY = 64;
+
+	/** The capacity of the largest size class */
+	public static final int MAX_CAPACITY = 64 * 1024;
+
+	/** The maximum number of idle frames to keep in each size class */
+	public static int maxIdlePerClass = 256;
+
+	/** The number of size classes */
+	private static final int SIZE_CLASSES =
+			Integer.numberOfTrailingZeros(MAX_CAPACITY)
+			- Integer.numberOfTrailingZeros(MIN_CAPACITY) + 1;
+
+	/** The idle frames in each size class */
+	private static final ConcurrentLinkedQueue<?>[] idleFrames =
+			new ConcurrentLinkedQueue<?>[SIZE_CLASSES];
+
+	/** The number of idle frames in each size class */
+	private static final AtomicInteger[] idleCounts =
+			new AtomicInteger[SIZE_CLASSES];
+
+	/** Whether leak detection is enabled */
+	private static volatile boolean leakDetection = false;
+
+	/** The frames currently in use, and where they were acquired */
+	private static final Map<Frame, Exception> framesInUse =
+			new ConcurrentHashMap<Frame, Exception>();
+
+	static {
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			idleFrames[i] = new ConcurrentLinkedQueue<Frame>();
+			idleCounts[i] = new AtomicInteger();
+		}
+	}
+
+
+	/**
+	 * Acquires a frame with a buffer of at least the specified capacity.
+	 * <p>
+	 * The frame's key, region and stored time are reset to zero.
+	 * </p>
+	 * @param capacity - the minimum capacity of the frame's buffer
+	 * @return a frame which is not in use elsewhere
+	 */
+	public static Frame acquire(int capacity) {
+		int sizeClass = getSizeClass(capacity);
+		Frame frame = null;
+
+		if (sizeClass >= 0) {
+			// Try to reuse an idle frame
+			frame = getIdleFrames(sizeClass).poll();
+
+			if (frame != null) {
+				idleCounts[sizeClass].decrementAndGet();
+			} else {
+				frame = new Frame(MIN_CAPACITY << sizeClass, sizeClass);
+				Metrics.increment(Metrics.FRAME_POOL_MISSES);
+			}
+		} else {
+			frame = new Frame(capacity, -1);
+			Metrics.increment(Metrics.FRAME_POOL_MISSES);
+		}
+
+		frame.setKey(0);
+		frame.setRegion(0, 0);
+		frame.setStoredTime(0);
+		frame.inUse.set(true);
+
+		if (leakDetection) {
+			framesInUse.put(frame, new Exception("Frame acquired here"));
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Returns a frame to the pool.
+	 * <p>
+	 * The frame must not be used by the caller once it has been released.
+	 * Releasing <code>null</code> has no effect.
+	 * </p>
+	 * @param frame - the frame to release
+	 * @throws IllegalStateException if the frame has already been released
+	 */
+	public static void release(Frame frame) {
+		if (frame == null) return;
+
+		// Claim the frame, so that only one of several racing releases
+		// can return it to the pool
+		if (!frame.inUse.compareAndSet(true, false)) {
+			throw new IllegalStateException("Frame released twice");
+		}
+
+		if (leakDetection) {
+			framesInUse.remove(frame);
+		}
+
+		int sizeClass = frame.getSizeClass();
+
+		// Keep the frame, unless the size class already has enough idle frames
+		if (sizeClass >= 0 && idleCounts[sizeClass].incrementAndGet()
+				<= maxIdlePerClass) {
+			getIdleFrames(sizeClass).offer(frame);
+		} else if (sizeClass >= 0) {
+			idleCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Acquires a larger frame, copying the contents of an existing frame
+	 * into it.
+	 * <p>
+	 * The existing frame is released.
+	 * </p>
+	 * @param frame - the frame to grow
+	 * @param capacity - the minimum capacity of the new frame's buffer
+	 * @return the new frame
+	 */
+	public static Frame grow(Frame frame, int capacity) {
+		Frame grownFrame = acquire(capacity);
+
+		System.arraycopy(frame.getBuffer(), 0, grownFrame.getBuffer(), 0,
+				frame.getCapacity());
+		grownFrame.setKey(frame.getKey());
+		grownFrame.setRegion(frame.getOffset(), frame.getLength());
+		grownFrame.setStoredTime(frame.getStoredTime());
+
+		release(frame);
+
+		return grownFrame;
+	}
+
+
+	/**
+	 * Gets the size class which serves the specified capacity.
+	 * @param capacity - the capacity required
+	 * @return the size class, or <code>-1</code> if the capacity is too
+	 * 			large to be pooled
+	 */
+	private static int getSizeClass(int capacity) {
+		if (capacity > MAX_CAPACITY) return -1;
+		if (capacity <= MIN_CAPACITY) return 0;
+
+		// Round up to the next power of two
+		return (32 - Integer.numberOfLeadingZeros(capacity - 1))
+				- Integer.numberOfTrailingZeros(MIN_CAPACITY);
+	}
+
+	/**
+	 * Gets the queue of idle frames for a size class.
+	 * @param sizeClass - the size class
+	 * @return the queue of idle frames
+	 */
+	@SuppressWarnings("unchecked")
+	private static ConcurrentLinkedQueue<Frame> getIdleFrames(int sizeClass) {
+		return (ConcurrentLinkedQueue<Frame>) idleFrames[sizeClass];
+	}
+
+
+	/**
+	 * Sets whether leak detection is enabled.
+	 * <p>
+	 * Enabling or disabling leak detection clears the record of frames
+	 * in use.
+	 * </p>
+	 * @param enabled - <code>true</code> if frames in use should be
+	 * 					tracked, otherwise <code>false</code>
+	 */
+	public static void setLeakDetection(boolean enabled) {
+		framesInUse.clear();
+		leakDetection = enabled;
+	}
+
+	/**
+	 * Gets the number of frames in use which were acquired while leak
+	 * detection was enabled.
+	 * @return the number of frames in use
+	 */
+	public static int getFramesInUse() {
+		return framesInUse.size();
+	}
+
+	/**
+	 * Checks that all frames acquired while leak detection was enabled
+	 * have been released.
+	 * @throws IllegalStateException if a frame has not been released -
+	 * 			the cause records where the frame was acquired
+	 */
+	public static void checkForLeaks() {
+		Iterator<Exception> acquiredAt = framesInUse.values().iterator();
+
+		if (acquiredAt.hasNext()) {
+			throw new IllegalStateException(framesInUse.size()
+					+ " frame(s) not released", acquiredAt.next());
+		}
+	}
+
+}
@@ -0,0 +1,252 @@
+package srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue of frames.
+ * <p>
+ * The queue is a ring buffer in which each slot carries a sequence
+ * number, so that any number of threads can add and remove frames
+ * without obtaining a lock.
+ * </p>
+ * <p>
+ * When the queue is full, frames are handled according to the queue's
+ * {@link OverflowPolicy}.
+ * </p>
+ */
+public class FrameQueue {
+
+	/**
+	 * The ways in which a full queue can handle new frames.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the oldest frame in the queue to make room */
+		DROP_OLDEST,
+
+		/** Reject the new frame */
+		REJECT
+	}
+
+	/** The frames in the queue */
+	private final AtomicReferenceArray<Frame> frames;
+
+	/** The sequence number of each slot */
+	private final AtomicLongArray sequences;
+
+	/** The mask used to convert positions into slot indices */
+	private final int mask;
+
+	/** The policy to apply when the queue is full */
+	private final OverflowPolicy overflowPolicy;
+
+	/** The name of the counter used to record overflowing frames */
+	private final String overflowMetric;
+
+	/** The position at which the next frame will be added */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The position from which the next frame will be removed */
+	private final AtomicLong head = new AtomicLong();
+
+
+	/**
+	 * Creates a new frame queue.
+	 * @param capacity - the minimum number of frames the queue can hold -
+	 * 						this is rounded up to a power of two
+	 * @param overflowPolicy - the policy to apply when the queue is full
+	 */
+	public FrameQueue(int capacity, OverflowPolicy overflowPolicy) {
+		this(capacity, overflowPolicy,
+				(overflowPolicy == OverflowPolicy.REJECT)
+						? Metrics.PRIORITY_FRAMES_REJECTED
+						: Metrics.PRIORITY_FRAMES_DROPPED);
+	}
+
+	/**
+	 * Creates a new frame queue.
+	 * @param capacity - the minimum number of frames the queue can hold -
+	 * 						this is rounded up to a power of two
+	 * @param overflowPolicy - the policy to apply when the queue is full
+	 * @param overflowMetric - the name of the counter used to record
+	 * 							frames which are rejected or dropped
+	 */
+	public FrameQueue(int capacity, OverflowPolicy overflowPolicy,
+			String overflowMetric) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+		this.frames = new AtomicReferenceArray<Frame>(size);
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+		this.overflowMetric = overflowMetric;
+
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+
+	/**
+	 * Adds a frame to the end of the queue.
+	 * <p>
+	 * The queue takes ownership of the frame. If the frame is rejected,
+	 * or another frame is dropped to make room for it, the frame which is
+	 * not kept is released.
+	 * </p>
+	 * @param frame - the frame to add
+	 * @return <code>true</code> if the frame was added without the queue
+	 * 			overflowing, otherwise <code>false</code>
+	 */
+	public boolean offer(Frame frame) {
+		return add(frame) == 0;
+	}
+
+	/**
+	 * Adds a frame to the end of the queue, reporting how many frames were
+	 * dropped to make room for it.
+	 * <p>
+	 * Ownership is handled as in {@link #offer(Frame)}.
+	 * </p>
+	 * @param frame - the frame to add
+	 * @return the number of frames dropped from the head of the queue, or
+	 * 			-1 if the frame was rejected
+	 */
+	public int add(Frame frame) {
+		if (tryOffer(frame)) {
+			return 0;
+		}
+
+		if (overflowPolicy == OverflowPolicy.REJECT) {
+			FramePool.release(frame);
+			Metrics.increment(overflowMetric);
+			return -1;
+		}
+
+		// Drop frames from the head of the queue until there is room
+		int droppedCount = 0;
+
+		do {
+			Frame droppedFrame = poll();
+
+			if (droppedFrame != null) {
+				FramePool.release(droppedFrame);
+				Metrics.increment(overflowMetric);
+				droppedCount++;
+			}
+		} while (!tryOffer(frame));
+
+		return droppedCount;
+	}
+
+	/**
+	 * Removes the frame at the head of the queue.
+	 * <p>
+	 * The caller takes ownership of the frame returned.
+	 * </p>
+	 * @return the frame at the head of the queue, or <code>null</code>
+	 * 			if the queue is empty
+	 */
+	public Frame poll() {
+		long position = head.get();
+
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+				// The slot holds a frame, so try to claim it
+				if (head.compareAndSet(position, position + 1)) {
+					Frame frame = frames.get(index);
+					frames.set(index, null);
+
+					// Make the slot available to be written on the next lap
+					sequences.set(index, position + mask + 1);
+					return frame;
+				}
+
+				position = head.get();
+			} else if (difference < 0) {
+				// The slot has not been written yet, so the queue is empty
+				return null;
+			} else {
+				// Another thread has claimed the slot
+				position = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Attempts to add a frame to the end of the queue.
+	 * @param frame - the frame to add
+	 * @return <code>true</code> if the frame was added,
+	 * 			or <code>false</code> if the queue is full
+	 */
+	private boolean tryOffer(Frame frame) {
+		long position = tail.get();
+
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				// The slot is free, so try to claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					frames.set(index, frame);
+
+					// Publish the frame to readers
+					sequences.set(index, position + 1);
+					return true;
+				}
+
+				position = tail.get();
+			} else if (difference < 0) {
+				// The slot has not been read yet, so the queue is full
+				return false;
+			} else {
+				// Another thread has claimed the slot
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes and releases every frame in the queue.
+	 */
+	public void clear() {
+		Frame frame;
+
+		while ((frame = poll()) != null) {
+			FramePool.release(frame);
+		}
+	}
+
+
+	/**
+	 * Gets the (approximate) number of frames in the queue.
+	 * @return the number of frames in the queue
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	/**
+	 * Gets the number of frames the queue can hold.
+	 * @return the queue's capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Gets the policy applied when the queue is full.
+	 * @return the queue's overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+}
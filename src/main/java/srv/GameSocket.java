@@ -0,0 +1,393 @@
+package srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+/**
+ * The WebSocket endpoint used to stream frames and messages.
+ * <p>
+ * Clients connect with the query parameters <code>id</code> (an ID
+ * issued by the server) and <code>agent</code> (the client's version,
+ * as would otherwise be sent in the user-agent header).
+ * </p>
+ * <p>
+ * Binary messages carry a frame: an eight byte key, followed by the
+ * frame's data. Frames received are written to the client's partner,
+ * and frames written to the client are pushed to it as soon as they
+ * arrive.
+ * </p>
+ * <p>
+ * Text messages carry instructions, which are handled as they would be
+ * by the message servlet. Messages written to the client are pushed to
+ * it as soon as they arrive.
+ * </p>
+ * <p>
+ * Clients which acknowledge priority frames (with ACK_PRIORITY
+ * instructions) are sent them through their {@link PriorityChannel}: a
+ * PRIORITY_SEQ:'SEQUENCE' text message gives the sequence number of the
+ * first priority frame which follows it, and the rest are numbered
+ * consecutively.
+ * </p>
+ * <p>
+ * Listeners only flag that there is something to send, as they may be
+ * called on another client's thread (while it holds the client array
+ * lock) or on the TCP or UDP frame server's thread. Everything is sent
+ * from a sender thread, with at most one send in progress per session,
+ * so a slow connection only holds up itself.
+ * </p>
+ */
+@ServerEndpoint("/socket")
+public class GameSocket implements FrameListener, MessageListener {
+
+	/** The message sent when the partner's priority queue is full */
+	public static final String BACKPRESSURE = "BACKPRESSURE";
+
+	/** The number of bytes used to send a frame's key */
+	private static final int KEY_LENGTH = 8;
+
+	/** The executor used by default to send to every session */
+	private static final ExecutorService DEFAULT_EXECUTOR =
+			Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "socket-sender");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** The executor used to send to every session */
+	private static volatile Executor sendExecutor = DEFAULT_EXECUTOR;
+
+	/** The connection's session */
+	private Session session;
+
+	/** The client connected */
+	private Client client;
+
+	/** The buffer used to send frame keys */
+	private final ByteBuffer keyBuffer = ByteBuffer.allocate(KEY_LENGTH);
+
+	/** The replies waiting to be sent, oldest first */
+	private final ConcurrentLinkedQueue<String> pendingText =
+			new ConcurrentLinkedQueue<String>();
+
+	/** Whether a flush has been scheduled and not yet started */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	/** The highest priority sequence number sent over this connection */
+	private long highestPrioritySent = 0;
+
+	/** Whether the connection has been closed */
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Attaches a new connection to its client.
+	 * <p>
+	 * The connection is closed if the client's version is not permitted,
+	 * or if the client's ID is not valid.
+	 * </p>
+	 * @param session - the connection's session
+	 */
+	@OnOpen
+	public void open(Session session) throws IOException {
+		this.session = session;
+
+		Map<String, List<String>> parameters =
+				session.getRequestParameterMap();
+
+		// Check the client's version
+		if (!Server.isVersionPermitted(getParameter(parameters, "agent"))) {
+			session.close(new CloseReason(
+					CloseReason.CloseCodes.VIOLATED_POLICY, "INVALID_VERSION"));
+			return;
+		}
+
+		// Find the client
+		try {
+			client = Server.getClientFromID(
+					Long.parseLong(getParameter(parameters, "id")));
+		} catch (NumberFormatException e) {
+			client = null;
+		}
+
+		if (client == null) {
+			session.close(new CloseReason(
+					CloseReason.CloseCodes.CANNOT_ACCEPT, "INVALID_CLIENT"));
+			return;
+		}
+
+		client.updateLastConnectionTime();
+		client.addFrameListener(this);
+		client.addMessageListener(this);
+		Server.print("Client " + client.getID() + " opened a socket");
+
+		// Send anything which arrived before the connection was opened
+		scheduleFlush();
+	}
+
+	/**
+	 * Writes a frame received from the client to its partner.
+	 * @param data - the key, followed by the frame's data
+	 */
+	@OnMessage
+	public void receiveFrame(ByteBuffer data) throws IOException {
+		if (client == null || data.remaining() < KEY_LENGTH) {
+			return;
+		}
+
+		client.updateLastConnectionTime();
+		Client partner = client.getPartner();
+
+		if (partner == null) {
+			return;
+		}
+
+		// Copy the message into a frame
+		long key = data.getLong();
+		int length = data.remaining();
+		Frame frame = FramePool.acquire(length);
+		data.get(frame.getBuffer(), 0, length);
+		frame.setKey(key);
+		frame.setRegion(0, length);
+
+		// Tell the client to back off if its partner's priority queue is full
+		if (!partner.writeFrame(frame)) {
+			queueText(BACKPRESSURE);
+		}
+	}
+
+	/**
+	 * Handles instructions received from the client.
+	 * @param instruction - the instruction(s) to handle
+	 */
+	@OnMessage
+	public void receiveInstruction(String instruction) throws IOException {
+		if (client == null) {
+			return;
+		}
+
+		client.updateLastConnectionTime();
+		Server.print("Client " + client.getID()
+				+ " sent instruction: " + instruction);
+
+		String responseMessage = InstructionHandler
+				.handleInstruction(client, instruction);
+
+		if (!responseMessage.equals("")) {
+			queueText(responseMessage);
+		}
+	}
+
+	/**
+	 * Detaches a closed connection from its client.
+	 */
+	@OnClose
+	public void close() {
+		closed = true;
+
+		if (client != null) {
+			client.removeFrameListener(this);
+			client.removeMessageListener(this);
+			Server.print("Client " + client.getID() + " closed a socket");
+		}
+	}
+
+	/**
+	 * Reports an error on the connection.
+	 * @param error - the error which occurred
+	 */
+	@OnError
+	public void error(Throwable error) {
+		Server.print(new Exception(error));
+	}
+
+
+	@Override
+	public void frameWritten(Client client) {
+		scheduleFlush();
+	}
+
+	@Override
+	public void messageWritten(Client client) {
+		scheduleFlush();
+	}
+
+	/**
+	 * Sets the executor used to send to every session.
+	 * @param executor - the executor to use, or <code>null</code> to use
+	 * 					the default executor
+	 */
+	public static void setExecutor(Executor executor) {
+		sendExecutor = (executor == null) ? DEFAULT_EXECUTOR : executor;
+	}
+
+
+	/**
+	 * Queues a reply to be sent to the client.
+	 * @param text - the text to send
+	 */
+	private void queueText(String text) {
+		pendingText.add(text);
+		scheduleFlush();
+	}
+
+	/**
+	 * Schedules everything waiting to be sent on a sender thread.
+	 */
+	private void scheduleFlush() {
+		if (!closed && flushScheduled.compareAndSet(false, true)) {
+			sendExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends the replies, frames and messages waiting to be sent.
+	 */
+	private synchronized void flush() {
+		if (closed || client == null) {
+			return;
+		}
+
+		try {
+			String text;
+			while ((text = pendingText.poll()) != null) {
+				sendText(text);
+			}
+
+			sendPriorityFrames();
+
+			// Send every frame waiting
+			Frame frame;
+			while ((frame = client.readLatestFrame()) != null) {
+				try {
+					sendFrame(frame);
+				} finally {
+					FramePool.release(frame);
+				}
+			}
+
+			String messages = client.readMessages();
+			if (!messages.equals("")) {
+				sendText(messages);
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+	/**
+	 * Sends the priority frames in the client's priority channel which
+	 * have not yet been sent over this connection.
+	 * <p>
+	 * Frames sent are kept in the channel until the client acknowledges
+	 * them, so they are sent again by the data servlet if the connection
+	 * is lost.
+	 * </p>
+	 * @throws IOException if the frames could not be sent
+	 */
+	private void sendPriorityFrames() throws IOException {
+		PriorityChannel channel = client.getPriorityChannel();
+		if (channel == null) {
+			return;
+		}
+
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+
+		try {
+			long sequence = channel.read(frames, Server.priorityWindowSize);
+			if (sequence < 0) {
+				return;
+			}
+
+			// Skip the frames which have already been sent
+			int first = (int) Math.max(0, Math.min(frames.size(),
+					highestPrioritySent + 1 - sequence));
+			if (first == frames.size()) {
+				return;
+			}
+
+			sendText("PRIORITY_SEQ" + InstructionHandler.DELIM
+					+ (sequence + first));
+
+			for (int i = first; i < frames.size(); i++) {
+				sendFrame(frames.get(i));
+				highestPrioritySent = sequence + i;
+			}
+		} finally {
+			for (Frame frame : frames) {
+				FramePool.release(frame);
+			}
+		}
+	}
+
+	/**
+	 * Sends a frame to the client.
+	 * <p>
+	 * The key and the frame's data are sent as two parts of one message,
+	 * so that the frame's data does not need to be copied.
+	 * </p>
+	 * @param frame - the frame to send
+	 * @throws IOException if the frame could not be sent
+	 */
+	private void sendFrame(Frame frame) throws IOException {
+		RemoteEndpoint.Basic remote = session.getBasicRemote();
+
+		keyBuffer.clear();
+		keyBuffer.putLong(frame.getKey());
+		keyBuffer.flip();
+
+		remote.sendBinary(keyBuffer, false);
+		remote.sendBinary(ByteBuffer.wrap(frame.getBuffer(),
+				frame.getOffset(), frame.getLength()), true);
+	}
+
+	/**
+	 * Sends a text message to the client.
+	 * @param text - the text to send
+	 * @throws IOException if the text could not be sent
+	 */
+	private void sendText(String text) throws IOException {
+		session.getBasicRemote().sendText(text);
+	}
+
+	/**
+	 * Gets the first value of a request parameter.
+	 * @param parameters - the request parameters
+	 * @param name - the name of the parameter to get
+	 * @return the parameter's value, or <code>null</code> if it was
+	 * 			not supplied
+	 */
+	private static String getParameter(Map<String, List<String>> parameters,
+			String name) {
+		List<String> values = parameters.get(name);
+
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+}
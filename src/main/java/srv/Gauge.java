@@ -0,0 +1,19 @@
+package srv;
+
+/**
+ * Measures a value which can go up as well as down, such as the number
+ * of clients connected.
+ * <p>
+ * Gauges are registered with {@link Metrics#registerGauge}, and are only
+ * read when the metrics are reported, so may obtain locks.
+ * </p>
+ */
+public interface Gauge {
+
+	/**
+	 * Measures the gauge's current value.
+	 * @return the current value
+	 */
+	public long getValue();
+
+}
@@ -0,0 +1,131 @@
+package srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies.
+ * <p>
+ * Values are counted in buckets whose upper bounds are powers of two
+ * (1, 2, 4, ... 2<sup>{@link #BUCKETS} - 2</sup>), with a final bucket
+ * for any larger values. Recording a value never obtains a lock.
+ * </p>
+ */
+public class Histogram {
+
+	/** The number of buckets, including the final unbounded bucket */
+	public static final int BUCKETS = 32;
+
+	/** The number of values in each bucket */
+	private final AtomicLongArray buckets;
+
+	/** The number of values recorded */
+	private final AtomicLong count;
+
+	/** The sum of the values recorded */
+	private final AtomicLong sum;
+
+
+	/**
+	 * Creates a new, empty, histogram.
+	 */
+	public Histogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+	}
+
+
+	/**
+	 * Records a value.
+	 * @param value - the value to record (negative values are recorded
+	 * 					as zero)
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+
+		buckets.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the sum of the values recorded.
+	 * @return the sum of the values recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Gets the number of values recorded in a bucket.
+	 * @param bucket - the index of the bucket
+	 * @return the number of values in the bucket
+	 */
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/**
+	 * Estimates a percentile of the values recorded.
+	 * @param percentile - the percentile to estimate (between 0 and 100)
+	 * @return the upper bound of the bucket containing the percentile,
+	 * 			or <code>0</code> if no values have been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+
+			if (seen >= target) {
+				return getUpperBound(i);
+			}
+		}
+
+		return getUpperBound(BUCKETS - 1);
+	}
+
+
+	/**
+	 * Gets the upper bound of a bucket.
+	 * @param bucket - the index of the bucket
+	 * @return the largest value counted in the bucket, or
+	 * 			<code>Long.MAX_VALUE</code> for the final bucket
+	 */
+	public static long getUpperBound(int bucket) {
+		return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket);
+	}
+
+	/**
+	 * Gets the bucket a value is counted in.
+	 * @param value - the (non-negative) value
+	 * @return the index of the bucket
+	 */
+	private static int getBucket(long value) {
+		if (value <= 1) {
+			return 0;
+		}
+
+		// The smallest power of two which is at least the value
+		int bucket = 64 - Long.numberOfLeadingZeros(value - 1);
+
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+}
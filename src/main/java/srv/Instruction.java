@@ -0,0 +1,30 @@
+package srv;
+
+/**
+ * An instruction which can be sent by clients.
+ * <p>
+ * Instructions are registered with an {@link InstructionTable}, and are
+ * looked up by name when {@link InstructionHandler} handles them.
+ * </p>
+ */
+public interface Instruction {
+
+	/**
+	 * Gets the instruction's name, as sent by clients.
+	 * @return the instruction's name
+	 */
+	public String getName();
+
+	/**
+	 * Handles the instruction.
+	 * @param client - the client the instruction was sent by (or
+	 * 					<code>null</code> if the client is not valid)
+	 * @param parameters - the parameters accompanying the instruction, or
+	 * 						<code>null</code> if there were none
+	 * @param response - the writer to append the message to send back to
+	 * 					the client to
+	 */
+	public void handle(Client client, String parameters,
+			ResponseWriter response);
+
+}
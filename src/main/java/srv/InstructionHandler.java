@@ -1,5 +1,8 @@
 package srv;
 
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
 /**
  * Handles instructions.
  * <p>
@@ -14,6 +17,14 @@ package srv;
  * handled sequentially, in the order they appear in the
  * string.
  * </p>
+ * <p>
+ * Besides the built-in instructions, further instructions can be added
+ * with {@link #registerInstruction(Instruction)}, or by listing their
+ * classes in a META-INF/services/srv.Instruction file, from which they
+ * are registered when this class is loaded. The calls to each
+ * instruction, the errors thrown by its handler and the time its handler
+ * takes are recorded in {@link Metrics}.
+ * </p>
  */
 public abstract class InstructionHandler {
 	
@@ -23,6 +34,130 @@ public abstract class InstructionHandler {
 	/** The instruction delimiter */
 	public static final String DELIM = ":";
 	
+	/** The instruction list delimiter, as a character */
+	private static final char LIST_DELIM_CHAR = ';';
+	
+	/** The instruction delimiter, as a character */
+	private static final char DELIM_CHAR = ':';
+	
+	
+	/** The instructions which can be handled */
+	private static final InstructionTable instructions =
+			new InstructionTable();
+	
+	static {
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "GET_OPEN_CONNECTIONS";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				handleGetOpenConnections(client, response);
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "GET_HIGH_SCORES";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				handleGetHighScores(client, response);
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "JOIN";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				response.append(handleJoin(client, parameters));
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "GAME_OVER";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				response.append(handleGameOver(client, parameters));
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "END_GAME";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				response.append(handleEndGame(client));
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "GET_UDP_TOKEN";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				response.append(handleGetUdpToken(client));
+			}
+		});
+		
+		registerInstruction(new Instruction() {
+			@Override
+			public String getName() {
+				return "ACK_PRIORITY";
+			}
+			
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter response) {
+				response.append(handleAckPriority(client, parameters));
+			}
+		});
+		
+		// Register any instructions provided by plug-ins
+		try {
+			for (Instruction instruction
+					: ServiceLoader.load(Instruction.class)) {
+				registerInstruction(instruction);
+			}
+		} catch (ServiceConfigurationError e) {
+			Server.print(new Exception(e));
+		}
+	}
+	
+	
+	/**
+	 * Registers an instruction, replacing any instruction with the
+	 * same name.
+	 * @param instruction - the instruction to register
+	 */
+	public static void registerInstruction(Instruction instruction) {
+		instructions.register(new MeteredInstruction(instruction));
+	}
+	
 	
 	/**
 	 * Handles instructions.
@@ -36,30 +171,66 @@ public abstract class InstructionHandler {
 	 */
 	public static String handleInstruction(Client client,
 			String instruction) {
-		String response = "";
+		ResponseWriter response = new ResponseWriter();
+		handleInstruction(client, instruction, response);
 		
-		if (instruction != null) {
-			// Split the instruction string into individual instructions
-			String[] instructionList = instruction.split(LIST_DELIM);
-
-			// Check that there is at least one instruction
-			if (instructionList != null) {
-				if (instructionList.length > 0) {
-					// Loop through the instructions, handling them
-					// sequentially
-					for (String instr : instructionList) {
-						if (!response.equals("")) {
-							response += LIST_DELIM;
-						}
-						
-						response += handleIndividualInstruction(
-								client, instr);
-					}
-				}
-			}
+		return response.toString();
+	}
+	
+	/**
+	 * Handles instructions, appending the responses to a writer.
+	 * <p>
+	 * Takes a semicolon-delimited list of instructions and
+	 * processes them sequentially.
+	 * </p>
+	 * <p>
+	 * The string is walked once, by index, so no arrays or substrings are
+	 * created before each instruction's handler runs (other than for the
+	 * instruction's parameters, if it has any). Empty instructions at the
+	 * end of the list are ignored. Each handler appends its response to
+	 * the writer directly, so the responses are never copied into a list.
+	 * </p>
+	 * @param client - the client the instruction was sent by
+	 * @param instruction - the instruction(s) to handle
+	 * @param response - the writer to append the message to send back to
+	 * 					the client to
+	 */
+	public static void handleInstruction(Client client, String instruction,
+			ResponseWriter response) {
+		if (instruction == null) {
+			return;
+		}
+		
+		// Ignore any trailing delimiters
+		int end = instruction.length();
+		while (end > 0 && instruction.charAt(end - 1) == LIST_DELIM_CHAR) {
+			end--;
 		}
 		
-		return response;
+		int responseStart = response.length();
+		int start = 0;
+		
+		// Handle each instruction in turn
+		while (true) {
+			int next = instruction.indexOf(LIST_DELIM_CHAR, start);
+			if (next < 0 || next > end) {
+				next = end;
+			}
+			
+			// Separate the instruction's response from the previous ones
+			if (start > 0 && response.length() > responseStart) {
+				response.append(LIST_DELIM_CHAR);
+			}
+			
+			handleIndividualInstruction(client, instruction, start, next,
+					response);
+			
+			if (next >= end) {
+				break;
+			}
+			
+			start = next + 1;
+		}
 	}
 	
 	/**
@@ -67,49 +238,39 @@ public abstract class InstructionHandler {
 	 * <p>
 	 * Breaks an instruction down into an instruction part
 	 * and a parameter part, and passes these to the
-	 * appropriate method (as specified in the instruction
-	 * part.
+	 * appropriate handler (as specified in the instruction
+	 * part).
 	 * </p>
 	 * @param client - the client the instruction was sent by
-	 * @param instruction - the instruction to handle
-	 * @return the message to send back to the client
+	 * @param instructionList - the string containing the instruction
+	 * @param start - the index of the instruction's first character
+	 * @param end - the index after the instruction's last character
+	 * @param response - the writer to append the message to send back to
+	 * 					the client to
 	 */
-	private static String handleIndividualInstruction(Client client,
-			String instruction) {
-		String response = "";
-		
-		// Get the instruction
-		String instr = instruction.split(DELIM)[0];
+	private static void handleIndividualInstruction(Client client,
+			String instructionList, int start, int end,
+			ResponseWriter response) {
+		// Find the end of the instruction's name
+		int delim = instructionList.indexOf(DELIM_CHAR, start);
+		if (delim < 0 || delim > end) {
+			delim = end;
+		}
 		
 		// Return immediately if the instruction is invalid
-		if (instr == null) return "";
+		Instruction instruction = instructions.find(instructionList,
+				start, delim);
+		if (instruction == null) {
+			return;
+		}
 		
 		// Check if the received data has parameters
 		String parameters = null;
-		if (instruction != null && instruction.contains(DELIM)) {
-			parameters = instruction.substring(instruction.indexOf(DELIM) + 1);
+		if (delim < end) {
+			parameters = instructionList.substring(delim + 1, end);
 		}
 		
-		// Otherwise, switch to the appropriate method
-		switch (instr) {
-		case "GET_OPEN_CONNECTIONS":
-			response = handleGetOpenConnections(client);
-			break;
-		case "GET_HIGH_SCORES":
-			response = handleGetHighScores(client);
-			break;
-		case "JOIN":
-			response = handleJoin(client, parameters);
-			break;
-		case "GAME_OVER":
-			response = handleGameOver(client, parameters);
-			break;
-		case "END_GAME":
-			response = handleEndGame(client);
-			break;
-		}
-		
-		return response;
+		instruction.handle(client, parameters, response);
 	}
 	
 	
@@ -124,26 +285,19 @@ public abstract class InstructionHandler {
 	 * If no connections are available, "NO CONNECTIONS" will be returned.
 	 * </p>
 	 * @param client - the client sending the instruction
-	 * @return the message to send back to the client
+	 * @param response - the writer to append the message to send back to
+	 * 					the client to
 	 */
-	private static String handleGetOpenConnections(Client client) {
+	private static void handleGetOpenConnections(Client client,
+			ResponseWriter response) {
 		if (client != null) {
-			// Obtain a lock on the client array
-			synchronized (Server.getClients()) {
-				String response = "";
-
-				// Find the clients which are searching for partner
-				response += Server.collapseAvailableHosts(
-						Server.maxConnections, client);
-
-				if (response.equals("")) {
-					return "NO_CONNECTIONS";
-				} else {
-					return response;
-				}
+			// Find the clients which are searching for partner
+			if (!Server.writeAvailableHosts(Server.maxConnections, client,
+					response)) {
+				response.append("NO_CONNECTIONS");
 			}
 		} else {
-			return "INVALID_CLIENT";
+			response.append("INVALID_CLIENT");
 		}
 	}
 	
@@ -157,25 +311,18 @@ public abstract class InstructionHandler {
 	 * The highest 15 scores will be returned.
 	 * </p>
 	 * @param client - the client sending the instruction
-	 * @return the message to send back to the client
+	 * @param response - the writer to append the message to send back to
+	 * 					the client to
 	 */
-	private static String handleGetHighScores(Client client) {
+	private static void handleGetHighScores(Client client,
+			ResponseWriter response) {
 		if (client != null) {
-			// Obtain a lock on the list of high scores
-			synchronized (Server.getHighScores()) {
-				String response = "";
-
-				// Get a collapsed list of the high scores
-				response += Server.collapseHighScores(Server.maxConnections);
-
-				if (response.equals("")) {
-					return "NO_HIGH_SCORES";
-				} else {
-					return response;
-				}
+			// Write a collapsed list of the high scores
+			if (!Server.writeHighScores(Server.maxConnections, response)) {
+				response.append("NO_HIGH_SCORES");
 			}
 		} else {
-			return "INVALID_CLIENT";
+			response.append("INVALID_CLIENT");
 		}
 	}
 	
@@ -229,6 +376,9 @@ public abstract class InstructionHandler {
 					clientToConnectTo.writeMessage("START_GAME:"
 							+ clientToConnectTo.getPosition());
 
+					// The host is no longer available
+					Server.fireLobbyChanged();
+
 					return response;
 				} else {
 					return "INVALID_PARTNER";
@@ -314,6 +464,54 @@ public abstract class InstructionHandler {
 		}
 	}
 	
+	/**
+	 * Handles a GET_UDP_TOKEN instruction.
+	 * <p>
+	 * GET_UDP_TOKEN instructions cause the server to reply with the token
+	 * the client must include in the packets it sends to the UDP frame
+	 * server, in the form UDP_TOKEN:'TOKEN'.
+	 * </p>
+	 * @param client - the client sending the instruction
+	 * @return the message to send back to the client
+	 */
+	private static String handleGetUdpToken(Client client) {
+		if (client != null) {
+			return "UDP_TOKEN" + DELIM + client.getUdpToken();
+		} else {
+			return "INVALID_CLIENT";
+		}
+	}
+	
+	/**
+	 * Handles an ACK_PRIORITY instruction.
+	 * <p>
+	 * ACK_PRIORITY:'SEQUENCE' instructions acknowledge every priority
+	 * frame up to, and including, the sequence number given, as the
+	 * fh-client-priority-ack header does for the data servlet. The first
+	 * acknowledgement starts delivering the client's priority frames
+	 * reliably. Nothing is sent back unless the instruction is invalid.
+	 * </p>
+	 * @param client - the client sending the instruction
+	 * @param parameters - the sequence number acknowledged
+	 * @return the message to send back to the client
+	 */
+	private static String handleAckPriority(Client client,
+			String parameters) {
+		if (client == null) {
+			return "INVALID_CLIENT";
+		}
+		
+		try {
+			long sequence = Long.parseLong(parameters);
+			client.enablePriorityAcks();
+			client.getPriorityChannel().acknowledge(sequence);
+			
+			return "";
+		} catch (NumberFormatException e) {
+			return "INVALID_SEQUENCE";
+		}
+	}
+	
 	/**
 	 * Handles a END_GAME instruction.
 	 * <p>
@@ -337,4 +535,64 @@ public abstract class InstructionHandler {
 		}
 	}
 	
+	
+	/**
+	 * Records metrics for each call to an instruction.
+	 */
+	private static class MeteredInstruction implements Instruction {
+		
+		/** The instruction being measured */
+		private final Instruction instruction;
+		
+		/** The name of the counter used to record calls */
+		private final String callsMetric;
+		
+		/** The name of the counter used to record errors */
+		private final String errorsMetric;
+		
+		/** The name of the histogram used to record latencies */
+		private final String latencyMetric;
+		
+		
+		/**
+		 * Creates a new metered instruction.
+		 * @param instruction - the instruction to measure
+		 */
+		public MeteredInstruction(Instruction instruction) {
+			String name = instruction.getName();
+			
+			this.instruction = instruction;
+			this.callsMetric = Metrics.labelled(Metrics.INSTRUCTION_CALLS,
+					"instruction", name);
+			this.errorsMetric = Metrics.labelled(Metrics.INSTRUCTION_ERRORS,
+					"instruction", name);
+			this.latencyMetric = Metrics.labelled(
+					Metrics.INSTRUCTION_LATENCY, "instruction", name);
+		}
+		
+		
+		@Override
+		public String getName() {
+			return instruction.getName();
+		}
+		
+		@Override
+		public void handle(Client client, String parameters,
+				ResponseWriter response) {
+			long startTime = System.nanoTime();
+			Metrics.increment(callsMetric);
+			
+			try {
+				instruction.handle(client, parameters, response);
+			} catch (RuntimeException e) {
+				Metrics.increment(errorsMetric);
+				throw e;
+			} finally {
+				Metrics.record(latencyMetric,
+						(System.nanoTime() - startTime) / 1000);
+			}
+		}
+		
+	}
+	
 }
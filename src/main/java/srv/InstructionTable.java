@@ -0,0 +1,143 @@
+package srv;
+
+/**
+ * A table of instructions, keyed by name.
+ * <p>
+ * Instructions can be found by a region of a larger string (such as a
+ * list of instructions sent by a client) without creating a substring,
+ * as the region's hash is computed in place and compared against each
+ * name with {@link String#regionMatches(int, String, int, int)}.
+ * </p>
+ * <p>
+ * The table is rebuilt whenever an instruction is registered, so lookups
+ * never need to obtain a lock.
+ * </p>
+ */
+public class InstructionTable {
+
+	/** The instructions, in an open-addressed hash table */
+	private volatile Instruction[] slots;
+
+	/** The number of instructions registered */
+	private int size;
+
+
+	/**
+	 * Creates a new, empty, instruction table.
+	 */
+	public InstructionTable() {
+		this.slots = new Instruction[8];
+		this.size = 0;
+	}
+
+
+	/**
+	 * Registers an instruction, replacing any instruction with the
+	 * same name.
+	 * @param instruction - the instruction to register
+	 */
+	public synchronized void register(Instruction instruction) {
+		Instruction[] current = slots;
+		int capacity = current.length;
+
+		// Keep the table at most half full
+		if ((size + 1) * 2 > capacity) {
+			capacity *= 2;
+		}
+
+		Instruction[] updated = new Instruction[capacity];
+		int count = 0;
+
+		for (Instruction existing : current) {
+			if (existing != null
+					&& !existing.getName().equals(instruction.getName())) {
+				insert(updated, existing);
+				count++;
+			}
+		}
+
+		insert(updated, instruction);
+		size = count + 1;
+		slots = updated;
+	}
+
+	/**
+	 * Finds the instruction whose name is a region of a string.
+	 * @param string - the string containing the name
+	 * @param start - the index of the name's first character
+	 * @param end - the index after the name's last character
+	 * @return the instruction, or <code>null</code> if no instruction
+	 * 			has the name given
+	 */
+	public Instruction find(String string, int start, int end) {
+		Instruction[] table = slots;
+		int length = end - start;
+		int mask = table.length - 1;
+
+		// Compute the name's hash as String.hashCode would
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + string.charAt(i);
+		}
+
+		for (int index = spread(hash) & mask; ; index = (index + 1) & mask) {
+			Instruction instruction = table[index];
+
+			if (instruction == null) {
+				return null;
+			}
+
+			String name = instruction.getName();
+			if (name.length() == length
+					&& string.regionMatches(start, name, 0, length)) {
+				return instruction;
+			}
+		}
+	}
+
+	/**
+	 * Finds the instruction with the name given.
+	 * @param name - the instruction's name
+	 * @return the instruction, or <code>null</code> if no instruction
+	 * 			has the name given
+	 */
+	public Instruction find(String name) {
+		return find(name, 0, name.length());
+	}
+
+	/**
+	 * Gets the number of instructions registered.
+	 * @return the number of instructions
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+
+	/**
+	 * Adds an instruction to a table, which must have a free slot.
+	 * @param table - the table to add the instruction to
+	 * @param instruction - the instruction to add
+	 */
+	private static void insert(Instruction[] table, Instruction instruction) {
+		int mask = table.length - 1;
+		int index = spread(instruction.getName().hashCode()) & mask;
+
+		while (table[index] != null) {
+			index = (index + 1) & mask;
+		}
+
+		table[index] = instruction;
+	}
+
+	/**
+	 * Mixes the high bits of a hash into the low bits, which are used to
+	 * choose a slot.
+	 * @param hash - the hash to mix
+	 * @return the mixed hash
+	 */
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+}
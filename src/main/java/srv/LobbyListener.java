@@ -0,0 +1,19 @@
+package srv;
+
+/**
+ * Receives notifications when the list of available hosts may have
+ * changed.
+ * <p>
+ * Listeners are registered with {@link Server#addLobbyListener}, and
+ * may be called while the client array is locked, so should return
+ * quickly.
+ * </p>
+ */
+public interface LobbyListener {
+
+	/**
+	 * Called after a host has appeared, disappeared or been joined.
+	 */
+	public void lobbyChanged();
+
+}
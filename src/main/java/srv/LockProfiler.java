@@ -0,0 +1,374 @@
+package srv;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures contention on the server's shared monitors, by sampling the
+ * state of every thread.
+ * <p>
+ * On each sample, the monitors given by {@link Server#getMonitors()}
+ * are looked for in the threads' locked monitors (to find the call site
+ * holding each monitor), and in the monitors which blocked threads are
+ * waiting for. Each sample is taken to last for the sampling interval,
+ * so the times recorded are estimates, which become more accurate as
+ * more samples are taken.
+ * </p>
+ * <p>
+ * For each monitor, and each call site which held it, the profiler
+ * records the time the monitor was held, and the time other threads
+ * spent waiting for it. Sampling is off by default, as each sample
+ * reads the stack of every thread.
+ * </p>
+ */
+public abstract class LockProfiler {
+
+	/** The shortest time (in ms) allowed between samples */
+	public static final int MIN_INTERVAL = 50;
+
+	/** The call site recorded when a monitor's holder is not known */
+	private static final String UNKNOWN_SITE = "unknown";
+
+	/** The bean used to read the state of each thread */
+	private static final ThreadMXBean threadBean =
+			ManagementFactory.getThreadMXBean();
+
+	/** The contention recorded for each monitor, indexed by name */
+	private static final ConcurrentHashMap<String, LockStats> lockStats =
+			new ConcurrentHashMap<String, LockStats>();
+
+	/** The timer which takes samples */
+	private static Timer sampleTimer = null;
+
+	/** A mutex to protect the sample timer */
+	private static final Object sampleTimerMutex = new Object();
+
+
+	/**
+	 * Starts sampling the server's monitors.
+	 * <p>
+	 * Any sampling already running is stopped first. Intervals shorter
+	 * than {@link #MIN_INTERVAL} are lengthened to it, as each sample
+	 * pauses every thread.
+	 * </p>
+	 * @param interval - the time (in ms) between samples
+	 */
+	public static void start(long interval) {
+		final long sampleInterval = Math.max(MIN_INTERVAL, interval);
+
+		// Obtain a lock on the sample timer mutex
+		synchronized (sampleTimerMutex) {
+			stop();
+
+			sampleTimer = new Timer("lock-profiler", true);
+			sampleTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					sample(sampleInterval);
+				}
+			}, sampleInterval, sampleInterval);
+		}
+	}
+
+	/**
+	 * Stops sampling the server's monitors.
+	 * <p>
+	 * The contention recorded so far is kept.
+	 * </p>
+	 */
+	public static void stop() {
+		// Obtain a lock on the sample timer mutex
+		synchronized (sampleTimerMutex) {
+			if (sampleTimer != null) {
+				sampleTimer.cancel();
+				sampleTimer = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the server's monitors are being sampled.
+	 * @return <code>true</code> if sampling is running,
+	 * 			otherwise <code>false</code>
+	 */
+	public static boolean isRunning() {
+		// Obtain a lock on the sample timer mutex
+		synchronized (sampleTimerMutex) {
+			return sampleTimer != null;
+		}
+	}
+
+	/**
+	 * Takes a single sample of the server's monitors.
+	 * @param interval - the time (in ms) the sample is taken to last
+	 */
+	public static void sample(long interval) {
+		// Index the monitors by identity hash code, so that they can be
+		// matched against the lock information of each thread
+		HashMap<Integer, String> names = new HashMap<Integer, String>();
+		HashMap<String, String> classNames = new HashMap<String, String>();
+
+		for (Entry<String, Object> monitor : Server.getMonitors().entrySet()) {
+			names.put(System.identityHashCode(monitor.getValue()),
+					monitor.getKey());
+			classNames.put(monitor.getKey(),
+					monitor.getValue().getClass().getName());
+		}
+
+		ThreadInfo[] threads = threadBean.dumpAllThreads(
+				threadBean.isObjectMonitorUsageSupported(), false);
+
+		// Find the call site holding each monitor (the outermost frame
+		// which locked it, as the monitor may be locked re-entrantly)
+		HashMap<String, String> holders = new HashMap<String, String>();
+		HashMap<String, Integer> holderDepths = new HashMap<String, Integer>();
+
+		for (ThreadInfo thread : threads) {
+			if (thread == null) {
+				continue;
+			}
+
+			for (MonitorInfo monitor : thread.getLockedMonitors()) {
+				String name = getName(monitor, names, classNames);
+				Integer depth = holderDepths.get(name);
+
+				if (name != null && (depth == null
+						|| monitor.getLockedStackDepth() > depth)) {
+					holders.put(name, getSite(monitor.getLockedStackFrame()));
+					holderDepths.put(name, monitor.getLockedStackDepth());
+				}
+			}
+		}
+
+		// Count the threads waiting for each monitor
+		HashMap<String, Integer> waiters = new HashMap<String, Integer>();
+
+		for (ThreadInfo thread : threads) {
+			if (thread == null || thread.getThreadState()
+					!= Thread.State.BLOCKED) {
+				continue;
+			}
+
+			String name = getName(thread.getLockInfo(), names, classNames);
+			if (name != null) {
+				Integer count = waiters.get(name);
+				waiters.put(name, (count == null) ? 1 : count + 1);
+			}
+		}
+
+		// Charge the time held, and the time waited, to the holder
+		for (String name : names.values()) {
+			String holder = holders.get(name);
+			Integer waiting = waiters.get(name);
+
+			if (holder == null && waiting == null) {
+				continue;
+			}
+
+			getStats(name).record((holder == null) ? UNKNOWN_SITE : holder,
+					(holder == null) ? 0 : interval,
+					(waiting == null) ? 0 : waiting * interval);
+		}
+	}
+
+	/**
+	 * Gets the contention recorded for each monitor.
+	 * @return the contention recorded, in order of monitor name
+	 */
+	public static List<LockStats> getStats() {
+		return new ArrayList<LockStats>(
+				new TreeMap<String, LockStats>(lockStats).values());
+	}
+
+	/**
+	 * Discards the contention recorded so far.
+	 */
+	public static void clear() {
+		lockStats.clear();
+	}
+
+
+	/**
+	 * Finds which of the server's monitors a lock is.
+	 * @param lock - the lock to look for
+	 * @param names - the names of the monitors, indexed by identity
+	 * 					hash code
+	 * @param classNames - the class names of the monitors, indexed by name
+	 * @return the monitor's name, or <code>null</code> if the lock is not
+	 * 			one of the server's monitors
+	 */
+	private static String getName(LockInfo lock, Map<Integer, String> names,
+			Map<String, String> classNames) {
+		if (lock == null) {
+			return null;
+		}
+
+		String name = names.get(lock.getIdentityHashCode());
+
+		if (name == null || !classNames.get(name).equals(lock.getClassName())) {
+			return null;
+		}
+
+		return name;
+	}
+
+	/**
+	 * Describes the call site of a stack frame.
+	 * @param frame - the stack frame
+	 * @return the call site, of the form class.method:line
+	 */
+	private static String getSite(StackTraceElement frame) {
+		if (frame == null) {
+			return UNKNOWN_SITE;
+		}
+
+		return frame.getClassName() + "." + frame.getMethodName() + ":"
+				+ frame.getLineNumber();
+	}
+
+	/**
+	 * Gets the contention recorded for a monitor, creating it if it
+	 * does not exist.
+	 * @param name - the name of the monitor
+	 * @return the contention recorded for the monitor
+	 */
+	private static LockStats getStats(String name) {
+		LockStats stats = lockStats.get(name);
+
+		if (stats == null) {
+			// Create the stats, unless another thread has already done so
+			LockStats newStats = new LockStats(name);
+			stats = lockStats.putIfAbsent(name, newStats);
+
+			if (stats == null) {
+				stats = newStats;
+			}
+		}
+
+		return stats;
+	}
+
+
+	/**
+	 * The contention recorded for a single monitor, or a single call
+	 * site holding a monitor.
+	 */
+	public static class LockStats {
+
+		/** The name of the monitor, or the call site */
+		private final String name;
+
+		/** The time (in ms) the monitor was held */
+		private final AtomicLong heldTime;
+
+		/** The time (in ms) threads spent waiting for the monitor */
+		private final AtomicLong waitTime;
+
+		/** The contention recorded for each call site, indexed by site */
+		private final ConcurrentHashMap<String, LockStats> sites;
+
+
+		/**
+		 * Creates a new, empty, record of contention.
+		 * @param name - the name of the monitor, or the call site
+		 */
+		public LockStats(String name) {
+			this.name = name;
+			this.heldTime = new AtomicLong();
+			this.waitTime = new AtomicLong();
+			this.sites = new ConcurrentHashMap<String, LockStats>();
+		}
+
+
+		/**
+		 * Gets the name of the monitor, or the call site.
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the (estimated) time the monitor was held.
+		 * @return the time held, in milliseconds
+		 */
+		public long getHeldTime() {
+			return heldTime.get();
+		}
+
+		/**
+		 * Gets the (estimated) time threads spent waiting for the monitor.
+		 * @return the total time waited, in milliseconds
+		 */
+		public long getWaitTime() {
+			return waitTime.get();
+		}
+
+		/**
+		 * Gets the contention recorded for each call site which held the
+		 * monitor.
+		 * @return the contention recorded, in order of the time other
+		 * 			threads spent waiting (longest first)
+		 */
+		public List<LockStats> getCallSites() {
+			List<LockStats> callSites = new ArrayList<LockStats>(sites.values());
+
+			Collections.sort(callSites, new Comparator<LockStats>() {
+				@Override
+				public int compare(LockStats a, LockStats b) {
+					if (a.getWaitTime() != b.getWaitTime()) {
+						return (a.getWaitTime() > b.getWaitTime()) ? -1 : 1;
+					}
+
+					return (a.getHeldTime() > b.getHeldTime()) ? -1
+							: ((a.getHeldTime() == b.getHeldTime()) ? 0 : 1);
+				}
+			});
+
+			return callSites;
+		}
+
+		/**
+		 * Records a sample of the monitor.
+		 * @param site - the call site holding the monitor
+		 * @param held - the time (in ms) the monitor was held
+		 * @param waited - the time (in ms) threads spent waiting
+		 */
+		private void record(String site, long held, long waited) {
+			heldTime.addAndGet(held);
+			waitTime.addAndGet(waited);
+
+			LockStats siteStats = sites.get(site);
+
+			if (siteStats == null) {
+				// Create the stats, unless another thread has already done so
+				LockStats newStats = new LockStats(site);
+				siteStats = sites.putIfAbsent(site, newStats);
+
+				if (siteStats == null) {
+					siteStats = newStats;
+				}
+			}
+
+			siteStats.heldTime.addAndGet(held);
+			siteStats.waitTime.addAndGet(waited);
+		}
+
+	}
+
+}
@@ -0,0 +1,135 @@
+package srv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * A message request which is held open until the client has messages
+ * waiting, or until it times out.
+ * <p>
+ * The request is answered exactly once - either with the client's
+ * messages, as soon as one is written, or with INVALID_REQUEST if none
+ * arrive before the timeout.
+ * </p>
+ */
+public class LongPoll implements MessageListener, AsyncListener {
+
+	/** The context of the request being held */
+	private final AsyncContext asyncContext;
+
+	/** The client the request was sent by */
+	private final Client client;
+
+	/** The stream to write the (serialised) response to */
+	private final OutputStream outputStream;
+
+	/** Whether the request has been (or is being) answered */
+	private final AtomicBoolean answered;
+
+
+	/**
+	 * Creates a new long poll.
+	 * @param asyncContext - the context of the request to hold
+	 * @param client - the client the request was sent by
+	 * @param outputStream - the stream to write the (serialised) response
+	 * 						to
+	 */
+	public LongPoll(AsyncContext asyncContext, Client client,
+			OutputStream outputStream) {
+		this.asyncContext = asyncContext;
+		this.client = client;
+		this.outputStream = outputStream;
+		this.answered = new AtomicBoolean(false);
+	}
+
+
+	/**
+	 * Starts waiting for messages.
+	 * @param timeout - the time to wait for, in milliseconds
+	 */
+	public void start(long timeout) {
+		asyncContext.setTimeout(timeout);
+		asyncContext.addListener(this);
+		client.addMessageListener(this);
+
+		// A message may have been written before the listener was added
+		if (client.checkForMessages()) {
+			messageWritten(client);
+		}
+	}
+
+	@Override
+	public void messageWritten(Client client) {
+		if (answered.compareAndSet(false, true)) {
+			client.removeMessageListener(this);
+
+			// Respond on a container thread, rather than the writer's thread
+			asyncContext.start(new Runnable() {
+				@Override
+				public void run() {
+					respond(true);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		if (answered.compareAndSet(false, true)) {
+			client.removeMessageListener(this);
+			respond(false);
+		}
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		answered.set(true);
+		client.removeMessageListener(this);
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		client.removeMessageListener(this);
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+		//
+	}
+
+	/**
+	 * Writes a response, and completes the request.
+	 * @param readMessages - <code>true</code> to respond with the client's
+	 * 						messages, or <code>false</code> to respond with
+	 * 						INVALID_REQUEST
+	 */
+	private void respond(boolean readMessages) {
+		ResponseWriter writer = ResponseWriter.acquire();
+
+		try {
+			if (readMessages) {
+				writer.append(InstructionHandler.LIST_DELIM);
+				client.readMessages(writer);
+			} else {
+				writer.append("INVALID_REQUEST");
+			}
+
+			writer.writeTo(outputStream);
+			outputStream.flush();
+		} catch (IOException e) {
+			Server.print(e);
+		} finally {
+			writer.release();
+
+			// Waiting should not count against the client's timeout
+			client.updateLastConnectionTime();
+			asyncContext.complete();
+		}
+	}
+
+}
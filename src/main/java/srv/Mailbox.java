@@ -0,0 +1,162 @@
+package srv;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue of messages waiting to be sent to a client.
+ * <p>
+ * Messages are stored individually as they are written, and are only
+ * joined into a single string when the mailbox is drained.
+ * </p>
+ * <p>
+ * Once the mailbox is full, the oldest message is dropped to make room
+ * for each new message.
+ * </p>
+ */
+public class Mailbox {
+
+	/** The delimiter used to separate messages when draining the mailbox */
+	private final String delimiter;
+
+	/** The maximum number of messages to hold */
+	private final int capacity;
+
+	/** The messages waiting to be read */
+	private final ArrayDeque<String> messages;
+
+	/** The total length of the messages waiting to be read */
+	private int length;
+
+
+	/**
+	 * Creates a new mailbox.
+	 * @param capacity - the maximum number of messages to hold
+	 * @param delimiter - the delimiter used to separate messages
+	 */
+	public Mailbox(int capacity, String delimiter) {
+		this.capacity = Math.max(capacity, 1);
+		this.delimiter = delimiter;
+		this.messages = new ArrayDeque<String>();
+		this.length = 0;
+	}
+
+
+	/**
+	 * Adds a message to the mailbox.
+	 * @param message - the message to add
+	 * @return <code>true</code> if the message was added without dropping
+	 * 			an older message, otherwise <code>false</code>
+	 */
+	public boolean write(String message) {
+		boolean dropped = false;
+
+		// Obtain a lock on the messages
+		synchronized (messages) {
+			// Make room for the message if the mailbox is full
+			if (messages.size() >= capacity) {
+				length -= messages.removeFirst().length();
+				dropped = true;
+			}
+
+			messages.addLast(message);
+			length += message.length();
+		}
+
+		if (dropped) {
+			Metrics.increment(Metrics.MESSAGES_DROPPED);
+		}
+
+		return !dropped;
+	}
+
+	/**
+	 * Removes all messages from the mailbox.
+	 * @return the messages removed, separated by the delimiter, or an
+	 * 			empty string if the mailbox was empty
+	 */
+	public String drain() {
+		// Obtain a lock on the messages
+		synchronized (messages) {
+			if (messages.isEmpty()) {
+				return "";
+			} else if (messages.size() == 1) {
+				length = 0;
+				return messages.removeFirst();
+			}
+
+			// Join the messages into a string of exactly the right size
+			StringBuilder drained = new StringBuilder(length
+					+ (delimiter.length() * (messages.size() - 1)));
+			drained.append(messages.removeFirst());
+
+			while (!messages.isEmpty()) {
+				drained.append(delimiter).append(messages.removeFirst());
+			}
+
+			length = 0;
+			return drained.toString();
+		}
+	}
+
+	/**
+	 * Removes all messages from the mailbox, appending them to a writer.
+	 * <p>
+	 * Unlike {@link #drain()}, the messages are never joined into a
+	 * string of their own.
+	 * </p>
+	 * @param writer - the writer to append the messages to, separated by
+	 * 					the delimiter
+	 * @return <code>true</code> if any messages were appended,
+	 * 			otherwise <code>false</code>
+	 */
+	public boolean drainTo(ResponseWriter writer) {
+		// Obtain a lock on the messages
+		synchronized (messages) {
+			if (messages.isEmpty()) {
+				return false;
+			}
+
+			writer.append(messages.removeFirst());
+
+			while (!messages.isEmpty()) {
+				writer.append(delimiter).append(messages.removeFirst());
+			}
+
+			length = 0;
+			return true;
+		}
+	}
+
+
+	/**
+	 * Checks whether the mailbox is empty.
+	 * @return <code>true</code> if there are no messages waiting,
+	 * 			otherwise <code>false</code>
+	 */
+	public boolean isEmpty() {
+		// Obtain a lock on the messages
+		synchronized (messages) {
+			return messages.isEmpty();
+		}
+	}
+
+	/**
+	 * Gets the number of messages waiting.
+	 * @return the number of messages in the mailbox
+	 */
+	public int size() {
+		// Obtain a lock on the messages
+		synchronized (messages) {
+			return messages.size();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of messages the mailbox can hold.
+	 * @return the mailbox's capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+}
@@ -0,0 +1,19 @@
+package srv;
+
+/**
+ * Receives notifications when messages are written to a client.
+ * <p>
+ * Listeners are registered with {@link Client#addMessageListener}, and
+ * are called on the thread which wrote the message, so should return
+ * quickly.
+ * </p>
+ */
+public interface MessageListener {
+
+	/**
+	 * Called after a message has been written to a client's mailbox.
+	 * @param client - the client the message was written to
+	 */
+	public void messageWritten(Client client);
+
+}
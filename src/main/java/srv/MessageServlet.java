@@ -1,8 +1,7 @@
 package srv;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
@@ -26,8 +25,13 @@ import javax.servlet.http.HttpServletResponse;
  * unless SEND instruction is used (in which case the message
  * will be passed to another client).
  * </p>
+ * <p>
+ * Clients which send an fh-client-longpoll header (giving a time in
+ * milliseconds) have requests with nothing to report held open until a
+ * message is written to them, or until the time given has passed.
+ * </p>
  */
-@WebServlet("/msg")
+@WebServlet(urlPatterns = "/msg", asyncSupported = true)
 public class MessageServlet extends HttpServlet {
 
 	/** The serialisation identifier */
@@ -54,35 +58,17 @@ public class MessageServlet extends HttpServlet {
 
 	/**
 	 * Respond to HTTP POST requests.
+	 * <p>
+	 * Requests from versions which are not permitted are turned away by
+	 * the {@link VersionFilter} before they reach this servlet.
+	 * </p>
 	 * @param request - the HTTP POST request received
 	 * @param response - the response to send
 	 */
 	@Override
 	public void doPost(HttpServletRequest request,
 			HttpServletResponse response) {
-		// Obtain a lock on the permitted versions array
-		synchronized (Server.getPermittedVersions()) {
-			if (Server.getPermittedVersions()
-					.contains(request.getHeader("user-agent"))) {
-				playerPost(request, response);
-			} else {
-				standardPost(request, response);
-			}
-		}
-	}
-	
-	/**
-	 * Replies with a 404 (page not found) status code.
-	 * @param request - the HTTP POST request received
-	 * @param response - the response to send
-	 */
-	public void standardPost(HttpServletRequest request,
-			HttpServletResponse response) {
-		try {
-			response.sendError(HttpServletResponse.SC_NOT_FOUND);
-		} catch (IOException e) {
-			Server.print(e);
-		}
+		playerPost(request, response);
 	}
 	
 	/**
@@ -92,6 +78,13 @@ public class MessageServlet extends HttpServlet {
 	 */
 	public void playerPost(HttpServletRequest request,
 			HttpServletResponse response) {
+		// Refuse the request if the client is sending too many
+		String clientID = ClientHeaders.getClientID(request);
+		if (!RateLimiter.INSTRUCTIONS.admit(clientID, request, response,
+				Server.instructionRateLimit, Server.instructionBurst)) {
+			return;
+		}
+		
 		try {
 			// Set the connection's input stream
 			ServletInputStream srvInputStream = request.getInputStream();
@@ -101,10 +94,17 @@ public class MessageServlet extends HttpServlet {
 				return;
 			}
 			
-			ObjectInputStream inputStream = null;
+			// Get the data from the connection's input stream
+			Object receivedData = null;
 			try {
-				inputStream = new ObjectInputStream(srvInputStream);
-			} catch (IOException | NullPointerException e) {
+				receivedData = BodyReader.readObject(srvInputStream,
+						request.getContentLength());
+			} catch (ObjectStreamException e) {
+				// Reject the request without processing it
+				Server.print("Rejected request body: " + e.getMessage());
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			} catch (IOException e) {
 				Server.print(e);
 				return;
 			}
@@ -117,22 +117,6 @@ public class MessageServlet extends HttpServlet {
 				return;
 			}
 			
-			ObjectOutputStream outputStream = null;
-			try {
-				outputStream = new ObjectOutputStream(srvOutputStream);
-			} catch (IOException | NullPointerException e) {
-				Server.print(e);
-				return;
-			}
-
-			// Get the data from the connection's input stream
-			Object receivedData = null;
-			try {
-				receivedData = inputStream.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				Server.print(e);
-			}
-
 			// Get the message content
 			String instruction = null;
 			if (receivedData != null && receivedData instanceof String) {
@@ -140,42 +124,8 @@ public class MessageServlet extends HttpServlet {
 				instruction = (String) receivedData;
 			}
 
-			// Determine the client's ID
-			long id = -1;
-			try {
-				id = Long.parseLong(request.getHeader("fh-client-id"));
-			} catch (NumberFormatException e) {
-				Server.print(e);
-			}
-
-			// Determine the client's name
-			String name = request.getHeader("fh-client-name");
-
-			// Determine whether the client is a host
-			boolean isHost = false;
-			if (request.getHeader("fh-client-host") != null) {
-				isHost = request.getHeader("fh-client-host")
-						.contains("true");
-			}
-			
-			// Determine the client's lives
-			int lives = -1;
-			try {
-				lives = Integer.parseInt(request.getHeader("fh-client-lives"));
-			} catch (NumberFormatException e) {
-				Server.print(e);
-			}
-			
-			// Determine the client's score
-			int score = 0;
-			try {
-				score = Integer.parseInt(request.getHeader("fh-client-score"));
-			} catch (NumberFormatException e) {
-				Server.print(e);
-			}
-
 			// Get the client from the header fields supplied
-			Client client = Server.handleClient(id, name, isHost, lives, score);
+			Client client = ClientHeaders.handleClient(request, clientID);
 
 			if (instruction != null && !instruction.equals("")) {
 				if (client == null) {
@@ -187,51 +137,105 @@ public class MessageServlet extends HttpServlet {
 				}
 			}
 
-			// Handle the message
-			String responseMessage = InstructionHandler
-					.handleInstruction(client, instruction);
-
-			if (client != null) {
-				if (client.checkForMessages()) {
-					// Add any messages in the client's message string
-					responseMessage += InstructionHandler.LIST_DELIM;
-					responseMessage += client.readMessages();
+			// Build the response in this thread's response writer
+			ResponseWriter responseMessage = ResponseWriter.acquire();
+			
+			try {
+				// Handle the message
+				InstructionHandler.handleInstruction(client, instruction,
+						responseMessage);
+
+				// If there is nothing to send yet, wait for a message to
+				// arrive
+				if (client != null && responseMessage.isEmpty()
+						&& !client.checkForMessages()
+						&& request.isAsyncSupported()) {
+					long longPollTime = getLongPollTime(request);
+
+					if (longPollTime > 0) {
+						response.setHeader("fh-client-id",
+								String.valueOf(client.getID()));
+						ClientHeaders.writeSession(request, response, client);
+						new LongPoll(request.startAsync(), client,
+								srvOutputStream).start(longPollTime);
+						return;
+					}
 				}
 
-				// Add client information headers
-				response.setHeader("fh-client-id",
-						String.valueOf(client.getID()));
-			} else {
-				response.setHeader("fh-client-id",
-						String.valueOf(-1));
-			}
+				if (client != null) {
+					if (client.checkForMessages()) {
+						// Add any messages in the client's mailbox
+						responseMessage.append(InstructionHandler.LIST_DELIM);
+						client.readMessages(responseMessage);
+					}
+
+					// Add client information headers
+					response.setHeader("fh-client-id",
+							String.valueOf(client.getID()));
+					ClientHeaders.writeSession(request, response, client);
+				} else {
+					response.setHeader("fh-client-id",
+							String.valueOf(-1));
+				}
 
-			// Send a response
+				// Send a response
 
-			// If the response so far is null, respond with a message indicating
-			// that the server received an invalid message
-			if (responseMessage.equals("")) {
-				responseMessage = "INVALID_REQUEST";
-			}
+				// If the response so far is null, respond with a message
+				// indicating that the server received an invalid message
+				if (responseMessage.isEmpty()) {
+					responseMessage.append("INVALID_REQUEST");
+				}
 
-			try {
-				outputStream.writeObject(responseMessage);
-
-				if (instruction != null && !instruction.equals("")) {
-					if (client == null) {
-						Server.print("Sent response: " + responseMessage
-								+ " to client NULL");
-					} else {
-						Server.print("Sent response: " + responseMessage
-								+ " to client " + client.getID());
+				try {
+					responseMessage.writeTo(srvOutputStream);
+
+					if (instruction != null && !instruction.equals("")) {
+						if (client == null) {
+							Server.print("Sent response: " + responseMessage
+									+ " to client NULL");
+						} else {
+							Server.print("Sent response: " + responseMessage
+									+ " to client " + client.getID());
+						}
 					}
+				} catch (IOException e) {
+					Server.print(e);
 				}
-			} catch (IOException e) {
-				Server.print(e);
+			} finally {
+				responseMessage.release();
 			}
 		} catch (Exception e) {
 			Server.print(e);
 		}
 	}
 	
+	/**
+	 * Gets the time a request should be held open for.
+	 * <p>
+	 * This is the time given in the request's fh-client-longpoll header,
+	 * limited to {@link Server#maxLongPollTime}, and to half of the
+	 * client timeout (so that waiting clients are not removed).
+	 * </p>
+	 * @param request - the request to check
+	 * @return the time to hold the request open for, in milliseconds,
+	 * 			or <code>0</code> if it should not be held open
+	 */
+	private static long getLongPollTime(HttpServletRequest request) {
+		String longPollHeader = request.getHeader("fh-client-longpoll");
+
+		if (longPollHeader == null) {
+			return 0;
+		}
+
+		try {
+			long requestedTime = Long.parseLong(longPollHeader);
+
+			return Math.max(0, Math.min(requestedTime,
+					Math.min(Server.maxLongPollTime, Server.timeout / 2)));
+		} catch (NumberFormatException e) {
+			Server.print(e);
+			return 0;
+		}
+	}
+	
 }
\ No newline at end of file
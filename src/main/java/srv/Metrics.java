@@ -0,0 +1,404 @@
+package srv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records counts of events occurring on the server.
+ * <p>
+ * Counters and histograms are created the first time they are used, and
+ * can be updated from any thread without obtaining a lock. Gauges are
+ * registered once, and are measured when the metrics are reported.
+ * </p>
+ * <p>
+ * The metrics are reported in the Prometheus text format by
+ * {@link #writeTo(Appendable)}.
+ * </p>
+ */
+public abstract class Metrics {
+
+	/** The number of request bodies which have been rejected */
+	public static final String BODIES_REJECTED = "bodies_rejected";
+
+	/** The number of frames which could not be served from the pool */
+	public static final String FRAME_POOL_MISSES = "frame_pool_misses";
+
+	/** The number of priority frames rejected because a queue was full */
+	public static final String PRIORITY_FRAMES_REJECTED =
+			"priority_frames_rejected";
+
+	/** The number of priority frames dropped to make room in a queue */
+	public static final String PRIORITY_FRAMES_DROPPED =
+			"priority_frames_dropped";
+
+	/** The number of priority frames sent again after not being acknowledged */
+	public static final String PRIORITY_FRAMES_RESENT = "priority_frames_resent";
+
+	/** The number of queued frames dropped to make room for newer frames */
+	public static final String BACKLOG_FRAMES_DROPPED = "backlog_frames_dropped";
+
+	/** The number of frames sent as deltas */
+	public static final String DELTA_FRAMES = "delta_frames";
+
+	/** The number of frames sent as keyframes to clients accepting deltas */
+	public static final String DELTA_KEYFRAMES = "delta_keyframes";
+
+	/** The number of bytes saved by sending deltas instead of frames */
+	public static final String DELTA_BYTES_SAVED = "delta_bytes_saved";
+
+	/** The number of UDP packets rejected as invalid or unauthenticated */
+	public static final String UDP_PACKETS_REJECTED = "udp_packets_rejected";
+
+	/** The number of messages dropped to make room in a mailbox */
+	public static final String MESSAGES_DROPPED = "messages_dropped";
+
+	/** The number of times each instruction has been handled */
+	public static final String INSTRUCTION_CALLS = "instruction_calls";
+
+	/** The number of times each instruction's handler has failed */
+	public static final String INSTRUCTION_ERRORS = "instruction_errors";
+
+	/** The time (in microseconds) taken to handle each instruction */
+	public static final String INSTRUCTION_LATENCY = "instruction_latency_us";
+
+	/** The number of requests refused by each rate limiter */
+	public static final String REQUESTS_THROTTLED = "requests_throttled";
+
+	/** The number of requests shed for each kind of traffic */
+	public static final String REQUESTS_SHED = "requests_shed";
+
+	/** The number of requests admitted to each endpoint */
+	public static final String REQUESTS = "requests";
+
+	/** The time (in microseconds) taken to handle requests to each endpoint */
+	public static final String REQUEST_LATENCY = "request_latency_us";
+
+	/** The number of frames written to clients by their partners */
+	public static final String FRAMES_RELAYED = "frames_relayed";
+
+	/** The time (in microseconds) frames wait before being read */
+	public static final String RELAY_LATENCY = "relay_latency_us";
+
+	/** The number of frames replaced by newer frames before being read */
+	public static final String FRAMES_SUPERSEDED = "frames_superseded";
+
+	/** The number of clients removed for not connecting in time */
+	public static final String CLIENT_TIMEOUTS = "client_timeouts";
+
+	/** The number of clients connected */
+	public static final String CLIENTS_CONNECTED = "clients_connected";
+
+	/** The number of hosts waiting for a partner */
+	public static final String HOSTS_OPEN = "hosts_open";
+
+	/** The number of pairs of partners */
+	public static final String PAIRS_ACTIVE = "pairs_active";
+
+	/** The number of messages waiting in clients' mailboxes */
+	public static final String MAILBOX_MESSAGES = "mailbox_messages";
+
+	/** The number of entries in the list of high scores */
+	public static final String LEADERBOARD_SIZE = "leaderboard_size";
+
+	/** The number of requests being handled */
+	public static final String REQUESTS_IN_FLIGHT = "requests_in_flight";
+
+	/** The smoothed time (in milliseconds) taken to handle each request */
+	public static final String REQUEST_LATENCY_SMOOTHED =
+			"request_latency_smoothed_ms";
+
+	/** The counters which have been recorded, indexed by name */
+	private static final ConcurrentHashMap<String, AtomicLong> counters =
+			new ConcurrentHashMap<String, AtomicLong>();
+
+	/** The histograms which have been recorded, indexed by name */
+	private static final ConcurrentHashMap<String, Histogram> histograms =
+			new ConcurrentHashMap<String, Histogram>();
+
+	/** The gauges which have been registered, indexed by name */
+	private static final ConcurrentHashMap<String, Gauge> gauges =
+			new ConcurrentHashMap<String, Gauge>();
+
+
+	/**
+	 * Increments a counter by one.
+	 * @param name - the name of the counter to increment
+	 */
+	public static void increment(String name) {
+		getCounter(name).incrementAndGet();
+	}
+
+	/**
+	 * Adds a value to a counter.
+	 * @param name - the name of the counter to add to
+	 * @param delta - the value to add to the counter
+	 */
+	public static void add(String name, long delta) {
+		getCounter(name).addAndGet(delta);
+	}
+
+	/**
+	 * Gets the current value of a counter.
+	 * @param name - the name of the counter
+	 * @return the current value of the counter, or <code>0</code> if
+	 * 			the counter has not been used
+	 */
+	public static long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+
+		return (counter == null) ? 0 : counter.get();
+	}
+
+	/**
+	 * Records a value in a histogram.
+	 * @param name - the name of the histogram to record the value in
+	 * @param value - the value to record
+	 */
+	public static void record(String name, long value) {
+		getHistogram(name).record(value);
+	}
+
+	/**
+	 * Gets a histogram, creating it if it does not exist.
+	 * @param name - the name of the histogram
+	 * @return the histogram with the specified name
+	 */
+	public static Histogram getHistogram(String name) {
+		Histogram histogram = histograms.get(name);
+
+		if (histogram == null) {
+			// Create the histogram, unless another thread has already done so
+			Histogram newHistogram = new Histogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge with the same name.
+	 * @param name - the name of the gauge
+	 * @param gauge - the gauge to register
+	 */
+	public static void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Measures a gauge.
+	 * @param name - the name of the gauge
+	 * @return the gauge's current value, or <code>0</code> if no gauge
+	 * 			is registered with the name
+	 */
+	public static long getGaugeValue(String name) {
+		Gauge gauge = gauges.get(name);
+
+		return (gauge == null) ? 0 : gauge.getValue();
+	}
+
+	/**
+	 * Gets the name of a metric which is recorded separately for each
+	 * value of a label, such as the calls to each instruction.
+	 * <p>
+	 * Names are of the form name{label="value"}.
+	 * </p>
+	 * @param name - the name of the metric
+	 * @param label - the name of the label
+	 * @param value - the label's value
+	 * @return the name to record the metric under
+	 */
+	public static String labelled(String name, String label, String value) {
+		return name + "{" + label + "=\"" + value + "\"}";
+	}
+
+	/**
+	 * Gets a counter, creating it if it does not exist.
+	 * @param name - the name of the counter
+	 * @return the counter with the specified name
+	 */
+	private static AtomicLong getCounter(String name) {
+		AtomicLong counter = counters.get(name);
+
+		if (counter == null) {
+			// Create the counter, unless another thread has already done so
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+
+		return counter;
+	}
+
+
+	/**
+	 * Writes every metric in the Prometheus text format.
+	 * <p>
+	 * Metrics are grouped by name (so each label of a labelled metric
+	 * is written together), and histograms are written as cumulative
+	 * buckets, a sum and a count.
+	 * </p>
+	 * @param out - the output to write the metrics to
+	 * @throws IOException if the metrics cannot be written
+	 */
+	public static void writeTo(Appendable out) throws IOException {
+		for (Entry<String, List<String>> family : group(counters).entrySet()) {
+			writeType(out, family.getKey(), "counter");
+
+			for (String name : family.getValue()) {
+				writeSample(out, name, "", getCount(name));
+			}
+		}
+
+		for (Entry<String, List<String>> family : group(gauges).entrySet()) {
+			writeType(out, family.getKey(), "gauge");
+
+			for (String name : family.getValue()) {
+				writeSample(out, name, "", getGaugeValue(name));
+			}
+		}
+
+		for (Entry<String, List<String>> family : group(histograms).entrySet()) {
+			writeType(out, family.getKey(), "histogram");
+
+			for (String name : family.getValue()) {
+				writeHistogram(out, name, histograms.get(name));
+			}
+		}
+	}
+
+	/**
+	 * Groups the names of metrics by the name they are recorded under,
+	 * without labels.
+	 * @param metrics - the metrics to group
+	 * @return the names of the metrics, in order, indexed by the name
+	 * 			without labels
+	 */
+	private static TreeMap<String, List<String>> group(
+			Map<String, ?> metrics) {
+		TreeMap<String, List<String>> families =
+				new TreeMap<String, List<String>>();
+
+		for (String name : new TreeMap<String, Object>(metrics).keySet()) {
+			String family = getFamily(name);
+			List<String> names = families.get(family);
+
+			if (names == null) {
+				names = new ArrayList<String>();
+				families.put(family, names);
+			}
+
+			names.add(name);
+		}
+
+		return families;
+	}
+
+	/**
+	 * Writes a histogram's buckets, sum and count.
+	 * @param out - the output to write the histogram to
+	 * @param name - the name of the histogram (which may have labels)
+	 * @param histogram - the histogram to write
+	 * @throws IOException if the histogram cannot be written
+	 */
+	private static void writeHistogram(Appendable out, String name,
+			Histogram histogram) throws IOException {
+		String family = getFamily(name);
+		String labels = name.substring(family.length());
+		long cumulativeCount = 0;
+
+		for (int i = 0; i < Histogram.BUCKETS; i++) {
+			cumulativeCount += histogram.getBucketCount(i);
+			String bound = (i == Histogram.BUCKETS - 1) ? "+Inf"
+					: String.valueOf(Histogram.getUpperBound(i));
+
+			writeSample(out, family + "_bucket" + withLabel(labels, "le", bound),
+					"", cumulativeCount);
+		}
+
+		writeSample(out, family + "_sum", labels, histogram.getSum());
+		writeSample(out, family + "_count", labels, histogram.getCount());
+	}
+
+	/**
+	 * Writes the line declaring the type of a group of metrics.
+	 * @param out - the output to write the line to
+	 * @param family - the name of the metrics, without labels
+	 * @param type - the type of the metrics
+	 * @throws IOException if the line cannot be written
+	 */
+	private static void writeType(Appendable out, String family,
+			String type) throws IOException {
+		out.append("# TYPE ").append(family).append(' ').append(type)
+				.append('\n');
+	}
+
+	/**
+	 * Writes a single value.
+	 * @param out - the output to write the value to
+	 * @param name - the name of the metric
+	 * @param labels - the labels to add to the name (or an empty string)
+	 * @param value - the value to write
+	 * @throws IOException if the value cannot be written
+	 */
+	private static void writeSample(Appendable out, String name,
+			String labels, long value) throws IOException {
+		out.append(name).append(labels).append(' ')
+				.append(String.valueOf(value)).append('\n');
+	}
+
+	/**
+	 * Gets the name of a metric without its labels.
+	 * @param name - the name of the metric
+	 * @return the name, up to the start of any labels
+	 */
+	private static String getFamily(String name) {
+		int labelStart = name.indexOf('{');
+
+		return (labelStart < 0) ? name : name.substring(0, labelStart);
+	}
+
+	/**
+	 * Adds a label to a set of labels.
+	 * @param labels - the labels, of the form {label="value"} (or an
+	 * 					empty string)
+	 * @param label - the name of the label to add
+	 * @param value - the label's value
+	 * @return the labels, including the new label
+	 */
+	private static String withLabel(String labels, String label,
+			String value) {
+		String newLabel = label + "=\"" + value + "\"";
+
+		if (labels.isEmpty()) {
+			return "{" + newLabel + "}";
+		}
+
+		return labels.substring(0, labels.length() - 1) + "," + newLabel + "}";
+	}
+
+
+	/**
+	 * Resets all counters and histograms.
+	 * <p>
+	 * Gauges remain registered.
+	 * </p>
+	 */
+	public static void reset() {
+		counters.clear();
+		histograms.clear();
+	}
+
+}
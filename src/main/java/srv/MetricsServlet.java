@@ -0,0 +1,46 @@
+package srv;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The servlet responsible for reporting the server's metrics.
+ * <p>
+ * This servlet is connected to by monitoring systems, and replies with
+ * every counter, gauge and histogram in {@link Metrics}, in the
+ * Prometheus text format.
+ * </p>
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+	/** The serialisation identifier */
+	private static final long serialVersionUID = 1L;
+
+	/** The content type of the Prometheus text format */
+	private static final String CONTENT_TYPE =
+			"text/plain; version=0.0.4; charset=utf-8";
+
+
+	/**
+	 * Respond to HTTP GET requests.
+	 * @param request - the HTTP GET request received
+	 * @param response - the response to send
+	 */
+	@Override
+	public void doGet(HttpServletRequest request,
+			HttpServletResponse response) {
+		response.setContentType(CONTENT_TYPE);
+
+		try {
+			Metrics.writeTo(response.getWriter());
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package srv;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Delivers a client's priority frames reliably.
+ * <p>
+ * Frames taken from the client's priority queue are given consecutive
+ * sequence numbers (starting from 1), and are kept in a retransmit window
+ * until the client acknowledges them. Acknowledgements are cumulative -
+ * acknowledging a sequence number acknowledges every frame up to and
+ * including it - so a lost response is recovered from by sending the
+ * unacknowledged frames again on the next request.
+ * </p>
+ * <p>
+ * The window holds at most {@link Server#priorityWindowSize} frames.
+ * While it is full, no more frames are taken from the priority queue, so
+ * a client which stops acknowledging frames causes its priority queue to
+ * fill and its partner to be told to back off.
+ * </p>
+ */
+public class PriorityChannel {
+
+	/** The queue the frames are taken from */
+	private final FrameQueue source;
+
+	/** The client the frames are delivered to, if known */
+	private final Client client;
+
+	/** The frames which have not been acknowledged, oldest first */
+	private final ArrayDeque<Frame> window;
+
+	/** The maximum number of frames in the window */
+	private final int windowSize;
+
+	/** The sequence number of the oldest frame in the window */
+	private long firstSequence;
+
+	/** The highest sequence number sent to the client */
+	private long highestSent;
+
+
+	/**
+	 * Creates a new priority channel.
+	 * @param source - the queue to take priority frames from
+	 * @param windowSize - the maximum number of unacknowledged frames
+	 */
+	public PriorityChannel(FrameQueue source, int windowSize) {
+		this(source, windowSize, null);
+	}
+
+	/**
+	 * Creates a new priority channel, which records the time each frame
+	 * waited before it was first sent to the client.
+	 * @param source - the queue to take priority frames from
+	 * @param windowSize - the maximum number of unacknowledged frames
+	 * @param client - the client the frames are delivered to (or
+	 * 					<code>null</code> to not record delivery)
+	 */
+	public PriorityChannel(FrameQueue source, int windowSize, Client client) {
+		this.source = source;
+		this.client = client;
+		this.window = new ArrayDeque<Frame>();
+		this.windowSize = Math.max(1, windowSize);
+		this.firstSequence = 1;
+		this.highestSent = 0;
+	}
+
+
+	/**
+	 * Records that the client has received every frame up to, and
+	 * including, the sequence number given.
+	 * <p>
+	 * The frames acknowledged are removed from the window and released.
+	 * Acknowledgements of frames which have not yet been sent are only
+	 * taken to acknowledge the frames which have been.
+	 * </p>
+	 * @param sequence - the highest sequence number the client has
+	 * 						received
+	 */
+	public synchronized void acknowledge(long sequence) {
+		// Don't release frames the client cannot have received
+		sequence = Math.min(sequence, highestSent);
+		
+		while (!window.isEmpty() && firstSequence <= sequence) {
+			FramePool.release(window.poll());
+			firstSequence++;
+		}
+	}
+
+	/**
+	 * Reads the unacknowledged frames, oldest first.
+	 * <p>
+	 * The window is first topped up from the priority queue. Copies of the
+	 * frames are added to the list given, and the caller is responsible
+	 * for releasing them. The frames read have consecutive sequence
+	 * numbers, starting from the one returned.
+	 * </p>
+	 * @param frames - the list to add the frames read to
+	 * @param limit - the maximum number of frames to read
+	 * @return the sequence number of the first frame read, or
+	 * 			<code>-1</code> if no frames were read
+	 */
+	public synchronized long read(List<Frame> frames, int limit) {
+		// Move frames from the priority queue into the window
+		Frame frame;
+		while (window.size() < windowSize && (frame = source.poll()) != null) {
+			window.add(frame);
+		}
+
+		if (window.isEmpty() || limit <= 0) {
+			return -1;
+		}
+
+		// Copy the oldest frames into the list
+		long sequence = firstSequence;
+		Iterator<Frame> iterator = window.iterator();
+		for (int i = 0; i < limit && iterator.hasNext(); i++, sequence++) {
+			Frame next = iterator.next();
+			frames.add(copy(next));
+
+			// Only record delivery the first time a frame is sent
+			if (sequence <= highestSent) {
+				Metrics.increment(Metrics.PRIORITY_FRAMES_RESENT);
+			} else if (client != null) {
+				client.recordDelivery(next);
+			}
+		}
+
+		highestSent = Math.max(highestSent, sequence - 1);
+
+		return firstSequence;
+	}
+
+	/**
+	 * Gets the number of frames waiting to be acknowledged.
+	 * @return the number of frames in the window
+	 */
+	public synchronized int size() {
+		return window.size();
+	}
+
+	/**
+	 * Releases the frames in the window.
+	 * <p>
+	 * Sequence numbers continue from where they were, so the client is
+	 * not sent a new frame with a sequence number it has already received.
+	 * </p>
+	 */
+	public synchronized void clear() {
+		firstSequence += window.size();
+		highestSent = Math.max(highestSent, firstSequence - 1);
+
+		for (Frame frame : window) {
+			FramePool.release(frame);
+		}
+
+		window.clear();
+	}
+
+
+	/**
+	 * Copies a frame into a new pooled frame.
+	 * @param frame - the frame to copy
+	 * @return the copy
+	 */
+	private static Frame copy(Frame frame) {
+		Frame copy = FramePool.acquire(frame.getLength());
+		System.arraycopy(frame.getBuffer(), frame.getOffset(),
+				copy.getBuffer(), 0, frame.getLength());
+		copy.setKey(frame.getKey());
+		copy.setRegion(0, frame.getLength());
+		copy.setStoredTime(frame.getStoredTime());
+
+		return copy;
+	}
+
+}
@@ -0,0 +1,258 @@
+package srv;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Limits the rate at which each client can send requests.
+ * <p>
+ * Each client is given a token bucket, which holds up to a burst of
+ * tokens and is refilled at a steady rate. Every request takes a token,
+ * and requests which find the bucket empty are refused with a 429 (too
+ * many requests) status code and a Retry-After header, before the
+ * request body is read or the client is looked up.
+ * </p>
+ * <p>
+ * Clients are identified by their fh-client-id header if it is the ID of
+ * a connected client, or otherwise by their remote address, so IDs which
+ * have not been issued cannot be used to obtain fresh buckets. Requests
+ * which carry neither are not limited.
+ * </p>
+ * <p>
+ * At most {@link #MAX_BUCKETS} buckets are kept. Once that many are in
+ * use, and none can be discarded, requests from clients without a
+ * bucket are refused.
+ * </p>
+ */
+public class RateLimiter {
+
+	/** The status code sent when a request is refused */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/** The limiter used for instruction (/msg) requests */
+	public static final RateLimiter INSTRUCTIONS =
+			new RateLimiter("instructions");
+
+	/** The limiter used for data (/data and /sync) requests */
+	public static final RateLimiter DATA = new RateLimiter("data");
+
+	/** The number of buckets kept before idle buckets are discarded */
+	private static final int MAX_BUCKETS = 4096;
+
+	/** The time (in ns) after which an unused bucket may be discarded */
+	private static final long IDLE_TIME = TimeUnit.SECONDS.toNanos(10);
+
+	/** The number of nanoseconds in a second */
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/** The name of the counter used to record refused requests */
+	private final String throttledMetric;
+
+	/** The buckets of each client, indexed by the client's key */
+	private final ConcurrentHashMap<String, TokenBucket> buckets;
+
+
+	/**
+	 * Creates a new rate limiter.
+	 * @param name - the name used to label the limiter's metrics
+	 */
+	public RateLimiter(String name) {
+		this.throttledMetric = Metrics.labelled(Metrics.REQUESTS_THROTTLED,
+				"limiter", name);
+		this.buckets = new ConcurrentHashMap<String, TokenBucket>();
+	}
+
+
+	/**
+	 * Takes a token from the bucket of the client sending a request.
+	 * <p>
+	 * If the bucket is empty, the response is given a 429 status code and
+	 * a Retry-After header, and the request should not be handled.
+	 * </p>
+	 * @param clientID - the request's fh-client-id header
+	 * @param request - the request received
+	 * @param response - the response to send
+	 * @param rate - the number of requests allowed each second (or
+	 * 					<code>0</code> to allow every request)
+	 * @param burst - the most requests which can be sent at once
+	 * @return <code>true</code> if the request should be handled,
+	 * 			otherwise <code>false</code>
+	 */
+	public boolean admit(String clientID, HttpServletRequest request,
+			HttpServletResponse response, double rate, int burst) {
+		if (rate <= 0) {
+			return true;
+		}
+
+		String key = getKey(clientID, request);
+		if (key == null) {
+			return true;
+		}
+
+		// Refuse the request if there is no room for another bucket
+		TokenBucket bucket = getBucket(key);
+		long wait = (bucket == null) ? (long) NANOS_PER_SECOND
+				: bucket.take(rate, Math.max(1, burst));
+
+		if (wait == 0) {
+			return true;
+		}
+
+		// Tell the client how long to wait (in whole seconds)
+		Metrics.increment(throttledMetric);
+		response.setStatus(SC_TOO_MANY_REQUESTS);
+		response.setHeader("Retry-After", String.valueOf(
+				Math.max(1, (long) Math.ceil(wait / NANOS_PER_SECOND))));
+
+		return false;
+	}
+
+	/**
+	 * Discards every client's bucket.
+	 */
+	public void clear() {
+		buckets.clear();
+	}
+
+
+	/**
+	 * Gets the key identifying the client sending a request.
+	 * @param clientID - the request's fh-client-id header
+	 * @param request - the request received
+	 * @return the client's key, or <code>null</code> if the client cannot
+	 * 			be identified
+	 */
+	private static String getKey(String clientID,
+			HttpServletRequest request) {
+		// Only use the ID if it belongs to a connected client
+		long id = ClientHeaders.parseLong(clientID, -1);
+		if (id != -1 && Server.getClientFromID(id) != null) {
+			return "id:" + id;
+		}
+
+		String address = request.getRemoteAddr();
+
+		return (address == null) ? null : "address:" + address;
+	}
+
+	/**
+	 * Gets a client's bucket, creating it if it does not exist.
+	 * @param key - the client's key
+	 * @return the client's bucket, or <code>null</code> if it does not
+	 * 			exist and there is no room to create it
+	 */
+	private TokenBucket getBucket(String key) {
+		TokenBucket bucket = buckets.get(key);
+
+		if (bucket == null) {
+			// Make room by discarding the buckets of idle clients
+			if (buckets.size() >= MAX_BUCKETS) {
+				discardIdleBuckets();
+
+				if (buckets.size() >= MAX_BUCKETS) {
+					return null;
+				}
+			}
+
+			// Create the bucket, unless another thread has already done so
+			TokenBucket newBucket = new TokenBucket();
+			bucket = buckets.putIfAbsent(key, newBucket);
+
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+
+		return bucket;
+	}
+
+	/**
+	 * Discards the buckets which have not been used recently.
+	 * <p>
+	 * A bucket left unused for {@link #IDLE_TIME} has normally been
+	 * refilled, so discarding it rarely lets its client send more.
+	 * </p>
+	 */
+	private void discardIdleBuckets() {
+		long idleSince = System.nanoTime() - IDLE_TIME;
+
+		Iterator<TokenBucket> iterator = buckets.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isIdleSince(idleSince)) {
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * The tokens available to a single client.
+	 */
+	private static class TokenBucket {
+
+		/** The number of tokens in the bucket */
+		private double tokens;
+
+		/** The time (from {@link System#nanoTime()}) the bucket was filled */
+		private long lastRefill;
+
+		/** Whether the bucket has been used */
+		private boolean used;
+
+
+		/**
+		 * Creates a new token bucket.
+		 */
+		public TokenBucket() {
+			this.tokens = 0;
+			this.lastRefill = System.nanoTime();
+			this.used = false;
+		}
+
+
+		/**
+		 * Refills the bucket, then takes a token from it.
+		 * @param rate - the number of tokens added each second
+		 * @param burst - the most tokens the bucket can hold
+		 * @return <code>0</code> if a token was taken, otherwise the time
+		 * 			(in nanoseconds) until a token is available
+		 */
+		public synchronized long take(double rate, int burst) {
+			long now = System.nanoTime();
+
+			if (used) {
+				tokens = Math.min(burst,
+						tokens + (rate * (now - lastRefill)) / NANOS_PER_SECOND);
+			} else {
+				// New clients start with a full bucket
+				tokens = burst;
+				used = true;
+			}
+
+			lastRefill = now;
+
+			if (tokens >= 1) {
+				tokens--;
+				return 0;
+			}
+
+			return (long) Math.ceil(((1 - tokens) / rate) * NANOS_PER_SECOND);
+		}
+
+		/**
+		 * Checks whether the bucket has been used since a time.
+		 * @param time - the time (from {@link System#nanoTime()}) to check
+		 * @return <code>true</code> if the bucket has not been used since
+		 * 			the time given, otherwise <code>false</code>
+		 */
+		public synchronized boolean isIdleSince(long time) {
+			return lastRefill - time < 0;
+		}
+
+	}
+
+}
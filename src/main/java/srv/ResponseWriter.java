@@ -0,0 +1,252 @@
+package srv;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+
+/**
+ * A buffer which response strings are written into.
+ * <p>
+ * Instruction handlers, and the client's mailbox, append their output
+ * directly to the writer, so that building a response never copies the
+ * response so far. The response is then streamed to the client in the
+ * serialised form of a <code>String</code> (as an
+ * <code>ObjectOutputStream</code> would write it), without a
+ * <code>String</code> being created.
+ * </p>
+ * <p>
+ * Each thread keeps a writer which can be reused by successive requests,
+ * obtained with {@link #acquire()} and returned with {@link #release()}.
+ * </p>
+ */
+public class ResponseWriter implements Appendable {
+
+	/** The largest buffer kept for reuse once a writer is released */
+	private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+	/** The number of bytes which precede the string when it is written */
+	private static final int PREFIX_LENGTH = 4 + 1 + 8;
+
+	/** The writer kept by each thread */
+	private static final ThreadLocal<ResponseWriter> writers =
+			new ThreadLocal<ResponseWriter>() {
+				@Override
+				protected ResponseWriter initialValue() {
+					return new ResponseWriter();
+				}
+			};
+
+	/** The response written so far */
+	private StringBuilder text;
+
+	/** The buffer the response is encoded into */
+	private byte[] bytes;
+
+	/** Whether the writer is in use */
+	private boolean inUse;
+
+
+	/**
+	 * Creates a new, empty, response writer.
+	 */
+	public ResponseWriter() {
+		this.text = new StringBuilder();
+		this.bytes = new byte[0];
+		this.inUse = false;
+	}
+
+
+	/**
+	 * Gets an empty response writer for the current thread.
+	 * <p>
+	 * If the thread's writer is already in use, a new writer is returned.
+	 * </p>
+	 * @return an empty response writer
+	 */
+	public static ResponseWriter acquire() {
+		ResponseWriter writer = writers.get();
+
+		if (writer.inUse) {
+			writer = new ResponseWriter();
+		}
+
+		writer.inUse = true;
+		return writer;
+	}
+
+	/**
+	 * Empties the writer, so it can be reused by the thread.
+	 */
+	public void release() {
+		if (text.capacity() > MAX_RETAINED_CAPACITY) {
+			text = new StringBuilder();
+		} else {
+			text.setLength(0);
+		}
+
+		if (bytes.length > MAX_RETAINED_CAPACITY) {
+			bytes = new byte[0];
+		}
+
+		inUse = false;
+	}
+
+
+	@Override
+	public ResponseWriter append(CharSequence csq) {
+		text.append(csq);
+		return this;
+	}
+
+	@Override
+	public ResponseWriter append(CharSequence csq, int start, int end) {
+		text.append(csq, start, end);
+		return this;
+	}
+
+	@Override
+	public ResponseWriter append(char c) {
+		text.append(c);
+		return this;
+	}
+
+	/**
+	 * Appends a number to the response.
+	 * @param value - the number to append
+	 * @return the writer
+	 */
+	public ResponseWriter append(long value) {
+		text.append(value);
+		return this;
+	}
+
+	/**
+	 * Gets the length of the response so far.
+	 * @return the number of characters written
+	 */
+	public int length() {
+		return text.length();
+	}
+
+	/**
+	 * Checks whether anything has been written.
+	 * @return <code>true</code> if the response is empty,
+	 * 			otherwise <code>false</code>
+	 */
+	public boolean isEmpty() {
+		return text.length() == 0;
+	}
+
+	/**
+	 * Gets the response written so far.
+	 * @return the response, as a string
+	 */
+	@Override
+	public String toString() {
+		return text.toString();
+	}
+
+
+	/**
+	 * Writes the response as a serialised string, preceded by a
+	 * serialisation stream header.
+	 * <p>
+	 * The result is read by an <code>ObjectInputStream</code> as a
+	 * <code>String</code>.
+	 * </p>
+	 * @param outputStream - the stream to write to
+	 * @throws IOException if the response could not be written
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		int length = text.length();
+
+		// Strings are written in modified UTF-8
+		long utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			utfLength += getUtfLength(text.charAt(i));
+		}
+
+		int position = 0;
+		ensureCapacity(PREFIX_LENGTH + utfLength);
+
+		// Write the stream header
+		position = writeShort(position, ObjectStreamConstants.STREAM_MAGIC);
+		position = writeShort(position, ObjectStreamConstants.STREAM_VERSION);
+
+		// Write the string's type and length
+		if (utfLength <= 0xFFFF) {
+			bytes[position++] = ObjectStreamConstants.TC_STRING;
+			position = writeShort(position, (int) utfLength);
+		} else {
+			bytes[position++] = ObjectStreamConstants.TC_LONGSTRING;
+			position = writeShort(position, (int) (utfLength >>> 48));
+			position = writeShort(position, (int) (utfLength >>> 32));
+			position = writeShort(position, (int) (utfLength >>> 16));
+			position = writeShort(position, (int) utfLength);
+		}
+
+		// Write the characters
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+
+			if (c >= 0x0001 && c <= 0x007F) {
+				bytes[position++] = (byte) c;
+			} else if (c <= 0x07FF) {
+				bytes[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				bytes[position++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		outputStream.write(bytes, 0, position);
+	}
+
+
+	/**
+	 * Makes sure the encoding buffer can hold the number of bytes given.
+	 * @param capacity - the number of bytes needed
+	 * @throws IOException if the response is too long to encode
+	 */
+	private void ensureCapacity(long capacity) throws IOException {
+		if (capacity > Integer.MAX_VALUE - 8) {
+			throw new IOException("Response too long: " + capacity + " bytes");
+		}
+
+		if (bytes.length < capacity) {
+			bytes = new byte[(int) Math.max(capacity,
+					Math.min(bytes.length * 2L, Integer.MAX_VALUE - 8))];
+		}
+	}
+
+	/**
+	 * Writes a two byte value into the encoding buffer.
+	 * @param position - the position to write the value at
+	 * @param value - the value to write
+	 * @return the position after the value
+	 */
+	private int writeShort(int position, int value) {
+		bytes[position] = (byte) (value >>> 8);
+		bytes[position + 1] = (byte) value;
+		return position + 2;
+	}
+
+	/**
+	 * Gets the number of bytes used to encode a character in modified
+	 * UTF-8.
+	 * @param c - the character
+	 * @return the number of bytes used
+	 */
+	private static int getUtfLength(char c) {
+		if (c >= 0x0001 && c <= 0x007F) {
+			return 1;
+		} else if (c <= 0x07FF) {
+			return 2;
+		} else {
+			return 3;
+		}
+	}
+
+}
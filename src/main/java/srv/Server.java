@@ -4,11 +4,15 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * An abstract class representing the server's functionality.
@@ -32,7 +36,72 @@ public abstract class Server {
 	
 	public static int timeout = 5000;
 	
-	public static ArrayList<String> permittedVersions = new ArrayList<String>();
+	/** The number of priority frames each client can have waiting */
+	public static int priorityQueueCapacity = 64;
+	
+	/** How to handle priority frames sent to a client whose queue is full */
+	public static FrameQueue.OverflowPolicy priorityOverflowPolicy =
+			FrameQueue.OverflowPolicy.REJECT;
+	
+	/** The number of unacknowledged priority frames kept for each client */
+	public static int priorityWindowSize = 32;
+	
+	/** The number of frames a client receiving batches can have waiting */
+	public static int batchQueueCapacity = 32;
+	
+	/** The most deltas to send to a client between keyframes */
+	public static int deltaKeyframeInterval = 30;
+	
+	/** The number of messages each client can have waiting */
+	public static int mailboxCapacity = 1024;
+	
+	/** The longest time (in ms) a message request can be held open for */
+	public static int maxLongPollTime = 2000;
+	
+	/** The port to relay frames over TCP on (or -1 to disable TCP) */
+	public static int tcpPort = Integer.getInteger("fh.tcpPort", -1);
+	
+	/** The port to relay frames over UDP on (or -1 to disable UDP) */
+	public static int udpPort = Integer.getInteger("fh.udpPort", -1);
+	
+	/** The file the frames sent to clients are logged to */
+	public static String dataLogFile =
+			System.getProperty("fh.dataLog", "datalog.txt");
+	
+	/** The instruction requests each client can send per second (or 0) */
+	public static double instructionRateLimit = 20;
+	
+	/** The instruction requests each client can send at once */
+	public static int instructionBurst = 40;
+	
+	/** The data requests each client can send per second (or 0) */
+	public static double dataRateLimit = 120;
+	
+	/** The data requests each client can send at once */
+	public static int dataBurst = 240;
+	
+	/** The most requests which can be handled at once (or 0) */
+	public static int maxInFlightRequests = 256;
+	
+	/** The time (in ms) requests should take, before traffic is shed */
+	public static int targetRequestLatency = 500;
+	
+	/** The time (in ms) between samples taken by the lock profiler */
+	public static int lockSampleInterval = 100;
+	
+	/** The version which is always permitted */
+	private static final String DEFAULT_VERSION = "Fly-Hard-0.6";
+	
+	/** The permitted versions, replaced (rather than changed) on update */
+	private static volatile VersionSet permittedVersions =
+			VersionSet.EMPTY.with(DEFAULT_VERSION);
+	
+	/** The mutex held while the permitted versions are updated */
+	private static final Object permittedVersionsMutex = new Object();
+	
+	/** The listeners to notify when the available hosts change */
+	private static CopyOnWriteArrayList<LobbyListener> lobbyListeners =
+			new CopyOnWriteArrayList<LobbyListener>();
 	
 	/** The timer which is used to close inactive client connections */
 	private static Timer removeClientsTimer = null;
@@ -56,6 +125,10 @@ public abstract class Server {
 	/** Whether to output the date and time to the standard output */
 	private static boolean printDateTime = true;
 	
+	static {
+		registerGauges();
+	}
+	
 	
 	/**
 	 * Checks if a remove client timer is present.
@@ -108,6 +181,7 @@ public abstract class Server {
 					// If so, remove the client
 					print("Removing client " + client.getID()
 							+ " (TIMEOUT)");
+					Metrics.increment(Metrics.CLIENT_TIMEOUTS);
 					removeClient(client, "END_GAME");
 				}
 			}
@@ -136,6 +210,59 @@ public abstract class Server {
 		}
 	}
 	
+	/**
+	 * Gets the number of clients connected.
+	 * @return the number of clients in the client array
+	 */
+	public static int getClientCount() {
+		// Obtain a lock on the client array
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+	
+	/**
+	 * Gets the number of hosts waiting for a partner.
+	 * @return the number of available hosts
+	 */
+	public static int getOpenHostCount() {
+		return getAvailableHosts().size();
+	}
+	
+	/**
+	 * Gets the number of pairs of partners.
+	 * @return the number of clients with a partner, halved
+	 */
+	public static int getPairCount() {
+		// Obtain a lock on the client array
+		synchronized (clients) {
+			int partnered = 0;
+			for (Client client : clients) {
+				if (client.getPartner() != null) {
+					partnered++;
+				}
+			}
+			
+			return partnered / 2;
+		}
+	}
+	
+	/**
+	 * Gets the number of messages waiting to be read by clients.
+	 * @return the number of messages in every client's mailbox
+	 */
+	public static int getMailboxDepth() {
+		// Obtain a lock on the client array
+		synchronized (clients) {
+			int depth = 0;
+			for (Client client : clients) {
+				depth += client.getMessageCount();
+			}
+			
+			return depth;
+		}
+	}
+	
 	/**
 	 * Gets a client from their ID.
 	 * @param id - the id to search for
@@ -179,12 +306,14 @@ public abstract class Server {
 	public static Client handleClient(long id, String name,
 			boolean isHost, int lives, int score) {
 		Client client = null;
+		boolean lobbyChanged = false;
 		
 		// Obtain a lock on the client array
 		synchronized (clients) {
 			if (id == -1) {
 				// If the client's ID is -1, this is a new request
 				client = addClient(name, isHost);
+				lobbyChanged = (client != null && isHost);
 			} else {
 				// Get the client from their ID
 				client = getClientFromID(id);
@@ -197,6 +326,7 @@ public abstract class Server {
 					client.setName(name);
 
 					// Update the client's host status
+					lobbyChanged = (client.isHost() != isHost);
 					client.setHost(isHost);
 					
 					// Update the client's lives
@@ -207,6 +337,71 @@ public abstract class Server {
 				}
 			}
 		}
+		
+		if (lobbyChanged) {
+			fireLobbyChanged();
+		}
+
+		return client;
+	}
+	
+	/**
+	 * Gets the client holding a session, and updates the state it has
+	 * reported.
+	 * <p>
+	 * Only the state which has changed need be given; the rest of the
+	 * client's state is left as it is.
+	 * </p>
+	 * @param id - the client's ID
+	 * @param session - the client's session (which must match the
+	 * 					session issued to the client)
+	 * @param name - the client's name, or <code>null</code> if unchanged
+	 * @param isHost - whether the client is a host, or <code>null</code>
+	 * 					if unchanged
+	 * @param lives - the client's lives, or <code>null</code> if unchanged
+	 * @param score - the client's score, or <code>null</code> if unchanged
+	 * @return the client holding the session, or <code>null</code> if the
+	 * 			session is not valid
+	 */
+	public static Client handleSession(long id, String session, String name,
+			Boolean isHost, Integer lives, Integer score) {
+		Client client = null;
+		boolean lobbyChanged = false;
+		
+		// Obtain a lock on the client array
+		synchronized (clients) {
+			// Get the client from their ID, and check their session
+			client = getClientFromID(id);
+
+			if (client == null || !client.getSession().equals(session)) {
+				return null;
+			}
+
+			// Update the time at which the client last connected
+			client.updateLastConnectionTime();
+
+			// Update the state which has changed
+			if (name != null) {
+				client.setName(name);
+			}
+
+			if (isHost != null) {
+				lobbyChanged = (client.isHost() != isHost);
+				client.setHost(isHost);
+			}
+
+			if (lives != null) {
+				client.setLives(lives);
+			}
+
+			if (score != null) {
+				client.setScore(score);
+			}
+		}
+		
+		if (lobbyChanged) {
+			fireLobbyChanged();
+		}
 
 		return client;
 	}
@@ -267,6 +462,9 @@ public abstract class Server {
 				// the client to remove
 				if (client.equals(clientToRemove)) {
 					clientIterator.remove();
+					
+					// Return any unread frames to the pool
+					client.clearData();
 				}
 			}
 			
@@ -276,6 +474,8 @@ public abstract class Server {
 				clearRemoveClientsTimer();
 			}
 		}
+		
+		fireLobbyChanged();
 	}
 	
 	/**
@@ -312,49 +512,107 @@ public abstract class Server {
 	 * @return the (collapsed) list of hosts
 	 */
 	public static String collapseAvailableHosts(int limit, Client callingClient) {
+		ResponseWriter collapsedAvailableHosts = new ResponseWriter();
+		writeAvailableHosts(limit, callingClient, collapsedAvailableHosts);
+		
+		return collapsedAvailableHosts.toString();
+	}
+	
+	/**
+	 * Writes a collapsed list of available hosts.
+	 * <p>
+	 * The list is written in the same form as
+	 * {@link #collapseAvailableHosts(int, Client)}.
+	 * </p>
+	 * @param limit - the number of records to write
+	 * @param callingClient - the client requesting the list of available
+	 * 							hosts - this client will not be included
+	 * 							in the list
+	 * @param writer - the writer to append the list to
+	 * @return <code>true</code> if any hosts were written,
+	 * 			otherwise <code>false</code>
+	 */
+	public static boolean writeAvailableHosts(int limit, Client callingClient,
+			ResponseWriter writer) {
 		// Obtain a lock on the client array
 		synchronized (clients) {
-			String collapsedAvailableHosts = "";
-			
 			int i = 0;
 			for (Client client : Server.getAvailableHosts()) {
 				if (client != null && !client.equals(callingClient)) {
-					collapsedAvailableHosts += client.getID()
-							+ "=" + client.getName() + "#";
+					writer.append(client.getID()).append('=')
+							.append(client.getName()).append('#');
 					i++;
 				}
 				
 				if (i >= limit) break;
 			}
 			
-			return collapsedAvailableHosts;
+			return i > 0;
 		}
 	}
 	
 	
 	/**
-	 * Gets the list of permitted versions.
-	 * @return the list of permitted versions
+	 * Adds a listener to be notified when the available hosts change.
+	 * @param listener - the listener to add
 	 */
-	public static ArrayList<String> getPermittedVersions() {
-		// Obtain a lock on the permitted versions array
-		synchronized (permittedVersions) {
-			if (!permittedVersions.contains("Fly-Hard-0.6")) {
-				permittedVersions.add("Fly-Hard-0.6");
-			}
-			
-			return permittedVersions;
+	public static void addLobbyListener(LobbyListener listener) {
+		lobbyListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Removes a lobby listener.
+	 * @param listener - the listener to remove
+	 */
+	public static void removeLobbyListener(LobbyListener listener) {
+		lobbyListeners.remove(listener);
+	}
+	
+	/**
+	 * Notifies the lobby listeners that the available hosts may have
+	 * changed.
+	 */
+	public static void fireLobbyChanged() {
+		for (LobbyListener listener : lobbyListeners) {
+			listener.lobbyChanged();
 		}
 	}
 	
+	
+	/**
+	 * Gets the list of permitted versions.
+	 * @return a read-only snapshot of the permitted versions
+	 */
+	public static List<String> getPermittedVersions() {
+		return permittedVersions.getVersions();
+	}
+	
+	/**
+	 * Checks whether a version is permitted.
+	 * <p>
+	 * This reads the current snapshot of the permitted versions, so does
+	 * not need to lock.
+	 * </p>
+	 * @param version - the version to check
+	 * @return <code>true</code> if the version is in the list of
+	 * 			permitted versions, otherwise <code>false</code>
+	 */
+	public static boolean isVersionPermitted(String version) {
+		return permittedVersions.permits(version);
+	}
+	
 	/**
 	 * Adds a version to the list of permitted versions.
+	 * <p>
+	 * Versions ending in '*' permit every version starting with the
+	 * rest of the version given.
+	 * </p>
 	 * @param version - the version to add
 	 */
 	public static void addVersion(String version) {
-		// Obtain a lock on the permitted versions array
-		synchronized (permittedVersions) {
-			permittedVersions.add(version);
+		// Obtain a lock on the permitted versions mutex
+		synchronized (permittedVersionsMutex) {
+			permittedVersions = permittedVersions.with(version);
 		}
 	}
 	
@@ -363,24 +621,27 @@ public abstract class Server {
 	 * @param version - the version to remove
 	 */
 	public static void removeVersion(String version) {
-		// Obtain a lock on the permitted versions array
-		synchronized (permittedVersions) {
-			for (int i = permittedVersions.size() - 1; i >= 0; i--) {
-				if (version != null
-						&& version.equals(permittedVersions.get(i))) {
-					permittedVersions.remove(i);
-				}
-			}
+		// The default version cannot be removed
+		if (DEFAULT_VERSION.equals(version)) {
+			return;
+		}
+		
+		// Obtain a lock on the permitted versions mutex
+		synchronized (permittedVersionsMutex) {
+			permittedVersions = permittedVersions.without(version);
 		}
 	}
 	
 	/**
 	 * Clears the list of permitted versions.
+	 * <p>
+	 * The default version remains permitted.
+	 * </p>
 	 */
 	public static void clearPermittedVersions() {
-		// Obtain a lock on the permitted versions array
-		synchronized (permittedVersions) {
-			permittedVersions = new ArrayList<String>();
+		// Obtain a lock on the permitted versions mutex
+		synchronized (permittedVersionsMutex) {
+			permittedVersions = VersionSet.EMPTY.with(DEFAULT_VERSION);
 		}
 	}
 	
@@ -406,14 +667,30 @@ public abstract class Server {
 	 * @return the (collapsed) list of high scores
 	 */
 	public static String collapseHighScores(int limit) {
+		ResponseWriter collapsedHighScores = new ResponseWriter();
+		writeHighScores(limit, collapsedHighScores);
+		
+		return collapsedHighScores.toString();
+	}
+	
+	/**
+	 * Writes a collapsed list of high scores.
+	 * <p>
+	 * The list is written in the same form as
+	 * {@link #collapseHighScores(int)}.
+	 * </p>
+	 * @param limit - the number of records to write
+	 * @param writer - the writer to append the list to
+	 * @return <code>true</code> if any high scores were written,
+	 * 			otherwise <code>false</code>
+	 */
+	public static boolean writeHighScores(int limit, ResponseWriter writer) {
 		// Obtain a lock on the list of high scores
 		synchronized (highScores) {
-			String collapsedHighScores = "";
-			
 			int i = 0;
 			for (Long key : highScores.descendingKeySet()) {
 				for (String name : highScores.get(key)) {
-					collapsedHighScores += name + "=" + key + "#";
+					writer.append(name).append('=').append(key).append('#');
 					i++;
 					
 					if (i >= limit) break;
@@ -422,7 +699,7 @@ public abstract class Server {
 				if (i >= limit) break;
 			}
 			
-			return collapsedHighScores;
+			return i > 0;
 		}
 	}
 	
@@ -465,6 +742,22 @@ public abstract class Server {
 		}
 	}
 	
+	/**
+	 * Gets the number of entries in the list of high scores.
+	 * @return the number of names in the list of high scores
+	 */
+	public static int getHighScoreCount() {
+		// Obtain a lock on the list of high scores
+		synchronized (highScores) {
+			int count = 0;
+			for (ArrayList<String> names : highScores.values()) {
+				count += names.size();
+			}
+			
+			return count;
+		}
+	}
+	
 	/**
 	 * Clears the list of high scores.
 	 */
@@ -532,6 +825,79 @@ public abstract class Server {
 	}
 	
 	
+	/**
+	 * Gets the monitors which guard the server's shared state.
+	 * <p>
+	 * The monitors are read without locking, so may be out of date if
+	 * the server is being reset. They should only be used to measure
+	 * contention (see {@link LockProfiler}).
+	 * </p>
+	 * @return the monitors, indexed by name
+	 */
+	public static Map<String, Object> getMonitors() {
+		Map<String, Object> monitors = new LinkedHashMap<String, Object>();
+		monitors.put("clients", clients);
+		monitors.put("highScores", highScores);
+		monitors.put("sysout", sysout);
+		monitors.put("permittedVersions", permittedVersionsMutex);
+		
+		return monitors;
+	}
+	
+	/**
+	 * Registers the gauges which measure the server's state.
+	 */
+	private static void registerGauges() {
+		Metrics.registerGauge(Metrics.CLIENTS_CONNECTED, new Gauge() {
+			@Override
+			public long getValue() {
+				return getClientCount();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.HOSTS_OPEN, new Gauge() {
+			@Override
+			public long getValue() {
+				return getOpenHostCount();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.PAIRS_ACTIVE, new Gauge() {
+			@Override
+			public long getValue() {
+				return getPairCount();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.MAILBOX_MESSAGES, new Gauge() {
+			@Override
+			public long getValue() {
+				return getMailboxDepth();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.LEADERBOARD_SIZE, new Gauge() {
+			@Override
+			public long getValue() {
+				return getHighScoreCount();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.REQUESTS_IN_FLIGHT, new Gauge() {
+			@Override
+			public long getValue() {
+				return AdmissionController.getInFlightRequests();
+			}
+		});
+		
+		Metrics.registerGauge(Metrics.REQUEST_LATENCY_SMOOTHED, new Gauge() {
+			@Override
+			public long getValue() {
+				return AdmissionController.getLatency();
+			}
+		});
+	}
+	
 	/**
 	 * Resets the arrays and attributes held by this class.
 	 * <p>
@@ -540,6 +906,10 @@ public abstract class Server {
 	 * <li>The client removal timer</li>
 	 * <li>The client array</li>
 	 * <li>The sysout array</li>
+	 * <li>The lobby listeners</li>
+	 * <li>The rate limiters</li>
+	 * <li>The admission controller</li>
+	 * <li>The metrics counters and histograms</li>
 	 * </ul>
 	 * </p>
 	 */
@@ -568,5 +938,18 @@ public abstract class Server {
 			// Reset the standard output array
 			sysout = new ArrayList<String>();
 		}
+
+		// Reset the lobby listeners
+		lobbyListeners.clear();
+
+		// Reset the rate limiters
+		RateLimiter.INSTRUCTIONS.clear();
+		RateLimiter.DATA.clear();
+
+		// Reset the admission controller
+		AdmissionController.reset();
+
+		// Reset the metrics counters and histograms
+		Metrics.reset();
 	}
 }
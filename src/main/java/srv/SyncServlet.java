@@ -0,0 +1,250 @@
+package srv;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The servlet responsible for handling messages and data together.
+ * <p>
+ * This servlet is connected to by clients which would otherwise send
+ * a request to both the message servlet and the data servlet on each
+ * tick.
+ * </p>
+ * <p>
+ * Request bodies contain an instruction string (which may be empty),
+ * followed by a data entry (or <code>null</code>). Responses contain
+ * the response string, as it would be returned by the message servlet,
+ * followed by the client's latest data entry (or <code>null</code>).
+ * The stream is reset between the two, so the data entry can be written
+ * without reference to the string.
+ * </p>
+ * <p>
+ * Priority frames are delivered as they are by the data servlet: clients
+ * which send an fh-client-priority-ack header are sent unacknowledged
+ * priority frames first, with the fh-client-priority-seq header giving
+ * the frame's sequence number.
+ * </p>
+ * <p>
+ * Every request is limited by the data rate limit, and requests carrying
+ * an instruction are also limited by the instruction rate limit.
+ * </p>
+ */
+@WebServlet("/sync")
+public class SyncServlet extends HttpServlet {
+
+	/** The serialisation identifier */
+	private static final long serialVersionUID = 1L;
+
+
+	/**
+	 * Respond to HTTP GET requests.
+	 * <p>
+	 * The requester will be redirected to the 404.jsp page.
+	 * </p>
+	 * @param request - the HTTP GET request received
+	 * @param response - the response to send
+	 */
+	@Override
+	public void doGet(HttpServletRequest request,
+			HttpServletResponse response) {
+		try {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+	/**
+	 * Respond to HTTP POST requests.
+	 * <p>
+	 * Requests from versions which are not permitted are turned away by
+	 * the {@link VersionFilter} before they reach this servlet.
+	 * </p>
+	 * @param request - the HTTP POST request received
+	 * @param response - the response to send
+	 */
+	@Override
+	public void doPost(HttpServletRequest request,
+			HttpServletResponse response) {
+		playerPost(request, response);
+	}
+
+	/**
+	 * Handles the instructions and data in a POST, and replies with the
+	 * response, the client's messages and the client's latest data.
+	 * <p>
+	 * The data entry is read into a pooled frame, as by the data servlet.
+	 * </p>
+	 * @param request - the HTTP POST request received
+	 * @param response - the response to send
+	 */
+	public void playerPost(HttpServletRequest request,
+			HttpServletResponse response) {
+		// Refuse the request if the client is sending too many
+		String clientID = ClientHeaders.getClientID(request);
+		if (!RateLimiter.DATA.admit(clientID, request, response,
+				Server.dataRateLimit, Server.dataBurst)) {
+			return;
+		}
+		
+		ArrayList<Frame> receivedFrames = new ArrayList<Frame>(1);
+		
+		try {
+			// Set the connection's input stream
+			ServletInputStream srvInputStream = request.getInputStream();
+			if (srvInputStream == null) {
+				Exception e = new Exception("Servlet input stream is null");
+				Server.print(e);
+				return;
+			}
+
+			// Get the instructions and data from the connection's input stream
+			ArrayList<Object> receivedObjects = new ArrayList<Object>(1);
+			try {
+				BodyReader.readFrames(srvInputStream,
+						request.getContentLength(), receivedFrames,
+						receivedObjects);
+			} catch (ObjectStreamException e) {
+				// Reject the request without processing it
+				Server.print("Rejected request body: " + e.getMessage());
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			} catch (IOException e) {
+				Server.print(e);
+				return;
+			}
+
+			// Get the instruction string
+			String instruction = null;
+			if (!receivedObjects.isEmpty()
+					&& receivedObjects.get(0) instanceof String) {
+				instruction = (String) receivedObjects.get(0);
+			}
+			
+			// Instructions are limited as they would be by the message
+			// servlet, so lobby polling can't avoid the limit by using
+			// this servlet
+			if (instruction != null && !instruction.equals("")
+					&& !RateLimiter.INSTRUCTIONS.admit(clientID, request,
+							response, Server.instructionRateLimit,
+							Server.instructionBurst)) {
+				return;
+			}
+			
+			// Shed instructions as lobby traffic, as they would be by the
+			// message servlet
+			if (instruction != null && !instruction.equals("")
+					&& !AdmissionController.stillAdmits(
+							AdmissionController.Traffic.LOBBY)) {
+				AdmissionFilter.shed(response,
+						AdmissionController.Traffic.LOBBY);
+				return;
+			}
+
+			// Set the connection's output stream
+			ServletOutputStream srvOutputStream = response.getOutputStream();
+			if (srvOutputStream == null) {
+				Exception e = new Exception("Servlet output stream is null");
+				Server.print(e);
+				return;
+			}
+
+			// Get the client from the header fields supplied
+			Client client = ClientHeaders.handleClient(request, clientID);
+
+			if (instruction != null && !instruction.equals("")) {
+				Server.print("Client " + ((client == null)
+						? "NULL" : client.getID())
+						+ " sent instruction: " + instruction);
+			}
+
+			// Build the response in this thread's response writer
+			ResponseWriter responseMessage = ResponseWriter.acquire();
+			Frame latestFrame = null;
+
+			try {
+				// Handle the instructions
+				InstructionHandler.handleInstruction(client, instruction,
+						responseMessage);
+
+				if (client != null) {
+					// Record the priority frames the client has received
+					DataServlet.acknowledgePriorityFrames(client, request);
+					
+					// Add any messages in the client's mailbox
+					if (client.checkForMessages()) {
+						responseMessage.append(InstructionHandler.LIST_DELIM);
+						client.readMessages(responseMessage);
+					}
+
+					// Add the data to the client's partner's data buffer
+					Client partner = client.getPartner();
+					if (partner != null && !receivedFrames.isEmpty()) {
+						boolean accepted = true;
+						for (Frame receivedFrame : receivedFrames) {
+							accepted &= partner.writeFrame(receivedFrame);
+						}
+						receivedFrames.clear();
+						
+						// Tell the client to back off if its partner's
+						// priority queue is full
+						if (!accepted) {
+							response.setHeader("fh-client-backpressure",
+									"true");
+						}
+					}
+
+					// Get the next frame, sending unacknowledged priority
+					// frames first
+					latestFrame = DataServlet.readPriorityFrame(client,
+							response);
+					if (latestFrame == null) {
+						latestFrame = client.readLatestFrame();
+					}
+
+					// Add client information headers
+					response.setHeader("fh-client-id",
+							String.valueOf(client.getID()));
+					ClientHeaders.writeSession(request, response, client);
+				} else {
+					response.setHeader("fh-client-id",
+							String.valueOf(-1));
+				}
+
+				// If the response so far is empty, respond with a message
+				// indicating that the server received an invalid message
+				if (responseMessage.isEmpty()) {
+					responseMessage.append("INVALID_REQUEST");
+				}
+
+				// Reply with the response, then the frame
+				responseMessage.writeTo(srvOutputStream);
+				FrameCodec.writeReset(srvOutputStream);
+				FrameCodec.writeFrame(srvOutputStream, latestFrame);
+			} catch (IOException e) {
+				Server.print(e);
+			} finally {
+				responseMessage.release();
+
+				// Return the frame to the pool
+				FramePool.release(latestFrame);
+			}
+		} catch (Exception e) {
+			Server.print(e);
+		} finally {
+			// Return the received frames to the pool if they were not relayed
+			for (Frame receivedFrame : receivedFrames) {
+				FramePool.release(receivedFrame);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,561 @@
+package srv;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking TCP listener used to relay frames.
+ * <p>
+ * Clients use the servlets to join a game, and may then open a TCP
+ * connection to relay frames with less overhead than an HTTP request.
+ * Every connection is served by a single thread, which waits on a
+ * {@link Selector}.
+ * </p>
+ * <p>
+ * Each message is a four byte length (big-endian), followed by that many
+ * bytes:
+ * <ul>
+ * <li>The first message sent by the client identifies it: an eight byte
+ * client ID (as issued by the server), the eight byte token issued in
+ * reply to a GET_UDP_TOKEN instruction, and the client's version (as
+ * would otherwise be sent in the user-agent header) in UTF-8. The
+ * connection is closed if the version is not permitted, or if the ID or
+ * token is not valid.</li>
+ * <li>Every other message sent by the client carries a frame: an eight
+ * byte key, followed by the frame's data. Frames are written to the
+ * client's partner.</li>
+ * <li>Messages sent by the server carry frames in the same form. A
+ * message with no body tells the client to back off, as its partner's
+ * priority queue is full.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Frames are only taken from a client once the previous frames sent to
+ * it have been written to its socket, so a slow connection is sent the
+ * newest frame rather than a backlog of old ones.
+ * </p>
+ * <p>
+ * Connections which have not identified themselves are only given a
+ * buffer large enough for the identification message, and at most
+ * {@link #MAX_UNIDENTIFIED_CONNECTIONS} of them are kept open at once.
+ * </p>
+ */
+public class TcpFrameServer implements Runnable {
+
+	/** The number of bytes used to send a message's length */
+	public static final int HEADER_LENGTH = 4;
+
+	/** The number of bytes used to send a frame's key */
+	public static final int KEY_LENGTH = 8;
+
+	/** The number of bytes used to send the client's token */
+	public static final int TOKEN_LENGTH = 8;
+
+	/** The longest message which can be received */
+	public static final int MAX_MESSAGE_LENGTH =
+			KEY_LENGTH + FramePool.MAX_CAPACITY;
+
+	/** The longest identification message which can be received */
+	public static final int MAX_IDENTIFY_LENGTH =
+			KEY_LENGTH + TOKEN_LENGTH + 256;
+
+	/** The most connections which can be open before identifying */
+	public static final int MAX_UNIDENTIFIED_CONNECTIONS = 64;
+
+	/** The most frames which can be waiting to be written to a socket */
+	private static final int MAX_QUEUED_FRAMES = 16;
+
+	/** The character set used for the client's version */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The selector used to wait for connections to become ready */
+	private final Selector selector;
+
+	/** The channel which accepts connections */
+	private final ServerSocketChannel serverChannel;
+
+	/** The connections with frames waiting to be sent */
+	private final ConcurrentLinkedQueue<Connection> pendingConnections;
+
+	/** The number of connections which have not identified themselves */
+	private int unidentifiedConnections;
+
+	/** The thread running the event loop */
+	private Thread thread;
+
+	/** Whether the event loop should keep running */
+	private volatile boolean running;
+
+
+	/**
+	 * Creates a new TCP frame server, bound to the address given.
+	 * @param address - the address to listen on (a port of 0 chooses
+	 * 					any free port)
+	 * @throws IOException if the address could not be bound
+	 */
+	public TcpFrameServer(InetSocketAddress address) throws IOException {
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.pendingConnections = new ConcurrentLinkedQueue<Connection>();
+		this.unidentifiedConnections = 0;
+		this.thread = null;
+		this.running = false;
+
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(address);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+
+	/**
+	 * Starts the event loop on a new (daemon) thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "TcpFrameServer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the event loop, and closes every connection.
+	 */
+	public synchronized void stop() {
+		running = false;
+		selector.wakeup();
+
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			thread = null;
+		}
+	}
+
+	/**
+	 * Gets the port the server is listening on.
+	 * @return the server's port
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+
+	/**
+	 * Runs the event loop until the server is stopped.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+
+				// Send frames written since the last iteration
+				Connection connection;
+				while ((connection = pendingConnections.poll()) != null) {
+					connection.pending.set(false);
+
+					try {
+						connection.send();
+					} catch (IOException | CancelledKeyException e) {
+						Server.print("Closing TCP connection: "
+								+ e.getMessage());
+						connection.close();
+					}
+				}
+
+				// Handle the connections which are ready
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					// Only close the connection if it can't be handled
+					try {
+						handleKey(key);
+					} catch (RuntimeException e) {
+						Server.print(e);
+
+						if (key.attachment() instanceof Connection) {
+							((Connection) key.attachment()).close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		} finally {
+			close();
+		}
+	}
+
+
+	/**
+	 * Handles a channel which is ready.
+	 * @param key - the channel's selection key
+	 */
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+
+		Connection connection = (Connection) key.attachment();
+
+		try {
+			if (key.isReadable()) {
+				connection.receive();
+			}
+
+			if (key.isValid() && key.isWritable()) {
+				connection.send();
+			}
+		} catch (IOException | CancelledKeyException e) {
+			Server.print("Closing TCP connection: " + e.getMessage());
+			connection.close();
+		}
+	}
+
+	/**
+	 * Accepts a waiting connection.
+	 */
+	private void accept() {
+		try {
+			SocketChannel channel = serverChannel.accept();
+
+			if (channel != null) {
+				// Refuse the connection if too many have not identified
+				// themselves
+				if (unidentifiedConnections >= MAX_UNIDENTIFIED_CONNECTIONS) {
+					Server.print("Refusing TCP connection: too many "
+							+ "unidentified connections");
+					channel.close();
+					return;
+				}
+
+				unidentifiedConnections++;
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				Connection connection = new Connection(channel);
+				connection.key = channel.register(selector,
+						SelectionKey.OP_READ, connection);
+			}
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+	/**
+	 * Closes every connection, and the server's channels.
+	 */
+	private void close() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+			}
+		}
+
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			Server.print(e);
+		}
+	}
+
+
+	/**
+	 * A connection from a single client.
+	 * <p>
+	 * Apart from {@link #frameWritten(Client)}, every method is called
+	 * on the event loop's thread.
+	 * </p>
+	 */
+	private class Connection implements FrameListener {
+
+		/** The connection's channel */
+		private final SocketChannel channel;
+
+		/** The connection's selection key */
+		private SelectionKey key;
+
+		/** The client connected, once it has identified itself */
+		private Client client;
+
+		/** The bytes received which have not been handled yet */
+		private ByteBuffer input;
+
+		/** The messages waiting to be written to the socket */
+		private final ArrayDeque<ByteBuffer> output;
+
+		/** Whether the connection is waiting to send frames */
+		private final AtomicBoolean pending;
+
+		/** Whether the connection has been closed */
+		private boolean closed;
+
+
+		/**
+		 * Creates a new connection.
+		 * @param channel - the connection's channel
+		 */
+		public Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.key = null;
+			this.client = null;
+			this.input = ByteBuffer.allocate(HEADER_LENGTH
+					+ MAX_IDENTIFY_LENGTH);
+			this.output = new ArrayDeque<ByteBuffer>();
+			this.pending = new AtomicBoolean(false);
+			this.closed = false;
+		}
+
+
+		@Override
+		public void frameWritten(Client client) {
+			// Wake the event loop, unless it is already going to send
+			if (pending.compareAndSet(false, true)) {
+				pendingConnections.add(this);
+				selector.wakeup();
+			}
+		}
+
+
+		/**
+		 * Reads from the socket, and handles every complete message.
+		 * @throws IOException if the socket could not be read, or a
+		 * 			message was invalid
+		 */
+		public void receive() throws IOException {
+			if (channel.read(input) < 0) {
+				throw new IOException("Connection closed by client");
+			}
+
+			input.flip();
+
+			while (input.remaining() >= HEADER_LENGTH) {
+				int length = input.getInt(input.position());
+				int maxLength = (client == null) ? MAX_IDENTIFY_LENGTH
+						: MAX_MESSAGE_LENGTH;
+
+				if (length < 0 || length > maxLength) {
+					throw new IOException("Invalid message length: " + length);
+				}
+
+				// Wait for the rest of the message
+				if (input.remaining() < HEADER_LENGTH + length) {
+					break;
+				}
+
+				input.position(input.position() + HEADER_LENGTH);
+				int end = input.position() + length;
+
+				if (client == null) {
+					identify(length);
+				} else {
+					relay(length);
+				}
+
+				input.position(end);
+			}
+
+			input.compact();
+
+			// Make room for frames once the client has identified itself
+			if (client != null && input.capacity() < HEADER_LENGTH
+					+ MAX_MESSAGE_LENGTH) {
+				ByteBuffer frameInput = ByteBuffer.allocate(HEADER_LENGTH
+						+ MAX_MESSAGE_LENGTH);
+				input.flip();
+				frameInput.put(input);
+				input = frameInput;
+			}
+		}
+
+		/**
+		 * Writes as many waiting messages to the socket as possible,
+		 * taking more frames from the client once they have been written.
+		 * @throws IOException if the socket could not be written to
+		 */
+		public void send() throws IOException {
+			if (!key.isValid()) {
+				return;
+			}
+
+			while (true) {
+				// Take frames from the client once the others are written
+				if (output.isEmpty() && client != null) {
+					Frame frame;
+					while (output.size() < MAX_QUEUED_FRAMES
+							&& (frame = client.readLatestFrame()) != null) {
+						output.add(encode(frame));
+						FramePool.release(frame);
+					}
+				}
+
+				ByteBuffer message = output.peek();
+
+				if (message == null) {
+					break;
+				}
+
+				channel.write(message);
+
+				// Wait for the socket to accept the rest of the message
+				if (message.hasRemaining()) {
+					break;
+				}
+
+				output.poll();
+			}
+
+			key.interestOps(output.isEmpty() ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		/**
+		 * Closes the connection, and detaches it from its client.
+		 */
+		public void close() {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+
+			if (client != null) {
+				client.removeFrameListener(this);
+				Server.print("Client " + client.getID()
+						+ " closed a TCP connection");
+			} else {
+				unidentifiedConnections--;
+			}
+
+			if (key != null) {
+				key.cancel();
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Server.print(e);
+			}
+		}
+
+
+		/**
+		 * Attaches the connection to the client identified by the
+		 * message in the input buffer.
+		 * @param length - the length of the message
+		 * @throws IOException if the client could not be identified
+		 */
+		private void identify(int length) throws IOException {
+			if (length < KEY_LENGTH + TOKEN_LENGTH) {
+				throw new IOException("Invalid identification");
+			}
+
+			long id = input.getLong();
+			long token = input.getLong();
+			byte[] version = new byte[length - KEY_LENGTH - TOKEN_LENGTH];
+			input.get(version);
+
+			// Check the client's version
+			if (!Server.isVersionPermitted(new String(version, UTF_8))) {
+				throw new IOException("Invalid version");
+			}
+
+			// Find the client, and check its token
+			Client identified = Server.getClientFromID(id);
+			if (identified == null || identified.getUdpToken() != token) {
+				throw new IOException("Invalid client: " + id);
+			}
+
+			client = identified;
+			unidentifiedConnections--;
+			client.updateLastConnectionTime();
+			client.addFrameListener(this);
+			Server.print("Client " + id + " opened a TCP connection");
+
+			// Send anything which arrived before the connection was opened
+			send();
+		}
+
+		/**
+		 * Writes the frame in the input buffer to the client's partner.
+		 * @param length - the length of the message
+		 * @throws IOException if the message was not a frame, or the
+		 * 			client could not be told to back off
+		 */
+		private void relay(int length) throws IOException {
+			if (length < KEY_LENGTH) {
+				throw new IOException("Invalid frame");
+			}
+
+			client.updateLastConnectionTime();
+			Client partner = client.getPartner();
+
+			if (partner == null) {
+				return;
+			}
+
+			// Copy the message into a frame
+			long frameKey = input.getLong();
+			int frameLength = length - KEY_LENGTH;
+			Frame frame = FramePool.acquire(frameLength);
+			input.get(frame.getBuffer(), 0, frameLength);
+			frame.setKey(frameKey);
+			frame.setRegion(0, frameLength);
+
+			// Tell the client to back off if its partner's priority queue
+			// is full
+			if (!partner.writeFrame(frame)) {
+				ByteBuffer backpressure = ByteBuffer.allocate(HEADER_LENGTH);
+				backpressure.putInt(0);
+				backpressure.flip();
+				output.add(backpressure);
+				send();
+			}
+		}
+
+		/**
+		 * Encodes a frame as a message.
+		 * @param frame - the frame to encode
+		 * @return a buffer holding the message
+		 */
+		private ByteBuffer encode(Frame frame) {
+			ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH
+					+ KEY_LENGTH + frame.getLength());
+			message.putInt(KEY_LENGTH + frame.getLength());
+			message.putLong(frame.getKey());
+			message.put(frame.getBuffer(), frame.getOffset(),
+					frame.getLength());
+			message.flip();
+
+			return message;
+		}
+
+	}
+
+}
@@ -0,0 +1,69 @@
+package srv;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts and stops the transports which run alongside the servlets.
+ * <p>
+ * The TCP and UDP frame servers are started when the application
+ * starts, if {@link Server#tcpPort} and {@link Server#udpPort} are set
+ * (using the fh.tcpPort and fh.udpPort system properties), and are
+ * stopped when the application stops.
+ * </p>
+ */
+@WebListener
+public class TransportListener implements ServletContextListener {
+
+	/** The TCP frame server, if it is running */
+	private TcpFrameServer tcpFrameServer;
+
+	/** The UDP frame server, if it is running */
+	private UdpFrameServer udpFrameServer;
+
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		if (Server.tcpPort >= 0) {
+			try {
+				tcpFrameServer = new TcpFrameServer(
+						new InetSocketAddress(Server.tcpPort));
+				tcpFrameServer.start();
+				Server.print("Relaying frames over TCP on port "
+						+ tcpFrameServer.getPort());
+			} catch (IOException e) {
+				Server.print(e);
+			}
+		}
+
+		if (Server.udpPort >= 0) {
+			try {
+				udpFrameServer = new UdpFrameServer(
+						new InetSocketAddress(Server.udpPort));
+				udpFrameServer.start();
+				Server.print("Relaying frames over UDP on port "
+						+ udpFrameServer.getPort());
+			} catch (IOException e) {
+				Server.print(e);
+			}
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		if (tcpFrameServer != null) {
+			tcpFrameServer.stop();
+			tcpFrameServer = null;
+		}
+
+		if (udpFrameServer != null) {
+			udpFrameServer.stop();
+			udpFrameServer = null;
+		}
+	}
+
+}
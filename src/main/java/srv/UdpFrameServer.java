@@ -0,0 +1,222 @@
+package srv;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A UDP listener used to relay (non-priority) frames.
+ * <p>
+ * Non-priority frames only matter until a newer frame arrives, so they
+ * can be relayed over UDP without retransmission: a lost frame is
+ * superseded by the next one, and is never waited for. Priority frames
+ * must still be sent through the servlets (or the TCP frame server).
+ * </p>
+ * <p>
+ * Each packet sent by a client starts with its ID and the token issued
+ * to it by the GET_UDP_TOKEN instruction (eight bytes each). This is
+ * followed by a frame - an eight byte key, then the frame's data - which
+ * is written to the client's partner, or by nothing if the client only
+ * wants to receive frames. Packets which are not authenticated are
+ * dropped.
+ * </p>
+ * <p>
+ * Each packet is replied to with the client's latest non-priority frame
+ * (an eight byte key, then the frame's data), if it has one.
+ * </p>
+ */
+public class UdpFrameServer implements Runnable {
+
+	/** The number of bytes used to send the client's ID and token */
+	public static final int HEADER_LENGTH = 16;
+
+	/** The number of bytes used to send a frame's key */
+	public static final int KEY_LENGTH = 8;
+
+	/** The longest UDP packet which can be sent */
+	public static final int MAX_PACKET_LENGTH = 65507;
+
+	/** The channel used to send and receive packets */
+	private final DatagramChannel channel;
+
+	/** The buffer packets are received into */
+	private final ByteBuffer receiveBuffer;
+
+	/** The buffer replies are written to */
+	private final ByteBuffer sendBuffer;
+
+	/** The thread receiving packets */
+	private Thread thread;
+
+	/** Whether the server should keep receiving packets */
+	private volatile boolean running;
+
+
+	/**
+	 * Creates a new UDP frame server, bound to the address given.
+	 * @param address - the address to listen on (a port of 0 chooses
+	 * 					any free port)
+	 * @throws IOException if the address could not be bound
+	 */
+	public UdpFrameServer(InetSocketAddress address) throws IOException {
+		this.channel = DatagramChannel.open();
+		this.receiveBuffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+		this.sendBuffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+		this.thread = null;
+		this.running = false;
+
+		channel.bind(address);
+	}
+
+
+	/**
+	 * Starts receiving packets on a new (daemon) thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "UdpFrameServer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops receiving packets, and closes the channel.
+	 */
+	public synchronized void stop() {
+		running = false;
+
+		try {
+			// Closing the channel interrupts the receiving thread
+			channel.close();
+		} catch (IOException e) {
+			Server.print(e);
+		}
+
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			thread = null;
+		}
+	}
+
+	/**
+	 * Gets the port the server is listening on.
+	 * @return the server's port
+	 */
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+
+	/**
+	 * Receives packets until the server is stopped.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				receiveBuffer.clear();
+				SocketAddress sender = channel.receive(receiveBuffer);
+				receiveBuffer.flip();
+
+				handlePacket(sender);
+			} catch (ClosedChannelException e) {
+				// The server has been stopped
+				break;
+			} catch (IOException e) {
+				Server.print(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Handles the packet in the receive buffer.
+	 * @param sender - the address the packet was sent from
+	 * @throws IOException if the reply could not be sent
+	 */
+	private void handlePacket(SocketAddress sender) throws IOException {
+		Client client = authenticate();
+
+		if (client == null) {
+			Metrics.increment(Metrics.UDP_PACKETS_REJECTED);
+			return;
+		}
+
+		client.updateLastConnectionTime();
+
+		// Relay the frame, if the packet carries one
+		if (receiveBuffer.remaining() >= KEY_LENGTH) {
+			long key = receiveBuffer.getLong();
+			Client partner = client.getPartner();
+
+			if (key == -1) {
+				// Priority frames must be sent reliably
+				Metrics.increment(Metrics.UDP_PACKETS_REJECTED);
+			} else if (partner != null) {
+				// Copy the packet into a frame
+				int length = receiveBuffer.remaining();
+				Frame frame = FramePool.acquire(length);
+				receiveBuffer.get(frame.getBuffer(), 0, length);
+				frame.setKey(key);
+				frame.setRegion(0, length);
+
+				partner.writeFrame(frame);
+			}
+		}
+
+		// Reply with the client's latest frame
+		Frame frame = client.readLatestStateFrame();
+
+		if (frame == null) {
+			return;
+		}
+
+		try {
+			// Frames too long for a packet are dropped
+			if (KEY_LENGTH + frame.getLength() <= sendBuffer.capacity()) {
+				sendBuffer.clear();
+				sendBuffer.putLong(frame.getKey());
+				sendBuffer.put(frame.getBuffer(), frame.getOffset(),
+						frame.getLength());
+				sendBuffer.flip();
+
+				channel.send(sendBuffer, sender);
+			}
+		} finally {
+			FramePool.release(frame);
+		}
+	}
+
+	/**
+	 * Reads the header of the packet in the receive buffer, and finds
+	 * the client which sent it.
+	 * @return the client which sent the packet, or <code>null</code> if
+	 * 			the packet was not sent by a valid client
+	 */
+	private Client authenticate() {
+		if (receiveBuffer.remaining() < HEADER_LENGTH) {
+			return null;
+		}
+
+		long id = receiveBuffer.getLong();
+		long token = receiveBuffer.getLong();
+		Client client = Server.getClientFromID(id);
+
+		if (client == null || client.getUdpToken() != token) {
+			return null;
+		}
+
+		return client;
+	}
+
+}
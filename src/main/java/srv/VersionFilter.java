@@ -0,0 +1,55 @@
+package srv;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Hides the servlets from clients which are not permitted.
+ * <p>
+ * Requests whose user-agent header is not a permitted version (see
+ * {@link Server#isVersionPermitted(String)}) are replied to with a 404
+ * (page not found) status code, and are not passed on to the servlets.
+ * </p>
+ * <p>
+ * The permitted versions are read from an immutable snapshot, so
+ * requests are checked without locking.
+ * </p>
+ */
+@WebFilter(urlPatterns = { "/msg", "/data", "/sync" }, asyncSupported = true)
+public class VersionFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+		//
+	}
+
+	@Override
+	public void doFilter(ServletRequest servletRequest,
+			ServletResponse servletResponse, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) servletRequest;
+		HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+		if (!Server.isVersionPermitted(request.getHeader("user-agent"))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		chain.doFilter(servletRequest, servletResponse);
+	}
+
+	@Override
+	public void destroy() {
+		//
+	}
+
+}
@@ -0,0 +1,127 @@
+package srv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An immutable set of permitted client versions.
+ * <p>
+ * Versions ending in '*' are prefix rules, which permit every version
+ * starting with the rest of the rule (so "Fly-Hard-0.6.*" permits
+ * "Fly-Hard-0.6.1"). Other versions must be matched exactly.
+ * </p>
+ * <p>
+ * Changes are made by creating a new set, so a set can be read by any
+ * number of threads without locking.
+ * </p>
+ */
+public final class VersionSet {
+
+	/** The character which marks a version as a prefix rule */
+	private static final char WILDCARD = '*';
+
+	/** The set with no versions */
+	public static final VersionSet EMPTY =
+			new VersionSet(new ArrayList<String>());
+
+	/** The versions in the set, in the order they were added */
+	private final List<String> versions;
+
+	/** The versions which must be matched exactly */
+	private final HashSet<String> exactVersions;
+
+	/** The prefixes of the prefix rules */
+	private final String[] prefixes;
+
+
+	/**
+	 * Creates a new version set.
+	 * @param versions - the versions in the set (which must not be
+	 * 					changed once the set has been created)
+	 */
+	private VersionSet(ArrayList<String> versions) {
+		this.versions = Collections.unmodifiableList(versions);
+		this.exactVersions = new HashSet<String>();
+
+		ArrayList<String> prefixList = new ArrayList<String>();
+		for (String version : versions) {
+			if (version.length() > 0
+					&& version.charAt(version.length() - 1) == WILDCARD) {
+				prefixList.add(version.substring(0, version.length() - 1));
+			} else {
+				exactVersions.add(version);
+			}
+		}
+
+		this.prefixes = prefixList.toArray(new String[prefixList.size()]);
+	}
+
+
+	/**
+	 * Checks whether a version is permitted by the set.
+	 * @param version - the version to check
+	 * @return <code>true</code> if the version is in the set, or matches
+	 * 			one of its prefix rules, otherwise <code>false</code>
+	 */
+	public boolean permits(String version) {
+		if (version == null) {
+			return false;
+		}
+
+		if (exactVersions.contains(version)) {
+			return true;
+		}
+
+		for (String prefix : prefixes) {
+			if (version.startsWith(prefix)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Creates a set with a version added.
+	 * @param version - the version (or prefix rule) to add
+	 * @return the new set, or this set if it already holds the version
+	 */
+	public VersionSet with(String version) {
+		if (version == null || versions.contains(version)) {
+			return this;
+		}
+
+		ArrayList<String> newVersions = new ArrayList<String>(versions);
+		newVersions.add(version);
+
+		return new VersionSet(newVersions);
+	}
+
+	/**
+	 * Creates a set with a version removed.
+	 * @param version - the version (or prefix rule) to remove
+	 * @return the new set, or this set if it does not hold the version
+	 */
+	public VersionSet without(String version) {
+		if (version == null || !versions.contains(version)) {
+			return this;
+		}
+
+		ArrayList<String> newVersions = new ArrayList<String>(versions);
+		newVersions.remove(version);
+
+		return new VersionSet(newVersions);
+	}
+
+	/**
+	 * Gets the versions in the set.
+	 * @return a read-only list of the versions (and prefix rules) in the
+	 * 			set, in the order they were added
+	 */
+	public List<String> getVersions() {
+		return versions;
+	}
+
+}
@@ -2,6 +2,7 @@
 <%@ page contentType="text/html; charset=ISO-8859-1"%>
 <%@ page buffer="20kb"%>
 
+<%@ page import="srv.LockProfiler"%>
 <%@ page import="srv.Server"%>
 
 <!DOCTYPE html PUBLIC "-//W3C//DTD HTML 4.01 Transitional//EN"
@@ -41,6 +42,12 @@
 				<td><input type="text" name="remver"></td>
 				<td><input type="submit" value="Remove" /></td>
 			</tr>
+
+			<tr>
+				<td>Clear versions:</td>
+				<td></td>
+				<td><input type="submit" name="clearver" value="Clear" /></td>
+			</tr>
 		</table>
 
 		<%
@@ -56,13 +63,9 @@
 	<p>Allowed versions:</p>
 	
 	<%
-		synchronized (Server.getPermittedVersions()) {
-			if (Server.getPermittedVersions() != null) {
-				for (int i = 0; i < Server.getPermittedVersions().size(); i++) {
-					out.println(Server.getPermittedVersions().get(i));
-					out.println("<br>");
-				}
-			}
+		for (String version : Server.getPermittedVersions()) {
+			out.println(version);
+			out.println("<br>");
 		}
 	%>
 	
@@ -131,5 +134,58 @@
 
 	</section>
 
+	<section class='col-xs-12'>
+
+	<p>Lock contention (times in ms, sampled every
+		<% out.print(Server.lockSampleInterval); %> ms):</p>
+
+	<form action="admin" method="GET">
+		Sample interval (at least <% out.print(LockProfiler.MIN_INTERVAL); %> ms): <input type="text" name="locksampleinterval">
+		<button type="submit" name="lockprofiler" value="start">Start</button>
+		<button type="submit" name="lockprofiler" value="stop">Stop</button>
+		<button type="submit" name="lockprofiler" value="clear">Clear</button>
+		<%
+			out.println("<input type=\"hidden\" name=\"pass\" value=\""
+					+ ((request.getParameter("pass") != null) ? request
+							.getParameter("pass") : "") + "\" />");
+		%>
+	</form>
+
+	<p>
+		<% out.print(LockProfiler.isRunning() ? "Sampling" : "Not sampling"); %>
+	</p>
+
+	<table border="0">
+		<tr>
+			<th>Lock</th>
+			<th>Held by</th>
+			<th>Held</th>
+			<th>Others waited</th>
+		</tr>
+
+		<%
+			for (LockProfiler.LockStats lock : LockProfiler.getStats()) {
+				out.println("<tr>");
+				out.println("<td>" + lock.getName() + "</td>");
+				out.println("<td>(all)</td>");
+				out.println("<td>" + lock.getHeldTime() + "</td>");
+				out.println("<td>" + lock.getWaitTime() + "</td>");
+				out.println("</tr>");
+
+				for (LockProfiler.LockStats site : lock.getCallSites()) {
+					out.println("<tr>");
+					out.println("<td></td>");
+					out.println("<td>" + site.getName() + "</td>");
+					out.println("<td>" + site.getHeldTime() + "</td>");
+					out.println("<td>" + site.getWaitTime() + "</td>");
+					out.println("</tr>");
+				}
+			}
+		%>
+
+	</table>
+
+	</section>
+
 </body>
 </html>
\ No newline at end of file
@@ -2,6 +2,7 @@
 <%@ page contentType="text/html; charset=ISO-8859-1"%>
 <%@ page buffer="20kb"%>
 
+<%@ page import="srv.Histogram"%>
 <%@ page import="srv.Server"%>
 
 <!DOCTYPE html PUBLIC "-//W3C//DTD HTML 4.01 Transitional//EN"
@@ -39,6 +40,18 @@
 							out.print("HOST");
 						}
 						out.print("</td>");
+						out.print("<td>");
+						if (Server.getClients().get(i).getPartner() != null) {
+							// Show how stale the frames from the partner are
+							Histogram relayLatency =
+									Server.getClients().get(i).getRelayLatency();
+							out.print("relay p50 "
+									+ relayLatency.getPercentile(50) + "us, p99 "
+									+ relayLatency.getPercentile(99) + "us, "
+									+ Server.getClients().get(i).getSupersededFrames()
+									+ " superseded");
+						}
+						out.print("</td>");
 						out.print("</tr>");
 					}
 				}
@@ -0,0 +1,257 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import srv.AdmissionController;
+import srv.AdmissionController.Traffic;
+import srv.AdmissionFilter;
+import srv.Client;
+import srv.Metrics;
+import srv.Server;
+
+public class AdmissionControllerTest {
+
+	/** The in-flight limit to restore after each test */
+	private int maxInFlightRequests;
+
+	/** The client limit to restore after each test */
+	private int maxClients;
+
+	/** The number of requests in flight before each test */
+	private int inFlightRequests;
+
+
+	/**
+	 * Resets the server, and sets a small in-flight limit.
+	 */
+	@Before
+	public void setUpAdmissionController() {
+		Server.reset();
+		maxInFlightRequests = Server.maxInFlightRequests;
+		maxClients = Server.maxClients;
+		inFlightRequests = AdmissionController.getInFlightRequests();
+		Server.maxInFlightRequests = 8;
+	}
+
+	/**
+	 * Finishes the requests admitted by each test, and restores the
+	 * server's limits.
+	 */
+	@After
+	public void tearDownAdmissionController() {
+		while (AdmissionController.getInFlightRequests() > inFlightRequests) {
+			AdmissionController.exit();
+		}
+
+		Server.maxInFlightRequests = maxInFlightRequests;
+		Server.maxClients = maxClients;
+		AdmissionController.reset();
+	}
+
+
+	/**
+	 * Tests that new clients are shed first, then lobby traffic, and that
+	 * relay traffic is only shed at the in-flight limit.
+	 */
+	@Test
+	public void testShedOrder() {
+		// Fill the server half way to its limit
+		for (int i = 0; i < 4; i++) {
+			assertTrue("Relay traffic was shed",
+					AdmissionController.enter(Traffic.RELAY));
+		}
+
+		assertFalse("A new client was admitted",
+				AdmissionController.enter(Traffic.NEW_CLIENT));
+		assertTrue("Lobby traffic was shed",
+				AdmissionController.enter(Traffic.LOBBY));
+
+		// Fill the server three quarters of the way to its limit
+		assertTrue("Relay traffic was shed",
+				AdmissionController.enter(Traffic.RELAY));
+		assertFalse("Lobby traffic was admitted",
+				AdmissionController.enter(Traffic.LOBBY));
+
+		// Fill the server
+		for (int i = 0; i < 2; i++) {
+			assertTrue("Relay traffic was shed",
+					AdmissionController.enter(Traffic.RELAY));
+		}
+
+		assertFalse("Relay traffic was admitted beyond the limit",
+				AdmissionController.enter(Traffic.RELAY));
+		assertEquals("The wrong number of requests are in flight",
+				8, AdmissionController.getInFlightRequests());
+		assertEquals("The shed relay request was not counted", 1,
+				Metrics.getCount(Metrics.labelled(Metrics.REQUESTS_SHED,
+						"traffic", "relay")));
+
+		// Finish the requests
+		for (int i = 0; i < 8; i++) {
+			AdmissionController.exit();
+		}
+
+		assertTrue("A new client was shed once the server was idle",
+				AdmissionController.enter(Traffic.NEW_CLIENT));
+	}
+
+	/**
+	 * Tests that new clients are shed once the server is full.
+	 */
+	@Test
+	public void testShedWhenFull() {
+		Server.maxClients = 1;
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		assertFalse("A new client was admitted to a full server",
+				AdmissionController.enter(Traffic.NEW_CLIENT));
+		assertTrue("An existing client was shed",
+				AdmissionController.enter(Traffic.LOBBY));
+	}
+
+	/**
+	 * Tests that the filter sheds requests with a retry hint, and counts
+	 * the requests it admits until they are handled.
+	 */
+	@Test
+	public void testFilter() throws IOException, ServletException {
+		AdmissionFilter filter = new AdmissionFilter();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+
+		HttpServletRequest relay = mock(HttpServletRequest.class);
+		when(relay.getHeader("fh-client-id")).thenReturn("3");
+		when(relay.getServletPath()).thenReturn("/data");
+
+		filter.doFilter(relay, response, chain);
+		verify(chain).doFilter(relay, response);
+		assertEquals("The handled request is still in flight",
+				0, AdmissionController.getInFlightRequests());
+
+		// Fill the server half way to its limit
+		for (int i = 0; i < 4; i++) {
+			AdmissionController.enter(Traffic.RELAY);
+		}
+
+		HttpServletRequest newClient = mock(HttpServletRequest.class);
+		when(newClient.getHeader("fh-client-id")).thenReturn("-1");
+		when(newClient.getServletPath()).thenReturn("/msg");
+
+		filter.doFilter(newClient, response, chain);
+		verify(chain, never()).doFilter(newClient, response);
+		verify(response).setStatus(
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		verify(response).setHeader("Retry-After", String.valueOf(
+				Traffic.NEW_CLIENT.getRetryAfter()));
+	}
+
+	/**
+	 * Tests that syncs are shed as lobby traffic unless the client has a
+	 * partner, and that instructions found in a sync are shed as lobby
+	 * traffic.
+	 */
+	@Test
+	public void testFilterSync() throws IOException, ServletException {
+		AdmissionFilter filter = new AdmissionFilter();
+		FilterChain chain = mock(FilterChain.class);
+		
+		Client client = Server.handleClient(-1, "TEST_CLIENT1", true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2", true, 0, 0);
+		Client lobbyClient = Server.handleClient(-1, "TEST_CLIENT3",
+				false, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+
+		// Fill the server three quarters of the way to its limit
+		for (int i = 0; i < 6; i++) {
+			AdmissionController.enter(Traffic.RELAY);
+		}
+
+		HttpServletResponse lobbyResponse = mock(HttpServletResponse.class);
+		HttpServletRequest lobbySync = sync(lobbyClient);
+		filter.doFilter(lobbySync, lobbyResponse, chain);
+		verify(chain, never()).doFilter(lobbySync, lobbyResponse);
+		verify(lobbyResponse).setHeader("Retry-After",
+				String.valueOf(Traffic.LOBBY.getRetryAfter()));
+
+		HttpServletResponse relayResponse = mock(HttpServletResponse.class);
+		HttpServletRequest relaySync = sync(client);
+		filter.doFilter(relaySync, relayResponse, chain);
+		verify(chain).doFilter(relaySync, relayResponse);
+
+		// An admitted sync which carries an instruction is shed
+		assertTrue("Relay traffic was shed",
+				AdmissionController.enter(Traffic.RELAY));
+		assertFalse("An instruction was still admitted",
+				AdmissionController.stillAdmits(Traffic.LOBBY));
+		assertTrue("Relay traffic was not still admitted",
+				AdmissionController.stillAdmits(Traffic.RELAY));
+	}
+
+	/**
+	 * Tests that requests handled asynchronously have their latency
+	 * recorded when the servlet returns, and are counted as in flight
+	 * until they complete.
+	 */
+	@Test
+	public void testFilterAsync() throws IOException, ServletException {
+		AdmissionFilter filter = new AdmissionFilter();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+		AsyncContext asyncContext = mock(AsyncContext.class);
+
+		HttpServletRequest relay = mock(HttpServletRequest.class);
+		when(relay.getHeader("fh-client-id")).thenReturn("3");
+		when(relay.getServletPath()).thenReturn("/data");
+		when(relay.isAsyncStarted()).thenReturn(true);
+		when(relay.getAsyncContext()).thenReturn(asyncContext);
+
+		filter.doFilter(relay, response, chain);
+		assertEquals("The request's latency was not recorded", 1,
+				Metrics.getHistogram(Metrics.labelled(
+						Metrics.REQUEST_LATENCY, "endpoint", "/data"))
+						.getCount());
+		assertEquals("The request is not in flight until it completes",
+				1, AdmissionController.getInFlightRequests());
+
+		// Complete the request
+		ArgumentCaptor<AsyncListener> listener =
+				ArgumentCaptor.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listener.capture());
+		listener.getValue().onComplete(null);
+
+		assertEquals("The completed request is still in flight",
+				0, AdmissionController.getInFlightRequests());
+	}
+
+
+	/**
+	 * Creates a sync request from a client.
+	 * @param client - the client sending the request
+	 * @return the request
+	 */
+	private static HttpServletRequest sync(Client client) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("fh-client-id")).thenReturn(
+				String.valueOf(client.getID()));
+		when(request.getServletPath()).thenReturn("/sync");
+
+		return request;
+	}
+
+}
@@ -13,7 +13,26 @@ import org.junit.runners.Suite.SuiteClasses;
 	ServerTest.class,
 	ServerTimeoutTest.class,
 	MessageServletTest.class,
-	DataServletTest.class
+	DataServletTest.class,
+	BodyReaderTest.class,
+	FramePoolTest.class,
+	FrameQueueTest.class,
+	MailboxTest.class,
+	GameSocketTest.class,
+	EventServletTest.class,
+	SyncServletTest.class,
+	DeltaCodecTest.class,
+	PriorityChannelTest.class,
+	TcpFrameServerTest.class,
+	UdpFrameServerTest.class,
+	InstructionTableTest.class,
+	HistogramTest.class,
+	ResponseWriterTest.class,
+	RateLimiterTest.class,
+	AdmissionControllerTest.class,
+	ClientHeadersTest.class,
+	MetricsTest.class,
+	LockProfilerTest.class
 })
 public class AllTests {
 	// Runs all tests
@@ -0,0 +1,191 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.BodyReader;
+import srv.Metrics;
+import srv.Server;
+
+public class BodyReaderTest {
+
+	/**
+	 * Resets the server (and so the metrics counters).
+	 */
+	@Before
+	public void setUpServer() {
+		Server.reset();
+	}
+
+
+	/**
+	 * Tests that instruction strings are read correctly.
+	 */
+	@Test
+	public void testReadString() throws IOException {
+		assertEquals("The string read does not match the string sent",
+				"GET_HIGH_SCORES", read("GET_HIGH_SCORES"));
+	}
+
+	/**
+	 * Tests that null bodies are read correctly.
+	 */
+	@Test
+	public void testReadNull() throws IOException {
+		assertNull("A null body was not read as null",
+				read(null));
+	}
+
+	/**
+	 * Tests that data entries are read correctly.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testReadDataEntry() throws IOException {
+		Entry<Long, byte[]> sent = new SimpleImmutableEntry<Long, byte[]>(
+				1000L, "TEST_DATA".getBytes());
+
+		Entry<Long, byte[]> read = (Entry<Long, byte[]>)
+				read(sent);
+
+		assertEquals("The key read does not match the key sent",
+				Long.valueOf(1000L), read.getKey());
+		assertEquals("The data read does not match the data sent",
+				"TEST_DATA", new String(read.getValue()));
+		assertEquals("A valid body was counted as rejected",
+				0, Metrics.getCount(Metrics.BODIES_REJECTED));
+	}
+
+	/**
+	 * Tests that classes which are not permitted are rejected.
+	 */
+	@Test
+	public void testRejectClassNotPermitted() throws IOException {
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("TEST");
+
+		assertRejected(serialise(list), -1);
+	}
+
+	/**
+	 * Tests that deeply nested objects are rejected.
+	 */
+	@Test
+	public void testRejectDeepNesting() throws IOException {
+		Object nested = "TEST";
+		for (int i = 0; i < BodyReader.maxDepth + 1; i++) {
+			nested = new SimpleImmutableEntry<Long, Object>(0L, nested);
+		}
+
+		assertRejected(serialise(nested), -1);
+	}
+
+	/**
+	 * Tests that arrays longer than the maximum array length are rejected.
+	 */
+	@Test
+	public void testRejectLongArray() throws IOException {
+		assertRejected(serialise(new SimpleImmutableEntry<Long, byte[]>(
+				0L, new byte[BodyReader.maxArrayLength + 1])), -1);
+	}
+
+	/**
+	 * Tests that bodies longer than the maximum body length are rejected,
+	 * both with and without a content length.
+	 */
+	@Test
+	public void testRejectLongBody() throws IOException {
+		int maxArrayLength = BodyReader.maxArrayLength;
+
+		try {
+			BodyReader.maxArrayLength = Integer.MAX_VALUE;
+
+			assertRejected(serialise(new byte[BodyReader.maxBodyBytes]), -1);
+			assertRejected(serialise("TEST"), BodyReader.maxBodyBytes + 1);
+			assertEquals("Rejected bodies were not counted",
+					2, Metrics.getCount(Metrics.BODIES_REJECTED));
+		} finally {
+			BodyReader.maxArrayLength = maxArrayLength;
+		}
+	}
+
+	/**
+	 * Tests that truncated bodies are rejected.
+	 */
+	@Test
+	public void testRejectTruncatedBody() throws IOException {
+		byte[] body = serialise(new SimpleImmutableEntry<Long, byte[]>(
+				0L, new byte[64]));
+
+		assertRejected(new ByteArrayInputStream(body, 0, body.length - 1), -1);
+	}
+
+
+	/**
+	 * Checks that a body is rejected, and that the rejection is counted.
+	 * @param body - the body to read
+	 * @param contentLength - the content length to read the body with
+	 */
+	private static void assertRejected(byte[] body,
+			int contentLength) throws IOException {
+		assertRejected(new ByteArrayInputStream(body), contentLength);
+	}
+
+	/**
+	 * Checks that a body is rejected, and that the rejection is counted.
+	 * @param body - the stream to read the body from
+	 * @param contentLength - the content length to read the body with
+	 */
+	private static void assertRejected(ByteArrayInputStream body,
+			int contentLength) throws IOException {
+		long rejected = Metrics.getCount(Metrics.BODIES_REJECTED);
+
+		try {
+			BodyReader.readObject(body, contentLength);
+			fail("The body was not rejected");
+		} catch (ObjectStreamException e) {
+			// Expected
+		}
+
+		assertEquals("The rejected body was not counted",
+				rejected + 1, Metrics.getCount(Metrics.BODIES_REJECTED));
+	}
+
+	/**
+	 * Serialises an object, then reads it back with the body reader.
+	 * @param object - the object to serialise
+	 * @return the object read
+	 */
+	private static Object read(Object object) throws IOException {
+		return BodyReader.readObject(
+				new ByteArrayInputStream(serialise(object)), -1);
+	}
+
+	/**
+	 * Serialises an object.
+	 * @param object - the object to serialise
+	 * @return the serialised object
+	 */
+	private static byte[] serialise(Object object)
+			throws IOException {
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutputStream =
+				new ObjectOutputStream(byteArrayOutputStream);
+		objectOutputStream.writeObject(object);
+		objectOutputStream.close();
+
+		return byteArrayOutputStream.toByteArray();
+	}
+
+}
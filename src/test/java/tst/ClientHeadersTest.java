@@ -0,0 +1,112 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Client;
+import srv.ClientHeaders;
+import srv.Server;
+
+public class ClientHeadersTest {
+
+	/**
+	 * Resets the server.
+	 */
+	@Before
+	public void setUpClientHeaders() {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+	}
+
+
+	/**
+	 * Tests that missing and malformed headers are treated as though they
+	 * had not been sent, without anything being logged.
+	 */
+	@Test
+	public void testMalformedHeaders() {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 3, 10);
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("fh-client-id"))
+				.thenReturn(String.valueOf(client.getID()));
+		when(request.getHeader("fh-client-lives")).thenReturn("");
+		when(request.getHeader("fh-client-score")).thenReturn("12x");
+
+		int logLength = Server.getSysout().size();
+
+		assertSame("The client was not found",
+				client, ClientHeaders.handleClient(request));
+		assertEquals("The lives were not defaulted", -1, client.getLives());
+		assertEquals("The score was not defaulted", 0, client.getScore());
+		assertEquals("Malformed headers were logged",
+				logLength, Server.getSysout().size());
+	}
+
+	/**
+	 * Tests that a client is told its session, and can then report only
+	 * the state which has changed.
+	 */
+	@Test
+	public void testSession() {
+		HttpServletRequest firstRequest = mock(HttpServletRequest.class);
+		when(firstRequest.getHeader("fh-client-id")).thenReturn("-1");
+		when(firstRequest.getHeader("fh-client-name")).thenReturn("FIRST");
+		HttpServletResponse firstResponse = mock(HttpServletResponse.class);
+
+		Client client = ClientHeaders.handleClient(firstRequest);
+		client.setLives(3);
+		ClientHeaders.writeSession(firstRequest, firstResponse, client);
+		verify(firstResponse).setHeader("fh-client-session",
+				client.getSession());
+
+		// Send only the score and name
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("fh-client-session"))
+				.thenReturn(client.getSession());
+		when(request.getHeader("fh-client-state"))
+				.thenReturn("score=25;host=true;name=A;B");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		assertEquals("The session's ID was not read",
+				String.valueOf(client.getID()),
+				ClientHeaders.getClientID(request));
+		assertSame("The session was not resumed",
+				client, ClientHeaders.handleClient(request));
+		ClientHeaders.writeSession(request, response, client);
+
+		assertEquals("The score was not updated", 25, client.getScore());
+		assertTrue("The host status was not updated", client.isHost());
+		assertEquals("The name was not updated", "A;B", client.getName());
+		assertEquals("The lives were changed", 3, client.getLives());
+		verify(response, never()).setHeader(eq("fh-client-session"),
+				anyString());
+		verify(request, never()).getHeader("fh-client-lives");
+	}
+
+	/**
+	 * Tests that sessions with the wrong token are refused.
+	 */
+	@Test
+	public void testInvalidSession() {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		String[] sessions = new String[] {
+				client.getID() + ".1", client.getID() + ".", "",
+				"." + client.getSession(), "x" + client.getSession()
+		};
+
+		for (String session : sessions) {
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getHeader("fh-client-session")).thenReturn(session);
+
+			assertNull("The session " + session + " was accepted",
+					ClientHeaders.handleClient(request));
+		}
+	}
+
+}
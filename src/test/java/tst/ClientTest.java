@@ -3,12 +3,17 @@ package tst;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import srv.Client;
+import srv.FrameQueue;
+import srv.Frame;
+import srv.FramePool;
+import srv.Metrics;
 import srv.Server;
 
 public class ClientTest {
@@ -179,6 +184,192 @@ public class ClientTest {
 				testClient.readLatestData() == null);
 	}
 	
+	/**
+	 * Tests that a frame arriving after a newer frame is discarded.
+	 */
+	@Test
+	public void testReadWriteDataOutOfOrder() {
+		// Write the newer data first
+		testReadWriteDataHelper(200, "Test5b".getBytes());
+		testReadWriteDataHelper(100, "Test5a".getBytes());
+
+		// Check that the newer data is returned
+		Entry<Long, byte[]> readEntry = testClient.readLatestData();
+		assertEquals("The newest data was not returned",
+				200L, (long) readEntry.getKey());
+		assertEquals("The data returned does not equal the test data",
+				"Test5b", new String(readEntry.getValue()));
+
+		// Check that the older data was not kept
+		assertNull("The client's data buffer is not empty",
+				testClient.readLatestData());
+	}
+
+	/**
+	 * Tests that the time frames wait to be read is recorded.
+	 */
+	@Test
+	public void testRelayLatency() {
+		testReadWriteDataHelper(100, "Test6".getBytes());
+		testClient.readLatestData();
+
+		assertEquals("The frame's waiting time was not recorded",
+				1, testClient.getRelayLatency().getCount());
+		assertEquals("The frame's waiting time was not recorded in aggregate",
+				1, Metrics.getHistogram(Metrics.RELAY_LATENCY).getCount());
+
+		// Check that a new partner is measured separately
+		testClient.setPartner(new Client());
+		assertEquals("The waiting times were not reset for the new partner",
+				0, testClient.getRelayLatency().getCount());
+	}
+
+	/**
+	 * Tests that the time priority frames wait is recorded when they are
+	 * first sent through the client's priority channel.
+	 */
+	@Test
+	public void testPriorityRelayLatency() {
+		testClient.enablePriorityAcks();
+		testReadWriteDataHelper(-1, "Test6p".getBytes());
+		
+		// Send the frame, then send it again without it being acknowledged
+		for (int i = 0; i < 2; i++) {
+			ArrayList<Frame> frames = new ArrayList<Frame>();
+			testClient.getPriorityChannel().read(frames, 1);
+			assertEquals("The priority frame was not sent", 1, frames.size());
+			FramePool.release(frames.get(0));
+		}
+		
+		assertEquals("The priority frame's waiting time was not recorded once",
+				1, testClient.getRelayLatency().getCount());
+		assertEquals("The priority frame's waiting time was not recorded in "
+				+ "aggregate", 1,
+				Metrics.getHistogram(Metrics.RELAY_LATENCY).getCount());
+		
+		testClient.clearData();
+	}
+
+	/**
+	 * Tests that frames replaced before being read are counted.
+	 */
+	@Test
+	public void testSupersededFrames() {
+		testReadWriteDataHelper(100, "Test7a".getBytes());
+		testReadWriteDataHelper(200, "Test7b".getBytes());
+		testReadWriteDataHelper(150, "Test7c".getBytes());
+		testClient.readLatestData();
+
+		assertEquals("The superseded frames were not counted",
+				2, testClient.getSupersededFrames());
+		assertEquals("The superseded frames were not counted in aggregate",
+				2, Metrics.getCount(Metrics.FRAMES_SUPERSEDED));
+		assertEquals("A superseded frame's waiting time was recorded",
+				1, testClient.getRelayLatency().getCount());
+	}
+
+	/**
+	 * Tests that frames are only counted as relayed once accepted.
+	 */
+	@Test
+	public void testRelayedFrames() {
+		int priorityQueueCapacity = Server.priorityQueueCapacity;
+		
+		try {
+			Server.priorityQueueCapacity = 2;
+			testClient = new Client();
+			
+			// Fill the priority queue, then overflow it
+			for (int i = 0; i < 3; i++) {
+				testReadWriteDataHelper(-1, "Test8".getBytes());
+			}
+			
+			assertEquals("A rejected priority frame was counted as relayed",
+					2, Metrics.getCount(Metrics.FRAMES_RELAYED));
+			
+			testClient.clearData();
+		} finally {
+			Server.priorityQueueCapacity = priorityQueueCapacity;
+		}
+	}
+
+	/**
+	 * Tests that a priority frame kept by dropping an older frame is counted
+	 * as relayed, and the dropped frame as superseded.
+	 */
+	@Test
+	public void testRelayedFramesDropOldest() {
+		int priorityQueueCapacity = Server.priorityQueueCapacity;
+		FrameQueue.OverflowPolicy priorityOverflowPolicy =
+				Server.priorityOverflowPolicy;
+		
+		try {
+			Server.priorityQueueCapacity = 2;
+			Server.priorityOverflowPolicy = FrameQueue.OverflowPolicy.DROP_OLDEST;
+			testClient = new Client();
+			
+			// Fill the priority queue, then overflow it
+			for (int i = 0; i < 3; i++) {
+				TreeMap<Long, byte[]> testMap = new TreeMap<Long, byte[]>();
+				testMap.put(-1L, "Test9".getBytes());
+				assertEquals("The overflow was not reported", i < 2,
+						testClient.writeData(testMap.firstEntry()));
+			}
+			
+			assertEquals("A kept priority frame was not counted as relayed",
+					3, Metrics.getCount(Metrics.FRAMES_RELAYED));
+			assertEquals("The dropped priority frame was not counted",
+					1, testClient.getSupersededFrames());
+			assertEquals("The dropped priority frame was not counted in "
+					+ "aggregate", 1,
+					Metrics.getCount(Metrics.FRAMES_SUPERSEDED));
+			
+			testClient.clearData();
+		} finally {
+			Server.priorityQueueCapacity = priorityQueueCapacity;
+			Server.priorityOverflowPolicy = priorityOverflowPolicy;
+		}
+	}
+
+	/**
+	 * Tests that when several threads write data at once, the data with
+	 * the highest key is the data kept.
+	 */
+	@Test
+	public void testReadWriteDataConcurrent() throws InterruptedException {
+		final int threadCount = 4;
+		final int writesPerThread = 1000;
+		Thread[] threads = new Thread[threadCount];
+
+		// Interleave the keys written by each thread
+		for (int i = 0; i < threadCount; i++) {
+			final int offset = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < writesPerThread; j++) {
+						long key = (j * threadCount) + offset;
+						testReadWriteDataHelper(key,
+								String.valueOf(key).getBytes());
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Check that the data with the highest key was kept
+		long highestKey = (threadCount * writesPerThread) - 1;
+		Entry<Long, byte[]> readEntry = testClient.readLatestData();
+		assertEquals("The data with the highest key was not kept",
+				highestKey, (long) readEntry.getKey());
+		assertEquals("The data does not match its key",
+				String.valueOf(highestKey), new String(readEntry.getValue()));
+	}
+
 	/**
 	 * Writes the specified data to the test client's data buffer.
 	 * @param index - the index at which to insert the data
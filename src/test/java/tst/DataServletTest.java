@@ -1,6 +1,8 @@
 package tst;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -8,20 +10,28 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import srv.BodyReader;
 import srv.Client;
 import srv.DataServlet;
+import srv.FramePool;
 import srv.Server;
+import srv.VersionFilter;
 
 public class DataServletTest {
 
@@ -30,6 +40,9 @@ public class DataServletTest {
 	
 	/** The servlet under test */
 	private static final DataServlet testServlet = new DataServlet();
+
+	/** The filter which checks the user agent before the servlet */
+	private static final VersionFilter versionFilter = new VersionFilter();
 	
 	/** The valid user agent */
 	private static final String testUserAgent = "TESTING";
@@ -97,7 +110,7 @@ public class DataServletTest {
 		when(request.getHeader("user-agent")).thenReturn(testUserAgent);
 
 		// Perform the HTTP POST
-		testServlet.doPost(request, response);
+		post(request, response);
 
 		// Check that the server *didn't* return a 404 error
 		try {
@@ -145,7 +158,7 @@ public class DataServletTest {
 			when(request.getHeader("user-agent")).thenReturn(userAgent);
 
 			// Perform the HTTP POST
-			testServlet.doPost(request, response);
+			post(request, response);
 
 			// Check that the server returned a 404 error
 			try {
@@ -260,6 +273,268 @@ public class DataServletTest {
 				"TEST_DATA_TWO".equals(new String(response2.getValue())));
 	}
 	
+	/**
+	 * Tests that frames relayed through the servlet are returned to the
+	 * frame pool once they have been sent.
+	 */
+	@Test
+	public void testPlayerPostReleasesFrames() {
+		// Set up a connection
+		Client client = Server.handleClient(-1, "TEST_CLIENT1",
+				true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+				true, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+		
+		FramePool.setLeakDetection(true);
+		try {
+			// Send data in both directions
+			transientMap.put(1000L, "TEST_DATA".getBytes());
+			transientMap.put(2000L, "TEST_DATA_TWO".getBytes());
+			sendMockRequest("0", "false", transientMap.firstEntry(), "0", "0");
+			sendMockRequest("1", "false", transientMap.lastEntry(), "0", "0");
+			Entry<Long, byte[]> response = sendMockRequest("0", "false",
+					transientMap.lastEntry(), "0", "0");
+			
+			// Check that the relayed data arrived intact
+			assertEquals("The received key doesn't match the sent key",
+					Long.valueOf(2000L), response.getKey());
+			
+			// Clear the frame still waiting for the partner
+			partner.clearData();
+			
+			// Check that every frame was returned to the pool
+			FramePool.checkForLeaks();
+		} finally {
+			FramePool.setLeakDetection(false);
+		}
+	}	
+	/**
+	 * Tests that when a client's partner's priority queue is full, the
+	 * client is told to back off.
+	 */
+	@Test
+	public void testPlayerPostPriorityBackpressure() {
+		int priorityQueueCapacity = Server.priorityQueueCapacity;
+		
+		try {
+			Server.priorityQueueCapacity = 2;
+			
+			// Set up a connection
+			Client client = Server.handleClient(-1, "TEST_CLIENT1",
+					true, 0, 0);
+			Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+					true, 0, 0);
+			client.setPartner(partner);
+			partner.setPartner(client);
+			
+			// Fill the partner's priority queue
+			transientMap.put(-1L, "TEST_PRIORITY".getBytes());
+			for (int i = 0; i < 2; i++) {
+				HttpServletResponse response = mock(HttpServletResponse.class);
+				sendMockRequest(response, "0", "false",
+						transientMap.firstEntry(), "0", "0");
+				verify(response, times(0)).setHeader(
+						"fh-client-backpressure", "true");
+			}
+			
+			// Check that the next priority frame causes backpressure
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			sendMockRequest(response, "0", "false",
+					transientMap.firstEntry(), "0", "0");
+			verify(response).setHeader("fh-client-backpressure", "true");
+		} finally {
+			Server.priorityQueueCapacity = priorityQueueCapacity;
+		}
+	}	
+	
+	
+	/**
+	 * Tests that clients reading batches receive every frame sent to them
+	 * since their last request, in order.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testPlayerPostBatch() {
+		FramePool.setLeakDetection(true);
+		
+		try {
+			// Set up a connection
+			Client client = Server.handleClient(-1, "TEST_CLIENT1",
+					true, 0, 0);
+			Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+					true, 0, 0);
+			client.setPartner(partner);
+			partner.setPartner(client);
+			
+			// The partner starts reading batches
+			HttpServletResponse response1 = mock(HttpServletResponse.class);
+			assertTrue("Frames were returned to an empty batch request",
+					sendBatchRequest(response1, "1", null, null).isEmpty());
+			verify(response1).setHeader("fh-client-frames", "0");
+			
+			// Send two frames in one request, then a third
+			transientMap.put(1L, "TEST1".getBytes());
+			transientMap.put(2L, "TEST2".getBytes());
+			transientMap.put(3L, "TEST3".getBytes());
+			sendBatchRequest(mock(HttpServletResponse.class), "0",
+					transientMap.firstEntry(),
+					transientMap.higherEntry(1L));
+			sendBatchRequest(mock(HttpServletResponse.class), "0",
+					transientMap.lastEntry(), null);
+			
+			// Check that the partner receives all three frames, in order
+			HttpServletResponse response2 = mock(HttpServletResponse.class);
+			List<Object> frames = sendBatchRequest(response2, "1", null, null);
+			verify(response2).setHeader("fh-client-frames", "3");
+			assertEquals("The wrong number of frames was returned",
+					3, frames.size());
+			
+			for (int i = 0; i < 3; i++) {
+				Entry<Long, byte[]> frame = (Entry<Long, byte[]>) frames.get(i);
+				assertEquals("The frames were not returned in order",
+						Long.valueOf(i + 1), frame.getKey());
+				assertEquals("The frame's data was not returned",
+						"TEST" + (i + 1), new String(frame.getValue()));
+			}
+			
+			FramePool.checkForLeaks();
+		} finally {
+			FramePool.setLeakDetection(false);
+		}
+	}
+	
+	
+	/**
+	 * Tests that priority frames are sent again until the client
+	 * acknowledges them.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testPlayerPostPriorityAcks() {
+		// Set up a connection
+		Client client = Server.handleClient(-1, "TEST_CLIENT1",
+				true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+				true, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+		
+		// Send the partner a priority frame
+		transientMap.put(-1L, "TEST_PRIORITY".getBytes());
+		transientMap.put(1L, "TEST".getBytes());
+		sendMockRequest("0", "true", transientMap.firstEntry(), "0", "0");
+		
+		// The partner does not acknowledge the frame, so it is sent twice
+		for (int i = 0; i < 2; i++) {
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			Entry<Long, byte[]> frame = (Entry<Long, byte[]>)
+					sendAckRequest(response, "1", transientMap.lastEntry(), "0");
+			
+			assertEquals("The priority frame was not sent",
+					Long.valueOf(-1), frame.getKey());
+			verify(response).setHeader("fh-client-priority-seq", "1");
+		}
+		
+		// Once the partner acknowledges the frame, it is not sent again
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		Object frame = sendAckRequest(response, "1",
+				transientMap.lastEntry(), "1");
+		assertNull("The acknowledged frame was sent again", frame);
+		verify(response, times(0)).setHeader(
+				eq("fh-client-priority-seq"), anyString());
+	}
+	
+	
+	/**
+	 * Tests that data is relayed, and replied to, when the body is read
+	 * and the response written without blocking.
+	 */
+	@Test
+	public void testPlayerPostAsync() {
+		FramePool.setLeakDetection(true);
+		
+		try {
+			// Set up a connection
+			Client client = Server.handleClient(-1, "TEST_CLIENT1",
+					true, 0, 0);
+			Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+					true, 0, 0);
+			client.setPartner(partner);
+			partner.setPartner(client);
+			
+			// Send the partner a frame
+			transientMap.put(1L, "TEST1".getBytes());
+			transientMap.put(2L, "TEST2".getBytes());
+			sendMockRequest("0", "true", transientMap.firstEntry(), "0", "0");
+			
+			// Check that the partner receives it asynchronously
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			AsyncContext asyncContext = mock(AsyncContext.class);
+			MockServletOutputStream servletOutputStream =
+					new MockServletOutputStream();
+			
+			setValidHeaders(request, "1", "true", "0", "0");
+			when(request.isAsyncSupported()).thenReturn(true);
+			when(request.startAsync()).thenReturn(asyncContext);
+			when(request.getContentLength()).thenReturn(-1);
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(transientMap.lastEntry()));
+			when(response.getOutputStream()).thenReturn(servletOutputStream);
+			
+			post(request, response);
+			
+			verify(asyncContext).complete();
+			Entry<Long, byte[]> frame = servletOutputStream.getAsByteArray();
+			assertEquals("The frame's key was not sent",
+					Long.valueOf(1), frame.getKey());
+			assertEquals("The frame's data was not sent",
+					"TEST1", new String(frame.getValue()));
+			
+			client.clearData();
+			FramePool.checkForLeaks();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("The request could not be set up");
+		} finally {
+			FramePool.setLeakDetection(false);
+		}
+	}
+	
+	/**
+	 * Tests that bodies which are too long are rejected when they are
+	 * read without blocking.
+	 */
+	@Test
+	public void testPlayerPostAsyncTooLong() throws IOException {
+		int maxBodyBytes = BodyReader.maxBodyBytes;
+		
+		try {
+			BodyReader.maxBodyBytes = 16;
+			
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			AsyncContext asyncContext = mock(AsyncContext.class);
+			
+			transientMap.put(1L, "TEST_TOO_LONG_FOR_THE_BODY".getBytes());
+			setValidHeaders(request, "-1", "false", "0", "0");
+			when(request.isAsyncSupported()).thenReturn(true);
+			when(request.startAsync()).thenReturn(asyncContext);
+			when(request.getContentLength()).thenReturn(-1);
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(transientMap.firstEntry()));
+			when(asyncContext.getResponse()).thenReturn(response);
+			
+			post(request, response);
+			
+			verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+			verify(asyncContext).complete();
+		} finally {
+			BodyReader.maxBodyBytes = maxBodyBytes;
+		}
+	}
 	
 	
 	/**
@@ -274,9 +549,26 @@ public class DataServletTest {
 	private static Entry<Long, byte[]> sendMockRequest(String clientID,
 			String isHost, Entry<Long, byte[]> data, String lives,
 			String score) {
-		// Create mock request and response objects
+		return sendMockRequest(mock(HttpServletResponse.class), clientID,
+				isHost, data, lives, score);
+	}
+	
+	/**
+	 * Sends a mock request to the servlet, using the response object given.
+	 * @param response - the (mock) response object to use
+	 * @param clientID - the client ID to send in the request headers
+	 * @param isHost - the host status to send in the request headers
+	 * @param instruction - the instruction to send to the sevlet
+	 * @param lives - the lives to send in the request headers
+	 * @param score - the score to send in the request headers
+	 * @return the servlet's response
+	 */
+	private static Entry<Long, byte[]> sendMockRequest(
+			HttpServletResponse response, String clientID,
+			String isHost, Entry<Long, byte[]> data, String lives,
+			String score) {
+		// Create a mock request object
 		HttpServletRequest request = mock(HttpServletRequest.class);
-		HttpServletResponse response = mock(HttpServletResponse.class);
 		MockServletOutputStream servletOutputStream =
 				new MockServletOutputStream();
 		
@@ -300,7 +592,86 @@ public class DataServletTest {
 		}
 		
 		// Perform the HTTP POST
-		testServlet.doPost(request, response);
+		post(request, response);
+
+		// Check that the request headers are read
+		checkHeaders(request);
+		
+		return servletOutputStream.getAsByteArray();
+	}
+	
+	/**
+	 * Sends a mock request, with up to two data entries, from a client
+	 * reading batches.
+	 * @param response - the (mock) response object to use
+	 * @param clientID - the client ID to send in the request headers
+	 * @param first - the first data entry to send
+	 * @param second - the second data entry to send
+	 * @return the objects in the servlet's response
+	 */
+	private static List<Object> sendBatchRequest(
+			HttpServletResponse response, String clientID,
+			Entry<Long, byte[]> first, Entry<Long, byte[]> second) {
+		// Create a mock request object
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		MockServletOutputStream servletOutputStream =
+				new MockServletOutputStream();
+		
+		// Set the request headers
+		setValidHeaders(request, clientID, "true", "0", "0");
+		when(request.getHeader("fh-client-batch")).thenReturn("8");
+		
+		// Set up the input and output streams
+		try {
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(first, second));
+			when(response.getOutputStream()).thenReturn(
+					servletOutputStream);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		// Perform the HTTP POST
+		post(request, response);
+
+		// Check that the request headers are read
+		checkHeaders(request);
+		
+		return servletOutputStream.getAsObjects();
+	}
+	
+	/**
+	 * Sends a mock request from a client which acknowledges priority
+	 * frames.
+	 * @param response - the (mock) response object to use
+	 * @param clientID - the client ID to send in the request headers
+	 * @param data - the data entry to send
+	 * @param ack - the priority sequence number to acknowledge
+	 * @return the object in the servlet's response
+	 */
+	private static Object sendAckRequest(HttpServletResponse response,
+			String clientID, Entry<Long, byte[]> data, String ack) {
+		// Create a mock request object
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		MockServletOutputStream servletOutputStream =
+				new MockServletOutputStream();
+		
+		// Set the request headers
+		setValidHeaders(request, clientID, "true", "0", "0");
+		when(request.getHeader("fh-client-priority-ack")).thenReturn(ack);
+		
+		// Set up the input and output streams
+		try {
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(data));
+			when(response.getOutputStream()).thenReturn(
+					servletOutputStream);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		// Perform the HTTP POST
+		post(request, response);
 
 		// Check that the request headers are read
 		checkHeaders(request);
@@ -338,4 +709,26 @@ public class DataServletTest {
 		verify(request).getHeader("fh-client-score");
 	}
 
+	/**
+	 * Performs an HTTP POST, passing the request through the version
+	 * filter before the servlet.
+	 * @param request - the HTTP POST request to send
+	 * @param response - the response to send
+	 */
+	private static void post(final HttpServletRequest request,
+			final HttpServletResponse response) {
+		try {
+			versionFilter.doFilter(request, response, new FilterChain() {
+				@Override
+				public void doFilter(ServletRequest filteredRequest,
+						ServletResponse filteredResponse) {
+					testServlet.doPost(request, response);
+				}
+			});
+		} catch (IOException | ServletException e) {
+			e.printStackTrace();
+			fail("Request was not filtered correctly");
+		}
+	}
+
 }
@@ -0,0 +1,205 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.DeltaCodec;
+import srv.DeltaEncoder;
+import srv.Frame;
+import srv.FramePool;
+import srv.Metrics;
+import srv.Server;
+
+public class DeltaCodecTest {
+
+	/**
+	 * Resets the server and enables leak detection.
+	 */
+	@Before
+	public void setUpCodec() {
+		Server.reset();
+		FramePool.setLeakDetection(true);
+	}
+
+	/**
+	 * Disables leak detection.
+	 */
+	@After
+	public void tearDownCodec() {
+		FramePool.setLeakDetection(false);
+	}
+
+
+	/**
+	 * Tests that a frame which differs from its base in a few bytes is
+	 * encoded as a short delta, which decodes to the original frame.
+	 */
+	@Test
+	public void testRoundTrip() {
+		byte[] baseData = new byte[200];
+		new Random(1).nextBytes(baseData);
+		byte[] targetData = baseData.clone();
+		targetData[10] ^= 1;
+		targetData[11] ^= 2;
+		targetData[150] ^= 3;
+
+		Frame base = frame(0, baseData);
+		Frame target = frame(1, targetData);
+		byte[] delta = new byte[targetData.length];
+		int length = DeltaCodec.encode(base, target, delta);
+
+		assertTrue("The delta was not shorter than the frame",
+				length > 0 && length < 16);
+		assertArrayEquals("The delta did not decode to the frame", targetData,
+				DeltaCodec.decode(baseData, Arrays.copyOf(delta, length)));
+
+		FramePool.release(base);
+		FramePool.release(target);
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that frames which are longer or shorter than their base are
+	 * encoded correctly.
+	 */
+	@Test
+	public void testLengthChange() {
+		byte[] baseData = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes();
+		byte[][] targets = new byte[][] {
+				"ABCDEFGHIJKLMNOPQRSTUVWXYZ123".getBytes(),
+				"ABCDEFGHIJKLMNOPQRSTUVWX".getBytes()
+		};
+
+		Frame base = frame(0, baseData);
+
+		for (byte[] targetData : targets) {
+			Frame target = frame(1, targetData);
+			byte[] delta = new byte[targetData.length];
+			int length = DeltaCodec.encode(base, target, delta);
+
+			assertTrue("No delta was produced", length > 0);
+			assertArrayEquals("The delta did not decode to the frame",
+					targetData,
+					DeltaCodec.decode(baseData, Arrays.copyOf(delta, length)));
+
+			FramePool.release(target);
+		}
+
+		FramePool.release(base);
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that no delta is produced when it would not be shorter than
+	 * the frame.
+	 */
+	@Test
+	public void testIncompressible() {
+		byte[] baseData = new byte[64];
+		byte[] targetData = new byte[64];
+		new Random(2).nextBytes(targetData);
+
+		Frame base = frame(0, baseData);
+		Frame target = frame(1, targetData);
+
+		assertEquals("A delta was produced for an unrelated frame", -1,
+				DeltaCodec.encode(base, target, new byte[targetData.length]));
+
+		FramePool.release(base);
+		FramePool.release(target);
+	}
+
+	/**
+	 * Tests that the encoder only sends deltas from acknowledged frames,
+	 * and sends keyframes at the configured interval.
+	 */
+	@Test
+	public void testEncoder() {
+		int deltaKeyframeInterval = Server.deltaKeyframeInterval;
+		DeltaEncoder encoder = new DeltaEncoder();
+		byte[] data = new byte[200];
+
+		try {
+			Server.deltaKeyframeInterval = 2;
+
+			// Nothing has been acknowledged, so send a keyframe
+			assertNull("A delta was sent without a base",
+					encode(encoder, 1, data, null));
+
+			// Frame 1 was acknowledged, so send deltas from it
+			data[0] = 1;
+			assertNotNull("A keyframe was sent instead of a delta",
+					encode(encoder, 2, data, 1L));
+			assertEquals("The wrong base was used", 1, encoder.getLastBaseKey());
+
+			// Frame 2 was acknowledged, so send a delta from it
+			data[1] = 1;
+			assertNotNull("A keyframe was sent instead of a delta",
+					encode(encoder, 3, data, 2L));
+			assertEquals("The wrong base was used", 2, encoder.getLastBaseKey());
+
+			// The keyframe interval has been reached
+			assertNull("A keyframe was not sent after the interval",
+					encode(encoder, 4, data, 3L));
+
+			// An unknown frame was acknowledged, so send a keyframe
+			assertNull("A delta was sent from an unknown base",
+					encode(encoder, 5, data, 99L));
+
+			assertEquals("The keyframes were not counted",
+					3, Metrics.getCount(Metrics.DELTA_KEYFRAMES));
+			assertEquals("The deltas were not counted",
+					2, Metrics.getCount(Metrics.DELTA_FRAMES));
+		} finally {
+			Server.deltaKeyframeInterval = deltaKeyframeInterval;
+			encoder.clear();
+		}
+
+		FramePool.checkForLeaks();
+	}
+
+
+	/**
+	 * Encodes a frame, releasing both it and the delta.
+	 * @param encoder - the encoder to use
+	 * @param key - the frame's key
+	 * @param data - the frame's data
+	 * @param acknowledgedKey - the key of the last frame acknowledged
+	 * @return the delta's length, or <code>null</code> if a keyframe
+	 * 			should be sent
+	 */
+	private static Integer encode(DeltaEncoder encoder, long key, byte[] data,
+			Long acknowledgedKey) {
+		Frame frame = frame(key, data);
+		Frame delta = encoder.encode(frame, acknowledgedKey);
+		FramePool.release(frame);
+
+		if (delta == null) {
+			return null;
+		}
+
+		FramePool.release(delta);
+		return delta.getLength();
+	}
+
+	/**
+	 * Acquires a frame holding the data given.
+	 * @param key - the key to give the frame
+	 * @param data - the data to copy into the frame
+	 * @return the frame
+	 */
+	private static Frame frame(long key, byte[] data) {
+		Frame frame = FramePool.acquire(data.length);
+		System.arraycopy(data, 0, frame.getBuffer(), 0, data.length);
+		frame.setKey(key);
+		frame.setRegion(0, data.length);
+		return frame;
+	}
+
+}
@@ -0,0 +1,31 @@
+package tst;
+
+import srv.Client;
+import srv.Instruction;
+import srv.ResponseWriter;
+
+/**
+ * An instruction used for testing instruction plug-ins.
+ * <p>
+ * ECHO instructions are replied to with their parameters, and are
+ * registered through META-INF/services/srv.Instruction.
+ * </p>
+ */
+public class EchoInstruction implements Instruction {
+
+	@Override
+	public String getName() {
+		return "ECHO";
+	}
+
+	@Override
+	public void handle(Client client, String parameters,
+			ResponseWriter response) {
+		if (parameters == null) {
+			throw new IllegalArgumentException("Nothing to echo");
+		}
+
+		response.append(parameters);
+	}
+
+}
@@ -0,0 +1,220 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import srv.Client;
+import srv.EventServlet;
+import srv.Server;
+
+public class EventServletTest {
+
+	/** The servlet config to use */
+	private static final ServletConfig servletConfig = mock(ServletConfig.class);
+
+	/** The servlet under test */
+	private static final EventServlet testServlet = new EventServlet();
+
+	/** The valid user agent */
+	private static final String testUserAgent = "TESTING";
+
+	/** The stream the servlet's response is written to */
+	private MockServletOutputStream servletOutputStream;
+
+	/** The async context the response is streamed with */
+	private AsyncContext asyncContext;
+
+
+	/**
+	 * Sets up the server and the servlet.
+	 */
+	@Before
+	public void setUpServlet() {
+		// Reset the server
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+
+		try {
+			testServlet.init(servletConfig);
+
+			// Add a test user agent to the list of accepted user agents
+			Server.addVersion(testUserAgent);
+		} catch (ServletException e) {
+			e.printStackTrace();
+			fail("Servlet was not set up correctly");
+		}
+	}
+
+
+	/**
+	 * Tests that requests from versions which are not permitted are
+	 * rejected with a 404 'page not found' error.
+	 */
+	@Test
+	public void testDoGetInvalidVersion() throws IOException {
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		HttpServletResponse response = sendMockRequest("0", "Mozilla/5.0");
+
+		verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	/**
+	 * Tests that requests with an ID which hasn't been issued are
+	 * rejected with a 404 'page not found' error.
+	 */
+	@Test
+	public void testDoGetInvalidClient() throws IOException {
+		HttpServletResponse response = sendMockRequest("10", testUserAgent);
+
+		verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	/**
+	 * Tests that requests with a malformed client ID are rejected.
+	 */
+	@Test
+	public void testDoGetMalformedClient() throws IOException {
+		HttpServletResponse response = sendMockRequest("x", testUserAgent);
+
+		verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	/**
+	 * Tests that the available hosts are sent when the stream opens.
+	 */
+	@Test
+	public void testInitialHosts() throws IOException {
+		Server.handleClient(-1, "TEST_HOST", true, 0, 0);
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		sendMockRequest("1", testUserAgent);
+
+		assertTrue("The available hosts were not sent",
+				servletOutputStream.getAsText().contains(
+						"event: hosts\ndata: 0=TEST_HOST#\n\n"));
+		verify(asyncContext, never()).complete();
+	}
+
+	/**
+	 * Tests that a new host is sent to clients with open streams.
+	 */
+	@Test
+	public void testHostAdded() throws IOException {
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		sendMockRequest("0", testUserAgent);
+
+		assertTrue("The (lack of) available hosts was not sent",
+				servletOutputStream.getAsText().contains(
+						"event: hosts\ndata: NO_CONNECTIONS\n\n"));
+
+		Server.handleClient(-1, "TEST_HOST", true, 0, 0);
+
+		assertTrue("The new host was not sent",
+				servletOutputStream.getAsText().contains(
+						"event: hosts\ndata: 1=TEST_HOST#\n\n"));
+	}
+
+	/**
+	 * Tests that messages written to the client are sent as they arrive.
+	 */
+	@Test
+	public void testMessage() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		sendMockRequest("0", testUserAgent);
+		client.writeMessage("START_GAME:0");
+
+		assertTrue("The message was not sent",
+				servletOutputStream.getAsText().contains(
+						"event: message\ndata: START_GAME:0\n\n"));
+		assertFalse("The message was left in the mailbox",
+				client.checkForMessages());
+	}
+
+	/**
+	 * Tests that line breaks in a message cannot start a new event.
+	 */
+	@Test
+	public void testMessageLineBreaks() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		sendMockRequest("0", testUserAgent);
+		client.writeMessage("GAME_OVER:a\n\nevent: hosts\r\ndata: b");
+
+		assertTrue("The message's lines were not sent separately",
+				servletOutputStream.getAsText().contains("event: message\n"
+						+ "data: GAME_OVER:a\ndata: \ndata: event: hosts\n"
+						+ "data: data: b\n\n"));
+	}
+
+	/**
+	 * Tests that the stream is closed when its client is removed.
+	 */
+	@Test
+	public void testClientRemoved() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		sendMockRequest("0", testUserAgent);
+		Server.removeClient(client, "END_GAME");
+
+		verify(asyncContext).complete();
+	}
+
+
+	/**
+	 * Sends a mock request to the servlet.
+	 * <p>
+	 * The async context used runs tasks as soon as they are started.
+	 * </p>
+	 * @param clientID - the client ID to send in the request parameters
+	 * @param agent - the user agent to send in the request parameters
+	 * @return the mock response
+	 */
+	private HttpServletResponse sendMockRequest(String clientID,
+			String agent) throws IOException {
+		// Create mock request, response and async context objects
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		servletOutputStream = new MockServletOutputStream();
+		asyncContext = mock(AsyncContext.class);
+
+		// Set the request parameters
+		when(request.getParameter("id")).thenReturn(clientID);
+		when(request.getParameter("agent")).thenReturn(agent);
+
+		// Set up the request and response
+		when(response.getOutputStream()).thenReturn(servletOutputStream);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync()).thenReturn(asyncContext);
+
+		// Run started tasks immediately
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(asyncContext).start(any(Runnable.class));
+
+		// Perform the HTTP GET
+		testServlet.doGet(request, response);
+
+		return response;
+	}
+
+}
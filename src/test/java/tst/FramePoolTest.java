@@ -0,0 +1,205 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Client;
+import srv.Frame;
+import srv.FramePool;
+import srv.Server;
+
+public class FramePoolTest {
+
+	/**
+	 * Resets the server and enables leak detection.
+	 */
+	@Before
+	public void setUpPool() {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+		FramePool.setLeakDetection(true);
+	}
+
+	/**
+	 * Disables leak detection.
+	 */
+	@After
+	public void tearDownPool() {
+		FramePool.setLeakDetection(false);
+	}
+
+
+	/**
+	 * Tests that frames are served from the smallest size class which
+	 * can hold the capacity requested.
+	 */
+	@Test
+	public void testSizeClasses() {
+		int[][] expectedCapacities = new int[][] {
+				{1, FramePool.MIN_CAPACITY},
+				{FramePool.MIN_CAPACITY, FramePool.MIN_CAPACITY},
+				{FramePool.MIN_CAPACITY + 1, FramePool.MIN_CAPACITY * 2},
+				{1000, 1024},
+				{FramePool.MAX_CAPACITY, FramePool.MAX_CAPACITY},
+				{FramePool.MAX_CAPACITY + 1, FramePool.MAX_CAPACITY + 1}
+		};
+
+		for (int[] expected : expectedCapacities) {
+			Frame frame = FramePool.acquire(expected[0]);
+
+			assertEquals("Wrong capacity for a request of " + expected[0],
+					expected[1], frame.getCapacity());
+
+			FramePool.release(frame);
+		}
+
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that released frames are reused, and are reset when reused.
+	 */
+	@Test
+	public void testReuse() {
+		Frame frame = FramePool.acquire(100);
+		frame.setKey(10);
+		frame.setRegion(5, 50);
+		FramePool.release(frame);
+
+		Frame reusedFrame = FramePool.acquire(100);
+
+		assertSame("The released frame was not reused", frame, reusedFrame);
+		assertEquals("The reused frame's key was not reset",
+				0, reusedFrame.getKey());
+		assertEquals("The reused frame's length was not reset",
+				0, reusedFrame.getLength());
+
+		FramePool.release(reusedFrame);
+	}
+
+	/**
+	 * Tests that releasing a frame twice is detected.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testDoubleRelease() {
+		Frame frame = FramePool.acquire(100);
+		FramePool.release(frame);
+		FramePool.release(frame);
+	}
+
+	/**
+	 * Tests that when two threads release the same frame at once, only
+	 * one release succeeds.
+	 */
+	@Test
+	public void testConcurrentDoubleRelease() throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			final Frame frame = FramePool.acquire(200);
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger failures = new AtomicInteger();
+			Thread[] threads = new Thread[2];
+
+			for (int j = 0; j < threads.length; j++) {
+				threads[j] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							FramePool.release(frame);
+						} catch (IllegalStateException e) {
+							failures.incrementAndGet();
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				threads[j].start();
+			}
+
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			assertEquals("Both releases of the frame succeeded",
+					1, failures.get());
+
+			// Check that the frame was only pooled once
+			Frame first = FramePool.acquire(200);
+			Frame second = FramePool.acquire(200);
+			assertNotSame("The frame was handed out twice", first, second);
+			FramePool.release(first);
+			FramePool.release(second);
+		}
+	}
+
+	/**
+	 * Tests that frames which are not released are detected.
+	 */
+	@Test
+	public void testLeakDetection() {
+		Frame frame = FramePool.acquire(100);
+
+		try {
+			FramePool.checkForLeaks();
+			fail("The unreleased frame was not detected");
+		} catch (IllegalStateException e) {
+			assertNotNull("The leak did not record where the frame was acquired",
+					e.getCause());
+		}
+
+		FramePool.release(frame);
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that frames written to a client are released once they have
+	 * been read or superseded.
+	 */
+	@Test
+	public void testClientReleasesFrames() {
+		Client client = new Client();
+		TreeMap<Long, byte[]> transientMap = new TreeMap<Long, byte[]>();
+
+		// Write several frames, including a priority frame
+		for (long key = -1; key < 5; key++) {
+			transientMap.put(key, ("TEST" + key).getBytes());
+			client.writeData(transientMap.lastEntry());
+			transientMap.clear();
+		}
+
+		// Read the priority frame, then the latest frame
+		assertEquals("The priority frame was not returned first",
+				"TEST-1", new String(client.readLatestData().getValue()));
+		assertEquals("The latest frame was not returned",
+				"TEST4", new String(client.readLatestData().getValue()));
+
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that frames are released when their client is removed.
+	 */
+	@Test
+	public void testRemovedClientReleasesFrames() {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		TreeMap<Long, byte[]> transientMap = new TreeMap<Long, byte[]>();
+
+		transientMap.put(-1L, "TEST".getBytes());
+		transientMap.put(1L, "TEST".getBytes());
+		client.writeData(transientMap.firstEntry());
+		client.writeData(transientMap.lastEntry());
+
+		Server.removeClient(client, "END_GAME");
+
+		FramePool.checkForLeaks();
+	}
+
+}
@@ -0,0 +1,182 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Frame;
+import srv.FramePool;
+import srv.FrameQueue;
+import srv.FrameQueue.OverflowPolicy;
+import srv.Metrics;
+import srv.Server;
+
+public class FrameQueueTest {
+
+	/**
+	 * Resets the server and enables leak detection.
+	 */
+	@Before
+	public void setUpQueue() {
+		Server.reset();
+		FramePool.setLeakDetection(true);
+	}
+
+	/**
+	 * Disables leak detection.
+	 */
+	@After
+	public void tearDownQueue() {
+		FramePool.setLeakDetection(false);
+	}
+
+
+	/**
+	 * Tests that frames are removed in the order they were added.
+	 */
+	@Test
+	public void testOrder() {
+		FrameQueue queue = new FrameQueue(8, OverflowPolicy.REJECT);
+
+		for (long key = 0; key < 5; key++) {
+			assertTrue("The frame was not accepted", queue.offer(frame(key)));
+		}
+
+		assertEquals("The queue size is incorrect", 5, queue.size());
+
+		for (long key = 0; key < 5; key++) {
+			Frame frame = queue.poll();
+			assertEquals("The frames were not returned in order",
+					key, frame.getKey());
+			FramePool.release(frame);
+		}
+
+		assertNull("The queue is not empty", queue.poll());
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that the capacity is rounded up to a power of two.
+	 */
+	@Test
+	public void testCapacity() {
+		assertEquals(2, new FrameQueue(1, OverflowPolicy.REJECT).capacity());
+		assertEquals(8, new FrameQueue(5, OverflowPolicy.REJECT).capacity());
+		assertEquals(64, new FrameQueue(64, OverflowPolicy.REJECT).capacity());
+	}
+
+	/**
+	 * Tests that a full queue with the REJECT policy rejects new frames.
+	 */
+	@Test
+	public void testRejectPolicy() {
+		FrameQueue queue = new FrameQueue(2, OverflowPolicy.REJECT);
+
+		assertTrue(queue.offer(frame(0)));
+		assertTrue(queue.offer(frame(1)));
+		assertFalse("The frame was accepted by a full queue",
+				queue.offer(frame(2)));
+		assertEquals("The rejected frame was not counted",
+				1, Metrics.getCount(Metrics.PRIORITY_FRAMES_REJECTED));
+
+		// Check that the original frames were kept
+		assertEquals(0, pollAndRelease(queue));
+		assertEquals(1, pollAndRelease(queue));
+		assertNull(queue.poll());
+
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that a full queue with the DROP_OLDEST policy drops the
+	 * oldest frame to make room.
+	 */
+	@Test
+	public void testDropOldestPolicy() {
+		FrameQueue queue = new FrameQueue(2, OverflowPolicy.DROP_OLDEST);
+
+		assertTrue(queue.offer(frame(0)));
+		assertTrue(queue.offer(frame(1)));
+		assertFalse("The overflow was not reported", queue.offer(frame(2)));
+		assertEquals("The dropped frame was not counted",
+				1, Metrics.getCount(Metrics.PRIORITY_FRAMES_DROPPED));
+
+		// Check that the oldest frame was dropped
+		assertEquals(1, pollAndRelease(queue));
+		assertEquals(2, pollAndRelease(queue));
+		assertNull(queue.poll());
+
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that frames added by several threads at once are neither lost
+	 * nor duplicated.
+	 */
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int threadCount = 4;
+		final int framesPerThread = 250;
+		final FrameQueue queue = new FrameQueue(threadCount * framesPerThread,
+				OverflowPolicy.REJECT);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			final int offset = i * framesPerThread;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < framesPerThread; j++) {
+						queue.offer(frame(offset + j));
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Check that every frame arrived exactly once
+		Set<Long> keys = new HashSet<Long>();
+		Frame frame;
+		while ((frame = queue.poll()) != null) {
+			assertTrue("A frame was duplicated", keys.add(frame.getKey()));
+			FramePool.release(frame);
+		}
+
+		assertEquals("Frames were lost", threadCount * framesPerThread,
+				keys.size());
+		FramePool.checkForLeaks();
+	}
+
+
+	/**
+	 * Acquires a frame with the specified key.
+	 * @param key - the key to give the frame
+	 * @return the frame
+	 */
+	private static Frame frame(long key) {
+		Frame frame = FramePool.acquire(8);
+		frame.setKey(key);
+		return frame;
+	}
+
+	/**
+	 * Removes a frame from a queue, and releases it.
+	 * @param queue - the queue to remove the frame from
+	 * @return the key of the frame removed
+	 */
+	private static long pollAndRelease(FrameQueue queue) {
+		Frame frame = queue.poll();
+		FramePool.release(frame);
+		return frame.getKey();
+	}
+
+}
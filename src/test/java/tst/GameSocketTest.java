@@ -0,0 +1,281 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import srv.Client;
+import srv.Frame;
+import srv.FramePool;
+import srv.GameSocket;
+import srv.InstructionHandler;
+import srv.Server;
+
+public class GameSocketTest {
+
+	/** The valid user agent */
+	private static final String testUserAgent = "TESTING";
+
+
+	/**
+	 * Resets the server and enables leak detection.
+	 */
+	@Before
+	public void setUpSocket() {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+		Server.addVersion(testUserAgent);
+		FramePool.setLeakDetection(true);
+
+		// Send on the thread which schedules the send
+		GameSocket.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Disables leak detection.
+	 */
+	@After
+	public void tearDownSocket() {
+		FramePool.setLeakDetection(false);
+		GameSocket.setExecutor(null);
+	}
+
+
+	/**
+	 * Tests that connections from versions which are not permitted
+	 * are closed.
+	 */
+	@Test
+	public void testInvalidVersion() throws IOException {
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Session session = mockSession("0", "Mozilla/5.0");
+
+		new GameSocket().open(session);
+
+		verify(session).close(any(CloseReason.class));
+	}
+
+	/**
+	 * Tests that connections with an ID which hasn't been issued
+	 * are closed.
+	 */
+	@Test
+	public void testInvalidClient() throws IOException {
+		Session session = mockSession("10", testUserAgent);
+
+		new GameSocket().open(session);
+
+		verify(session).close(any(CloseReason.class));
+	}
+
+	/**
+	 * Tests that instructions are handled, and the results sent back.
+	 */
+	@Test
+	public void testInstruction() throws IOException {
+		Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Session session = mockSession("0", testUserAgent);
+		GameSocket socket = new GameSocket();
+
+		socket.open(session);
+		socket.receiveInstruction("GET_OPEN_CONNECTIONS");
+
+		verify(session, never()).close(any(CloseReason.class));
+		verify(session.getBasicRemote()).sendText("NO_CONNECTIONS");
+	}
+
+	/**
+	 * Tests that messages written to a client are pushed to it.
+	 */
+	@Test
+	public void testMessagePushed() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Session session = mockSession("0", testUserAgent);
+
+		new GameSocket().open(session);
+		client.writeMessage("GAME_OVER");
+
+		verify(session.getBasicRemote()).sendText("GAME_OVER");
+		assertFalse("The message was left in the mailbox",
+				client.checkForMessages());
+	}
+
+	/**
+	 * Tests that frames received from a client are pushed to its partner.
+	 */
+	@Test
+	public void testFramePushedToPartner() throws IOException {
+		// Set up a pair of clients
+		Client host = Server.handleClient(-1, "TEST_CLIENT", true, 0, 0);
+		Client joiner = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		InstructionHandler.handleInstruction(joiner, "JOIN:0");
+
+		// Open a socket for each client
+		Session hostSession = mockSession("0", testUserAgent);
+		Session joinerSession = mockSession("1", testUserAgent);
+		ByteArrayOutputStream received = captureBinary(hostSession);
+		GameSocket joinerSocket = new GameSocket();
+		new GameSocket().open(hostSession);
+		joinerSocket.open(joinerSession);
+
+		// Send a frame from the joining client
+		ByteBuffer frame = ByteBuffer.allocate(12);
+		frame.putLong(5).put("DATA".getBytes()).flip();
+		joinerSocket.receiveFrame(frame);
+
+		// Check that the frame was pushed to the host
+		ByteBuffer expected = ByteBuffer.allocate(12);
+		expected.putLong(5).put("DATA".getBytes());
+		assertArrayEquals("The frame was not pushed to the partner",
+				expected.array(), received.toByteArray());
+		assertNull("The frame was left in the partner's data buffer",
+				host.readLatestFrame());
+
+		FramePool.checkForLeaks();
+	}
+
+
+	/**
+	 * Tests that sends are left to the executor, rather than made on the
+	 * thread writing to the client.
+	 */
+	@Test
+	public void testSendsOnExecutor() throws IOException {
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		GameSocket.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Session session = mockSession("0", testUserAgent);
+		new GameSocket().open(session);
+		client.writeMessage("GAME_OVER");
+		client.writeMessage("END_GAME");
+
+		verify(session.getBasicRemote(), never()).sendText(anyString());
+		assertEquals("The sends were not coalesced", 1, tasks.size());
+
+		tasks.get(0).run();
+		verify(session.getBasicRemote()).sendText(
+				"GAME_OVER" + Client.MESSAGE_DELIM + "END_GAME");
+	}
+
+	/**
+	 * Tests that priority frames are sent through the priority channel,
+	 * once the client acknowledges them, and are not sent twice.
+	 */
+	@Test
+	public void testPriorityFramesPushed() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Session session = mockSession("0", testUserAgent);
+		ByteArrayOutputStream received = captureBinary(session);
+		GameSocket socket = new GameSocket();
+
+		socket.open(session);
+		socket.receiveInstruction("ACK_PRIORITY:0");
+		client.writeFrame(priorityFrame("P1"));
+		client.writeFrame(priorityFrame("P2"));
+
+		verify(session.getBasicRemote()).sendText("PRIORITY_SEQ:1");
+		verify(session.getBasicRemote()).sendText("PRIORITY_SEQ:2");
+		assertEquals("The priority frames were not pushed",
+				2 * 10, received.size());
+
+		// Acknowledge the frames, so that they are released
+		socket.receiveInstruction("ACK_PRIORITY:2");
+		assertEquals("The priority frames were not acknowledged",
+				0, client.getPriorityChannel().size());
+
+		FramePool.checkForLeaks();
+	}
+
+
+	/**
+	 * Creates a priority frame.
+	 * @param data - the frame's data
+	 * @return the frame
+	 */
+	private static Frame priorityFrame(String data) {
+		Frame frame = FramePool.acquire(data.length());
+		System.arraycopy(data.getBytes(), 0, frame.getBuffer(), 0,
+				data.length());
+		frame.setKey(-1);
+		frame.setRegion(0, data.length());
+
+		return frame;
+	}
+
+	/**
+	 * Creates a mock session.
+	 * @param clientID - the client ID to connect with
+	 * @param agent - the user agent to connect with
+	 * @return the mock session
+	 */
+	private static Session mockSession(String clientID, String agent) {
+		Session session = mock(Session.class);
+		RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+		Map<String, List<String>> parameters =
+				new HashMap<String, List<String>>();
+
+		parameters.put("id", Arrays.asList(clientID));
+		parameters.put("agent", Arrays.asList(agent));
+
+		when(session.getRequestParameterMap()).thenReturn(parameters);
+		when(session.getBasicRemote()).thenReturn(remote);
+
+		return session;
+	}
+
+	/**
+	 * Records the binary messages sent over a mock session.
+	 * @param session - the session to record messages from
+	 * @return the stream the messages are recorded to
+	 */
+	private static ByteArrayOutputStream captureBinary(Session session)
+			throws IOException {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		RemoteEndpoint.Basic remote = session.getBasicRemote();
+
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				ByteBuffer data = (ByteBuffer) invocation.getArguments()[0];
+				while (data.hasRemaining()) {
+					received.write(data.get());
+				}
+				return null;
+			}
+		}).when(remote).sendBinary(
+				any(ByteBuffer.class), anyBoolean());
+
+		return received;
+	}
+
+}
@@ -0,0 +1,56 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import srv.Histogram;
+
+public class HistogramTest {
+
+	/**
+	 * Tests that values are counted in the correct buckets.
+	 */
+	@Test
+	public void testBuckets() {
+		Histogram histogram = new Histogram();
+		long[][] expected = new long[][] {
+				{0, 0}, {1, 0}, {2, 1}, {3, 2}, {4, 2}, {5, 3}, {1024, 10},
+				{Long.MAX_VALUE, Histogram.BUCKETS - 1}
+		};
+
+		for (long[] pair : expected) {
+			long before = histogram.getBucketCount((int) pair[1]);
+			histogram.record(pair[0]);
+
+			assertEquals("The value " + pair[0] + " was counted in the "
+					+ "wrong bucket",
+					before + 1, histogram.getBucketCount((int) pair[1]));
+			assertTrue("The value " + pair[0] + " is above its bucket's bound",
+					pair[0] <= Histogram.getUpperBound((int) pair[1]));
+		}
+
+		assertEquals("The values were not counted",
+				expected.length, histogram.getCount());
+	}
+
+	/**
+	 * Tests that percentiles are estimated from the buckets.
+	 */
+	@Test
+	public void testPercentile() {
+		Histogram histogram = new Histogram();
+		assertEquals("A percentile was estimated without any values",
+				0, histogram.getPercentile(50));
+
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals("The sum is incorrect", 5050, histogram.getSum());
+		assertEquals("The median is incorrect", 64, histogram.getPercentile(50));
+		assertEquals("The maximum is incorrect",
+				128, histogram.getPercentile(100));
+	}
+
+}
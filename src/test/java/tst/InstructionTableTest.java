@@ -0,0 +1,167 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import srv.Client;
+import srv.Instruction;
+import srv.InstructionHandler;
+import srv.InstructionTable;
+import srv.Metrics;
+import srv.ResponseWriter;
+import srv.Server;
+
+public class InstructionTableTest {
+
+	/**
+	 * Tests that instructions are found by a region of a string.
+	 */
+	@Test
+	public void testFindRegion() {
+		InstructionTable table = new InstructionTable();
+		table.register(instruction("JOIN", "JOINED"));
+		table.register(instruction("END_GAME", "ENDED"));
+
+		String list = "END_GAME;JOIN:5";
+		assertEquals("The instruction was not found", "ENDED",
+				handle(table.find(list, 0, 8)));
+		assertEquals("The instruction was not found", "JOINED",
+				handle(table.find(list, 9, 13)));
+		assertNull("An instruction was found for part of a name",
+				table.find(list, 0, 3));
+		assertNull("An instruction was found for an empty name",
+				table.find(list, 0, 0));
+	}
+
+	/**
+	 * Tests that the table grows as instructions are registered, and that
+	 * registering an instruction replaces one with the same name.
+	 */
+	@Test
+	public void testRegister() {
+		InstructionTable table = new InstructionTable();
+
+		for (int i = 0; i < 100; i++) {
+			table.register(instruction("INSTRUCTION_" + i, "FIRST_" + i));
+		}
+
+		table.register(instruction("INSTRUCTION_50", "SECOND_50"));
+
+		assertEquals("The wrong number of instructions was registered",
+				100, table.size());
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals("The wrong instruction was found",
+					((i == 50) ? "SECOND_" : "FIRST_") + i,
+					handle(table.find("INSTRUCTION_" + i)));
+		}
+	}
+
+	/**
+	 * Tests that lists of instructions are handled as they were when they
+	 * were split into arrays.
+	 */
+	@Test
+	public void testInstructionLists() {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+
+		String[][] expected = new String[][] {
+				{"", ""},
+				{";;", ""},
+				{"GET_OPEN_CONNECTIONS", "NO_CONNECTIONS"},
+				{"GET_OPEN_CONNECTIONS;", "NO_CONNECTIONS"},
+				{";GET_OPEN_CONNECTIONS", "NO_CONNECTIONS"},
+				{"GET_OPEN_CONNECTIONS;UNKNOWN;GET_OPEN_CONNECTIONS",
+						"NO_CONNECTIONS;;NO_CONNECTIONS"},
+				{"GET_OPEN_CONNECTIONS:IGNORED;JOIN:" + client.getID(),
+						"NO_CONNECTIONS;INVALID_PARTNER"}
+		};
+
+		for (String[] pair : expected) {
+			assertEquals("The wrong response was returned for " + pair[0],
+					pair[1], InstructionHandler.handleInstruction(client,
+							pair[0]));
+		}
+	}
+
+
+	/**
+	 * Tests that instructions provided by plug-ins are registered, and
+	 * that their calls, errors and latencies are recorded.
+	 */
+	@Test
+	public void testPlugin() {
+		Server.reset();
+
+		assertEquals("The plug-in was not registered", "HELLO",
+				InstructionHandler.handleInstruction(null, "ECHO:HELLO"));
+
+		try {
+			InstructionHandler.handleInstruction(null, "ECHO");
+			fail("The handler's error was not thrown");
+		} catch (IllegalArgumentException e) {
+			// The error is passed on to the servlet
+		}
+
+		assertEquals("The calls were not counted", 2, Metrics.getCount(
+				Metrics.labelled(Metrics.INSTRUCTION_CALLS,
+						"instruction", "ECHO")));
+		assertEquals("The error was not counted", 1, Metrics.getCount(
+				Metrics.labelled(Metrics.INSTRUCTION_ERRORS,
+						"instruction", "ECHO")));
+		assertEquals("The latencies were not recorded", 2, Metrics
+				.getHistogram(Metrics.labelled(Metrics.INSTRUCTION_LATENCY,
+						"instruction", "ECHO")).getCount());
+	}
+
+	/**
+	 * Tests that instructions registered at runtime can be handled.
+	 */
+	@Test
+	public void testRegisterInstruction() {
+		InstructionHandler.registerInstruction(
+				instruction("TEST_REGISTERED", "REGISTERED"));
+
+		assertEquals("The instruction was not registered", "REGISTERED",
+				InstructionHandler.handleInstruction(null, "TEST_REGISTERED"));
+	}
+
+
+	/**
+	 * Creates an instruction which always returns the same response.
+	 * @param name - the instruction's name
+	 * @param response - the response to return
+	 * @return the instruction
+	 */
+	private static Instruction instruction(final String name,
+			final String response) {
+		return new Instruction() {
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public void handle(Client client, String parameters,
+					ResponseWriter writer) {
+				writer.append(response);
+			}
+		};
+	}
+
+	/**
+	 * Handles an instruction without a client or parameters.
+	 * @param instruction - the instruction to handle
+	 * @return the instruction's response
+	 */
+	private static String handle(Instruction instruction) {
+		ResponseWriter writer = new ResponseWriter();
+		instruction.handle(null, null, writer);
+
+		return writer.toString();
+	}
+
+}
@@ -0,0 +1,106 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.LockProfiler;
+import srv.Server;
+
+public class LockProfilerTest {
+
+	/**
+	 * Resets the server and the lock profiler.
+	 */
+	@Before
+	public void setUp() {
+		Server.clearRemoveClientsTimer();
+		Server.reset();
+		LockProfiler.clear();
+	}
+
+	/**
+	 * Stops the lock profiler.
+	 */
+	@After
+	public void tearDown() {
+		LockProfiler.stop();
+		LockProfiler.clear();
+	}
+
+
+	/**
+	 * Tests that a monitor's holder, and the time others spend waiting
+	 * for it, are recorded.
+	 */
+	@Test
+	public void testSampleContention() throws InterruptedException {
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Server.getClientCount();
+			}
+		});
+
+		synchronized (Server.getClients()) {
+			waiter.start();
+
+			// Wait for the other thread to block on the client array
+			while (waiter.getState() != Thread.State.BLOCKED) {
+				Thread.sleep(1);
+			}
+
+			LockProfiler.sample(10);
+		}
+
+		waiter.join();
+
+		LockProfiler.LockStats clients = null;
+		for (LockProfiler.LockStats lock : LockProfiler.getStats()) {
+			if (lock.getName().equals("clients")) {
+				clients = lock;
+			}
+		}
+
+		assertNotNull("The client array's contention was not recorded",
+				clients);
+		assertEquals("The time held was not recorded",
+				10, clients.getHeldTime());
+		// Other threads may also be waiting for the client array
+		assertTrue("The time waited was not recorded",
+				clients.getWaitTime() >= 10);
+		assertTrue("The holder's call site was not recorded",
+				clients.getCallSites().get(0).getName()
+						.startsWith(LockProfilerTest.class.getName()
+								+ ".testSampleContention:"));
+	}
+
+	/**
+	 * Tests that monitors without contention are not recorded.
+	 */
+	@Test
+	public void testSampleIdle() {
+		LockProfiler.sample(10);
+
+		assertTrue("Contention was recorded for idle monitors",
+				LockProfiler.getStats().isEmpty());
+	}
+
+	/**
+	 * Tests that sampling can be started and stopped.
+	 */
+	@Test
+	public void testStartStop() {
+		assertFalse("Sampling is running before being started",
+				LockProfiler.isRunning());
+
+		LockProfiler.start(1000);
+		assertTrue("Sampling is not running", LockProfiler.isRunning());
+
+		LockProfiler.stop();
+		assertFalse("Sampling is still running", LockProfiler.isRunning());
+	}
+
+}
@@ -0,0 +1,137 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Client;
+import srv.Mailbox;
+import srv.Metrics;
+import srv.ResponseWriter;
+import srv.Server;
+
+public class MailboxTest {
+
+	/**
+	 * Resets the server.
+	 */
+	@Before
+	public void setUpMailbox() {
+		Server.reset();
+	}
+
+
+	/**
+	 * Tests that an empty mailbox drains to an empty string.
+	 */
+	@Test
+	public void testDrainEmpty() {
+		Mailbox mailbox = new Mailbox(4, Client.MESSAGE_DELIM);
+
+		assertTrue("The new mailbox is not empty", mailbox.isEmpty());
+		assertEquals("The empty mailbox did not drain to an empty string",
+				"", mailbox.drain());
+	}
+
+	/**
+	 * Tests that messages are drained in the order they were written,
+	 * and that draining empties the mailbox.
+	 */
+	@Test
+	public void testDrainOrder() {
+		Mailbox mailbox = new Mailbox(4, Client.MESSAGE_DELIM);
+
+		mailbox.write("A");
+		mailbox.write("B");
+		mailbox.write("C");
+
+		assertEquals("The mailbox size is incorrect", 3, mailbox.size());
+		assertEquals("The messages were not drained in order",
+				"A;B;C", mailbox.drain());
+		assertTrue("The mailbox was not emptied", mailbox.isEmpty());
+		assertEquals("The mailbox was not emptied", "", mailbox.drain());
+	}
+
+	/**
+	 * Tests that messages are appended to a response writer in the order
+	 * they were written.
+	 */
+	@Test
+	public void testDrainTo() {
+		Mailbox mailbox = new Mailbox(4, Client.MESSAGE_DELIM);
+		ResponseWriter writer = new ResponseWriter();
+		writer.append("START;");
+
+		assertFalse("An empty mailbox drained messages",
+				mailbox.drainTo(writer));
+
+		mailbox.write("A");
+		mailbox.write("B");
+
+		assertTrue("The mailbox did not drain its messages",
+				mailbox.drainTo(writer));
+		assertEquals("The messages were not appended in order",
+				"START;A;B", writer.toString());
+		assertTrue("The mailbox was not emptied", mailbox.isEmpty());
+	}
+
+	/**
+	 * Tests that a full mailbox drops its oldest message.
+	 */
+	@Test
+	public void testOverflow() {
+		Mailbox mailbox = new Mailbox(2, Client.MESSAGE_DELIM);
+
+		assertTrue(mailbox.write("A"));
+		assertTrue(mailbox.write("B"));
+		assertFalse("The overflow was not reported", mailbox.write("C"));
+		assertEquals("The dropped message was not counted",
+				1, Metrics.getCount(Metrics.MESSAGES_DROPPED));
+		assertEquals("The oldest message was not dropped",
+				"B;C", mailbox.drain());
+	}
+
+	/**
+	 * Tests that messages written by several threads at once are neither
+	 * lost nor duplicated.
+	 */
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final int threadCount = 4;
+		final int messagesPerThread = 250;
+		final Mailbox mailbox = new Mailbox(threadCount * messagesPerThread,
+				Client.MESSAGE_DELIM);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			final int offset = i * messagesPerThread;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < messagesPerThread; j++) {
+						mailbox.write("M" + (offset + j));
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Check that every message arrived exactly once
+		Set<String> messages = new HashSet<String>();
+		for (String message : mailbox.drain().split(Client.MESSAGE_DELIM)) {
+			assertTrue("A message was duplicated", messages.add(message));
+		}
+
+		assertEquals("Messages were lost", threadCount * messagesPerThread,
+				messages.size());
+	}
+
+}
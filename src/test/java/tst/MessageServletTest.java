@@ -4,17 +4,30 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import srv.Client;
 import srv.MessageServlet;
+import srv.Metrics;
 import srv.Server;
+import srv.VersionFilter;
 
 public class MessageServletTest {
 	
@@ -23,6 +36,9 @@ public class MessageServletTest {
 	
 	/** The servlet under test */
 	private static final MessageServlet testServlet = new MessageServlet();
+
+	/** The filter which checks the user agent before the servlet */
+	private static final VersionFilter versionFilter = new VersionFilter();
 	
 	/** The valid user agent */
 	private static final String testUserAgent = "TESTING";
@@ -84,7 +100,7 @@ public class MessageServletTest {
 		when(request.getHeader("user-agent")).thenReturn(testUserAgent);
 
 		// Perform the HTTP POST
-		testServlet.doPost(request, response);
+		post(request, response);
 
 		// Check that the server *didn't* return a 404 error
 		try {
@@ -132,7 +148,7 @@ public class MessageServletTest {
 			when(request.getHeader("user-agent")).thenReturn(userAgent);
 
 			// Perform the HTTP POST
-			testServlet.doPost(request, response);
+			post(request, response);
 
 			// Check that the server returned a 404 error
 			try {
@@ -205,6 +221,42 @@ public class MessageServletTest {
 				response.equals("INVALID_REQUEST"));
 	}
 
+	/**
+	 * Tests that if a client sends a body containing a class which is not
+	 * permitted, that it is rejected with a 400 'bad request' error.
+	 */
+	@Test
+	public void testPlayerPostRejectedBody() {
+		// Create mock request and response objects
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		setValidHeaders(request, "-1", "false", "0", "0");
+
+		// Send a body containing a class which is not permitted
+		try {
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(new ArrayList<String>()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// Perform the HTTP POST
+		post(request, response);
+
+		// Check that the server returned a 400 error
+		try {
+			verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// Check that the rejection was counted, and no client was created
+		assertEquals("The rejected body was not counted",
+				1, Metrics.getCount(Metrics.BODIES_REJECTED));
+		assertTrue("A client was created for the rejected request",
+				Server.getClients().isEmpty());
+	}
+
 	/**
 	 * Tests that an initial GET_OPEN_CONNECTIONS request returns with NO_CONNECTIONS.
 	 */
@@ -682,6 +734,74 @@ public class MessageServletTest {
 	}
 	
 	
+	/**
+	 * Tests that a long poll request with nothing to report is held open,
+	 * and is answered as soon as a message is written to the client.
+	 */
+	@Test
+	public void testPlayerPostLongPollMessage() throws IOException {
+		// Set up a client
+		sendMockRequest("-1", "false", "GET_OPEN_CONNECTIONS", "0", "0");
+		Client client = Server.getClientFromID(0);
+
+		// Send a long poll request
+		MockServletOutputStream servletOutputStream =
+				new MockServletOutputStream();
+		AsyncContext asyncContext = sendLongPollRequest(servletOutputStream);
+
+		// Check that the request was held open
+		verify(asyncContext).setTimeout(anyLong());
+		verify(asyncContext, never()).complete();
+		assertNull("A response was sent before a message was written",
+				servletOutputStream.getAsString());
+
+		// Write a message to the client
+		client.writeMessage("START_GAME");
+
+		// Check that the message was sent, and the request completed
+		verify(asyncContext).complete();
+		assertEquals("The message was not sent",
+				";START_GAME", servletOutputStream.getAsString());
+		assertFalse("The message was not removed from the mailbox",
+				client.checkForMessages());
+
+		// Check that later messages are left for the next request
+		client.writeMessage("GAME_OVER");
+		verify(asyncContext, times(1)).complete();
+		assertTrue("A later message was lost", client.checkForMessages());
+	}
+
+	/**
+	 * Tests that a long poll request which receives no messages is answered
+	 * with INVALID_REQUEST when it times out.
+	 */
+	@Test
+	public void testPlayerPostLongPollTimeout() throws IOException {
+		// Set up a client
+		sendMockRequest("-1", "false", "GET_OPEN_CONNECTIONS", "0", "0");
+
+		// Send a long poll request
+		MockServletOutputStream servletOutputStream =
+				new MockServletOutputStream();
+		AsyncContext asyncContext = sendLongPollRequest(servletOutputStream);
+
+		// Time the request out
+		ArgumentCaptor<AsyncListener> listener =
+				ArgumentCaptor.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listener.capture());
+		listener.getValue().onTimeout(mock(AsyncEvent.class));
+
+		// Check that INVALID_REQUEST was sent
+		verify(asyncContext).complete();
+		assertEquals("The expected response (INVALID_REQUEST) was not returned",
+				"INVALID_REQUEST", servletOutputStream.getAsString());
+
+		// Check that later messages do not complete the request again
+		Server.getClientFromID(0).writeMessage("START_GAME");
+		verify(asyncContext, times(1)).complete();
+	}
+
+
 	/**
 	 * Sends a mock request to the servlet.
 	 * @param clientID - the client ID to send in the request headers
@@ -720,7 +840,7 @@ public class MessageServletTest {
 		}
 		
 		// Perform the HTTP POST
-		testServlet.doPost(request, response);
+		post(request, response);
 
 		// Check that the request headers are read
 		checkHeaders(request);
@@ -728,6 +848,50 @@ public class MessageServletTest {
 		return servletOutputStream.getAsString();
 	}
 	
+	/**
+	 * Sends a long poll request, with no instruction, from client 0.
+	 * <p>
+	 * The async context returned runs tasks as soon as they are started.
+	 * </p>
+	 * @param servletOutputStream - the stream to write the response to
+	 * @return the async context the request was held open with
+	 */
+	private static AsyncContext sendLongPollRequest(
+			MockServletOutputStream servletOutputStream) throws IOException {
+		// Create mock request, response and async context objects
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		AsyncContext asyncContext = mock(AsyncContext.class);
+
+		// Set the request headers
+		setValidHeaders(request, "0", "false", "0", "0");
+		when(request.getHeader("fh-client-longpoll")).thenReturn("1000");
+
+		// Set up the request and response
+		when(request.getInputStream()).thenReturn(
+				new MockServletInputStream(""));
+		when(response.getOutputStream()).thenReturn(servletOutputStream);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync()).thenReturn(asyncContext);
+
+		// Run started tasks immediately
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(asyncContext).start(any(Runnable.class));
+
+		// Perform the HTTP POST
+		post(request, response);
+
+		// Check that the request headers are read
+		checkHeaders(request);
+
+		return asyncContext;
+	}
+
 	/**
 	 * Set valid request headers.
 	 * <p>
@@ -758,4 +922,26 @@ public class MessageServletTest {
 		verify(request).getHeader("fh-client-score");
 	}
 
+	/**
+	 * Performs an HTTP POST, passing the request through the version
+	 * filter before the servlet.
+	 * @param request - the HTTP POST request to send
+	 * @param response - the response to send
+	 */
+	private static void post(final HttpServletRequest request,
+			final HttpServletResponse response) {
+		try {
+			versionFilter.doFilter(request, response, new FilterChain() {
+				@Override
+				public void doFilter(ServletRequest filteredRequest,
+						ServletResponse filteredResponse) {
+					testServlet.doPost(request, response);
+				}
+			});
+		} catch (IOException | ServletException e) {
+			e.printStackTrace();
+			fail("Request was not filtered correctly");
+		}
+	}
+
 }
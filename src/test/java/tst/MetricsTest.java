@@ -0,0 +1,84 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Gauge;
+import srv.Metrics;
+import srv.Server;
+
+public class MetricsTest {
+
+	/**
+	 * Resets the server and its metrics.
+	 */
+	@Before
+	public void setUp() {
+		Server.reset();
+	}
+
+
+	/**
+	 * Tests that the server's gauges measure its current state.
+	 */
+	@Test
+	public void testServerGauges() {
+		Server.handleClient(-1, "TEST_HOST", true, 3, 0);
+		Server.handleClient(-1, "TEST_CLIENT", false, 3, 0);
+		Server.getClients().get(1).writeMessage("HELLO");
+
+		assertEquals("The connected clients were not measured",
+				2, Metrics.getGaugeValue(Metrics.CLIENTS_CONNECTED));
+		assertEquals("The open hosts were not measured",
+				1, Metrics.getGaugeValue(Metrics.HOSTS_OPEN));
+		assertEquals("A pair was measured without any partners",
+				0, Metrics.getGaugeValue(Metrics.PAIRS_ACTIVE));
+		assertEquals("The waiting messages were not measured",
+				1, Metrics.getGaugeValue(Metrics.MAILBOX_MESSAGES));
+	}
+
+	/**
+	 * Tests that counters, gauges and histograms are written in the
+	 * Prometheus text format.
+	 */
+	@Test
+	public void testWriteTo() throws IOException {
+		Metrics.increment(Metrics.labelled("test_calls", "name", "a"));
+		Metrics.increment(Metrics.labelled("test_calls", "name", "b"));
+		Metrics.registerGauge("test_gauge", new Gauge() {
+			@Override
+			public long getValue() {
+				return 7;
+			}
+		});
+		Metrics.record(Metrics.labelled("test_latency", "name", "a"), 3);
+
+		StringBuilder out = new StringBuilder();
+		Metrics.writeTo(out);
+		String text = out.toString();
+
+		assertEquals("The counter's type was not written exactly once",
+				text.indexOf("# TYPE test_calls counter\n"),
+				text.lastIndexOf("# TYPE test_calls counter\n"));
+		assertTrue("A labelled counter was not written",
+				text.contains("test_calls{name=\"b\"} 1\n"));
+		assertTrue("The gauge was not written",
+				text.contains("# TYPE test_gauge gauge\ntest_gauge 7\n"));
+		assertTrue("The histogram's type was not written",
+				text.contains("# TYPE test_latency histogram\n"));
+		assertTrue("A histogram bucket was not written cumulatively",
+				text.contains("test_latency_bucket{name=\"a\",le=\"2\"} 0\n"
+						+ "test_latency_bucket{name=\"a\",le=\"4\"} 1\n"));
+		assertTrue("The final histogram bucket was not written",
+				text.contains("test_latency_bucket{name=\"a\",le=\"+Inf\"} 1\n"));
+		assertTrue("The histogram's sum was not written",
+				text.contains("test_latency_sum{name=\"a\"} 3\n"));
+		assertTrue("The histogram's count was not written",
+				text.contains("test_latency_count{name=\"a\"} 1\n"));
+	}
+
+}
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
 /**
@@ -45,9 +46,59 @@ public class MockServletInputStream extends ServletInputStream {
 	}
 	
 	
+	/**
+	 * Constructs a new mock servlet input stream.
+	 * <p>
+	 * The stream will be set up with the two objects specified,
+	 * one after the other.
+	 * </p>
+	 * @param first - the first object to be stored by the stream
+	 * @param second - the second object to be stored by the stream
+	 */
+	public MockServletInputStream(Object first, Object second) {
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutputStream = null;
+		try {
+			objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+			objectOutputStream.writeObject(first);
+			objectOutputStream.writeObject(second);
+			objectOutputStream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		byteArrayInputStream = new ByteArrayInputStream(
+				byteArrayOutputStream.toByteArray());
+	}
+	
+	
 	@Override
 	public int read() throws IOException {
 		return byteArrayInputStream.read();
 	}
 	
+	@Override
+	public boolean isFinished() {
+		return byteArrayInputStream.available() == 0;
+	}
+	
+	@Override
+	public boolean isReady() {
+		return true;
+	}
+	
+	/**
+	 * Passes the whole stream to the listener immediately.
+	 * @param readListener - the listener to notify
+	 */
+	@Override
+	public void setReadListener(ReadListener readListener) {
+		try {
+			readListener.onDataAvailable();
+			readListener.onAllDataRead();
+		} catch (IOException e) {
+			readListener.onError(e);
+		}
+	}
+	
 }
\ No newline at end of file
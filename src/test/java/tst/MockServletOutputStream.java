@@ -2,11 +2,15 @@ package tst;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map.Entry;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 
 /**
  * Class used for testing servlet output streams.
@@ -29,6 +33,24 @@ public class MockServletOutputStream extends ServletOutputStream {
 		byteArrayOutputStream.write(b);
 	}
 	
+	@Override
+	public boolean isReady() {
+		return true;
+	}
+	
+	/**
+	 * Tells the listener that the stream can be written to immediately.
+	 * @param writeListener - the listener to notify
+	 */
+	@Override
+	public void setWriteListener(WriteListener writeListener) {
+		try {
+			writeListener.onWritePossible();
+		} catch (IOException e) {
+			writeListener.onError(e);
+		}
+	}
+	
 	/**
 	 * Reads a string value from the stream.
 	 * @return the stream read as a string
@@ -47,6 +69,45 @@ public class MockServletOutputStream extends ServletOutputStream {
 		return null;
 	}
 	
+	/**
+	 * Reads every object from the stream.
+	 * @return the objects read from the stream, in order
+	 */
+	public List<Object> getAsObjects() {
+		final ByteArrayInputStream byteArrayInputStream =
+				new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+		List<Object> objects = new ArrayList<Object>();
+		
+		try {
+			ObjectInputStream objectInputStream =
+					new ObjectInputStream(byteArrayInputStream);
+			
+			while (true) {
+				objects.add(objectInputStream.readObject());
+			}
+		} catch (EOFException e) {
+			// The end of the stream has been reached
+		} catch (ClassNotFoundException | IOException e) {
+			//
+		}
+		
+		return objects;
+	}
+	
+	/**
+	 * Reads the raw contents of the stream as UTF-8 text.
+	 * @return the stream's contents
+	 */
+	public String getAsText() {
+		try {
+			return byteArrayOutputStream.toString("UTF-8");
+		} catch (IOException e) {
+			//
+		}
+		
+		return null;
+	}
+	
 	/**
 	 * Reads a byte array from the stream.
 	 * @return the stream read as a byte array
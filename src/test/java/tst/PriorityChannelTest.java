@@ -0,0 +1,197 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Frame;
+import srv.FramePool;
+import srv.FrameQueue;
+import srv.FrameQueue.OverflowPolicy;
+import srv.Metrics;
+import srv.PriorityChannel;
+import srv.Server;
+
+public class PriorityChannelTest {
+
+	/**
+	 * Resets the server and enables leak detection.
+	 */
+	@Before
+	public void setUpChannel() {
+		Server.reset();
+		FramePool.setLeakDetection(true);
+	}
+
+	/**
+	 * Disables leak detection.
+	 */
+	@After
+	public void tearDownChannel() {
+		FramePool.setLeakDetection(false);
+	}
+
+
+	/**
+	 * Tests that frames are sent again until they are acknowledged.
+	 */
+	@Test
+	public void testResend() {
+		FrameQueue queue = new FrameQueue(8, OverflowPolicy.REJECT);
+		PriorityChannel channel = new PriorityChannel(queue, 4);
+
+		Frame first = frame(1);
+		first.setStoredTime(42);
+		queue.offer(first);
+		queue.offer(frame(2));
+
+		// The first read is not acknowledged, so is sent again
+		List<Frame> frames = new ArrayList<Frame>();
+		assertEquals("The wrong sequence number was sent", 1,
+				channel.read(frames, 1));
+		assertEquals("The frame's stored time was not copied",
+				42, frames.get(0).getStoredTime());
+		release(frames);
+		assertEquals("The unacknowledged frame was not sent again", 1,
+				readAndRelease(channel, 1, 1));
+		assertEquals("The resent frame was not counted",
+				1, Metrics.getCount(Metrics.PRIORITY_FRAMES_RESENT));
+
+		// Once acknowledged, the next frame is sent
+		channel.acknowledge(1);
+		assertEquals("The next frame was not sent", 2,
+				readAndRelease(channel, 1, 2));
+
+		// Once every frame is acknowledged, nothing is sent
+		channel.acknowledge(2);
+		assertEquals("A frame was sent after every frame was acknowledged",
+				-1, channel.read(new ArrayList<Frame>(), 1));
+		assertEquals("The window is not empty", 0, channel.size());
+
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that no more frames are taken from the queue while the
+	 * window is full.
+	 */
+	@Test
+	public void testWindowFull() {
+		FrameQueue queue = new FrameQueue(8, OverflowPolicy.REJECT);
+		PriorityChannel channel = new PriorityChannel(queue, 2);
+
+		for (int i = 1; i <= 4; i++) {
+			queue.offer(frame(i));
+		}
+
+		// Only the frames in the window are read
+		List<Frame> frames = new ArrayList<Frame>();
+		assertEquals("The wrong sequence number was sent",
+				1, channel.read(frames, 8));
+		assertEquals("More frames than the window holds were read",
+				2, frames.size());
+		assertEquals("The frames were taken from a full window",
+				2, queue.size());
+		release(frames);
+
+		// Acknowledging a frame makes room for the next
+		channel.acknowledge(1);
+		assertEquals("The wrong sequence number was sent",
+				2, channel.read(frames, 8));
+		assertEquals("The wrong number of frames was read",
+				2, frames.size());
+		assertEquals("The frames were read in the wrong order",
+				3, frames.get(1).getBuffer()[0]);
+		release(frames);
+
+		channel.clear();
+		queue.clear();
+		FramePool.checkForLeaks();
+	}
+
+	/**
+	 * Tests that acknowledging frames which have not been sent does not
+	 * discard them.
+	 */
+	@Test
+	public void testAcknowledgeUnsent() {
+		FrameQueue queue = new FrameQueue(8, OverflowPolicy.REJECT);
+		PriorityChannel channel = new PriorityChannel(queue, 4);
+
+		queue.offer(frame(1));
+		queue.offer(frame(2));
+		queue.offer(frame(3));
+
+		// Only the first frame is sent, but the client acknowledges more
+		assertEquals("The wrong sequence number was sent", 1,
+				readAndRelease(channel, 1, 1));
+		channel.acknowledge(3);
+
+		assertEquals("Unsent frames were acknowledged", 2, channel.size());
+		assertEquals("The next frame was not sent", 2,
+				readAndRelease(channel, 1, 2));
+
+		// Acknowledging frames before any are sent releases nothing
+		channel.clear();
+		queue.offer(frame(4));
+		channel.acknowledge(100);
+		assertEquals("A frame was acknowledged before being sent",
+				4, readAndRelease(channel, 1, 4));
+
+		channel.clear();
+		FramePool.checkForLeaks();
+	}
+
+
+	/**
+	 * Reads a single frame from a channel, checks its contents, and
+	 * releases it.
+	 * @param channel - the channel to read from
+	 * @param limit - the maximum number of frames to read
+	 * @param expected - the value the frame should hold
+	 * @return the sequence number of the frame read
+	 */
+	private static long readAndRelease(PriorityChannel channel, int limit,
+			int expected) {
+		List<Frame> frames = new ArrayList<Frame>();
+		long sequence = channel.read(frames, limit);
+
+		assertEquals("The wrong number of frames was read", 1, frames.size());
+		assertEquals("The wrong frame was read",
+				expected, frames.get(0).getBuffer()[0]);
+		release(frames);
+
+		return sequence;
+	}
+
+	/**
+	 * Releases, and removes, every frame in a list.
+	 * @param frames - the frames to release
+	 */
+	private static void release(List<Frame> frames) {
+		for (Frame frame : frames) {
+			FramePool.release(frame);
+		}
+
+		frames.clear();
+	}
+
+	/**
+	 * Acquires a priority frame holding a single byte.
+	 * @param value - the byte to put in the frame
+	 * @return the frame
+	 */
+	private static Frame frame(int value) {
+		Frame frame = FramePool.acquire(1);
+		frame.getBuffer()[0] = (byte) value;
+		frame.setKey(-1);
+		frame.setRegion(0, 1);
+		return frame;
+	}
+
+}
@@ -0,0 +1,160 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Metrics;
+import srv.RateLimiter;
+import srv.Server;
+
+public class RateLimiterTest {
+
+	/**
+	 * Resets the server.
+	 */
+	@Before
+	public void setUpRateLimiter() {
+		Server.reset();
+	}
+
+
+	/**
+	 * Tests that a client is refused once it has used its burst, and is
+	 * told when to retry.
+	 */
+	@Test
+	public void testBurst() {
+		RateLimiter limiter = new RateLimiter("test");
+		HttpServletRequest request = request(null);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		String id = clientID("TEST_CLIENT");
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue("A request within the burst was refused",
+					limiter.admit(id, request, response, 0.5, 3));
+		}
+
+		assertFalse("A request beyond the burst was admitted",
+				limiter.admit(id, request, response, 0.5, 3));
+		verify(response).setStatus(RateLimiter.SC_TOO_MANY_REQUESTS);
+		verify(response).setHeader("Retry-After", "2");
+		assertEquals("The refused request was not counted", 1,
+				Metrics.getCount(Metrics.labelled(
+						Metrics.REQUESTS_THROTTLED, "limiter", "test")));
+	}
+
+	/**
+	 * Tests that clients are limited separately, by ID or by address.
+	 */
+	@Test
+	public void testKeys() {
+		RateLimiter limiter = new RateLimiter("test");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		assertTrue("The first client's request was refused",
+				limiter.admit(clientID("TEST_CLIENT_1"), request("10.0.0.1"),
+						response, 1, 1));
+		assertTrue("The second client's request was refused",
+				limiter.admit(clientID("TEST_CLIENT_2"), request("10.0.0.1"),
+						response, 1, 1));
+		assertTrue("The new client's request was refused",
+				limiter.admit("-1", request("10.0.0.1"), response, 1, 1));
+		assertFalse("The new client's second request was admitted",
+				limiter.admit(null, request("10.0.0.1"), response, 1, 1));
+		assertTrue("An unidentified client's request was refused",
+				limiter.admit(null, request(null), response, 1, 1));
+	}
+
+	/**
+	 * Tests that IDs which do not belong to a connected client are
+	 * limited by address.
+	 */
+	@Test
+	public void testUnknownIDs() {
+		RateLimiter limiter = new RateLimiter("test");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		assertTrue("The first request was refused",
+				limiter.admit("1000", request("10.0.0.1"), response, 1, 1));
+		assertFalse("A request with a new, unknown, ID was admitted",
+				limiter.admit("1001", request("10.0.0.1"), response, 1, 1));
+		assertFalse("A request with a malformed ID was admitted",
+				limiter.admit("x", request("10.0.0.1"), response, 1, 1));
+	}
+
+	/**
+	 * Tests that requests needing a new bucket are refused once every
+	 * bucket is in use.
+	 */
+	@Test
+	public void testBucketLimit() {
+		RateLimiter limiter = new RateLimiter("test");
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		// Fill every bucket
+		int admitted = 0;
+		for (int i = 0; i < 5000; i++) {
+			when(request.getRemoteAddr()).thenReturn("10.0." + i);
+
+			if (limiter.admit(null, request, response, 1, 1)) {
+				admitted++;
+			}
+		}
+
+		assertEquals("Requests were admitted beyond the bucket limit",
+				4096, admitted);
+		
+		// Requests are admitted again once buckets are freed
+		limiter.clear();
+		assertTrue("A request was refused after the buckets were cleared",
+				limiter.admit(null, request, response, 1, 1));
+	}
+
+	/**
+	 * Tests that a rate of zero admits every request.
+	 */
+	@Test
+	public void testDisabled() {
+		RateLimiter limiter = new RateLimiter("test");
+		HttpServletRequest request = request(null);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue("A request was refused while limiting was disabled",
+					limiter.admit("7", request, response, 0, 1));
+		}
+
+		verify(response, never()).setStatus(anyInt());
+	}
+
+
+	/**
+	 * Connects a new client to the server.
+	 * @param name - the client's name
+	 * @return the client's ID, as sent in the fh-client-id header
+	 */
+	private static String clientID(String name) {
+		return String.valueOf(
+				Server.handleClient(-1, name, false, 3, 0).getID());
+	}
+
+	/**
+	 * Creates a request from a client.
+	 * @param address - the client's remote address
+	 * @return the request
+	 */
+	private static HttpServletRequest request(String address) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRemoteAddr()).thenReturn(address);
+
+		return request;
+	}
+
+}
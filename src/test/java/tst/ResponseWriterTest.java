@@ -0,0 +1,101 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import org.junit.Test;
+
+import srv.ResponseWriter;
+
+public class ResponseWriterTest {
+
+	/**
+	 * Tests that a response is read back as the string written.
+	 */
+	@Test
+	public void testWriteTo() throws IOException, ClassNotFoundException {
+		ResponseWriter writer = new ResponseWriter();
+		writer.append("SET_SEED:").append(42L).append(';')
+				.append("START_GAME:1");
+
+		assertEquals("The response was not read back",
+				"SET_SEED:42;START_GAME:1", roundTrip(writer));
+	}
+
+	/**
+	 * Tests that characters outside ASCII (and the null character) are
+	 * encoded as an <code>ObjectOutputStream</code> would encode them.
+	 */
+	@Test
+	public void testWriteToUnicode()
+			throws IOException, ClassNotFoundException {
+		ResponseWriter writer = new ResponseWriter();
+		writer.append("caf\u00e9=1#\u4e2d\u0000=2#");
+
+		assertEquals("The response was not read back",
+				"caf\u00e9=1#\u4e2d\u0000=2#", roundTrip(writer));
+	}
+
+	/**
+	 * Tests that responses longer than 65535 bytes are read back.
+	 */
+	@Test
+	public void testWriteToLong() throws IOException, ClassNotFoundException {
+		ResponseWriter writer = new ResponseWriter();
+		StringBuilder expected = new StringBuilder();
+
+		for (int i = 0; i < 20000; i++) {
+			writer.append(i).append('#');
+			expected.append(i).append('#');
+		}
+
+		assertEquals("The response was not read back",
+				expected.toString(), roundTrip(writer));
+	}
+
+	/**
+	 * Tests that a released writer is reused, and is empty.
+	 */
+	@Test
+	public void testAcquireRelease() {
+		ResponseWriter writer = ResponseWriter.acquire();
+		writer.append("RESPONSE");
+
+		ResponseWriter nested = ResponseWriter.acquire();
+		assertNotSame("A writer in use was acquired", writer, nested);
+		nested.release();
+
+		writer.release();
+		ResponseWriter reused = ResponseWriter.acquire();
+
+		try {
+			assertSame("The released writer was not reused", writer, reused);
+			assertTrue("The released writer was not emptied",
+					reused.isEmpty());
+		} finally {
+			reused.release();
+		}
+	}
+
+
+	/**
+	 * Writes a response, and reads it back.
+	 * @param writer - the writer holding the response
+	 * @return the string read back
+	 */
+	private static String roundTrip(ResponseWriter writer)
+			throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		writer.writeTo(outputStream);
+
+		ObjectInputStream inputStream = new ObjectInputStream(
+				new ByteArrayInputStream(outputStream.toByteArray()));
+
+		return (String) inputStream.readObject();
+	}
+
+}
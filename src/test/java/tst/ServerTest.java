@@ -2,6 +2,8 @@ package tst;
 
 import static org.junit.Assert.*;
 
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -161,6 +163,44 @@ public class ServerTest {
 				Server.getPermittedVersions().contains(ver10));
 	}
 	
+	/**
+	 * Tests that versions ending in '*' permit every version with the
+	 * same prefix.
+	 */
+	@Test
+	public void testPrefixVersion() {
+		Server.addVersion("Fly-Hard-0.7.*");
+		
+		assertTrue("Version matching the prefix is *not* permitted",
+				Server.isVersionPermitted("Fly-Hard-0.7.3"));
+		assertFalse("Version not matching the prefix is permitted",
+				Server.isVersionPermitted("Fly-Hard-0.8.0"));
+		
+		Server.removeVersion("Fly-Hard-0.7.*");
+		
+		assertFalse("Version matching a removed prefix is permitted",
+				Server.isVersionPermitted("Fly-Hard-0.7.3"));
+	}
+	
+	/**
+	 * Tests that clearing the permitted versions leaves only the
+	 * default version.
+	 */
+	@Test
+	public void testClearPermittedVersions() {
+		Server.addVersion("Fly-Hard-0.1.0");
+		List<String> snapshot = Server.getPermittedVersions();
+		
+		Server.clearPermittedVersions();
+		
+		assertFalse("Cleared version is still permitted",
+				Server.isVersionPermitted("Fly-Hard-0.1.0"));
+		assertTrue("Default version is *not* permitted",
+				Server.isVersionPermitted("Fly-Hard-0.6"));
+		assertTrue("Earlier snapshot was changed",
+				snapshot.contains("Fly-Hard-0.1.0"));
+	}
+	
 	/**
 	 * Tests that high scores are removed correctly.
 	 */
@@ -0,0 +1,302 @@
+package tst;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.List;
+import java.util.Map.Entry;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.RateLimiter;
+import srv.Server;
+import srv.SyncServlet;
+import srv.VersionFilter;
+
+public class SyncServletTest {
+
+	/** The servlet config to use */
+	private static final ServletConfig servletConfig = mock(ServletConfig.class);
+
+	/** The servlet under test */
+	private static final SyncServlet testServlet = new SyncServlet();
+
+	/** The filter which checks the user agent before the servlet */
+	private static final VersionFilter versionFilter = new VersionFilter();
+
+	/** The valid user agent */
+	private static final String testUserAgent = "TESTING";
+
+
+	/**
+	 * Sets up the server and the servlet.
+	 */
+	@Before
+	public void setUpServlet() {
+		// Reset the server
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+
+		try {
+			testServlet.init(servletConfig);
+
+			// Add a test user agent to the list of accepted user agents
+			Server.addVersion(testUserAgent);
+		} catch (ServletException e) {
+			e.printStackTrace();
+			fail("Servlet was not set up correctly");
+		}
+	}
+
+
+	/**
+	 * Tests that clients with an invalid user agent are rejected with
+	 * a 404 'page not found' error.
+	 */
+	@Test
+	public void testDoPostFail() throws IOException {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		when(request.getHeader("user-agent")).thenReturn("Mozilla/5.0");
+
+		post(request, response);
+
+		verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	/**
+	 * Tests that an instruction with no data is handled, and that the
+	 * response is followed by a null data entry.
+	 */
+	@Test
+	public void testInstructionWithoutData() {
+		List<Object> response = sendMockRequest("-1", "false",
+				"GET_OPEN_CONNECTIONS", null);
+
+		assertEquals("The response did not contain two objects",
+				2, response.size());
+		assertEquals("The expected response (NO_CONNECTIONS) was not returned",
+				"NO_CONNECTIONS", response.get(0));
+		assertNull("A data entry was returned", response.get(1));
+	}
+
+	/**
+	 * Tests that data is relayed between partners, and that messages are
+	 * returned alongside the instruction responses.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testPartnersExchangeData() {
+		// Set up a pair of clients
+		// ClientID = 0
+		sendMockRequest("-1", "true", "GET_OPEN_CONNECTIONS", null);
+		// ClientID = 1
+		List<Object> joinResponse = sendMockRequest("-1", "false", "JOIN:0",
+				new SimpleImmutableEntry<Long, byte[]>(1L, "FROM_1".getBytes()));
+
+		assertTrue("The expected response (START_GAME) was not returned",
+				((String) joinResponse.get(0)).contains("START_GAME"));
+
+		// Send data from the host, and collect the data sent by the joiner
+		List<Object> hostResponse = sendMockRequest("0", "true", "",
+				new SimpleImmutableEntry<Long, byte[]>(1L, "FROM_0".getBytes()));
+
+		// Check that the host received its messages and the joiner's data
+		assertTrue("The host's messages were not returned",
+				((String) hostResponse.get(0)).contains("START_GAME"));
+		assertEquals("The joiner's data was not returned",
+				"FROM_1", new String(
+						((Entry<Long, byte[]>) hostResponse.get(1)).getValue()));
+
+		// Check that the joiner receives the host's data
+		List<Object> joinerResponse = sendMockRequest("1", "false", "", null);
+		assertEquals("The host's data was not returned",
+				"FROM_0", new String(
+						((Entry<Long, byte[]>) joinerResponse.get(1)).getValue()));
+	}
+
+
+	/**
+	 * Tests that priority frames are sent first, and sent again until the
+	 * client acknowledges them.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testPriorityAcks() {
+		// Set up a pair of clients
+		sendMockRequest("-1", "true", "GET_OPEN_CONNECTIONS", null);
+		sendMockRequest("-1", "false", "JOIN:0", null);
+
+		// Send the joiner a priority frame, followed by a normal frame
+		sendMockRequest("0", "true", "", new SimpleImmutableEntry<Long,
+				byte[]>(-1L, "FROM_0_PRIORITY".getBytes()));
+		sendMockRequest("0", "true", "", new SimpleImmutableEntry<Long,
+				byte[]>(1L, "FROM_0".getBytes()));
+
+		// The joiner does not acknowledge the frame, so it is sent twice
+		for (int i = 0; i < 2; i++) {
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			List<Object> joinerResponse = sendMockRequest(response, "1",
+					"false", "", null, "0");
+
+			assertEquals("The priority frame was not sent", Long.valueOf(-1),
+					((Entry<Long, byte[]>) joinerResponse.get(1)).getKey());
+			verify(response).setHeader("fh-client-priority-seq", "1");
+		}
+
+		// Once acknowledged, the joiner is sent the normal frame
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		List<Object> joinerResponse = sendMockRequest(response, "1",
+				"false", "", null, "1");
+
+		assertEquals("The normal frame was not sent", "FROM_0", new String(
+				((Entry<Long, byte[]>) joinerResponse.get(1)).getValue()));
+		verify(response, never()).setHeader(
+				eq("fh-client-priority-seq"), anyString());
+	}
+
+
+	/**
+	 * Tests that requests carrying instructions are limited by the
+	 * instruction rate limit, but requests carrying only data are not.
+	 */
+	@Test
+	public void testInstructionRateLimit() throws IOException {
+		double instructionRateLimit = Server.instructionRateLimit;
+		int instructionBurst = Server.instructionBurst;
+		
+		try {
+			Server.instructionRateLimit = 0.5;
+			Server.instructionBurst = 2;
+			
+			// ClientID = 0 (this request is limited by address)
+			sendMockRequest("-1", "true", "GET_OPEN_CONNECTIONS", null);
+			
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			for (int i = 0; i < 2; i++) {
+				sendMockRequest(response, "0", "true", "GET_OPEN_CONNECTIONS",
+						null, null);
+			}
+			verify(response, never()).setStatus(
+					RateLimiter.SC_TOO_MANY_REQUESTS);
+			
+			// The next instruction is refused, but data is still accepted
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getHeader("user-agent")).thenReturn(testUserAgent);
+			when(request.getHeader("fh-client-id")).thenReturn("0");
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream("GET_OPEN_CONNECTIONS", null));
+			
+			post(request, response);
+			verify(response).setStatus(RateLimiter.SC_TOO_MANY_REQUESTS);
+			
+			List<Object> dataResponse = sendMockRequest("0", "true", "",
+					new SimpleImmutableEntry<Long, byte[]>(1L,
+							"FROM_0".getBytes()));
+			assertEquals("A request without an instruction was refused",
+					2, dataResponse.size());
+		} finally {
+			Server.instructionRateLimit = instructionRateLimit;
+			Server.instructionBurst = instructionBurst;
+		}
+	}
+
+
+	/**
+	 * Sends a mock request to the servlet.
+	 * @param clientID - the client ID to send in the request headers
+	 * @param isHost - the host status to send in the request headers
+	 * @param instruction - the instruction to send to the servlet
+	 * @param dataEntry - the data entry to send to the servlet
+	 * @return the objects in the servlet's response
+	 */
+	private static List<Object> sendMockRequest(String clientID,
+			String isHost, String instruction, Entry<Long, byte[]> dataEntry) {
+		return sendMockRequest(mock(HttpServletResponse.class), clientID,
+				isHost, instruction, dataEntry, null);
+	}
+
+	/**
+	 * Sends a mock request to the servlet.
+	 * @param response - the (mock) response object to use
+	 * @param clientID - the client ID to send in the request headers
+	 * @param isHost - the host status to send in the request headers
+	 * @param instruction - the instruction to send to the servlet
+	 * @param dataEntry - the data entry to send to the servlet
+	 * @param ack - the priority sequence number to acknowledge (or
+	 * 				<code>null</code> to not acknowledge priority frames)
+	 * @return the objects in the servlet's response
+	 */
+	private static List<Object> sendMockRequest(HttpServletResponse response,
+			String clientID, String isHost, String instruction,
+			Entry<Long, byte[]> dataEntry, String ack) {
+		// Create a mock request object
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		MockServletOutputStream servletOutputStream =
+				new MockServletOutputStream();
+
+		// Set the request headers
+		when(request.getHeader("user-agent")).thenReturn(testUserAgent);
+		when(request.getHeader("fh-client-id")).thenReturn(clientID);
+		when(request.getHeader("fh-client-name")).thenReturn("TEST_CLIENT");
+		when(request.getHeader("fh-client-host")).thenReturn(isHost);
+		when(request.getHeader("fh-client-lives")).thenReturn("0");
+		when(request.getHeader("fh-client-score")).thenReturn("0");
+		when(request.getHeader("fh-client-priority-ack")).thenReturn(ack);
+
+		// Set up the input and output streams
+		try {
+			when(request.getInputStream()).thenReturn(
+					new MockServletInputStream(instruction, dataEntry));
+			when(response.getOutputStream()).thenReturn(servletOutputStream);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// Perform the HTTP POST
+		post(request, response);
+
+		// Check that the request headers are read once each
+		verify(request).getHeader("fh-client-id");
+		verify(request).getHeader("fh-client-name");
+		verify(request).getHeader("fh-client-lives");
+		verify(request).getHeader("fh-client-score");
+
+		return servletOutputStream.getAsObjects();
+	}
+
+	/**
+	 * Performs an HTTP POST, passing the request through the version
+	 * filter before the servlet.
+	 * @param request - the HTTP POST request to send
+	 * @param response - the response to send
+	 */
+	private static void post(final HttpServletRequest request,
+			final HttpServletResponse response) {
+		try {
+			versionFilter.doFilter(request, response, new FilterChain() {
+				@Override
+				public void doFilter(ServletRequest filteredRequest,
+						ServletResponse filteredResponse) {
+					testServlet.doPost(request, response);
+				}
+			});
+		} catch (IOException | ServletException e) {
+			e.printStackTrace();
+			fail("Request was not filtered correctly");
+		}
+	}
+
+}
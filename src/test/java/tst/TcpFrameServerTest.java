@@ -0,0 +1,296 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Client;
+import srv.Server;
+import srv.TcpFrameServer;
+
+public class TcpFrameServerTest {
+
+	/** The valid user agent */
+	private static final String testUserAgent = "TESTING";
+
+	/** The server under test */
+	private TcpFrameServer tcpFrameServer;
+
+
+	/**
+	 * Resets the server, and starts a TCP frame server on a free port.
+	 */
+	@Before
+	public void setUpTcpFrameServer() throws IOException {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+		Server.addVersion(testUserAgent);
+
+		tcpFrameServer = new TcpFrameServer(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0));
+		tcpFrameServer.start();
+	}
+
+	/**
+	 * Stops the TCP frame server.
+	 */
+	@After
+	public void tearDownTcpFrameServer() {
+		tcpFrameServer.stop();
+	}
+
+
+	/**
+	 * Tests that frames sent by a client are relayed to its partner.
+	 */
+	@Test
+	public void testRelay() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT1", true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2", true, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+
+		Socket clientSocket = connect(client, testUserAgent);
+		Socket partnerSocket = connect(partner, testUserAgent);
+
+		try {
+			sendFrame(clientSocket, 5, "TEST".getBytes());
+
+			DataInputStream in = new DataInputStream(
+					partnerSocket.getInputStream());
+			assertEquals("The frame's length was not sent", 12, in.readInt());
+			assertEquals("The frame's key was not sent", 5, in.readLong());
+
+			byte[] data = new byte[4];
+			in.readFully(data);
+			assertEquals("The frame's data was not sent",
+					"TEST", new String(data));
+		} finally {
+			clientSocket.close();
+			partnerSocket.close();
+		}
+	}
+
+	/**
+	 * Tests that connections with an ID which hasn't been issued
+	 * are closed.
+	 */
+	@Test
+	public void testInvalidClient() throws IOException {
+		Socket socket = connect(10, 0, testUserAgent);
+
+		try {
+			assertClosed(socket);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Tests that connections with the wrong token are closed.
+	 */
+	@Test
+	public void testInvalidToken() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Socket socket = connect(client.getID(), client.getUdpToken() + 1,
+				testUserAgent);
+
+		try {
+			assertClosed(socket);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Tests that connections are refused while too many connections have
+	 * not identified themselves.
+	 */
+	@Test
+	public void testUnidentifiedLimit()
+			throws IOException, InterruptedException {
+		List<Socket> sockets = new ArrayList<Socket>();
+
+		try {
+			for (int i = 0; i < TcpFrameServer.MAX_UNIDENTIFIED_CONNECTIONS;
+					i++) {
+				sockets.add(new Socket(InetAddress.getLoopbackAddress(),
+						tcpFrameServer.getPort()));
+			}
+
+			Socket refused = new Socket(InetAddress.getLoopbackAddress(),
+					tcpFrameServer.getPort());
+			refused.setSoTimeout(5000);
+			sockets.add(refused);
+			assertClosed(refused);
+
+			// Once a connection is closed, another can be opened (when the
+			// server has noticed the connection closing)
+			sockets.get(0).close();
+			Client client = Server.handleClient(-1, "TEST_CLIENT",
+					false, 0, 0);
+			boolean opened = false;
+			for (int i = 0; i < 100 && !opened; i++) {
+				Socket socket = connect(client, testUserAgent);
+				socket.setSoTimeout(50);
+				sockets.add(socket);
+
+				try {
+					socket.getInputStream().read();
+				} catch (SocketTimeoutException e) {
+					// The connection was kept open
+					opened = true;
+				} catch (SocketException e) {
+					// The connection was refused
+				}
+
+				if (!opened) {
+					Thread.sleep(10);
+				}
+			}
+
+			assertTrue("A connection was refused after one was closed",
+					opened);
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Tests that connections from versions which are not permitted
+	 * are closed.
+	 */
+	@Test
+	public void testInvalidVersion() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT", false, 0, 0);
+		Socket socket = connect(client, "Mozilla/5.0");
+
+		try {
+			assertClosed(socket);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Tests that when a client's partner's priority queue is full, the
+	 * client is told to back off.
+	 */
+	@Test
+	public void testBackpressure() throws IOException {
+		int priorityQueueCapacity = Server.priorityQueueCapacity;
+		Socket socket = null;
+
+		try {
+			Server.priorityQueueCapacity = 2;
+
+			Client client = Server.handleClient(-1, "TEST_CLIENT1",
+					true, 0, 0);
+			Client partner = Server.handleClient(-1, "TEST_CLIENT2",
+					true, 0, 0);
+			client.setPartner(partner);
+			partner.setPartner(client);
+
+			// Fill the partner's priority queue, then overflow it
+			socket = connect(client, testUserAgent);
+			for (int i = 0; i < 3; i++) {
+				sendFrame(socket, -1, "TEST_PRIORITY".getBytes());
+			}
+
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			assertEquals("The client was not told to back off",
+					0, in.readInt());
+
+			partner.clearData();
+		} finally {
+			Server.priorityQueueCapacity = priorityQueueCapacity;
+
+			if (socket != null) {
+				socket.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Opens a connection to the server, and identifies the client with
+	 * its ID and token.
+	 * @param client - the client
+	 * @param version - the client's version
+	 * @return the connection's socket
+	 */
+	private Socket connect(Client client, String version)
+			throws IOException {
+		return connect(client.getID(), client.getUdpToken(), version);
+	}
+
+	/**
+	 * Opens a connection to the server, and identifies the client.
+	 * @param id - the client's ID
+	 * @param token - the client's token
+	 * @param version - the client's version
+	 * @return the connection's socket
+	 */
+	private Socket connect(long id, long token, String version)
+			throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				tcpFrameServer.getPort());
+		socket.setSoTimeout(5000);
+
+		byte[] versionBytes = version.getBytes("UTF-8");
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(TcpFrameServer.KEY_LENGTH + TcpFrameServer.TOKEN_LENGTH
+				+ versionBytes.length);
+		out.writeLong(id);
+		out.writeLong(token);
+		out.write(versionBytes);
+		out.flush();
+
+		return socket;
+	}
+
+	/**
+	 * Sends a frame over a connection.
+	 * @param socket - the connection's socket
+	 * @param key - the frame's key
+	 * @param data - the frame's data
+	 */
+	private static void sendFrame(Socket socket, long key, byte[] data)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(TcpFrameServer.KEY_LENGTH + data.length);
+		out.writeLong(key);
+		out.write(data);
+		out.flush();
+	}
+
+	/**
+	 * Checks that the server has closed a connection.
+	 * @param socket - the connection's socket
+	 */
+	private static void assertClosed(Socket socket) throws IOException {
+		try {
+			assertEquals("The connection was not closed",
+					-1, socket.getInputStream().read());
+		} catch (EOFException e) {
+			// The connection was closed
+		}
+	}
+
+}
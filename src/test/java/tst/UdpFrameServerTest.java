@@ -0,0 +1,147 @@
+package tst;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import srv.Client;
+import srv.InstructionHandler;
+import srv.Metrics;
+import srv.Server;
+import srv.UdpFrameServer;
+
+public class UdpFrameServerTest {
+
+	/** The server under test */
+	private UdpFrameServer udpFrameServer;
+
+	/** The socket used to send packets */
+	private DatagramSocket socket;
+
+
+	/**
+	 * Resets the server, and starts a UDP frame server on a free port.
+	 */
+	@Before
+	public void setUpUdpFrameServer() throws IOException {
+		Server.reset();
+		Server.clearRemoveClientsTimer();
+
+		udpFrameServer = new UdpFrameServer(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0));
+		udpFrameServer.start();
+
+		socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		socket.setSoTimeout(5000);
+	}
+
+	/**
+	 * Stops the UDP frame server.
+	 */
+	@After
+	public void tearDownUdpFrameServer() {
+		socket.close();
+		udpFrameServer.stop();
+	}
+
+
+	/**
+	 * Tests that frames sent by a client are relayed to its partner,
+	 * using the token issued by the GET_UDP_TOKEN instruction.
+	 */
+	@Test
+	public void testRelay() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT1", true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2", true, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+
+		// Get the client's token
+		String response = InstructionHandler.handleInstruction(client,
+				"GET_UDP_TOKEN");
+		assertTrue("The token was not issued",
+				response.startsWith("UDP_TOKEN" + InstructionHandler.DELIM));
+		long token = Long.parseLong(response.substring(response
+				.indexOf(InstructionHandler.DELIM) + 1));
+
+		// Send a frame, then receive it as the partner
+		send(client.getID(), token, 5L, "TEST");
+		send(partner.getID(), partner.getUdpToken(), null, null);
+
+		ByteBuffer reply = receive();
+		assertEquals("The frame's key was not sent", 5, reply.getLong());
+		assertEquals("The frame's data was not sent", "TEST",
+				new String(reply.array(), reply.position(),
+						reply.remaining()));
+	}
+
+	/**
+	 * Tests that packets without a valid token, and priority frames,
+	 * are dropped.
+	 */
+	@Test
+	public void testRejected() throws IOException {
+		Client client = Server.handleClient(-1, "TEST_CLIENT1", true, 0, 0);
+		Client partner = Server.handleClient(-1, "TEST_CLIENT2", true, 0, 0);
+		client.setPartner(partner);
+		partner.setPartner(client);
+
+		// Send frames which would supersede the valid one if accepted
+		send(client.getID(), client.getUdpToken() + 1, 3L, "BAD_TOKEN");
+		send(client.getID(), client.getUdpToken(), -1L, "BAD_PRIORITY");
+		send(client.getID(), client.getUdpToken(), 1L, "GOOD");
+		send(partner.getID(), partner.getUdpToken(), null, null);
+
+		ByteBuffer reply = receive();
+		assertEquals("The wrong frame was relayed", 1, reply.getLong());
+		assertEquals("The packets were not counted as rejected",
+				2, Metrics.getCount(Metrics.UDP_PACKETS_REJECTED));
+	}
+
+
+	/**
+	 * Sends a packet to the server.
+	 * @param id - the client's ID
+	 * @param token - the client's token
+	 * @param key - the frame's key, or <code>null</code> to send no frame
+	 * @param data - the frame's data
+	 */
+	private void send(long id, long token, Long key, String data)
+			throws IOException {
+		ByteBuffer packet = ByteBuffer.allocate(
+				UdpFrameServer.MAX_PACKET_LENGTH);
+		packet.putLong(id);
+		packet.putLong(token);
+
+		if (key != null) {
+			packet.putLong(key);
+			packet.put(data.getBytes());
+		}
+
+		socket.send(new DatagramPacket(packet.array(), packet.position(),
+				InetAddress.getLoopbackAddress(), udpFrameServer.getPort()));
+	}
+
+	/**
+	 * Receives a packet from the server.
+	 * @return a buffer holding the packet
+	 */
+	private ByteBuffer receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(
+				new byte[UdpFrameServer.MAX_PACKET_LENGTH],
+				UdpFrameServer.MAX_PACKET_LENGTH);
+		socket.receive(packet);
+
+		return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+	}
+
+}